@@ -0,0 +1,811 @@
+package org.gicentre.geomap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PVector;
+
+// *****************************************************************************************
+/** Hierarchical clustering of the point features of a geoMap for drawing at different scales.
+ *  Clusters are calculated once for a series of zoom levels. At zoom level 0 points are grouped
+ *  within a radius equal to the larger side of the points' bounding box, and the radius halves at
+ *  each level after that. Each level groups the clusters of the next finer level, starting with the
+ *  points themselves. Any item not yet in a cluster is grouped with its unclustered neighbours within
+ *  the level's radius, which are found with a hashed grid of cells.
+ *  <br>
+ *  When drawn, the zoom level is chosen so that points are grouped within the cluster radius on
+ *  screen. Clusters are shown as circles labelled with the number of points they contain. When
+ *  zoomed in beyond the last level, individual points are drawn. The IDs of the features
+ *  represented by a cluster can be found from its position on screen.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ClusterIndex
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private static final long COL_BITS = 0x5555555555555555L;	// Bits of a Z-order key holding the column.
+	private static final long ROW_BITS = 0xaaaaaaaaaaaaaaaaL;	// Bits of a Z-order key holding the row.
+
+	private GeoMap geoMap;				// GeoMap providing the point features.
+	private PApplet parent;				// Parent sketch.
+	private float radius;				// Cluster radius in screen pixels.
+	private int maxZoom;				// Finest zoom level at which points are clustered.
+	private int labelColour;			// Colour of the count shown on each cluster.
+
+	private int[] pointIDs;				// Feature ID of each point.
+	private float minX, minY;			// Lower corner of the points' bounding box.
+	private double baseRadius;			// Cluster radius at zoom level 0 in geographic units.
+	private float[][] levelX, levelY;	// Location of each cluster at each level (points at the last level).
+	private int[][] levelCount;			// Number of points in each cluster at each level.
+	private int[][] childStart;			// Index in children of the first child of each cluster.
+	private int[][] children;			// Items at the next finer level belonging to each cluster.
+
+	private long[] slots;				// Key and first item of the cell using each slot of the hash table of grid cells while building.
+	private float[] itemGaps;			// Lower bound of the distance from each single point item to any other point while building.
+	private double gapError;			// Allowance for rounding when comparing gaps with the cluster radius while building.
+	private int[] nextInSlot;			// Next item in the same cell as each item, or -1 if there are no more.
+	private long[] itemKeys;			// Key of the grid cell containing each item.
+	private int[] parents;				// Cluster containing each item.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Creates a cluster index for the point and multipoint features of the given geoMap. By default
+	 *  clusters have a radius of 40 pixels and points are clustered at 16 zoom levels after level 0.
+	 *  Each point of a multipoint feature is clustered separately. The index is calculated when
+	 *  <code>build()</code> is called.
+	 *  @param geoMap GeoMap providing the points to cluster.
+	 *  @param parent The parent sketch.
+	 */
+	public ClusterIndex(GeoMap geoMap, PApplet parent)
+	{
+		this.geoMap = geoMap;
+		this.parent = parent;
+		this.radius = 40;
+		this.maxZoom = 16;
+		this.labelColour = 0xffffffff;
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Sets the radius within which points are clustered.
+	 *  @param radius Cluster radius in screen pixels.
+	 */
+	public void setRadius(float radius)
+	{
+		if (radius <= 0)
+		{
+			System.err.println("Cluster radius must be greater than 0, so ignoring "+radius);
+			return;
+		}
+		this.radius = radius;
+	}
+
+	/** Sets the finest zoom level at which points are clustered. Changes take effect when the index is next built.
+	 *  @param maxZoom Finest zoom level, between 0 and 30.
+	 */
+	public void setMaxZoom(int maxZoom)
+	{
+		if ((maxZoom < 0) || (maxZoom > 30))
+		{
+			System.err.println("Maximum cluster zoom level must be between 0 and 30, so ignoring "+maxZoom);
+			return;
+		}
+		this.maxZoom = maxZoom;
+	}
+
+	/** Sets the colour used to show the number of points in each cluster.
+	 *  @param labelColour Colour of cluster labels.
+	 */
+	public void setLabelColour(int labelColour)
+	{
+		this.labelColour = labelColour;
+	}
+
+	/** Calculates the clusters at each zoom level from the geoMap's current point features.
+	 */
+	public void build()
+	{
+		int numLevels = maxZoom+1;
+		levelX = new float[numLevels+1][];
+		levelY = new float[numLevels+1][];
+		levelCount = new int[numLevels+1][];
+		childStart = new int[numLevels][];
+		children = new int[numLevels][];
+		gatherPoints();
+		int numPoints = pointIDs.length;
+
+		int[] ones = new int[numPoints];
+		Arrays.fill(ones, 1);
+		levelCount[numLevels] = ones;
+
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		minX = Float.MAX_VALUE;
+		minY = Float.MAX_VALUE;
+		float[] x = levelX[numLevels];
+		float[] y = levelY[numLevels];
+		for (int i=0; i<numPoints; i++)
+		{
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		baseRadius = (numPoints == 0) ? 1 : Math.max(maxX-minX, maxY-minY);
+		if (baseRadius <= 0)
+		{
+			baseRadius = 1;
+		}
+
+		sortPoints();
+
+		int tableSize = Integer.highestOneBit(Math.max(2*numPoints, 4)-1) << 1;
+		slots = new long[2*tableSize];
+		nextInSlot = new int[numPoints];
+		itemKeys = new long[numPoints];
+		parents = new int[numPoints];
+		float maxCoord = Math.max(Math.max(Math.abs(minX), Math.abs(maxX)), Math.max(Math.abs(minY), Math.abs(maxY)));
+		gapError = 4*(maxZoom+2)*Math.ulp(maxCoord);
+		findGaps((numPoints < 2) ? 0 : ((double)maxX-minX)*((double)maxY-minY));
+		for (int zoom=maxZoom; zoom>=0; zoom--)
+		{
+			cluster(zoom);
+		}
+		slots = null;
+		itemGaps = null;
+		nextInSlot = null;
+		itemKeys = null;
+		parents = null;
+	}
+
+	/** Reports the zoom level used when drawing at the scale of the given transformation.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 *  @return Zoom level, or -1 if the scale is finer than the last zoom level so individual points are shown.
+	 */
+	public int getZoom(Geographic transformer)
+	{
+		double geoRadius = radius/Math.abs(geoMap.getLinearTransform(transformer)[1]);
+		if (geoRadius >= baseRadius)
+		{
+			return 0;
+		}
+		int zoom = (int)Math.ceil(Math.log(baseRadius/geoRadius)/Math.log(2));
+		return (zoom > maxZoom) ? -1 : zoom;
+	}
+
+	/** Reports the number of clusters at the given zoom level. Single points that are not grouped with
+	 *  any other are counted as clusters of one point.
+	 *  @param zoom Zoom level, or -1 for the individual points.
+	 *  @return Number of clusters.
+	 */
+	public int getNumClusters(int zoom)
+	{
+		return levelCount[getLevel(zoom)].length;
+	}
+
+	/** Reports the location of a cluster, which is the mean location of its points.
+	 *  @param zoom Zoom level, or -1 for the individual points.
+	 *  @param cluster Index of the cluster at the given zoom level.
+	 *  @return Geographic location of the cluster.
+	 */
+	public PVector getLocation(int zoom, int cluster)
+	{
+		int level = getLevel(zoom);
+		return new PVector(levelX[level][cluster], levelY[level][cluster]);
+	}
+
+	/** Reports the number of points in a cluster.
+	 *  @param zoom Zoom level, or -1 for the individual points.
+	 *  @param cluster Index of the cluster at the given zoom level.
+	 *  @return Number of points in the cluster.
+	 */
+	public int getCount(int zoom, int cluster)
+	{
+		return levelCount[getLevel(zoom)][cluster];
+	}
+
+	/** Reports the IDs of the features whose points make up a cluster. A multipoint feature with
+	 *  several points in the cluster has its ID reported once for each of them.
+	 *  @param zoom Zoom level, or -1 for the individual points.
+	 *  @param cluster Index of the cluster at the given zoom level.
+	 *  @return IDs of features in the cluster.
+	 */
+	public int[] getIDs(int zoom, int cluster)
+	{
+		int level = getLevel(zoom);
+		int[] ids = new int[levelCount[level][cluster]];
+		int numIDs = 0;
+
+		// Descend level by level, replacing each cluster with its children until points are reached.
+		int[] items = {cluster};
+		int numItems = 1;
+		for (int l=level; l<children.length; l++)
+		{
+			int numChildren = 0;
+			for (int i=0; i<numItems; i++)
+			{
+				numChildren += childStart[l][items[i]+1] - childStart[l][items[i]];
+			}
+			int[] next = new int[numChildren];
+			numChildren = 0;
+			for (int i=0; i<numItems; i++)
+			{
+				int start = childStart[l][items[i]];
+				int end = childStart[l][items[i]+1];
+				System.arraycopy(children[l], start, next, numChildren, end-start);
+				numChildren += end-start;
+			}
+			items = next;
+			numItems = numChildren;
+		}
+		for (int i=0; i<numItems; i++)
+		{
+			ids[numIDs++] = pointIDs[items[i]];
+		}
+		return ids;
+	}
+
+	/** Finds the cluster whose marker contains the given screen location when drawn at the scale of the
+	 *  given transformation.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 *  @param screenX x coordinate of the screen location.
+	 *  @param screenY y coordinate of the screen location.
+	 *  @return Index of the cluster at the zoom level given by <code>getZoom()</code>, or -1 if none found.
+	 */
+	public int getCluster(Geographic transformer, float screenX, float screenY)
+	{
+		if (levelX == null)
+		{
+			return -1;
+		}
+		int zoom = getZoom(transformer);
+		int level = getLevel(zoom);
+		float[] x = levelX[level];
+		float[] y = levelY[level];
+		int[] count = levelCount[level];
+		double[] transform = geoMap.getLinearTransform(transformer);
+		double originX = transform[0], scaleX = transform[1];
+		double originY = transform[2], scaleY = transform[3];
+		double pointTolSq = Point.getToleranceSq()*scaleX*scaleX;
+
+		int nearest = -1;
+		double minDistSq = Double.MAX_VALUE;
+		for (int i=0; i<x.length; i++)
+		{
+			double dx = originX + x[i]*scaleX - screenX;
+			double dy = originY + y[i]*scaleY - screenY;
+			double distSq = dx*dx + dy*dy;
+			float markerRadius = (count[i] == 1) ? 0 : getDiameter(count[i])/2;
+			if ((distSq <= Math.max(markerRadius*markerRadius, pointTolSq)) && (distSq < minDistSq))
+			{
+				minDistSq = distSq;
+				nearest = i;
+			}
+		}
+		return nearest;
+	}
+
+	/** Reports the IDs of the features represented by the marker at the given screen location when drawn
+	 *  at the scale of the given transformation.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 *  @param screenX x coordinate of the screen location.
+	 *  @param screenY y coordinate of the screen location.
+	 *  @return IDs of features represented by the marker, or an empty array if there is no marker at the location.
+	 */
+	public int[] getIDs(Geographic transformer, float screenX, float screenY)
+	{
+		int cluster = getCluster(transformer, screenX, screenY);
+		if (cluster < 0)
+		{
+			return new int[0];
+		}
+		return getIDs(getZoom(transformer), cluster);
+	}
+
+	/** Draws the clusters suited to the scale of the given transformation. Clusters are drawn as circles
+	 *  using the sketch's current style with an area that increases with the number of points in them.
+	 *  Single points are drawn as points.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 */
+	public void draw(Geographic transformer)
+	{
+		if (levelX == null)
+		{
+			return;
+		}
+		int zoom = getZoom(transformer);
+		int level = getLevel(zoom);
+		float[] x = levelX[level];
+		float[] y = levelY[level];
+		int[] count = levelCount[level];
+		double[] transform = geoMap.getLinearTransform(transformer);
+		double originX = transform[0], scaleX = transform[1];
+		double originY = transform[2], scaleY = transform[3];
+		float margin = 2*radius;
+
+		parent.beginShape(PConstants.POINTS);
+		for (int i=0; i<x.length; i++)
+		{
+			if (count[i] == 1)
+			{
+				parent.vertex((float)(originX + x[i]*scaleX), (float)(originY + y[i]*scaleY));
+			}
+		}
+		parent.endShape();
+
+		for (int i=0; i<x.length; i++)
+		{
+			float sx = (float)(originX + x[i]*scaleX);
+			float sy = (float)(originY + y[i]*scaleY);
+			if ((count[i] > 1) && (sx >= -margin) && (sx <= parent.width+margin) && (sy >= -margin) && (sy <= parent.height+margin))
+			{
+				float diameter = getDiameter(count[i]);
+				parent.ellipse(sx, sy, diameter, diameter);
+				parent.pushStyle();
+				parent.fill(labelColour);
+				parent.textAlign(PConstants.CENTER, PConstants.CENTER);
+				parent.text(String.valueOf(count[i]), sx, sy);
+				parent.popStyle();
+			}
+		}
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Finds a lower bound of the distance from each point to its nearest other point. Points are stored in a
+	 *  grid with cells twice their typical spacing wide, so any point within the typical spacing of another is
+	 *  in its own cell or the three cells nearest to it, and the bound is the typical spacing where none is.
+	 *  @param area Area of the points' bounding box in geographic units.
+	 */
+	private void findGaps(double area)
+	{
+		float[] x = levelX[levelX.length-1];
+		float[] y = levelY[levelY.length-1];
+		int n = x.length;
+		itemGaps = new float[n];
+		double spacing = (area > 0) ? Math.sqrt(area/n)/2 : baseRadius/Math.max(n, 1);
+		double cellsPerUnit = 1/(2*spacing);
+
+		int tableSize = Integer.highestOneBit(Math.max(2*n, 4)-1) << 1;
+		int shift = Integer.numberOfTrailingZeros(tableSize);
+		IntStream.range(0, n).parallel().forEach(i ->
+			itemKeys[i] = getKey((int)((x[i]-minX)*cellsPerUnit), (int)((y[i]-minY)*cellsPerUnit)));
+		for (int slot=0; slot<tableSize; slot++)
+		{
+			slots[2*slot+1] = -1;
+		}
+		for (int i=n-1; i>=0; i--)
+		{
+			int slot = findSlot(itemKeys[i], tableSize-1, shift);
+			slots[2*slot] = itemKeys[i];
+			nextInSlot[i] = (int)slots[2*slot+1];
+			slots[2*slot+1] = i;
+		}
+
+		long[] keys = new long[4];
+		for (int i=0; i<n; i++)
+		{
+			double minDistSq = spacing*spacing;
+			int numKeys = getNearKeys(x[i], y[i], itemKeys[i], cellsPerUnit, keys);
+			for (int k=0; k<numKeys; k++)
+			{
+				for (int j=(int)slots[2*findSlot(keys[k], tableSize-1, shift)+1]; j>=0; j=nextInSlot[j])
+				{
+					if (j != i)
+					{
+						double dx = x[j]-x[i];
+						double dy = y[j]-y[i];
+						minDistSq = Math.min(minDistSq, dx*dx + dy*dy);
+					}
+				}
+			}
+			itemGaps[i] = (float)Math.sqrt(minDistSq);
+		}
+	}
+
+	/** Groups the items at the level finer than the given zoom level into clusters. Items are stored in
+	 *  a grid with cells twice the cluster radius wide, so the items within the radius of any item are in
+	 *  its own cell or the three cells nearest to it. Cells are stored in a hash table keyed by their Z-order
+	 *  key, where each slot holds the key of its cell next to its first item. Single points much further from
+	 *  any other point than the cluster radius, as most are at fine zoom levels, cannot be grouped with any
+	 *  other item so are left as clusters of their own without being stored.
+	 *  @param zoom Zoom level of the clusters to create.
+	 */
+	private void cluster(int zoom)
+	{
+		float[] x = levelX[zoom+1];
+		float[] y = levelY[zoom+1];
+		int[] count = levelCount[zoom+1];
+		int n = x.length;
+		double r = baseRadius/(1L << zoom);
+		double rSq = r*r;
+		double cellsPerUnit = 1/(2*r);
+
+		// The members of any cluster at the finer levels are within twice this level's radius of the cluster,
+		// so a point more than three times the radius from any other has no item within the radius.
+		final float minGap = (float)(3*r + gapError);
+		final boolean[] isolated = new boolean[n];
+		int numStored = 0;
+		for (int i=0; i<n; i++)
+		{
+			isolated[i] = (count[i] == 1) && (itemGaps[i] > minGap);
+			numStored += isolated[i] ? 0 : 1;
+		}
+
+		int tableSize = Integer.highestOneBit(Math.max(2*numStored, 4)-1) << 1;
+		int shift = Integer.numberOfTrailingZeros(tableSize);
+		IntStream.range(0, n).parallel().filter(i -> !isolated[i]).forEach(i ->
+			itemKeys[i] = getKey((int)((x[i]-minX)*cellsPerUnit), (int)((y[i]-minY)*cellsPerUnit)));
+		for (int slot=0; slot<tableSize; slot++)
+		{
+			slots[2*slot+1] = -1;
+		}
+
+		// Items are added in reverse so each cell lists its items in order.
+		for (int i=n-1; i>=0; i--)
+		{
+			if (!isolated[i])
+			{
+				int slot = findSlot(itemKeys[i], tableSize-1, shift);
+				slots[2*slot] = itemKeys[i];
+				nextInSlot[i] = (int)slots[2*slot+1];
+				slots[2*slot+1] = i;
+			}
+		}
+
+		Arrays.fill(parents, 0, n, -1);
+		float[] clusterX = new float[n];
+		float[] clusterY = new float[n];
+		int[] clusterCount = new int[n];
+		float[] clusterGaps = new float[n];
+		long[] keys = new long[4];
+		int[] heads = new int[4];
+		int numClusters = 0;
+		for (int i=0; i<n; i++)
+		{
+			if (parents[i] >= 0)
+			{
+				continue;
+			}
+			parents[i] = numClusters;
+			if (isolated[i])
+			{
+				clusterX[numClusters] = x[i];
+				clusterY[numClusters] = y[i];
+				clusterCount[numClusters] = 1;
+				clusterGaps[numClusters] = itemGaps[i];
+				numClusters++;
+				continue;
+			}
+
+			// Earlier items in the item's own cell have already been clustered, so only later ones are visited.
+			int numKeys = getNearKeys(x[i], y[i], itemKeys[i], cellsPerUnit, keys);
+			heads[0] = nextInSlot[i];
+			for (int k=1; k<numKeys; k++)
+			{
+				heads[k] = (int)slots[2*findSlot(keys[k], tableSize-1, shift)+1];
+			}
+
+			double sumX = (double)x[i]*count[i];
+			double sumY = (double)y[i]*count[i];
+			int total = count[i];
+			for (int k=0; k<numKeys; k++)
+			{
+				for (int j=heads[k]; j>=0; j=nextInSlot[j])
+				{
+					if (parents[j] < 0)
+					{
+						double dx = x[j]-x[i];
+						double dy = y[j]-y[i];
+						if (dx*dx + dy*dy <= rSq)
+						{
+							parents[j] = numClusters;
+							sumX += (double)x[j]*count[j];
+							sumY += (double)y[j]*count[j];
+							total += count[j];
+						}
+					}
+				}
+			}
+			clusterX[numClusters] = (float)(sumX/total);
+			clusterY[numClusters] = (float)(sumY/total);
+			clusterCount[numClusters] = total;
+			clusterGaps[numClusters] = (total == 1) ? itemGaps[i] : 0;
+			numClusters++;
+		}
+		levelX[zoom] = Arrays.copyOf(clusterX, numClusters);
+		levelY[zoom] = Arrays.copyOf(clusterY, numClusters);
+		levelCount[zoom] = Arrays.copyOf(clusterCount, numClusters);
+		itemGaps = clusterGaps;
+
+		// Group the items by cluster so that the members of each cluster can be found.
+		int[] starts = new int[numClusters+1];
+		for (int i=0; i<n; i++)
+		{
+			starts[parents[i]+1]++;
+		}
+		for (int c=0; c<numClusters; c++)
+		{
+			starts[c+1] += starts[c];
+		}
+		int[] members = new int[n];
+		int[] position = Arrays.copyOf(starts, numClusters);
+		for (int i=0; i<n; i++)
+		{
+			members[position[parents[i]]++] = i;
+		}
+		childStart[zoom] = starts;
+		children[zoom] = members;
+	}
+
+	/** Finds the keys of the cell holding an item and the three cells nearest to it, which together hold
+	 *  any items within the cluster radius of the item.
+	 *  @param x Geographic x coordinate of the item.
+	 *  @param y Geographic y coordinate of the item.
+	 *  @param key Z-order key of the cell holding the item.
+	 *  @param cellsPerUnit Number of grid cells per geographic unit.
+	 *  @param keys Array in which to store the keys, starting with the item's own cell.
+	 *  @return Number of keys stored, which is less than 4 for items near the lower edges of the grid.
+	 */
+	private int getNearKeys(float x, float y, long key, double cellsPerUnit, long[] keys)
+	{
+		double gridX = (x-minX)*cellsPerUnit;
+		double gridY = (y-minY)*cellsPerUnit;
+		int col = (int)gridX;
+		int row = (int)gridY;
+		int nearCol = (gridX-col < 0.5) ? col-1 : col+1;
+		int nearRow = (gridY-row < 0.5) ? row-1 : row+1;
+		long colKey = getNeighbourKey(key, COL_BITS, nearCol-col);
+		int numKeys = 0;
+		keys[numKeys++] = key;
+		if (nearCol >= 0)
+		{
+			keys[numKeys++] = colKey;
+		}
+		if (nearRow >= 0)
+		{
+			keys[numKeys++] = getNeighbourKey(key, ROW_BITS, nearRow-row);
+		}
+		if ((nearCol >= 0) && (nearRow >= 0))
+		{
+			keys[numKeys++] = getNeighbourKey(colKey, ROW_BITS, nearRow-row);
+		}
+		return numKeys;
+	}
+
+	/** Reports the slot in the hash table of grid cells at which the search for the cell with the given key starts.
+	 *  @param key Z-order key of the cell.
+	 *  @param mask One less than the size of the hash table.
+	 *  @param shift Number of bits used to index the hash table.
+	 *  @return First slot that may be used by the cell.
+	 */
+	private static int getSlot(long key, int mask, int shift)
+	{
+		return (int)(key ^ (key >>> shift)) & mask;
+	}
+
+	/** Finds the slot in the hash table of grid cells holding the cell with the given key. Cells that hash to
+	 *  a slot already used by another cell are stored in the next free slot.
+	 *  @param key Z-order key of the cell.
+	 *  @param mask One less than the size of the hash table.
+	 *  @param shift Number of bits used to index the hash table.
+	 *  @return Slot holding the cell, or the empty slot where it would be stored if it holds no items.
+	 */
+	private int findSlot(long key, int mask, int shift)
+	{
+		int slot = getSlot(key, mask, shift);
+		while ((slots[2*slot+1] >= 0) && (slots[2*slot] != key))
+		{
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	/** Gathers the IDs and coordinates of point and multipoint features to be clustered.
+	 */
+	private void gatherPoints()
+	{
+		FeatureMap features = geoMap.getFeatureMap();
+		PointLayer pointLayer = features.getPointLayer();
+		int capacity = (pointLayer == null) ? 1024 : pointLayer.size()+1024;
+		int[] ids = new int[capacity];
+		float[] x = new float[capacity];
+		float[] y = new float[capacity];
+		int numPoints = 0;
+
+		if (pointLayer != null)
+		{
+			BitSet removed = pointLayer.getRemoved();
+			float[] layerX = pointLayer.getXArray();
+			float[] layerY = pointLayer.getYArray();
+			for (int i=0; i<pointLayer.getNumPositions(); i++)
+			{
+				if ((removed == null) || !removed.get(i))
+				{
+					ids[numPoints] = pointLayer.getID(i);
+					x[numPoints] = layerX[i];
+					y[numPoints] = layerY[i];
+					numPoints++;
+				}
+			}
+		}
+
+		for (int slot=0; slot<features.getNumSlots(); slot++)
+		{
+			Feature feature = features.getValueAt(slot);
+			if (feature == null)
+			{
+				continue;
+			}
+			float[] featureX, featureY;
+			if (feature.getType() == FeatureType.POINT)
+			{
+				PVector p = ((Point)feature).getCoords();
+				featureX = new float[] {p.x};
+				featureY = new float[] {p.y};
+			}
+			else if (feature.getType() == FeatureType.MULTI_POINT)
+			{
+				featureX = ((MultiPoint)feature).getXCoords();
+				featureY = ((MultiPoint)feature).getYCoords();
+			}
+			else
+			{
+				continue;
+			}
+			if (numPoints+featureX.length > ids.length)
+			{
+				int newCapacity = Math.max(ids.length*2, numPoints+featureX.length);
+				ids = Arrays.copyOf(ids, newCapacity);
+				x = Arrays.copyOf(x, newCapacity);
+				y = Arrays.copyOf(y, newCapacity);
+			}
+			Arrays.fill(ids, numPoints, numPoints+featureX.length, features.getKeyAt(slot));
+			System.arraycopy(featureX, 0, x, numPoints, featureX.length);
+			System.arraycopy(featureY, 0, y, numPoints, featureY.length);
+			numPoints += featureX.length;
+		}
+
+		pointIDs = Arrays.copyOf(ids, numPoints);
+		levelX[levelX.length-1] = Arrays.copyOf(x, numPoints);
+		levelY[levelY.length-1] = Arrays.copyOf(y, numPoints);
+	}
+
+	/** Sorts the points along a Z-order curve so that points close to each other are close together in
+	 *  memory, which keeps the items being clustered and their cells in the cache. Points are ordered by
+	 *  a radix sort of their 32-bit keys one byte at a time, which keeps points with equal keys in order.
+	 */
+	private void sortPoints()
+	{
+		float[] x = levelX[levelX.length-1];
+		float[] y = levelY[levelY.length-1];
+		int n = x.length;
+		double scale = 0xffff/baseRadius;
+		int[] keys = new int[n];
+		int[] order = new int[n];
+		for (int i=0; i<n; i++)
+		{
+			keys[i] = (int)getKey((int)((x[i]-minX)*scale), (int)((y[i]-minY)*scale));
+			order[i] = i;
+		}
+
+		int[] sortedKeys = new int[n];
+		int[] sortedOrder = new int[n];
+		int[] starts = new int[257];
+		for (int shift=0; shift<32; shift+=8)
+		{
+			Arrays.fill(starts, 0);
+			for (int i=0; i<n; i++)
+			{
+				starts[((keys[i] >>> shift) & 0xff)+1]++;
+			}
+			for (int b=0; b<256; b++)
+			{
+				starts[b+1] += starts[b];
+			}
+			for (int i=0; i<n; i++)
+			{
+				int position = starts[(keys[i] >>> shift) & 0xff]++;
+				sortedKeys[position] = keys[i];
+				sortedOrder[position] = order[i];
+			}
+			int[] swap = keys;
+			keys = sortedKeys;
+			sortedKeys = swap;
+			swap = order;
+			order = sortedOrder;
+			sortedOrder = swap;
+		}
+
+		int[] sortedIDs = new int[n];
+		float[] sortedX = new float[n];
+		float[] sortedY = new float[n];
+		for (int i=0; i<n; i++)
+		{
+			int index = order[i];
+			sortedIDs[i] = pointIDs[index];
+			sortedX[i] = x[index];
+			sortedY[i] = y[index];
+		}
+		pointIDs = sortedIDs;
+		levelX[levelX.length-1] = sortedX;
+		levelY[levelY.length-1] = sortedY;
+	}
+
+	/** Reports the index of the level storing the given zoom level.
+	 *  @param zoom Zoom level, or -1 for the individual points.
+	 *  @return Index of the level.
+	 */
+	private int getLevel(int zoom)
+	{
+		return (zoom < 0) ? levelX.length-1 : zoom;
+	}
+
+	/** Reports the diameter of the marker drawn for a cluster with the given number of points.
+	 *  @param count Number of points in the cluster.
+	 *  @return Diameter of the marker in screen pixels.
+	 */
+	private float getDiameter(int count)
+	{
+		return Math.min(2*radius, radius*(1+(float)Math.log10(count))/2);
+	}
+
+	/** Combines a column and row into a single key by interleaving their bits, so cells close to each
+	 *  other usually have similar keys.
+	 *  @param col Column to combine.
+	 *  @param row Row to combine.
+	 *  @return Z-order key of the cell.
+	 */
+	private static long getKey(int col, int row)
+	{
+		return spreadBits(col) | (spreadBits(row) << 1);
+	}
+
+	/** Provides the key of the cell next to the cell with the given key in the column or row direction.
+	 *  The column or row is stepped within the interleaved bits of the key, so it need not be separated.
+	 *  @param key Z-order key of the cell.
+	 *  @param bits Bits of the key holding the column (<code>COL_BITS</code>) or row (<code>ROW_BITS</code>).
+	 *  @param step 1 for the next column or row, or -1 for the previous one.
+	 *  @return Z-order key of the neighbouring cell.
+	 */
+	private static long getNeighbourKey(long key, long bits, int step)
+	{
+		// Setting the bits of the other direction makes carries pass through them when adding one.
+		long stepped = (step > 0) ? (key | ~bits) + 1 : (key & bits) - 1;
+		return (stepped & bits) | (key & ~bits);
+	}
+
+	/** Spreads the bits of the given non-negative value so that there is a zero bit between each of them.
+	 *  @param value Value to spread.
+	 *  @return Value with its bits in the even bit positions.
+	 */
+	private static long spreadBits(int value)
+	{
+		long v = value & 0x7fffffffL;
+		v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+		v = (v | (v << 8))  & 0x00ff00ff00ff00ffL;
+		v = (v | (v << 4))  & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v << 2))  & 0x3333333333333333L;
+		v = (v | (v << 1))  & 0x5555555555555555L;
+		return v;
+	}
+}
@@ -0,0 +1,609 @@
+package org.gicentre.geomap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+import processing.core.PVector;
+
+// *****************************************************************************************
+/** Density surface calculated from the point features of a geoMap and drawn as an image overlay.
+ *  Points are counted in square or hexagonal bins of a fixed size on screen. Square bins can also be
+ *  smoothed with a Gaussian kernel applied as two one-dimensional convolutions.
+ *  <br>
+ *  Bins are aligned to the geographic origin, so a given bin covers the same area wherever the map is
+ *  panned. Densities are calculated in tiles of bins only for the parts of the map that are visible,
+ *  and are cached for each zoom level. Panning therefore only calculates the newly visible tiles, and
+ *  returning to a previous zoom level reuses its tiles. Geographic bin sizes are rounded to one of 256
+ *  steps for each doubling of size, so the bins drawn may differ from the requested size by up to 0.14%.
+ *  As with other geoMap drawing, the transformation from geographic to screen coordinates is assumed to
+ *  be linear.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class DensityLayer
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private GeoMap geoMap;				// GeoMap providing the point features.
+	private PApplet parent;				// Parent sketch.
+	private float binSize;				// Width of each bin in screen pixels.
+	private boolean hexagonal;			// Determines if bins are hexagonal rather than square.
+	private float bandwidth;			// Standard deviation of the smoothing kernel in screen pixels.
+	private int[] colourTable;			// Colours representing increasing density.
+	private float maxValue;				// Density shown with the highest colour (0 if found automatically).
+
+	private float[] pointX, pointY;		// Coordinates of points not stored in a point layer.
+	private int numPoints;				// Number of points not stored in a point layer (-1 if not yet gathered).
+	private LinkedHashMap<Long,ZoomLevel> zoomLevels;	// Cached densities for each zoom level.
+
+	private PImage image;				// Most recently drawn density image.
+	private double[] imageTransform;	// Transformation used to draw the image.
+	private ZoomLevel imageLevel;		// Zoom level drawn in the image.
+	private int imageNumTiles;			// Number of tiles in the zoom level when the image was drawn.
+
+	private static final int TILE_SIZE = 128;		// Number of bins along each side of a tile.
+	private static final int MAX_ZOOM_LEVELS = 16;	// Maximum number of zoom levels cached.
+	private static final int MAX_GRID_CELLS = 32*1024*1024;	// Maximum number of bins counted at once.
+	private static final int CHUNK_SIZE = 256*1024;	// Number of points counted by each task.
+	private static final double ROW_SPACING = Math.sqrt(3)/2;	// Distance between hexagon rows relative to their width.
+	private static final int SIZE_STEPS = 256;		// Number of bin sizes cached for each doubling of size.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Creates a density layer representing the point features of the given geoMap. By default bins are
+	 *  square, 8 pixels wide and not smoothed, and densities are shown from transparent white to opaque red.
+	 *  @param geoMap GeoMap providing the point and multipoint features whose density is to be shown.
+	 *  @param parent The parent sketch.
+	 */
+	public DensityLayer(GeoMap geoMap, PApplet parent)
+	{
+		this.geoMap = geoMap;
+		this.parent = parent;
+		this.binSize = 8;
+		this.hexagonal = false;
+		this.bandwidth = 0;
+		this.maxValue = 0;
+		this.zoomLevels = new LinkedHashMap<Long,ZoomLevel>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,ZoomLevel> eldest)
+			{
+				return size() > MAX_ZOOM_LEVELS;
+			}
+		};
+		setColours(0x00ffffff, 0xffff0000);
+		clearCache();
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Sets the width of each bin in screen pixels.
+	 *  @param binSize Width of each bin.
+	 */
+	public void setBinSize(float binSize)
+	{
+		if (binSize <= 0)
+		{
+			System.err.println("Density bin size must be greater than 0, so ignoring "+binSize);
+			return;
+		}
+		this.binSize = binSize;
+		clearCache();
+	}
+
+	/** Determines whether points are counted in hexagonal or square bins. Hexagonal bins are not smoothed.
+	 *  @param hexagonal True if hexagonal bins are to be used.
+	 */
+	public void setHexagonal(boolean hexagonal)
+	{
+		this.hexagonal = hexagonal;
+		clearCache();
+	}
+
+	/** Sets the amount by which square bins are smoothed with a Gaussian kernel.
+	 *  @param bandwidth Standard deviation of the kernel in screen pixels, or 0 for no smoothing.
+	 */
+	public void setBandwidth(float bandwidth)
+	{
+		this.bandwidth = Math.max(0, bandwidth);
+		clearCache();
+	}
+
+	/** Sets the colours used to show density. Colours are interpolated between the two given colours.
+	 *  Bins without any density are not drawn.
+	 *  @param lowColour Colour representing the lowest density.
+	 *  @param highColour Colour representing the highest density.
+	 */
+	public void setColours(int lowColour, int highColour)
+	{
+		colourTable = new int[256];
+		for (int i=0; i<colourTable.length; i++)
+		{
+			float t = i/255f;
+			int colour = 0;
+			for (int shift=0; shift<32; shift+=8)
+			{
+				int low  = (lowColour >>> shift) & 0xff;
+				int high = (highColour >>> shift) & 0xff;
+				colour |= Math.round(low + t*(high-low)) << shift;
+			}
+			colourTable[i] = colour;
+		}
+		imageTransform = null;
+	}
+
+	/** Sets the density shown with the highest colour. Higher densities are shown with the same colour.
+	 *  @param maxValue Density represented by the highest colour, or 0 to use the highest density found
+	 *                  so far at the current zoom level.
+	 */
+	public void setMaxValue(float maxValue)
+	{
+		this.maxValue = Math.max(0, maxValue);
+		imageTransform = null;
+	}
+
+	/** Discards all cached densities. This should be called if the point features of the geoMap change.
+	 */
+	public void clearCache()
+	{
+		zoomLevels.clear();
+		pointX = null;
+		pointY = null;
+		numPoints = -1;
+		imageTransform = null;
+		imageLevel = null;
+	}
+
+	/** Draws the density surface in the parent sketch using the geoMap's own transformation.
+	 */
+	public void draw()
+	{
+		draw(geoMap);
+	}
+
+	/** Draws the density surface in the parent sketch. Densities for any visible part of the map not
+	 *  already cached are calculated first.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 */
+	public void draw(Geographic transformer)
+	{
+		double[] screenTransform = geoMap.getLinearTransform(transformer);
+		double originX = screenTransform[0], scaleX = screenTransform[1];
+		double originY = screenTransform[2], scaleY = screenTransform[3];
+		if ((scaleX == 0) || (scaleY == 0) || Double.isNaN(scaleX) || Double.isNaN(scaleY) ||
+		    Double.isInfinite(scaleX) || Double.isInfinite(scaleY))
+		{
+			return;
+		}
+		ZoomLevel level = getLevel(binSize/Math.abs(scaleX), (hexagonal ? binSize*ROW_SPACING : binSize)/Math.abs(scaleY));
+		double binWidth = level.binWidth;
+		double binHeight = level.binHeight;
+
+		// Find the tiles covering the screen and calculate any that are missing.
+		int width = parent.width;
+		int height = parent.height;
+		double minX = Math.min(-originX/scaleX, (width-originX)/scaleX);
+		double maxX = Math.max(-originX/scaleX, (width-originX)/scaleX);
+		double minY = Math.min(-originY/scaleY, (height-originY)/scaleY);
+		double maxY = Math.max(-originY/scaleY, (height-originY)/scaleY);
+		int minTileX = Math.floorDiv((int)Math.floor(minX/binWidth)-1, TILE_SIZE);
+		int maxTileX = Math.floorDiv((int)Math.floor(maxX/binWidth)+1, TILE_SIZE);
+		int minTileY = Math.floorDiv((int)Math.floor(minY/binHeight)-1, TILE_SIZE);
+		int maxTileY = Math.floorDiv((int)Math.floor(maxY/binHeight)+1, TILE_SIZE);
+
+		ArrayList<int[]> missing = new ArrayList<int[]>();
+		for (int tileY=minTileY; tileY<=maxTileY; tileY++)
+		{
+			for (int tileX=minTileX; tileX<=maxTileX; tileX++)
+			{
+				if (!level.tiles.containsKey(Long.valueOf(getKey(tileX, tileY))))
+				{
+					missing.add(new int[] {tileX, tileY});
+				}
+			}
+		}
+		if (!missing.isEmpty())
+		{
+			calculateTiles(level, missing);
+		}
+
+		double[] transform = {originX, originY, scaleX, scaleY, width, height};
+		if ((image == null) || (level != imageLevel) || (level.tiles.size() != imageNumTiles) ||
+		    !Arrays.equals(transform, imageTransform))
+		{
+			drawImage(level, transform);
+			imageTransform = transform;
+			imageLevel = level;
+			imageNumTiles = level.tiles.size();
+		}
+		parent.image(image, 0, 0);
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Provides the cached densities for the zoom level with the given bin size, creating them if necessary.
+	 *  The bin size is rounded to the nearest cached step so that tiny changes in scale between frames
+	 *  reuse the same zoom level. The zoom level's rounded size is used to define its bins.
+	 *  @param binWidth Width of each bin in geographic units.
+	 *  @param binHeight Height of each bin (or distance between rows of hexagonal bins) in geographic units.
+	 *  @return Densities for the zoom level.
+	 */
+	private ZoomLevel getLevel(double binWidth, double binHeight)
+	{
+		int widthStep = getSizeStep(binWidth);
+		int heightStep = getSizeStep(binHeight);
+		Long key = Long.valueOf(getKey(widthStep, heightStep));
+		ZoomLevel level = zoomLevels.get(key);
+		if (level == null)
+		{
+			level = new ZoomLevel(Math.pow(2, widthStep/(double)SIZE_STEPS), Math.pow(2, heightStep/(double)SIZE_STEPS));
+			zoomLevels.put(key, level);
+		}
+		return level;
+	}
+
+	/** Finds the nearest step of bin size to the given size. Steps are evenly spaced on a log scale.
+	 *  @param size Size of a bin in geographic units.
+	 *  @return Step nearest to the given size.
+	 */
+	private static int getSizeStep(double size)
+	{
+		return (int)Math.round(Math.log(size)/Math.log(2)*SIZE_STEPS);
+	}
+
+	/** Calculates the densities of the given tiles. Points are counted in a single grid covering all the
+	 *  tiles (plus a margin for smoothing), which is then smoothed and divided into tiles.
+	 *  @param level Zoom level of the tiles.
+	 *  @param missing Column and row of each tile to calculate.
+	 */
+	private void calculateTiles(final ZoomLevel level, ArrayList<int[]> missing)
+	{
+		gatherPoints();
+
+		int minTileX = Integer.MAX_VALUE, minTileY = Integer.MAX_VALUE;
+		int maxTileX = Integer.MIN_VALUE, maxTileY = Integer.MIN_VALUE;
+		for (int[] tile : missing)
+		{
+			minTileX = Math.min(minTileX, tile[0]);
+			minTileY = Math.min(minTileY, tile[1]);
+			maxTileX = Math.max(maxTileX, tile[0]);
+			maxTileY = Math.max(maxTileY, tile[1]);
+		}
+		double sigma = (hexagonal || (bandwidth == 0)) ? 0 : bandwidth/binSize;
+		final int margin = (int)Math.ceil(3*sigma);
+		final int gridX = minTileX*TILE_SIZE - margin;
+		final int gridY = minTileY*TILE_SIZE - margin;
+		final int gridWidth  = (maxTileX-minTileX+1)*TILE_SIZE + 2*margin;
+		final int gridHeight = (maxTileY-minTileY+1)*TILE_SIZE + 2*margin;
+		final int gridCells = gridWidth*gridHeight;
+
+		// Count points in separate grids so that tasks do not contend, then add the grids together.
+		PointLayer pointLayer = geoMap.getFeatureMap().getPointLayer();
+		final int numLayerPoints = (pointLayer == null) ? 0 : pointLayer.getNumPositions();
+		final float[] layerX = (pointLayer == null) ? null : pointLayer.getXArray();
+		final float[] layerY = (pointLayer == null) ? null : pointLayer.getYArray();
+		final BitSet removed = (pointLayer == null) ? null : pointLayer.getRemoved();
+		final int total = numPoints + numLayerPoints;
+		int numTasks = Math.max(1, Math.min((total+CHUNK_SIZE-1)/CHUNK_SIZE,
+		                                    Math.min(Runtime.getRuntime().availableProcessors(), MAX_GRID_CELLS/gridCells)));
+		final int taskSize = (total+numTasks-1)/Math.max(numTasks, 1);
+		final float[][] grids = new float[numTasks][];
+		IntStream.range(0, numTasks).parallel().forEach(task ->
+		{
+			float[] grid = new float[gridCells];
+			long[] bin = new long[1];
+			int end = (int)Math.min(total, (long)(task+1)*taskSize);
+			for (int i=task*taskSize; i<end; i++)
+			{
+				float x, y;
+				if (i < numPoints)
+				{
+					x = pointX[i];
+					y = pointY[i];
+				}
+				else
+				{
+					int index = i-numPoints;
+					if ((removed != null) && removed.get(index))
+					{
+						continue;
+					}
+					x = layerX[index];
+					y = layerY[index];
+				}
+				getBin(x, y, level, bin);
+				int col = (int)(bin[0] >> 32) - gridX;
+				int row = (int)bin[0] - gridY;
+				if ((col >= 0) && (col < gridWidth) && (row >= 0) && (row < gridHeight))
+				{
+					grid[row*gridWidth + col]++;
+				}
+			}
+			grids[task] = grid;
+		});
+		final float[] counts = grids[0];
+		if (numTasks > 1)
+		{
+			IntStream.range(0, gridHeight).parallel().forEach(row ->
+			{
+				for (int task=1; task<grids.length; task++)
+				{
+					float[] grid = grids[task];
+					for (int i=row*gridWidth; i<(row+1)*gridWidth; i++)
+					{
+						counts[i] += grid[i];
+					}
+				}
+			});
+		}
+
+		float[] densities = (margin > 0) ? smooth(counts, gridWidth, gridHeight, sigma, margin) : counts;
+
+		// Divide the grid into tiles.
+		for (int[] tile : missing)
+		{
+			float[] values = new float[TILE_SIZE*TILE_SIZE];
+			int startCol = tile[0]*TILE_SIZE - gridX;
+			int startRow = tile[1]*TILE_SIZE - gridY;
+			for (int row=0; row<TILE_SIZE; row++)
+			{
+				System.arraycopy(densities, (startRow+row)*gridWidth + startCol, values, row*TILE_SIZE, TILE_SIZE);
+			}
+			for (float value : values)
+			{
+				level.maxValue = Math.max(level.maxValue, value);
+			}
+			level.tiles.put(Long.valueOf(getKey(tile[0], tile[1])), values);
+		}
+	}
+
+	/** Smooths a grid of counts by convolving it with a Gaussian kernel first along rows and then along
+	 *  columns.
+	 *  @param counts Grid of counts to smooth.
+	 *  @param width Number of columns in the grid.
+	 *  @param height Number of rows in the grid.
+	 *  @param sigma Standard deviation of the kernel in bins.
+	 *  @param radius Number of bins either side of the centre of the kernel.
+	 *  @return Smoothed grid.
+	 */
+	private static float[] smooth(final float[] counts, final int width, final int height, double sigma, final int radius)
+	{
+		final float[] kernel = new float[2*radius+1];
+		double sum = 0;
+		for (int k=-radius; k<=radius; k++)
+		{
+			sum += Math.exp(-k*k/(2*sigma*sigma));
+		}
+		for (int k=-radius; k<=radius; k++)
+		{
+			kernel[k+radius] = (float)(Math.exp(-k*k/(2*sigma*sigma))/sum);
+		}
+
+		final float[] rowSmoothed = new float[counts.length];
+		IntStream.range(0, height).parallel().forEach(row ->
+		{
+			int start = row*width;
+			for (int col=0; col<width; col++)
+			{
+				float count = counts[start+col];
+				if (count != 0)
+				{
+					int first = Math.max(0, col-radius);
+					int last = Math.min(width-1, col+radius);
+					for (int c=first; c<=last; c++)
+					{
+						rowSmoothed[start+c] += count*kernel[c-col+radius];
+					}
+				}
+			}
+		});
+
+		final float[] smoothed = new float[counts.length];
+		IntStream.range(0, height).parallel().forEach(row ->
+		{
+			int first = Math.max(0, row-radius);
+			int last = Math.min(height-1, row+radius);
+			int start = row*width;
+			for (int r=first; r<=last; r++)
+			{
+				float weight = kernel[r-row+radius];
+				int source = r*width;
+				for (int col=0; col<width; col++)
+				{
+					smoothed[start+col] += weight*rowSmoothed[source+col];
+				}
+			}
+		});
+		return smoothed;
+	}
+
+	/** Draws the cached densities as an image covering the sketch.
+	 *  @param level Zoom level to draw.
+	 *  @param transform Screen coordinates of the geographic origin, pixels per geographic unit, and the
+	 *                   width and height of the image.
+	 */
+	private void drawImage(final ZoomLevel level, double[] transform)
+	{
+		final int width = (int)transform[4];
+		final int height = (int)transform[5];
+		if ((image == null) || (image.width != width) || (image.height != height))
+		{
+			image = parent.createImage(width, height, PConstants.ARGB);
+		}
+		final double originX = transform[0];
+		final double originY = transform[1];
+		final double scaleX = transform[2];
+		final double scaleY = transform[3];
+		final float max = (maxValue > 0) ? maxValue : level.maxValue;
+		final int[] pixels = image.pixels;
+
+		image.loadPixels();
+		IntStream.range(0, height).parallel().forEach(py ->
+		{
+			long[] bin = new long[1];
+			long tileKey = Long.MIN_VALUE;
+			float[] tile = null;
+			double y = (py+0.5-originY)/scaleY;
+			for (int px=0; px<width; px++)
+			{
+				getBin((px+0.5-originX)/scaleX, y, level, bin);
+				int col = (int)(bin[0] >> 32);
+				int row = (int)bin[0];
+				int tileX = Math.floorDiv(col, TILE_SIZE);
+				int tileY = Math.floorDiv(row, TILE_SIZE);
+				long key = getKey(tileX, tileY);
+				if (key != tileKey)
+				{
+					tileKey = key;
+					tile = level.tiles.get(Long.valueOf(key));
+				}
+				float value = (tile == null) ? 0 : tile[(row-tileY*TILE_SIZE)*TILE_SIZE + col-tileX*TILE_SIZE];
+				pixels[py*width + px] = (value <= 0) ? 0 : colourTable[Math.min(255, (int)(255*value/max))];
+			}
+		});
+		image.updatePixels();
+	}
+
+	/** Finds the bin containing the given location.
+	 *  @param x Geographic x coordinate.
+	 *  @param y Geographic y coordinate.
+	 *  @param level Zoom level providing the size of bins.
+	 *  @param bin Array in which to store the bin's column (upper 32 bits) and row (lower 32 bits).
+	 */
+	private void getBin(double x, double y, ZoomLevel level, long[] bin)
+	{
+		double col = x/level.binWidth;
+		double row = y/level.binHeight;
+		if (!hexagonal)
+		{
+			bin[0] = getKey((int)Math.floor(col), (int)Math.floor(row));
+			return;
+		}
+
+		// Hexagon centres in odd rows are offset by half a bin. The nearest centre is in one of the two
+		// rows either side of the location.
+		int row0 = (int)Math.floor(row);
+		double minDistSq = Double.MAX_VALUE;
+		for (int r=row0; r<=row0+1; r++)
+		{
+			double offset = ((r & 1) == 0) ? 0 : 0.5;
+			int c = (int)Math.floor(col-offset+0.5);
+			double dx = col-offset-c;
+			double dy = (row-r)*ROW_SPACING;
+			double distSq = dx*dx + dy*dy;
+			if (distSq < minDistSq)
+			{
+				minDistSq = distSq;
+				bin[0] = getKey(c, r);
+			}
+		}
+	}
+
+	/** Gathers the coordinates of point and multipoint features that are not stored in a point layer.
+	 */
+	private void gatherPoints()
+	{
+		if (numPoints >= 0)
+		{
+			return;
+		}
+		FeatureMap features = geoMap.getFeatureMap();
+		numPoints = 0;
+		pointX = new float[1024];
+		pointY = new float[1024];
+		for (int slot=0; slot<features.getNumSlots(); slot++)
+		{
+			Feature feature = features.getValueAt(slot);
+			if (feature == null)
+			{
+				continue;
+			}
+			if (feature.getType() == FeatureType.POINT)
+			{
+				PVector p = ((Point)feature).getCoords();
+				addPoints(new float[] {p.x}, new float[] {p.y}, 1);
+			}
+			else if (feature.getType() == FeatureType.MULTI_POINT)
+			{
+				MultiPoint multiPoint = (MultiPoint)feature;
+				addPoints(multiPoint.getXCoords(), multiPoint.getYCoords(), multiPoint.getNumVertices());
+			}
+		}
+	}
+
+	/** Adds the given coordinates to those gathered from point features.
+	 *  @param x x coordinates to add.
+	 *  @param y y coordinates to add.
+	 *  @param n Number of coordinates to add.
+	 */
+	private void addPoints(float[] x, float[] y, int n)
+	{
+		if (numPoints+n > pointX.length)
+		{
+			pointX = Arrays.copyOf(pointX, Math.max(numPoints*2, numPoints+n));
+			pointY = Arrays.copyOf(pointY, pointX.length);
+		}
+		System.arraycopy(x, 0, pointX, numPoints, n);
+		System.arraycopy(y, 0, pointY, numPoints, n);
+		numPoints += n;
+	}
+
+	/** Combines a column and row into a single key.
+	 *  @param col Column to combine.
+	 *  @param row Row to combine.
+	 *  @return Key with the column in the upper 32 bits and row in the lower 32 bits.
+	 */
+	private static long getKey(int col, int row)
+	{
+		return ((long)col << 32) | (row & 0xffffffffL);
+	}
+
+	// ----------------------------------- Nested classes ----------------------------------
+
+	/** Cached densities for one zoom level.
+	 */
+	private static class ZoomLevel
+	{
+		final double binWidth, binHeight;		// Size of bins in geographic units.
+		final HashMap<Long,float[]> tiles;		// Density of each bin, stored by tile.
+		float maxValue;							// Highest density of any cached bin.
+
+		/** Creates an empty set of tiles for bins of the given size.
+		 *  @param binWidth Width of each bin in geographic units.
+		 *  @param binHeight Height of each bin (or distance between rows of hexagonal bins) in geographic units.
+		 */
+		ZoomLevel(double binWidth, double binHeight)
+		{
+			this.binWidth = binWidth;
+			this.binHeight = binHeight;
+			this.tiles = new HashMap<Long,float[]>();
+			this.maxValue = 0;
+		}
+	}
+}
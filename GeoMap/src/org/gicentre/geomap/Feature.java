@@ -1,5 +1,7 @@
 package org.gicentre.geomap;
 
+import java.awt.geom.Rectangle2D;
+
 // *****************************************************************************************
 /** Identifies the behaviour of all features.
  *  @author Jo Wood and Iain Dillingham, giCentre, City University of London.
@@ -36,6 +38,15 @@ public interface Feature
      *  @return number of vertices that make up the feature.
      */
     public abstract int getNumVertices();
+
+    /** Should report the bounding rectangle that encloses the feature in geographic coordinates. By default
+     *  an empty rectangle is reported, so features that are to be found by spatial queries should override this.
+     *  @return Bounding rectangle of the feature.
+     */
+    public default Rectangle2D getBounds()
+    {
+    	return new Rectangle2D.Float();
+    }
     
     /** Should tests whether the given point is contained within the feature. The definition
      *  of 'contains' will depend on what type of feature is being tested. Coordinates should
@@ -0,0 +1,1427 @@
+package org.gicentre.geomap;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+// *****************************************************************************************
+/** Spatial index of the features of a geoMap for answering nearest feature and selection queries. Point
+ *  features, including those stored in a point layer, are held in a KD-tree. Other features
+ *  are held in a packed R-tree of their bounding boxes, ordered along a Hilbert curve, and
+ *  candidates found with the tree are refined by calculating their exact distance from the
+ *  query location. The distance to a line is measured to its nearest segment, the distance to
+ *  a polygon is measured to its boundary (or is zero if inside) and the distance to a multipoint
+ *  feature is measured to its nearest point. Features can also be selected with a rectangle or a
+ *  freehand polygon, in which case candidates are refined by testing their geometry against the
+ *  selection's boundary, and large numbers of locations can be assigned to the polygons containing them.
+ *  <br>
+ *  The index holds copies of point coordinates and references to other features, so should be
+ *  rebuilt if features are added, removed or have their geometry changed.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class FeatureIndex
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	static final int NODE_SIZE = 16;		// Maximum number of points in a KD-tree leaf and children of an R-tree node.
+	private static final int CHUNK_SIZE = 16*1024;	// Number of locations classified by each task.
+
+	private FeatureMap features;			// Features that have been indexed.
+	private long modCount;					// Modification count of the features when the index was built.
+
+	private int numPoints;					// Number of points in the KD-tree.
+	private int[] pointIDs;					// ID of each point in KD-tree order.
+	private float[] pointX, pointY;			// Coordinates of each point in KD-tree order.
+	private float[] pointBounds;			// Minimum x, minimum y, maximum x and maximum y of all points.
+
+	private int numLeaves;					// Number of features in the R-tree.
+	private int[] featureIDs;				// ID of each feature in R-tree order.
+	private Feature[] featureList;			// Each feature in R-tree order.
+	private int[] featureOrder;				// Position of each feature in R-tree order within the feature map.
+	private PolygonGrid polygonGrid;		// Grid of polygons prepared for containment tests, or null if not yet needed.
+	private float[] nodeBounds;				// Minimum x, minimum y, maximum x and maximum y of each R-tree node.
+	private int[] firstChild, lastChild;	// Range of child nodes of each R-tree node (leaves have no children).
+	private int root;						// Index of the root node of the R-tree or -1 if the tree is empty.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Creates an index of the given features.
+	 *  @param features Features to index.
+	 */
+	public FeatureIndex(FeatureMap features)
+	{
+		this.features = features;
+		this.modCount = features.getModCount();
+		build();
+	}
+
+	/** Recreates an index of the given features from the order of features in an index previously built
+	 *  from them, such as one stored with the features in a file. This avoids the sorting needed to build
+	 *  a new index. If the given IDs do not match the features, a new index is built instead.
+	 *  @param features Features to index.
+	 *  @param pointIDs IDs of the point features in the order provided by <code>getPointIDs()</code>.
+	 *  @param featureIDs IDs of the other features in the order provided by <code>getFeatureIDs()</code>.
+	 *  @param featureBounds Minimum x, minimum y, maximum x and maximum y of each of the other features
+	 *                       in the same order as their IDs, or null if they should be found from the features.
+	 */
+	public FeatureIndex(FeatureMap features, int[] pointIDs, int[] featureIDs, float[] featureBounds)
+	{
+		this.features = features;
+		this.modCount = features.getModCount();
+		if (!restore(pointIDs, featureIDs, featureBounds))
+		{
+			System.err.println("Stored spatial index does not match the features, so building a new one.");
+			build();
+		}
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Reports whether this index is still a record of the given features. This will be the case if the
+	 *  index was built from the same collection and no features have been added, removed or replaced since.
+	 *  @param features Features to compare with those indexed.
+	 *  @return True if the index was built from the given features and they have not changed since.
+	 */
+	public boolean isCurrent(FeatureMap features)
+	{
+		return (this.features == features) && (modCount == features.getModCount());
+	}
+
+	/** Reports the IDs of the indexed point features in the order they are held in the index. This can be
+	 *  stored along with <code>getFeatureIDs()</code> so that the index can later be recreated quickly.
+	 *  @return IDs of the point features in index order.
+	 */
+	public int[] getPointIDs()
+	{
+		return Arrays.copyOf(pointIDs, numPoints);
+	}
+
+	/** Reports the IDs of the indexed features that are not points in the order they are held in the index.
+	 *  This can be stored along with <code>getPointIDs()</code> so that the index can later be recreated quickly.
+	 *  @return IDs of the features that are not points in index order.
+	 */
+	public int[] getFeatureIDs()
+	{
+		return featureIDs.clone();
+	}
+
+	/** Reports the ID of the feature nearest to the given location.
+	 *  @param geoX x coordinate of the location in geographic coordinates.
+	 *  @param geoY y coordinate of the location in geographic coordinates.
+	 *  @return ID of the nearest feature or -1 if there are no features.
+	 */
+	public int getNearestID(float geoX, float geoY)
+	{
+		int[] ids = new int[1];
+		return (getNearest(geoX, geoY, 1, Float.MAX_VALUE, ids, null) == 1) ? ids[0] : -1;
+	}
+
+	/** Finds the features nearest to the given location, in order of distance.
+	 *  @param geoX x coordinate of the location in geographic coordinates.
+	 *  @param geoY y coordinate of the location in geographic coordinates.
+	 *  @param k Maximum number of features to find.
+	 *  @param maxDist Maximum distance of features to find in geographic units.
+	 *  @param ids Array in which to store the IDs of the features found, with space for at least k values.
+	 *  @param distances Array in which to store the distance to each feature found in geographic units,
+	 *                   or null if not required.
+	 *  @return Number of features found.
+	 */
+	public int getNearest(float geoX, float geoY, int k, float maxDist, int[] ids, float[] distances)
+	{
+		if (k <= 0)
+		{
+			return 0;
+		}
+		float maxDistSq = (maxDist >= Math.sqrt(Float.MAX_VALUE)) ? Float.MAX_VALUE : maxDist*maxDist;
+
+		// The k nearest points, held with their negated squared distances so the furthest is removed first.
+		DistanceQueue nearestPoints = new DistanceQueue();
+		if (numPoints > 0)
+		{
+			searchKD(geoX, geoY, 0, numPoints-1, 0, k, maxDistSq, nearestPoints);
+		}
+		int numNearPoints = nearestPoints.size();
+		int[] pointIndices = new int[numNearPoints];
+		float[] pointDistSq = new float[numNearPoints];
+		for (int i=numNearPoints-1; i>=0; i--)
+		{
+			pointDistSq[i] = -nearestPoints.peekKey();
+			pointIndices[i] = nearestPoints.pop();
+		}
+
+		// The k nearest other features, found in order of distance. Only those closer than the kth point can be among the nearest.
+		int[] leafIndices = new int[k];
+		float[] leafDistSq = new float[k];
+		float leafMaxDistSq = (numNearPoints == k) ? pointDistSq[k-1] : maxDistSq;
+		int numNearLeaves = searchTree(geoX, geoY, k, leafMaxDistSq, leafIndices, leafDistSq);
+
+		int numFound = 0;
+		int p = 0, f = 0;
+		while ((numFound < k) && ((p < numNearPoints) || (f < numNearLeaves)))
+		{
+			float distSq;
+			if ((f >= numNearLeaves) || ((p < numNearPoints) && (pointDistSq[p] <= leafDistSq[f])))
+			{
+				ids[numFound] = pointIDs[pointIndices[p]];
+				distSq = pointDistSq[p++];
+			}
+			else
+			{
+				ids[numFound] = featureIDs[leafIndices[f]];
+				distSq = leafDistSq[f++];
+			}
+			if (distances != null)
+			{
+				distances[numFound] = (float)Math.sqrt(distSq);
+			}
+			numFound++;
+		}
+		return numFound;
+	}
+
+	/** Reports the IDs of the features that intersect, or are contained within, the given rectangle.
+	 *  @param minX Minimum x coordinate of the rectangle in geographic coordinates.
+	 *  @param minY Minimum y coordinate of the rectangle in geographic coordinates.
+	 *  @param maxX Maximum x coordinate of the rectangle in geographic coordinates.
+	 *  @param maxY Maximum y coordinate of the rectangle in geographic coordinates.
+	 *  @param contained True if only features entirely within the rectangle should be reported, false if
+	 *                   all features that intersect it should be reported.
+	 *  @return IDs of the features found, each reported once.
+	 */
+	public int[] getIDsInRect(float minX, float minY, float maxX, float maxY, boolean contained)
+	{
+		IDBuffer found = new IDBuffer();
+		PreparedPolygon rect = new PreparedPolygon(new float[] {minX, maxX, maxX, minX}, new float[] {minY, minY, maxY, maxY}, null);
+		searchKD(0, numPoints-1, 0, pointBounds[0], pointBounds[1], pointBounds[2], pointBounds[3], minX, minY, maxX, maxY, null, found);
+		searchTree(minX, minY, maxX, maxY, rect, true, contained, found);
+		return found.toArray();
+	}
+
+	/** Reports the IDs of the features that intersect, or are contained within, the given polygon, such as
+	 *  a freehand lasso drawn by the user. The polygon is closed automatically and should not cross itself.
+	 *  @param x x coordinates of the polygon's vertices in geographic coordinates.
+	 *  @param y y coordinates of the polygon's vertices in geographic coordinates.
+	 *  @param contained True if only features entirely within the polygon should be reported, false if
+	 *                   all features that intersect it should be reported.
+	 *  @return IDs of the features found, each reported once.
+	 */
+	public int[] getIDsInPolygon(float[] x, float[] y, boolean contained)
+	{
+		if ((x.length < 3) || (y.length != x.length))
+		{
+			System.err.println("Selection polygon needs at least 3 vertices with matching x and y coordinates.");
+			return new int[0];
+		}
+		IDBuffer found = new IDBuffer();
+		PreparedPolygon lasso = new PreparedPolygon(x, y, null);
+		searchKD(0, numPoints-1, 0, pointBounds[0], pointBounds[1], pointBounds[2], pointBounds[3],
+		         lasso.minX, lasso.minY, lasso.maxX, lasso.maxY, lasso, found);
+		searchTree(lasso.minX, lasso.minY, lasso.maxX, lasso.maxY, lasso, false, contained, found);
+		return found.toArray();
+	}
+
+	/** Finds the polygon containing each of the given locations. This is much faster than testing each
+	 *  location against each polygon. The first time this is called, polygons are prepared for repeated
+	 *  containment tests and a grid is built recording the polygons that may contain each cell, so most
+	 *  locations can be assigned to a polygon without examining any of its edges. Locations are then
+	 *  classified in parallel. Where polygons overlap, the one that appears first in the feature map is
+	 *  reported, as it would be by <code>GeoMap.getID()</code>.
+	 *  @param geoX x coordinates of the locations in geographic coordinates.
+	 *  @param geoY y coordinates of the locations in geographic coordinates.
+	 *  @return ID of the polygon containing each location, or -1 where a location is not within any polygon.
+	 */
+	public int[] getContainingIDs(final float[] geoX, final float[] geoY)
+	{
+		if (geoX.length != geoY.length)
+		{
+			System.err.println("Cannot classify locations with "+geoX.length+" x coordinates and "+geoY.length+" y coordinates.");
+			return new int[0];
+		}
+		final int[] ids = new int[geoX.length];
+		Arrays.fill(ids, -1);
+		if (numLeaves == 0)
+		{
+			return ids;
+		}
+
+		final PolygonGrid grid = getPolygonGrid();
+		final int numChunks = (geoX.length+CHUNK_SIZE-1)/CHUNK_SIZE;
+		IntStream.range(0, numChunks).parallel().forEach(chunk ->
+		{
+			int end = Math.min(geoX.length, (chunk+1)*CHUNK_SIZE);
+			for (int i=chunk*CHUNK_SIZE; i<end; i++)
+			{
+				int leaf = grid.find(geoX[i], geoY[i]);
+				if (leaf >= 0)
+				{
+					ids[i] = featureIDs[leaf];
+				}
+			}
+		});
+		return ids;
+	}
+
+	// ------------------------------ Package-wide methods -------------------------------
+
+	/** Reports the IDs of the polygons in the index that intersect the given feature. A polygon intersects a
+	 *  feature if it contains any part of the feature or if their boundaries meet.
+	 *  @param feature Line, polygon or multipoint feature to test.
+	 *  @return IDs of the polygons intersecting the feature, each reported once.
+	 */
+	int[] getIntersectingPolygonIDs(Feature feature)
+	{
+		IDBuffer found = new IDBuffer();
+		if (numLeaves == 0)
+		{
+			return found.toArray();
+		}
+		Rectangle2D bounds = feature.getBounds();
+		float minX = (float)bounds.getMinX();
+		float minY = (float)bounds.getMinY();
+		float maxX = (float)bounds.getMaxX();
+		float maxY = (float)bounds.getMaxY();
+
+		int[] stack = new int[64];
+		int stackSize = 0;
+		stack[stackSize++] = root;
+		while (stackSize > 0)
+		{
+			int node = stack[--stackSize];
+			if ((nodeBounds[node*4] > maxX) || (nodeBounds[node*4+2] < minX) || (nodeBounds[node*4+1] > maxY) || (nodeBounds[node*4+3] < minY))
+			{
+				continue;
+			}
+			if (node < numLeaves)
+			{
+				if ((featureList[node].getType() == FeatureType.POLYGON) && ((Polygon)featureList[node]).getPrepared().intersects(feature))
+				{
+					found.add(featureIDs[node]);
+				}
+				continue;
+			}
+			int numChildren = lastChild[node]-firstChild[node]+1;
+			if (stackSize+numChildren > stack.length)
+			{
+				stack = Arrays.copyOf(stack, Math.max(stack.length*2, stackSize+numChildren));
+			}
+			for (int child=firstChild[node]; child<=lastChild[node]; child++)
+			{
+				stack[stackSize++] = child;
+			}
+		}
+		return found.toArray();
+	}
+
+	/** Reports the squared distance between a point and a line segment.
+	 *  @param px x coordinate of the point.
+	 *  @param py y coordinate of the point.
+	 *  @param x1 x coordinate of the start of the segment.
+	 *  @param y1 y coordinate of the start of the segment.
+	 *  @param x2 x coordinate of the end of the segment.
+	 *  @param y2 y coordinate of the end of the segment.
+	 *  @return Squared distance between the point and the nearest point on the segment.
+	 */
+	static double segmentDistSq(double px, double py, double x1, double y1, double x2, double y2)
+	{
+		double dx = x2-x1;
+		double dy = y2-y1;
+		double ex = px-x1;
+		double ey = py-y1;
+		double lengthSq = dx*dx + dy*dy;
+		if (lengthSq > 0)
+		{
+			double t = (ex*dx + ey*dy)/lengthSq;
+			if (t >= 1)
+			{
+				ex = px-x2;
+				ey = py-y2;
+			}
+			else if (t > 0)
+			{
+				ex -= t*dx;
+				ey -= t*dy;
+			}
+		}
+		return ex*ex + ey*ey;
+	}
+
+	/** Reports the number of points held in the KD-tree.
+	 *  @return Number of indexed points.
+	 */
+	int getNumPoints()
+	{
+		return numPoints;
+	}
+
+	/** Reports the number of features held in the R-tree.
+	 *  @return Number of indexed features that are not points.
+	 */
+	int getNumFeatures()
+	{
+		return numLeaves;
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Builds the KD-tree of point features and the R-tree of other features.
+	 */
+	private void build()
+	{
+		numPoints = 0;
+		List<Integer> ids = new ArrayList<Integer>();
+		List<Feature> others = new ArrayList<Feature>();
+		PointLayer pointLayer = features.getPointLayer();
+		int capacity = (pointLayer == null) ? 16 : pointLayer.size()+16;
+		pointIDs = new int[capacity];
+		pointX = new float[capacity];
+		pointY = new float[capacity];
+
+		if (pointLayer != null)
+		{
+			BitSet removed = pointLayer.getRemoved();
+			float[] layerX = pointLayer.getXArray();
+			float[] layerY = pointLayer.getYArray();
+			for (int i=0; i<pointLayer.getNumPositions(); i++)
+			{
+				if ((removed == null) || !removed.get(i))
+				{
+					addPoint(pointLayer.getID(i), layerX[i], layerY[i]);
+				}
+			}
+		}
+
+		for (int slot=0; slot<features.getNumSlots(); slot++)
+		{
+			Feature feature = features.getValueAt(slot);
+			if (feature == null)
+			{
+				continue;
+			}
+			if (feature.getType() == FeatureType.POINT)
+			{
+				addPoint(features.getKeyAt(slot), ((Point)feature).getCoords().x, ((Point)feature).getCoords().y);
+			}
+			else
+			{
+				ids.add(Integer.valueOf(features.getKeyAt(slot)));
+				others.add(feature);
+			}
+		}
+
+		sortKD(0, numPoints-1, 0);
+		findPointBounds();
+		buildTree(ids, others);
+	}
+
+	/** Recreates the KD-tree and R-tree from the order of features in a previously built index.
+	 *  @param storedPointIDs IDs of the point features in KD-tree order.
+	 *  @param storedFeatureIDs IDs of the other features in R-tree order.
+	 *  @param featureBounds Bounding box of each feature in R-tree order, or null if not known.
+	 *  @return True if the IDs are those of all the features, or false if the index could not be recreated.
+	 */
+	private boolean restore(int[] storedPointIDs, int[] storedFeatureIDs, float[] featureBounds)
+	{
+		if ((storedPointIDs.length+storedFeatureIDs.length != features.size()) ||
+		    ((featureBounds != null) && (featureBounds.length < storedFeatureIDs.length*4)))
+		{
+			return false;
+		}
+
+		PointLayer pointLayer = features.getPointLayer();
+		numPoints = storedPointIDs.length;
+		pointIDs = storedPointIDs.clone();
+		pointX = new float[numPoints];
+		pointY = new float[numPoints];
+		for (int i=0; i<numPoints; i++)
+		{
+			int index = (pointLayer == null) ? -1 : pointLayer.indexOf(pointIDs[i]);
+			if (index >= 0)
+			{
+				pointX[i] = pointLayer.getX(index);
+				pointY[i] = pointLayer.getY(index);
+				continue;
+			}
+			int slot = features.getSlot(pointIDs[i]);
+			if ((slot < 0) || (features.getValueAt(slot).getType() != FeatureType.POINT))
+			{
+				return false;
+			}
+			Point point = (Point)features.getValueAt(slot);
+			pointX[i] = point.getCoords().x;
+			pointY[i] = point.getCoords().y;
+		}
+		findPointBounds();
+
+		// Features are numbered in map order so that polygon containment tests find the same polygons.
+		numLeaves = storedFeatureIDs.length;
+		featureIDs = storedFeatureIDs.clone();
+		featureList = new Feature[numLeaves];
+		featureOrder = new int[numLeaves];
+		int[] slotLeaves = new int[features.getNumSlots()];
+		Arrays.fill(slotLeaves, -1);
+		allocateTree();
+		for (int leaf=0; leaf<numLeaves; leaf++)
+		{
+			int slot = features.getSlot(featureIDs[leaf]);
+			if ((slot < 0) || (slotLeaves[slot] >= 0) || (features.getValueAt(slot).getType() == FeatureType.POINT))
+			{
+				return false;
+			}
+			slotLeaves[slot] = leaf;
+			featureList[leaf] = features.getValueAt(slot);
+			if (featureBounds == null)
+			{
+				setLeafBounds(leaf, featureList[leaf].getBounds());
+			}
+			else
+			{
+				System.arraycopy(featureBounds, leaf*4, nodeBounds, leaf*4, 4);
+			}
+		}
+		int position = 0;
+		for (int slot=0; slot<slotLeaves.length; slot++)
+		{
+			if (slotLeaves[slot] >= 0)
+			{
+				featureOrder[slotLeaves[slot]] = position++;
+			}
+		}
+		buildNodes();
+		return true;
+	}
+
+	/** Finds the bounding box of all points in the KD-tree.
+	 */
+	private void findPointBounds()
+	{
+		pointBounds = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i=0; i<numPoints; i++)
+		{
+			pointBounds[0] = Math.min(pointBounds[0], pointX[i]);
+			pointBounds[1] = Math.min(pointBounds[1], pointY[i]);
+			pointBounds[2] = Math.max(pointBounds[2], pointX[i]);
+			pointBounds[3] = Math.max(pointBounds[3], pointY[i]);
+		}
+	}
+
+	/** Adds a point to those to be stored in the KD-tree.
+	 *  @param id ID of the point feature.
+	 *  @param x x coordinate of the point.
+	 *  @param y y coordinate of the point.
+	 */
+	private void addPoint(int id, float x, float y)
+	{
+		if (numPoints == pointIDs.length)
+		{
+			int capacity = pointIDs.length*2;
+			pointIDs = Arrays.copyOf(pointIDs, capacity);
+			pointX = Arrays.copyOf(pointX, capacity);
+			pointY = Arrays.copyOf(pointY, capacity);
+		}
+		pointIDs[numPoints] = id;
+		pointX[numPoints] = x;
+		pointY[numPoints] = y;
+		numPoints++;
+	}
+
+	/** Arranges the points between the given positions into a KD-tree. The median point along the given
+	 *  axis is placed in the middle of the range with smaller values before it and larger ones after it,
+	 *  and each half is then arranged along the other axis. Ranges small enough to form a leaf are left unsorted.
+	 *  @param left First position in the range to arrange.
+	 *  @param right Last position in the range to arrange.
+	 *  @param axis 0 to split the range by x coordinate or 1 to split by y.
+	 */
+	private void sortKD(int left, int right, int axis)
+	{
+		if (right-left <= NODE_SIZE)
+		{
+			return;
+		}
+		int middle = (left+right) >>> 1;
+		select(middle, left, right, (axis == 0) ? pointX : pointY);
+		sortKD(left, middle-1, 1-axis);
+		sortKD(middle+1, right, 1-axis);
+	}
+
+	/** Rearranges points so that the kth position holds the point that would be there if the range were
+	 *  sorted by the given coordinates, using the Floyd-Rivest selection algorithm.
+	 *  @param k Position of the point to select.
+	 *  @param left First position in the range to rearrange.
+	 *  @param right Last position in the range to rearrange.
+	 *  @param coords Coordinates by which to order points.
+	 */
+	private void select(int k, int left, int right, float[] coords)
+	{
+		while (right > left)
+		{
+			if (right-left > 600)
+			{
+				// Narrow the range to a sample likely to contain the kth point.
+				double n = right-left+1;
+				double m = k-left+1;
+				double z = Math.log(n);
+				double s = 0.5*Math.exp(2*z/3);
+				double sd = 0.5*Math.sqrt(z*s*(n-s)/n)*((m-n/2 < 0) ? -1 : 1);
+				int newLeft = (int)Math.max(left, Math.floor(k-m*s/n + sd));
+				int newRight = (int)Math.min(right, Math.floor(k+(n-m)*s/n + sd));
+				select(k, newLeft, newRight, coords);
+			}
+
+			float t = coords[k];
+			int i = left;
+			int j = right;
+			swapPoints(left, k);
+			if (coords[right] > t)
+			{
+				swapPoints(left, right);
+			}
+			while (i < j)
+			{
+				swapPoints(i, j);
+				i++;
+				j--;
+				while (coords[i] < t)
+				{
+					i++;
+				}
+				while (coords[j] > t)
+				{
+					j--;
+				}
+			}
+			if (coords[left] == t)
+			{
+				swapPoints(left, j);
+			}
+			else
+			{
+				j++;
+				swapPoints(j, right);
+			}
+			if (j <= k)
+			{
+				left = j+1;
+			}
+			if (k <= j)
+			{
+				right = j-1;
+			}
+		}
+	}
+
+	/** Swaps the points at the given positions in the KD-tree.
+	 *  @param i Position of the first point.
+	 *  @param j Position of the second point.
+	 */
+	private void swapPoints(int i, int j)
+	{
+		int id = pointIDs[i];
+		pointIDs[i] = pointIDs[j];
+		pointIDs[j] = id;
+		float x = pointX[i];
+		pointX[i] = pointX[j];
+		pointX[j] = x;
+		float y = pointY[i];
+		pointY[i] = pointY[j];
+		pointY[j] = y;
+	}
+
+	/** Searches the part of the KD-tree between the given positions for the points nearest to the given location.
+	 *  @param qx x coordinate of the query location.
+	 *  @param qy y coordinate of the query location.
+	 *  @param left First position in the range to search.
+	 *  @param right Last position in the range to search.
+	 *  @param axis Axis by which the range was split, 0 for x or 1 for y.
+	 *  @param k Maximum number of points to find.
+	 *  @param maxDistSq Squared maximum distance of points to find.
+	 *  @param nearest Points found so far, keyed by their negated squared distances. Updated by this method.
+	 */
+	private void searchKD(float qx, float qy, int left, int right, int axis, int k, float maxDistSq, DistanceQueue nearest)
+	{
+		if (right-left <= NODE_SIZE)
+		{
+			for (int i=left; i<=right; i++)
+			{
+				considerPoint(qx, qy, i, k, maxDistSq, nearest);
+			}
+			return;
+		}
+
+		int middle = (left+right) >>> 1;
+		considerPoint(qx, qy, middle, k, maxDistSq, nearest);
+
+		// Search the side containing the query first, then the other side if it could hold anything closer.
+		float d = (axis == 0) ? qx-pointX[middle] : qy-pointY[middle];
+		if (d <= 0)
+		{
+			searchKD(qx, qy, left, middle-1, 1-axis, k, maxDistSq, nearest);
+			if (d*d <= getSearchDistSq(k, maxDistSq, nearest))
+			{
+				searchKD(qx, qy, middle+1, right, 1-axis, k, maxDistSq, nearest);
+			}
+		}
+		else
+		{
+			searchKD(qx, qy, middle+1, right, 1-axis, k, maxDistSq, nearest);
+			if (d*d <= getSearchDistSq(k, maxDistSq, nearest))
+			{
+				searchKD(qx, qy, left, middle-1, 1-axis, k, maxDistSq, nearest);
+			}
+		}
+	}
+
+	/** Adds the point at the given position to the nearest points found if it is close enough.
+	 *  @param qx x coordinate of the query location.
+	 *  @param qy y coordinate of the query location.
+	 *  @param i Position of the point in the KD-tree.
+	 *  @param k Maximum number of points to find.
+	 *  @param maxDistSq Squared maximum distance of points to find.
+	 *  @param nearest Points found so far, keyed by their negated squared distances. Updated by this method.
+	 */
+	private void considerPoint(float qx, float qy, int i, int k, float maxDistSq, DistanceQueue nearest)
+	{
+		float dx = pointX[i]-qx;
+		float dy = pointY[i]-qy;
+		float distSq = dx*dx + dy*dy;
+		if (distSq <= getSearchDistSq(k, maxDistSq, nearest))
+		{
+			nearest.push(-distSq, i);
+			if (nearest.size() > k)
+			{
+				nearest.pop();
+			}
+		}
+	}
+
+	/** Reports the squared distance within which points need to be to be among the nearest found.
+	 *  @param k Maximum number of points to find.
+	 *  @param maxDistSq Squared maximum distance of points to find.
+	 *  @param nearest Points found so far, keyed by their negated squared distances.
+	 *  @return Squared search distance.
+	 */
+	private static float getSearchDistSq(int k, float maxDistSq, DistanceQueue nearest)
+	{
+		return (nearest.size() < k) ? maxDistSq : Math.min(maxDistSq, -nearest.peekKey());
+	}
+
+	/** Builds a packed R-tree of the given features. Features are stored as the leaves of the tree in the order
+	 *  of their position along a Hilbert curve, and each node above them covers up to <code>NODE_SIZE</code>
+	 *  consecutive nodes of the level below.
+	 *  @param ids IDs of the features to index.
+	 *  @param others Features to index.
+	 */
+	private void buildTree(List<Integer> ids, List<Feature> others)
+	{
+		numLeaves = others.size();
+		int[] order = HilbertCurve.sort(others);
+		featureIDs = new int[numLeaves];
+		featureList = new Feature[numLeaves];
+		featureOrder = order;
+		allocateTree();
+
+		for (int i=0; i<numLeaves; i++)
+		{
+			featureIDs[i] = ids.get(order[i]).intValue();
+			featureList[i] = others.get(order[i]);
+			setLeafBounds(i, featureList[i].getBounds());
+		}
+		buildNodes();
+	}
+
+	/** Creates the arrays holding the nodes of an R-tree with <code>numLeaves</code> leaves.
+	 */
+	private void allocateTree()
+	{
+		int numNodes = numLeaves;
+		for (int levelSize=numLeaves; levelSize>1; )
+		{
+			levelSize = (levelSize+NODE_SIZE-1)/NODE_SIZE;
+			numNodes += levelSize;
+		}
+		nodeBounds = new float[numNodes*4];
+		firstChild = new int[numNodes];
+		lastChild = new int[numNodes];
+	}
+
+	/** Stores the bounding box of a leaf of the R-tree.
+	 *  @param leaf Leaf whose bounds are to be stored.
+	 *  @param bounds Bounding box of the leaf's feature.
+	 */
+	private void setLeafBounds(int leaf, Rectangle2D bounds)
+	{
+		nodeBounds[leaf*4]   = (float)bounds.getMinX();
+		nodeBounds[leaf*4+1] = (float)bounds.getMinY();
+		nodeBounds[leaf*4+2] = (float)bounds.getMaxX();
+		nodeBounds[leaf*4+3] = (float)bounds.getMaxY();
+	}
+
+	/** Builds the nodes of the R-tree above its leaves, whose bounding boxes must already be stored.
+	 *  Each node covers up to <code>NODE_SIZE</code> consecutive nodes of the level below.
+	 */
+	private void buildNodes()
+	{
+		int childStart = 0;
+		int childEnd = numLeaves;
+		int node = numLeaves;
+		while (childEnd-childStart > 1)
+		{
+			for (int child=childStart; child<childEnd; child+=NODE_SIZE)
+			{
+				firstChild[node] = child;
+				lastChild[node] = Math.min(child+NODE_SIZE, childEnd)-1;
+				nodeBounds[node*4]   = Float.MAX_VALUE;
+				nodeBounds[node*4+1] = Float.MAX_VALUE;
+				nodeBounds[node*4+2] = -Float.MAX_VALUE;
+				nodeBounds[node*4+3] = -Float.MAX_VALUE;
+				for (int c=child; c<=lastChild[node]; c++)
+				{
+					nodeBounds[node*4]   = Math.min(nodeBounds[node*4],   nodeBounds[c*4]);
+					nodeBounds[node*4+1] = Math.min(nodeBounds[node*4+1], nodeBounds[c*4+1]);
+					nodeBounds[node*4+2] = Math.max(nodeBounds[node*4+2], nodeBounds[c*4+2]);
+					nodeBounds[node*4+3] = Math.max(nodeBounds[node*4+3], nodeBounds[c*4+3]);
+				}
+				node++;
+			}
+			childStart = childEnd;
+			childEnd = node;
+		}
+		root = (nodeBounds.length/4)-1;
+	}
+
+	/** Finds the features in the R-tree nearest to the given location, in order of distance. Nodes are visited
+	 *  in order of the distance to their bounding boxes, and each feature reached is queued again with its
+	 *  exact distance, so features are reported only once nothing closer can remain.
+	 *  @param qx x coordinate of the query location.
+	 *  @param qy y coordinate of the query location.
+	 *  @param k Maximum number of features to find.
+	 *  @param maxDistSq Squared maximum distance of features to find.
+	 *  @param leaves Array in which to store the positions of the features found.
+	 *  @param distSq Array in which to store the squared distance of each feature found.
+	 *  @return Number of features found.
+	 */
+	private int searchTree(float qx, float qy, int k, float maxDistSq, int[] leaves, float[] distSq)
+	{
+		if (numLeaves == 0)
+		{
+			return 0;
+		}
+		int numFound = 0;
+		DistanceQueue queue = new DistanceQueue();
+		queue.push(getBoxDistSq(qx, qy, root), root);
+
+		// Features with an exact distance are queued as negative values.
+		while ((queue.size() > 0) && (numFound < k) && (queue.peekKey() <= maxDistSq))
+		{
+			float d = queue.peekKey();
+			int item = queue.pop();
+			if (item < 0)
+			{
+				leaves[numFound] = -item-1;
+				distSq[numFound] = d;
+				numFound++;
+			}
+			else if (item < numLeaves)
+			{
+				float exactDistSq = (float)getDistSq(qx, qy, featureList[item]);
+				if (exactDistSq <= maxDistSq)
+				{
+					queue.push(exactDistSq, -item-1);
+				}
+			}
+			else
+			{
+				for (int child=firstChild[item]; child<=lastChild[item]; child++)
+				{
+					float boxDistSq = getBoxDistSq(qx, qy, child);
+					if (boxDistSq <= maxDistSq)
+					{
+						queue.push(boxDistSq, child);
+					}
+				}
+			}
+		}
+		return numFound;
+	}
+
+	/** Provides the grid of polygons prepared for containment tests, building it if this has not already
+	 *  been done. Any polygons with enough vertices to be worth preparing are prepared in parallel.
+	 *  @return Grid of the polygons in the R-tree.
+	 */
+	private synchronized PolygonGrid getPolygonGrid()
+	{
+		if (polygonGrid == null)
+		{
+			final Polygon[] polygons = new Polygon[numLeaves];
+			IntStream.range(0, numLeaves).parallel().forEach(leaf ->
+			{
+				if (featureList[leaf].getType() == FeatureType.POLYGON)
+				{
+					polygons[leaf] = (Polygon)featureList[leaf];
+					if (polygons[leaf].getNumVertices() >= Polygon.MIN_PREPARED_VERTICES)
+					{
+						polygons[leaf].getPrepared();
+					}
+				}
+			});
+			polygonGrid = new PolygonGrid(polygons, featureOrder);
+		}
+		return polygonGrid;
+	}
+
+	/** Reports the squared distance from the given location to the bounding box of a node in the R-tree.
+	 *  @param qx x coordinate of the location.
+	 *  @param qy y coordinate of the location.
+	 *  @param node Node in the R-tree.
+	 *  @return Squared distance to the node's bounding box, or 0 if the location is inside it.
+	 */
+	private float getBoxDistSq(float qx, float qy, int node)
+	{
+		float dx = Math.max(0, Math.max(nodeBounds[node*4]-qx, qx-nodeBounds[node*4+2]));
+		float dy = Math.max(0, Math.max(nodeBounds[node*4+1]-qy, qy-nodeBounds[node*4+3]));
+		return dx*dx + dy*dy;
+	}
+
+	/** Reports the squared distance from the given location to the given feature.
+	 *  @param qx x coordinate of the location.
+	 *  @param qy y coordinate of the location.
+	 *  @param feature Line, polygon or multipoint feature.
+	 *  @return Squared distance to the nearest part of the feature, or 0 if the location is inside a polygon.
+	 */
+	private static double getDistSq(float qx, float qy, Feature feature)
+	{
+		double minDistSq = Double.MAX_VALUE;
+		if (feature.getType() == FeatureType.LINE)
+		{
+			minDistSq = ((Line)feature).getDistSq(qx, qy);
+		}
+		else if (feature.getType() == FeatureType.POLYGON)
+		{
+			Polygon polygon = (Polygon)feature;
+			if (polygon.contains(qx, qy))
+			{
+				return 0;
+			}
+			float[] x = polygon.getXCoords();
+			float[] y = polygon.getYCoords();
+			List<Integer> parts = polygon.getSubPartPointers();
+			for (int part=0; part<parts.size(); part++)
+			{
+				int start = parts.get(part).intValue();
+				int end = (part < parts.size()-1) ? parts.get(part+1).intValue() : x.length;
+				for (int i=start; i<end; i++)
+				{
+					int next = (i < end-1) ? i+1 : start;
+					minDistSq = Math.min(minDistSq, segmentDistSq(qx, qy, x[i], y[i], x[next], y[next]));
+				}
+			}
+		}
+		else if (feature.getType() == FeatureType.MULTI_POINT)
+		{
+			float[] x = ((MultiPoint)feature).getXCoords();
+			float[] y = ((MultiPoint)feature).getYCoords();
+			for (int i=0; i<x.length; i++)
+			{
+				double dx = x[i]-qx;
+				double dy = y[i]-qy;
+				minDistSq = Math.min(minDistSq, dx*dx + dy*dy);
+			}
+		}
+		return minDistSq;
+	}
+
+	/** Adds the points in the part of the KD-tree between the given positions that are within the given
+	 *  rectangle, and optionally within a polygon, to those found. The bounding box of the part of the tree
+	 *  is narrowed at each split, so parts entirely inside the selection are added without testing each
+	 *  point and those entirely outside are skipped.
+	 *  @param left First position in the range to search.
+	 *  @param right Last position in the range to search.
+	 *  @param axis Axis by which the range was split, 0 for x or 1 for y.
+	 *  @param boxMinX Minimum x coordinate of the points in the range.
+	 *  @param boxMinY Minimum y coordinate of the points in the range.
+	 *  @param boxMaxX Maximum x coordinate of the points in the range.
+	 *  @param boxMaxY Maximum y coordinate of the points in the range.
+	 *  @param minX Minimum x coordinate of the rectangle.
+	 *  @param minY Minimum y coordinate of the rectangle.
+	 *  @param maxX Maximum x coordinate of the rectangle.
+	 *  @param maxY Maximum y coordinate of the rectangle.
+	 *  @param lasso Polygon within which points must also be, or null if only the rectangle is used.
+	 *  @param found IDs of features found so far. Updated by this method.
+	 */
+	private void searchKD(int left, int right, int axis, float boxMinX, float boxMinY, float boxMaxX, float boxMaxY,
+	                      float minX, float minY, float maxX, float maxY, PreparedPolygon lasso, IDBuffer found)
+	{
+		if (right < left)
+		{
+			return;
+		}
+		if ((boxMinX > maxX) || (boxMaxX < minX) || (boxMinY > maxY) || (boxMaxY < minY))
+		{
+			return;
+		}
+		byte state;
+		if (lasso == null)
+		{
+			state = ((boxMinX >= minX) && (boxMaxX <= maxX) && (boxMinY >= minY) && (boxMaxY <= maxY)) ? PreparedPolygon.INSIDE : PreparedPolygon.BOUNDARY;
+		}
+		else
+		{
+			state = lasso.classify(boxMinX, boxMinY, boxMaxX, boxMaxY);
+		}
+		if (state == PreparedPolygon.OUTSIDE)
+		{
+			return;
+		}
+		if (state == PreparedPolygon.INSIDE)
+		{
+			found.add(pointIDs, left, right+1);
+			return;
+		}
+
+		if (right-left <= NODE_SIZE)
+		{
+			for (int i=left; i<=right; i++)
+			{
+				if ((pointX[i] >= minX) && (pointX[i] <= maxX) && (pointY[i] >= minY) && (pointY[i] <= maxY) &&
+				    ((lasso == null) || lasso.contains(pointX[i], pointY[i])))
+				{
+					found.add(pointIDs[i]);
+				}
+			}
+			return;
+		}
+
+		int middle = (left+right) >>> 1;
+		float x = pointX[middle];
+		float y = pointY[middle];
+		if ((x >= minX) && (x <= maxX) && (y >= minY) && (y <= maxY) && ((lasso == null) || lasso.contains(x, y)))
+		{
+			found.add(pointIDs[middle]);
+		}
+		if (axis == 0)
+		{
+			searchKD(left, middle-1, 1, boxMinX, boxMinY, x, boxMaxY, minX, minY, maxX, maxY, lasso, found);
+			searchKD(middle+1, right, 1, x, boxMinY, boxMaxX, boxMaxY, minX, minY, maxX, maxY, lasso, found);
+		}
+		else
+		{
+			searchKD(left, middle-1, 0, boxMinX, boxMinY, boxMaxX, y, minX, minY, maxX, maxY, lasso, found);
+			searchKD(middle+1, right, 0, boxMinX, y, boxMaxX, boxMaxY, minX, minY, maxX, maxY, lasso, found);
+		}
+	}
+
+	/** Adds the features in the R-tree that intersect or are contained within the given region to those found.
+	 *  Features with bounding boxes outside the region are rejected and those with bounding boxes inside it,
+	 *  including all those below a node whose box is inside it, are accepted without examining their geometry.
+	 *  @param minX Minimum x coordinate of the region's bounding box.
+	 *  @param minY Minimum y coordinate of the region's bounding box.
+	 *  @param maxX Maximum x coordinate of the region's bounding box.
+	 *  @param maxY Maximum y coordinate of the region's bounding box.
+	 *  @param region Boundary of the region.
+	 *  @param isRect True if the region is the rectangle given by its bounding box.
+	 *  @param contained True if features must be entirely within the region, false if they need only intersect it.
+	 *  @param found IDs of features found so far. Updated by this method.
+	 */
+	private void searchTree(float minX, float minY, float maxX, float maxY, PreparedPolygon region, boolean isRect, boolean contained, IDBuffer found)
+	{
+		if (numLeaves == 0)
+		{
+			return;
+		}
+		int[] stack = new int[64];
+		int stackSize = 0;
+		stack[stackSize++] = root;
+		while (stackSize > 0)
+		{
+			int node = stack[--stackSize];
+			float nodeMinX = nodeBounds[node*4];
+			float nodeMinY = nodeBounds[node*4+1];
+			float nodeMaxX = nodeBounds[node*4+2];
+			float nodeMaxY = nodeBounds[node*4+3];
+			byte state;
+			if (isRect)
+			{
+				if ((nodeMinX > maxX) || (nodeMaxX < minX) || (nodeMinY > maxY) || (nodeMaxY < minY))
+				{
+					state = PreparedPolygon.OUTSIDE;
+				}
+				else if ((nodeMinX >= minX) && (nodeMaxX <= maxX) && (nodeMinY >= minY) && (nodeMaxY <= maxY))
+				{
+					state = PreparedPolygon.INSIDE;
+				}
+				else
+				{
+					state = PreparedPolygon.BOUNDARY;
+				}
+			}
+			else
+			{
+				state = region.classify(nodeMinX, nodeMinY, nodeMaxX, nodeMaxY);
+			}
+
+			if (state == PreparedPolygon.OUTSIDE)
+			{
+				continue;
+			}
+			if (state == PreparedPolygon.INSIDE)
+			{
+				// Everything below this node is inside the region, and its leaves are consecutive.
+				int first = node;
+				int last = node;
+				while (first >= numLeaves)
+				{
+					first = firstChild[first];
+					last = lastChild[last];
+				}
+				for (int leaf=first; leaf<=last; leaf++)
+				{
+					found.add(featureIDs[leaf]);
+				}
+			}
+			else if (node < numLeaves)
+			{
+				if (contained ? (!isRect && region.surrounds(featureList[node])) : region.intersects(featureList[node]))
+				{
+					found.add(featureIDs[node]);
+				}
+			}
+			else
+			{
+				int numChildren = lastChild[node]-firstChild[node]+1;
+				if (stackSize+numChildren > stack.length)
+				{
+					stack = Arrays.copyOf(stack, Math.max(stack.length*2, stackSize+numChildren));
+				}
+				for (int child=firstChild[node]; child<=lastChild[node]; child++)
+				{
+					stack[stackSize++] = child;
+				}
+			}
+		}
+	}
+
+	// ------------------------------------ Nested classes ------------------------------------
+
+	/** Binary heap of integer items ordered by ascending distance.
+	 */
+	private static class DistanceQueue
+	{
+		private float[] keys;		// Distance of each item.
+		private int[] items;		// Items in heap order.
+		private int size;			// Number of items in the heap.
+
+		/** Creates an empty queue.
+		 */
+		DistanceQueue()
+		{
+			keys = new float[16];
+			items = new int[16];
+		}
+
+		/** Reports the number of items in the queue.
+		 *  @return Number of items.
+		 */
+		int size()
+		{
+			return size;
+		}
+
+		/** Reports the smallest distance in the queue. Should only be called if the queue is not empty.
+		 *  @return Distance of the first item.
+		 */
+		float peekKey()
+		{
+			return keys[0];
+		}
+
+		/** Adds an item to the queue.
+		 *  @param key Distance used to order the item.
+		 *  @param item Item to add.
+		 */
+		void push(float key, int item)
+		{
+			if (size == keys.length)
+			{
+				keys = Arrays.copyOf(keys, size*2);
+				items = Arrays.copyOf(items, size*2);
+			}
+			int pos = size++;
+			while (pos > 0)
+			{
+				int parent = (pos-1) >> 1;
+				if (keys[parent] <= key)
+				{
+					break;
+				}
+				keys[pos] = keys[parent];
+				items[pos] = items[parent];
+				pos = parent;
+			}
+			keys[pos] = key;
+			items[pos] = item;
+		}
+
+		/** Removes the item with the smallest distance from the queue. Should only be called if the queue is not empty.
+		 *  @return Item removed.
+		 */
+		int pop()
+		{
+			int top = items[0];
+			size--;
+			if (size > 0)
+			{
+				float key = keys[size];
+				int item = items[size];
+				int pos = 0;
+				int half = size >> 1;
+				while (pos < half)
+				{
+					int child = 2*pos+1;
+					if ((child+1 < size) && (keys[child+1] < keys[child]))
+					{
+						child++;
+					}
+					if (key <= keys[child])
+					{
+						break;
+					}
+					keys[pos] = keys[child];
+					items[pos] = items[child];
+					pos = child;
+				}
+				keys[pos] = key;
+				items[pos] = item;
+			}
+			return top;
+		}
+	}
+
+	/** Grid of cells covering a set of polygons. Each cell lists, in the order they appear in the feature
+	 *  map, the polygons whose boundaries pass through it, ending with the first polygon that contains the
+	 *  whole cell if there is one. Polygons are only prepared while the grid is built, so small polygons that
+	 *  are not kept prepared are tested directly against their edges when locations are found.
+	 */
+	private static class PolygonGrid
+	{
+		private Polygon[] polygons;				// Polygons in R-tree order, with null in place of other features.
+		private float minX, minY, maxX, maxY;	// Bounding box of all polygons.
+		private int numCols, numRows;			// Number of cells across and down the grid.
+		private float cellsPerUnitX;			// Number of cells per geographic unit in the x direction.
+		private float cellsPerUnitY;			// Number of cells per geographic unit in the y direction.
+		private int[] cellStart, cellEntries;	// Polygons listed in each cell, each stored as twice its position plus 1 if it contains the cell.
+
+		/** Creates a grid of the given polygons.
+		 *  @param polygons Polygons in R-tree order, with null in place of other features.
+		 *  @param order Position of each feature in R-tree order within the feature map.
+		 */
+		PolygonGrid(Polygon[] polygons, int[] order)
+		{
+			this.polygons = polygons;
+			int[] leaves = new int[polygons.length];
+			int numPolygons = 0;
+			minX = minY = Float.MAX_VALUE;
+			maxX = maxY = -Float.MAX_VALUE;
+			for (int leaf=0; leaf<polygons.length; leaf++)
+			{
+				leaves[order[leaf]] = leaf;
+				if (polygons[leaf] != null)
+				{
+					numPolygons++;
+					Rectangle2D bounds = polygons[leaf].getBounds();
+					minX = Math.min(minX, (float)bounds.getMinX());
+					minY = Math.min(minY, (float)bounds.getMinY());
+					maxX = Math.max(maxX, (float)bounds.getMaxX());
+					maxY = Math.max(maxY, (float)bounds.getMaxY());
+				}
+			}
+			if (numPolygons == 0)
+			{
+				cellStart = new int[1];
+				cellEntries = new int[0];
+				return;
+			}
+
+			// Around a thousand cells per polygon leaves few cells crossed by any boundary.
+			double numCells = Math.max(4096, Math.min(1<<22, 1024.0*numPolygons));
+			double width = Math.max(maxX-minX, Float.MIN_NORMAL);
+			double height = Math.max(maxY-minY, Float.MIN_NORMAL);
+			double cellSize = Math.sqrt(width*height/numCells);
+			numCols = (int)Math.max(1, Math.min(4096, Math.ceil(width/cellSize)));
+			numRows = (int)Math.max(1, Math.min(4096, Math.ceil(height/cellSize)));
+			cellsPerUnitX = (float)(numCols/width);
+			cellsPerUnitY = (float)(numRows/height);
+
+			// Polygons are added in map order, and none are added to a cell after one that contains it.
+			boolean[] isCovered = new boolean[numCols*numRows];
+			int[] entryCells = new int[numCols*numRows];
+			int[] entries = new int[numCols*numRows];
+			int numEntries = 0;
+			float padX = 0.001f/cellsPerUnitX;
+			float padY = 0.001f/cellsPerUnitY;
+			for (int position=0; position<polygons.length; position++)
+			{
+				int leaf = leaves[position];
+				if (polygons[leaf] == null)
+				{
+					continue;
+				}
+				PreparedPolygon polygon = polygons[leaf].getPrepared();
+				int lastRow = getRow(polygon.maxY);
+				int lastCol = getCol(polygon.maxX);
+				for (int row=getRow(polygon.minY); row<=lastRow; row++)
+				{
+					for (int col=getCol(polygon.minX); col<=lastCol; col++)
+					{
+						int cell = row*numCols+col;
+						if (isCovered[cell])
+						{
+							continue;
+						}
+						byte state = polygon.classify(minX + col/cellsPerUnitX - padX, minY + row/cellsPerUnitY - padY,
+						                              minX + (col+1)/cellsPerUnitX + padX, minY + (row+1)/cellsPerUnitY + padY);
+						if (state == PreparedPolygon.OUTSIDE)
+						{
+							continue;
+						}
+						if (numEntries == entries.length)
+						{
+							entryCells = Arrays.copyOf(entryCells, numEntries*2);
+							entries = Arrays.copyOf(entries, numEntries*2);
+						}
+						entryCells[numEntries] = cell;
+						entries[numEntries] = leaf*2 + ((state == PreparedPolygon.INSIDE) ? 1 : 0);
+						numEntries++;
+						isCovered[cell] = (state == PreparedPolygon.INSIDE);
+					}
+				}
+			}
+
+			cellStart = new int[numCols*numRows+1];
+			for (int e=0; e<numEntries; e++)
+			{
+				cellStart[entryCells[e]+1]++;
+			}
+			for (int cell=0; cell<numCols*numRows; cell++)
+			{
+				cellStart[cell+1] += cellStart[cell];
+			}
+			cellEntries = new int[numEntries];
+			int[] position = Arrays.copyOf(cellStart, numCols*numRows);
+			for (int e=0; e<numEntries; e++)
+			{
+				cellEntries[position[entryCells[e]]++] = entries[e];
+			}
+		}
+
+		/** Finds the first polygon in the feature map's order that contains the given location.
+		 *  @param px x coordinate of the location.
+		 *  @param py y coordinate of the location.
+		 *  @return Position in R-tree order of the polygon containing the location, or -1 if none do.
+		 */
+		int find(float px, float py)
+		{
+			if ((px < minX) || (px > maxX) || (py < minY) || (py > maxY))
+			{
+				return -1;
+			}
+			int cell = getRow(py)*numCols + getCol(px);
+			for (int e=cellStart[cell]; e<cellStart[cell+1]; e++)
+			{
+				int leaf = cellEntries[e] >>> 1;
+				if (((cellEntries[e] & 1) == 1) || polygons[leaf].contains(px, py))
+				{
+					return leaf;
+				}
+			}
+			return -1;
+		}
+
+		/** Reports the column of the grid containing the given x coordinate.
+		 *  @param px x coordinate.
+		 *  @return Column containing the coordinate, limited to the columns of the grid.
+		 */
+		private int getCol(float px)
+		{
+			return Math.max(0, Math.min(numCols-1, (int)((px-minX)*cellsPerUnitX)));
+		}
+
+		/** Reports the row of the grid containing the given y coordinate.
+		 *  @param py y coordinate.
+		 *  @return Row containing the coordinate, limited to the rows of the grid.
+		 */
+		private int getRow(float py)
+		{
+			return Math.max(0, Math.min(numRows-1, (int)((py-minY)*cellsPerUnitY)));
+		}
+	}
+
+	/** Growable list of feature IDs.
+	 */
+	private static class IDBuffer
+	{
+		private int[] ids;		// IDs added so far.
+		private int size;		// Number of IDs added.
+
+		/** Creates an empty list.
+		 */
+		IDBuffer()
+		{
+			ids = new int[64];
+		}
+
+		/** Adds an ID to the list.
+		 *  @param id ID to add.
+		 */
+		void add(int id)
+		{
+			if (size == ids.length)
+			{
+				ids = Arrays.copyOf(ids, size*2);
+			}
+			ids[size++] = id;
+		}
+
+		/** Adds a range of IDs to the list.
+		 *  @param source Array holding the IDs to add.
+		 *  @param start Position in the array of the first ID to add.
+		 *  @param end Position in the array after the last ID to add.
+		 */
+		void add(int[] source, int start, int end)
+		{
+			if (size+end-start > ids.length)
+			{
+				ids = Arrays.copyOf(ids, Math.max(ids.length*2, size+end-start));
+			}
+			System.arraycopy(source, start, ids, size, end-start);
+			size += end-start;
+		}
+
+		/** Provides the IDs in the list.
+		 *  @return Array holding just the IDs added.
+		 */
+		int[] toArray()
+		{
+			return Arrays.copyOf(ids, size);
+		}
+	}
+}
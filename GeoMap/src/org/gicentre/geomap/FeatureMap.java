@@ -0,0 +1,665 @@
+package org.gicentre.geomap;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// *****************************************************************************************
+/** Map of features indexed by integer ID that preserves the order in which features are added.
+ *  IDs are stored as primitive values, so the <code>int</code> versions of <code>get()</code>,
+ *  <code>put()</code>, <code>containsKey()</code> and <code>remove()</code> avoid boxing. While IDs
+ *  are added in the sequence 1, 2, 3... (as they are when reading a shapefile) features are found
+ *  directly by their position. Otherwise an open-addressing hash table of positions is used.
+ *  <br>
+ *  A map may also hold a <code>PointLayer</code> whose points are treated as features of the map. They
+ *  follow the other features when iterating and are provided as new <code>Point</code> objects each time
+ *  they are retrieved. Their entries do not support <code>setValue()</code>.
+ *  <br>
+ *  Null features cannot be stored, and iterators do not detect concurrent modification.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class FeatureMap extends AbstractMap<Integer,Feature>
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private int[] keys;				// IDs in the order they were added.
+	private Feature[] values;		// Features in the order they were added (null if removed).
+	private int numSlots;			// Number of positions used, including removed entries.
+	private int size;				// Number of features stored.
+	private boolean sequential;		// True while the ID at each position is the position plus 1.
+	private int[] table;			// Hash table of positions plus 1 (0 if empty, -1 if removed).
+	private PointLayer pointLayer;	// Compactly stored point features (null if none).
+	private int modCount;			// Number of times features have been changed (excluding the point layer).
+
+	private static final int DELETED = -1;
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Creates an empty feature map.
+	 */
+	public FeatureMap()
+	{
+		this(16);
+	}
+
+	/** Creates an empty feature map with room for the given number of features.
+	 *  @param capacity Number of features that can be added before storage is enlarged.
+	 */
+	public FeatureMap(int capacity)
+	{
+		keys = new int[Math.max(capacity, 1)];
+		values = new Feature[keys.length];
+		clear();
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Reports the feature with the given ID.
+	 *  @param id ID of the feature to find.
+	 *  @return Feature with the given ID or null if not found.
+	 */
+	public Feature get(int id)
+	{
+		int slot = find(id);
+		if (slot >= 0)
+		{
+			return values[slot];
+		}
+		if (pointLayer != null)
+		{
+			int index = pointLayer.indexOf(id);
+			if (index >= 0)
+			{
+				return pointLayer.getPoint(index);
+			}
+		}
+		return null;
+	}
+
+	/** Reports whether there is a feature with the given ID.
+	 *  @param id ID to search for.
+	 *  @return True if a feature with the given ID is stored.
+	 */
+	public boolean containsKey(int id)
+	{
+		return (find(id) >= 0) || ((pointLayer != null) && (pointLayer.indexOf(id) >= 0));
+	}
+
+	/** Stores the given feature with the given ID. If a feature with the same ID already exists it
+	 *  is replaced, keeping its original position in the map's ordering unless it was held in the
+	 *  map's point layer.
+	 *  @param id ID of the feature.
+	 *  @param feature Feature to store. Must not be null.
+	 *  @return Feature previously stored with the given ID, or null if there was none.
+	 */
+	public Feature put(int id, Feature feature)
+	{
+		if (feature == null)
+		{
+			throw new NullPointerException("Cannot store a null feature in a FeatureMap.");
+		}
+		modCount++;
+		int slot = find(id);
+		if (slot >= 0)
+		{
+			Feature previous = values[slot];
+			values[slot] = feature;
+			return previous;
+		}
+
+		Feature previous = null;
+		if (pointLayer != null)
+		{
+			int index = pointLayer.indexOf(id);
+			if (index >= 0)
+			{
+				previous = pointLayer.getPoint(index);
+				pointLayer.remove(index);
+			}
+		}
+
+		if (numSlots == keys.length)
+		{
+			if (size < numSlots/2)
+			{
+				compact();
+			}
+			else
+			{
+				keys = Arrays.copyOf(keys, numSlots*2);
+				values = Arrays.copyOf(values, numSlots*2);
+			}
+		}
+		if (sequential && (id != numSlots+1))
+		{
+			sequential = false;
+			rebuildTable(keys.length);
+		}
+		keys[numSlots] = id;
+		values[numSlots] = feature;
+		numSlots++;
+		size++;
+
+		if (!sequential)
+		{
+			if (2*numSlots > table.length)
+			{
+				rebuildTable(numSlots);
+			}
+			else
+			{
+				insert(id, numSlots-1);
+			}
+		}
+		return previous;
+	}
+
+	/** Removes the feature with the given ID.
+	 *  @param id ID of the feature to remove.
+	 *  @return Feature that was removed, or null if there was no feature with the given ID.
+	 */
+	public Feature remove(int id)
+	{
+		int slot = find(id);
+		if (slot < 0)
+		{
+			if (pointLayer != null)
+			{
+				int index = pointLayer.indexOf(id);
+				if (index >= 0)
+				{
+					Feature previous = pointLayer.getPoint(index);
+					pointLayer.remove(index);
+					return previous;
+				}
+			}
+			return null;
+		}
+		Feature previous = values[slot];
+		removeSlot(slot);
+		return previous;
+	}
+
+	/** Reports the feature with the given ID.
+	 *  @param key ID of the feature to find.
+	 *  @return Feature with the given ID or null if not found.
+	 */
+	@Override
+	public Feature get(Object key)
+	{
+		return (key instanceof Integer) ? get(((Integer)key).intValue()) : null;
+	}
+
+	/** Reports whether there is a feature with the given ID.
+	 *  @param key ID to search for.
+	 *  @return True if a feature with the given ID is stored.
+	 */
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return (key instanceof Integer) && containsKey(((Integer)key).intValue());
+	}
+
+	/** Stores the given feature with the given ID.
+	 *  @param key ID of the feature.
+	 *  @param feature Feature to store. Must not be null.
+	 *  @return Feature previously stored with the given ID, or null if there was none.
+	 */
+	@Override
+	public Feature put(Integer key, Feature feature)
+	{
+		return put(key.intValue(), feature);
+	}
+
+	/** Removes the feature with the given ID.
+	 *  @param key ID of the feature to remove.
+	 *  @return Feature that was removed, or null if there was no feature with the given ID.
+	 */
+	@Override
+	public Feature remove(Object key)
+	{
+		return (key instanceof Integer) ? remove(((Integer)key).intValue()) : null;
+	}
+
+	/** Reports the number of features in the map.
+	 *  @return Number of features.
+	 */
+	@Override
+	public int size()
+	{
+		return (pointLayer == null) ? size : size+pointLayer.size();
+	}
+
+	/** Removes all features from the map.
+	 */
+	@Override
+	public void clear()
+	{
+		Arrays.fill(values, 0, numSlots, null);
+		numSlots = 0;
+		size = 0;
+		sequential = true;
+		table = null;
+		modCount++;
+		if (pointLayer != null)
+		{
+			pointLayer.clear();
+		}
+	}
+
+	/** Reports the point layer holding compactly stored point features of this map.
+	 *  @return Point layer, or null if this map does not have one.
+	 */
+	public PointLayer getPointLayer()
+	{
+		return pointLayer;
+	}
+
+	/** Sets the point layer whose points are treated as features of this map. IDs of the points should
+	 *  not match those of features already stored in the map.
+	 *  @param pointLayer Point layer to use, or null if points are all stored as separate features.
+	 */
+	public void setPointLayer(PointLayer pointLayer)
+	{
+		this.pointLayer = pointLayer;
+		modCount++;
+	}
+
+	/** Reports the number of positions used by features that are not in the point layer. This may be larger
+	 *  than the number of these features if any have been removed.
+	 *  @return Number of positions used.
+	 */
+	int getNumSlots()
+	{
+		return numSlots;
+	}
+
+	/** Reports a count of changes to the features of this map, including those of its point layer. This
+	 *  can be compared with an earlier value to find out whether any feature has been added, removed or
+	 *  replaced since. Changing the coordinates of a stored feature is not counted.
+	 *  @return Number of changes made to the map's features.
+	 */
+	long getModCount()
+	{
+		return ((long)modCount << 32) + ((pointLayer == null) ? 0 : (pointLayer.getModCount() & 0xffffffffL));
+	}
+
+	/** Reports the position of the feature with the given ID (ignoring the point layer).
+	 *  @param id ID of the feature to find.
+	 *  @return Position of the feature or -1 if it is not stored outside the point layer.
+	 */
+	int getSlot(int id)
+	{
+		return find(id);
+	}
+
+	/** Reports the ID of the feature at the given position (ignoring the point layer).
+	 *  @param slot Position of the feature.
+	 *  @return ID of the feature.
+	 */
+	int getKeyAt(int slot)
+	{
+		return keys[slot];
+	}
+
+	/** Reports the feature at the given position (ignoring the point layer).
+	 *  @param slot Position of the feature.
+	 *  @return Feature at the position or null if it has been removed.
+	 */
+	Feature getValueAt(int slot)
+	{
+		return values[slot];
+	}
+
+	/** Provides the features in the order in which they were added.
+	 *  @return Collection view of the features.
+	 */
+	@Override
+	public Collection<Feature> values()
+	{
+		return new AbstractCollection<Feature>()
+		{
+			@Override
+			public Iterator<Feature> iterator()
+			{
+				return new SlotIterator<Feature>()
+				{
+					@Override
+					Feature get(int slot)
+					{
+						return (slot < numSlots) ? values[slot] : pointLayer.getPoint(slot-numSlots);
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return FeatureMap.this.size();
+			}
+		};
+	}
+
+	/** Provides the IDs of the features in the order in which they were added.
+	 *  @return Set view of the IDs.
+	 */
+	@Override
+	public Set<Integer> keySet()
+	{
+		return new AbstractSet<Integer>()
+		{
+			@Override
+			public Iterator<Integer> iterator()
+			{
+				return new SlotIterator<Integer>()
+				{
+					@Override
+					Integer get(int slot)
+					{
+						return Integer.valueOf((slot < numSlots) ? keys[slot] : pointLayer.getID(slot-numSlots));
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object key)
+			{
+				return containsKey(key);
+			}
+
+			@Override
+			public int size()
+			{
+				return FeatureMap.this.size();
+			}
+		};
+	}
+
+	/** Provides the ID and feature pairs in the order in which they were added.
+	 *  @return Set view of the map's entries.
+	 */
+	@Override
+	public Set<Map.Entry<Integer,Feature>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<Integer,Feature>>()
+		{
+			@Override
+			public Iterator<Map.Entry<Integer,Feature>> iterator()
+			{
+				return new SlotIterator<Map.Entry<Integer,Feature>>()
+				{
+					@Override
+					Map.Entry<Integer,Feature> get(final int slot)
+					{
+						if (slot >= numSlots)
+						{
+							int index = slot-numSlots;
+							return new SimpleImmutableEntry<Integer,Feature>(Integer.valueOf(pointLayer.getID(index)),
+							                                                 pointLayer.getPoint(index));
+						}
+						return new SimpleEntry<Integer,Feature>(Integer.valueOf(keys[slot]), values[slot])
+						{
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public Feature setValue(Feature feature)
+							{
+								if (feature == null)
+								{
+									throw new NullPointerException("Cannot store a null feature in a FeatureMap.");
+								}
+								values[slot] = feature;
+								modCount++;
+								return super.setValue(feature);
+							}
+						};
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return FeatureMap.this.size();
+			}
+		};
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Finds the position of the feature with the given ID.
+	 *  @param id ID to search for.
+	 *  @return Position of the feature or -1 if not found.
+	 */
+	private int find(int id)
+	{
+		if (sequential)
+		{
+			return ((id >= 1) && (id <= numSlots)) ? id-1 : -1;
+		}
+		int mask = table.length-1;
+		for (int i=hash(id) & mask; ; i=(i+1) & mask)
+		{
+			int entry = table[i];
+			if (entry == 0)
+			{
+				return -1;
+			}
+			if ((entry != DELETED) && (keys[entry-1] == id) && (values[entry-1] != null))
+			{
+				return entry-1;
+			}
+		}
+	}
+
+	/** Adds the given position to the hash table. The table must have at least one empty slot.
+	 *  @param id ID of the feature.
+	 *  @param slot Position of the feature.
+	 */
+	private void insert(int id, int slot)
+	{
+		int mask = table.length-1;
+		int i = hash(id) & mask;
+		while ((table[i] != 0) && (table[i] != DELETED))
+		{
+			i = (i+1) & mask;
+		}
+		table[i] = slot+1;
+	}
+
+	/** Removes the feature at the given position.
+	 *  @param slot Position of the feature to remove.
+	 */
+	private void removeSlot(int slot)
+	{
+		modCount++;
+		if (sequential)
+		{
+			if (slot == numSlots-1)
+			{
+				// Removing the last feature keeps the remaining IDs sequential.
+				values[slot] = null;
+				numSlots--;
+				size--;
+				return;
+			}
+			sequential = false;
+			rebuildTable(keys.length);
+		}
+
+		int mask = table.length-1;
+		for (int i=hash(keys[slot]) & mask; ; i=(i+1) & mask)
+		{
+			if (table[i] == slot+1)
+			{
+				table[i] = DELETED;
+				break;
+			}
+		}
+		values[slot] = null;
+		size--;
+	}
+
+	/** Moves all stored features to the start of the storage arrays, removing gaps left by removed
+	 *  features, and rebuilds the hash table.
+	 */
+	private void compact()
+	{
+		int newSlots = 0;
+		for (int slot=0; slot<numSlots; slot++)
+		{
+			if (values[slot] != null)
+			{
+				keys[newSlots] = keys[slot];
+				values[newSlots] = values[slot];
+				newSlots++;
+			}
+		}
+		Arrays.fill(values, newSlots, numSlots, null);
+		numSlots = newSlots;
+		if (!sequential)
+		{
+			rebuildTable(keys.length);
+		}
+	}
+
+	/** Creates a new hash table large enough for the given number of features and adds the position
+	 *  of every stored feature to it.
+	 *  @param capacity Number of features the table should hold.
+	 */
+	private void rebuildTable(int capacity)
+	{
+		int tableSize = Integer.highestOneBit(Math.max(2*capacity, 4)-1) << 1;
+		table = new int[tableSize];
+		for (int slot=0; slot<numSlots; slot++)
+		{
+			if (values[slot] != null)
+			{
+				insert(keys[slot], slot);
+			}
+		}
+	}
+
+	/** Spreads the bits of an ID so that sequences of IDs are distributed across the hash table.
+	 *  @param id ID to hash.
+	 *  @return Hash code of the ID.
+	 */
+	private static int hash(int id)
+	{
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	// ----------------------------------- Nested classes ----------------------------------
+
+	/** Iterates over the stored features in order, skipping the positions of removed features. Positions
+	 *  beyond those of the map's own features refer to points in the point layer.
+	 *  @param <T> Type of object provided for each feature.
+	 */
+	private abstract class SlotIterator<T> implements Iterator<T>
+	{
+		private int next = advance(0);		// Position of the next feature.
+		private int last = -1;				// Position of the feature last provided.
+
+		/** Provides the object representing the feature at the given position.
+		 *  @param slot Position of the feature.
+		 *  @return Object to provide.
+		 */
+		abstract T get(int slot);
+
+		@Override
+		public boolean hasNext()
+		{
+			return next < getEnd();
+		}
+
+		@Override
+		public T next()
+		{
+			if (next >= getEnd())
+			{
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = advance(next+1);
+			return get(last);
+		}
+
+		@Override
+		public void remove()
+		{
+			if ((last < 0) || isRemoved(last))
+			{
+				throw new IllegalStateException();
+			}
+			if (last < numSlots)
+			{
+				int oldNumSlots = numSlots;
+				removeSlot(last);
+				if (numSlots < oldNumSlots)
+				{
+					// Removing the last slot moves the positions of any point layer features down by one.
+					next--;
+				}
+			}
+			else
+			{
+				pointLayer.remove(last-numSlots);
+			}
+			last = -1;
+		}
+
+		/** Reports the position after the last one that can hold a feature.
+		 *  @return End position of the iteration.
+		 */
+		private int getEnd()
+		{
+			return (pointLayer == null) ? numSlots : numSlots+pointLayer.getNumPositions();
+		}
+
+		/** Reports whether the feature at the given position has been removed.
+		 *  @param slot Position to test.
+		 *  @return True if there is no feature at the given position.
+		 */
+		private boolean isRemoved(int slot)
+		{
+			return (slot < numSlots) ? (values[slot] == null) : pointLayer.isRemoved(slot-numSlots);
+		}
+
+		/** Finds the first position at or after the given one that holds a feature.
+		 *  @param slot Position from which to search.
+		 *  @return Position of the next feature or the end position if there are no more.
+		 */
+		private int advance(int slot)
+		{
+			while ((slot < getEnd()) && isRemoved(slot))
+			{
+				slot++;
+			}
+			return slot;
+		}
+	}
+}
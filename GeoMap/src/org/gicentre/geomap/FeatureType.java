@@ -25,5 +25,6 @@ public enum FeatureType
 {
 	POINT,
 	LINE,
-	POLYGON
+	POLYGON,
+	MULTI_POINT
 }
@@ -3,13 +3,20 @@ package org.gicentre.geomap;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 
+import org.gicentre.geomap.io.FeatureFileReader;
+import org.gicentre.geomap.io.FeatureFileWriter;
 import org.gicentre.geomap.io.ShapefileReader;
 import org.gicentre.geomap.io.ShapefileWriter;
+import org.gicentre.geomap.io.SnapshotReader;
+import org.gicentre.geomap.io.SnapshotWriter;
+import org.gicentre.geomap.io.VectorTileWriter;
 
 import processing.core.PApplet;
 import processing.core.PVector;
@@ -44,12 +51,16 @@ public class GeoMap implements Geographic
     private float minGeoX, maxGeoX;                        // The minimum and maximum geographic values in the x direction.
     private float minGeoY, maxGeoY;                        // Minimum and maximum geographic values in the y direction.
     private float xOrigin, yOrigin, mapWidth, mapHeight;   // The bounds of the map in screen coordinates.
-    private Map<Integer, Feature> features;                // The key/value pair for each feature.
+    private FeatureMap features;                           // The key/value pair for each feature.
     //private AttributeTable attributes;					   // Attribute table associated with feature collection.
     private Table attributes;							   // Attribute table associated with the feature collection.
     private int numPoints,numLines,numPolys;			   // Number of features of each type.
     private int numLineVertices, numPolygonVertices;	   // Total number of vertices in all features.
     private int numPolygonParts;
+    private boolean usePointLayer;						   // Whether points read from files are stored in a point layer.
+    private PointRasteriser pointRasteriser;			   // Draws points directly into pixels (null if not used).
+    private ClusterIndex clusterIndex;					   // Draws points as clusters (null if not used).
+    private FeatureIndex featureIndex;					   // Spatial index of features (null until first needed).
     												/** Value used to indicate no data. */
     public final static float NO_DATA = Float.MAX_VALUE;
     
@@ -81,7 +92,7 @@ public class GeoMap implements Geographic
         this.maxGeoX    = xOrigin+mapWidth;
         this.minGeoY    = yOrigin;
         this.maxGeoY    = yOrigin+mapHeight;	
-        this.features   = new LinkedHashMap<Integer, Feature>();
+        this.features   = new FeatureMap();
         //this.attributes = new AttributeTable(0,0,parent);
         this.attributes = new Table();
         this.numPoints  = 0;
@@ -98,9 +109,31 @@ public class GeoMap implements Geographic
      */
     public void draw()
     {
-        for (Feature feature : features.values())
+        for (int slot=0; slot<features.getNumSlots(); slot++)
         {
-        	feature.draw(this);
+        	Feature feature = features.getValueAt(slot);
+        	if ((feature != null) && (((pointRasteriser == null) && (clusterIndex == null)) || !isPointFeature(feature)))
+        	{
+        		feature.draw(this);
+        	}
+        }
+
+        if (clusterIndex != null)
+        {
+        	clusterIndex.draw(this);
+        	return;
+        }
+
+        if (pointRasteriser != null)
+        {
+        	pointRasteriser.draw(this);
+        	return;
+        }
+
+        PointLayer pointLayer = features.getPointLayer();
+        if (pointLayer != null)
+        {
+        	pointLayer.draw(this);
         }
     }
     
@@ -109,7 +142,7 @@ public class GeoMap implements Geographic
      */
     public void draw(int id)
     {
-    	Feature feature = features.get(new Integer(id));
+    	Feature feature = features.get(id);
 		if (feature != null)
 		{
 			feature.draw(this);
@@ -141,7 +174,8 @@ public class GeoMap implements Geographic
     }
     
     /** Reports the ID of the feature at the given location in screen coordinates or -1
-     *  if no feature found.
+     *  if no feature found. If points are drawn as clusters, the ID of the first feature
+     *  in the cluster at the given location is reported.
      *  @param screenX x-coordinate of screen location to query.
      *  @param screenY y-coordinate of screen location to query.
      *  @return ID of feature at given coordinates or -1 if no feature found.
@@ -151,13 +185,28 @@ public class GeoMap implements Geographic
     	// Convert screen to geographic coordinates before testing for containment.
     	PVector geo = screenToGeo(screenX, screenY);
     	
-    	for (Integer id : features.keySet())
+    	for (int slot=0; slot<features.getNumSlots(); slot++)
     	{
-    		Feature feature = features.get(id);
-    	
-    		if (feature.contains(geo.x,geo.y))
+    		Feature feature = features.getValueAt(slot);
+    		if ((feature != null) && ((clusterIndex == null) || !isPointFeature(feature)) && feature.contains(geo.x,geo.y))
+    		{
+    			return features.getKeyAt(slot);
+    		}
+    	}
+
+    	if (clusterIndex != null)
+    	{
+    		int[] ids = clusterIndex.getIDs(this, screenX, screenY);
+    		return (ids.length > 0) ? ids[0] : -1;
+    	}
+
+    	PointLayer pointLayer = features.getPointLayer();
+    	if (pointLayer != null)
+    	{
+    		int index = pointLayer.getIndex(geo.x, geo.y);
+    		if (index >= 0)
     		{
-    			return id.intValue();
+    			return pointLayer.getID(index);
     		}
     	}
     	
@@ -165,6 +214,131 @@ public class GeoMap implements Geographic
     	return -1;
     }
     
+    /** Reports the IDs of the features at the given location in screen coordinates. If points are
+     *  drawn as clusters and a cluster is at the given location, the IDs of all features in the
+     *  cluster are reported. Otherwise the ID of the single feature found by <code>getID()</code>
+     *  is reported.
+     *  @param screenX x-coordinate of screen location to query.
+     *  @param screenY y-coordinate of screen location to query.
+     *  @return IDs of features at given coordinates, or an empty array if no feature found.
+     */
+    public int[] getIDs(float screenX, float screenY)
+    {
+    	if (clusterIndex != null)
+    	{
+    		int[] ids = clusterIndex.getIDs(this, screenX, screenY);
+    		if (ids.length > 0)
+    		{
+    			return ids;
+    		}
+    	}
+    	int id = getID(screenX, screenY);
+    	return (id == -1) ? new int[0] : new int[] {id};
+    }
+    
+    /** Reports the ID of the feature nearest to the given location in screen coordinates. Unlike
+     *  <code>getID()</code>, the feature need not be within any tolerance distance of the location.
+     *  Distances are measured in geographic units using the map's spatial index.
+     *  @param screenX x-coordinate of screen location to query.
+     *  @param screenY y-coordinate of screen location to query.
+     *  @return ID of the nearest feature or -1 if the map has no features.
+     */
+    public int getNearestID(float screenX, float screenY)
+    {
+    	PVector geo = screenToGeo(screenX, screenY);
+    	return getFeatureIndex().getNearestID(geo.x, geo.y);
+    }
+
+    /** Reports the IDs of the features nearest to the given location in screen coordinates, in order
+     *  of distance. Distances are measured in geographic units using the map's spatial index.
+     *  @param screenX x-coordinate of screen location to query.
+     *  @param screenY y-coordinate of screen location to query.
+     *  @param k Maximum number of features to report.
+     *  @param distances Array in which to store the geographic distance to each feature reported, with
+     *                   space for at least k values, or null if not required.
+     *  @return IDs of the nearest features, which will be fewer than k if the map has fewer features.
+     */
+    public int[] getNearestIDs(float screenX, float screenY, int k, float[] distances)
+    {
+    	PVector geo = screenToGeo(screenX, screenY);
+    	int[] ids = new int[Math.max(k, 0)];
+    	int numFound = getFeatureIndex().getNearest(geo.x, geo.y, k, Float.MAX_VALUE, ids, distances);
+    	return (numFound == ids.length) ? ids : Arrays.copyOf(ids, numFound);
+    }
+
+    /** Reports the IDs of the features that intersect, or are contained within, the rectangle with the
+     *  given corners in screen coordinates.
+     *  @param screenX1 x-coordinate of one corner of the rectangle.
+     *  @param screenY1 y-coordinate of one corner of the rectangle.
+     *  @param screenX2 x-coordinate of the opposite corner of the rectangle.
+     *  @param screenY2 y-coordinate of the opposite corner of the rectangle.
+     *  @param contained True if only features entirely within the rectangle should be reported, false if
+     *                   all features that intersect it should be reported.
+     *  @return IDs of the features found, each reported once.
+     */
+    public int[] getIDsInRect(float screenX1, float screenY1, float screenX2, float screenY2, boolean contained)
+    {
+    	PVector geo1 = screenToGeo(screenX1, screenY1);
+    	PVector geo2 = screenToGeo(screenX2, screenY2);
+    	return getFeatureIndex().getIDsInRect(Math.min(geo1.x, geo2.x), Math.min(geo1.y, geo2.y),
+    	                                      Math.max(geo1.x, geo2.x), Math.max(geo1.y, geo2.y), contained);
+    }
+
+    /** Reports the IDs of the features that intersect, or are contained within, a freehand lasso drawn
+     *  in screen coordinates. The lasso is closed automatically and should not cross itself.
+     *  @param screenX x-coordinates of the lasso's vertices.
+     *  @param screenY y-coordinates of the lasso's vertices.
+     *  @param contained True if only features entirely within the lasso should be reported, false if
+     *                   all features that intersect it should be reported.
+     *  @return IDs of the features found, each reported once.
+     */
+    public int[] getIDsInLasso(float[] screenX, float[] screenY, boolean contained)
+    {
+    	int numVertices = Math.min(screenX.length, screenY.length);
+    	float[] geoX = new float[numVertices];
+    	float[] geoY = new float[numVertices];
+    	for (int i=0; i<numVertices; i++)
+    	{
+    		PVector geo = screenToGeo(screenX[i], screenY[i]);
+    		geoX[i] = geo.x;
+    		geoY[i] = geo.y;
+    	}
+    	return getFeatureIndex().getIDsInPolygon(geoX, geoY, contained);
+    }
+
+    /** Reports the ID of the polygon containing each of the given locations in geographic coordinates.
+     *  This should be used in preference to calling <code>getID()</code> for each location when large
+     *  numbers of locations, such as GPS points, need to be assigned to the areas of a map.
+     *  @param geoX x-coordinates of the locations in geographic coordinates.
+     *  @param geoY y-coordinates of the locations in geographic coordinates.
+     *  @return ID of the polygon containing each location, or -1 where a location is not within any polygon.
+     */
+    public int[] getContainingIDs(float[] geoX, float[] geoY)
+    {
+    	return getFeatureIndex().getContainingIDs(geoX, geoY);
+    }
+
+    /** Reports the spatial index of this map's features, building it if necessary. The index is rebuilt
+     *  whenever features have been read or added or removed since it was last built. If the geometry of
+     *  features is changed in place, <code>updateIndex()</code> should be called to rebuild it.
+     *  @return Spatial index of features.
+     */
+    public FeatureIndex getFeatureIndex()
+    {
+    	if ((featureIndex == null) || !featureIndex.isCurrent(features))
+    	{
+    		updateIndex();
+    	}
+    	return featureIndex;
+    }
+
+    /** Rebuilds the spatial index of this map's features.
+     */
+    public void updateIndex()
+    {
+    	featureIndex = new FeatureIndex(features);
+    }
+    
     /** Should provide the screen coordinates corresponding to the given geographic coordinates.
 	 * @param geoX Geographic x coordinate.
 	 * @param geoY Geographic y coordinate.
@@ -195,6 +369,7 @@ public class GeoMap implements Geographic
     public void readFile(String fileName)
     {
     	ShapefileReader reader = new ShapefileReader(parent);
+    	reader.setUsePointLayer(usePointLayer);
     	InputStream geomStream   = parent.createInput(fileName+".shp");
     	if (geomStream == null)
     	{
@@ -209,19 +384,228 @@ public class GeoMap implements Geographic
     		return;
     	}
     	reader.read(geomStream,attribStream);
+    	addFeatures(reader);
+    }
+
+    /** Reads geometry and attributes from a shapefile, keeping only features whose bounding boxes intersect
+     *  the given region. Records outside the region are skipped without decoding their geometry or attributes,
+     *  so this is much faster than reading the whole file when only a small area is required. If the shapefile
+     *  has a quadtree spatial index (fileName.qix), only the records it identifies are visited. The bounds of
+     *  this geoMap are set to the part of the file within the region.
+     *  @param fileName The name of the file without extension. A shapefile consists of three separate files
+     *                  called fileName.shp (the geometry), fileName.dbf (the attributes) and fileName.shx
+     *                  (an index file).
+     *  @param minX Minimum geographic x coordinate of the region to read.
+     *  @param minY Minimum geographic y coordinate of the region to read.
+     *  @param maxX Maximum geographic x coordinate of the region to read.
+     *  @param maxY Maximum geographic y coordinate of the region to read.
+     */
+    public void readFile(String fileName, float minX, float minY, float maxX, float maxY)
+    {
+    	ShapefileReader reader = new ShapefileReader(parent);
+    	reader.setUsePointLayer(usePointLayer);
+    	if (!reader.read(fileName, minX, minY, maxX, maxY))
+    	{
+    		System.err.println("Cannot read shapefile: "+fileName);
+    		return;
+    	}
+    	addFeatures(reader);
+    }
+
+    /** Reads geometry and attributes from a shapefile, keeping only features whose attributes satisfy the given
+     *  test. The named attribute columns of each record are supplied to the test as strings or numbers, and only the
+     *  geometry of records that pass is read, so load time and memory depend on the size of the selection rather
+     *  than the whole file. The bounds of this geoMap are set to those of the features read.
+     *  @param fileName The name of the file without extension. A shapefile consists of three separate files
+     *                  called fileName.shp (the geometry), fileName.dbf (the attributes) and fileName.shx
+     *                  (an index file).
+     *  @param columnNames Names of the attribute columns needed by the test.
+     *  @param filter Test that reports true for the attribute values of features to be read.
+     */
+    public void readFile(String fileName, String[] columnNames, Predicate<Object[]> filter)
+    {
+    	ShapefileReader reader = new ShapefileReader(parent);
+    	reader.setUsePointLayer(usePointLayer);
+    	if (!reader.read(fileName, columnNames, filter))
+    	{
+    		System.err.println("Cannot read shapefile: "+fileName);
+    		return;
+    	}
+    	addFeatures(reader);
+    }
+
+    /** Reads geometry and attributes from a shapefile, keeping only features with the given attribute value.
+     *  For example, <code>readFile("counties", "STATE", "CA")</code> would read only those counties with a
+     *  <code>STATE</code> value of <code>CA</code>.
+     *  @param fileName The name of the file without extension. A shapefile consists of three separate files
+     *                  called fileName.shp (the geometry), fileName.dbf (the attributes) and fileName.shx
+     *                  (an index file).
+     *  @param columnName Name of the attribute column to test.
+     *  @param value Attribute value of the features to read.
+     */
+    public void readFile(String fileName, String columnName, final String value)
+    {
+    	readFile(fileName, new String[] {columnName}, new Predicate<Object[]>()
+    	{
+    		@Override
+    		public boolean test(Object[] values)
+    		{
+    			return (values[0] != null) && values[0].toString().equals(value);
+    		}
+    	});
+    }
+
+    /** Stores the features and attributes that have been read by the given shapefile reader.
+     *  @param reader Reader that has read a shapefile.
+     */
+    private void addFeatures(ShapefileReader reader)
+    {
     	minGeoX = reader.getMinX();
     	minGeoY = reader.getMinY();
     	maxGeoX = reader.getMaxX();
     	maxGeoY = reader.getMaxY();
-    	features = reader.getFeatures();
+    	features = reader.getFeatureMap();
     	attributes = reader.getAttributeTable();
     	
-    	numPoints += reader.getNumPoints();
-    	numLines += reader.getNumLines();
-    	numPolys += reader.getNumPolys();
-    	
-    	for (Feature feature : features.values())
+    	numPoints = reader.getNumPoints();
+    	numLines  = reader.getNumLines();
+    	numPolys  = reader.getNumPolys();
+    	countVertices();
+    }
+    
+    /** Writes geometry and attributes of this geoMap object as a shapefile.
+     *  @param fileName The name of the file without extension. A shapefile consists of three separate files
+     *                  called fileName.shp (the geometry), fileName.dbf (the attributes) and fileName.shx
+     *                  (an index file).
+     */
+    public void writeFile(String fileName)
+    {
+    	// Write the objects out as shapefiles (one triplet per feature type).
+    	ShapefileWriter writer = new ShapefileWriter(this,parent);  	
+    	writer.write(fileName);
+    }
+
+    /** Reads geometry and attributes from a snapshot file previously created with <code>writeSnapshot()</code>.
+     *  Snapshots store decoded geometry, typed attributes and the order of features in the spatial index,
+     *  so are much faster to load than shapefiles and their index does not need to be built again.
+     *  @param fileName The full name of the snapshot file (including any extension).
+     *  @return True if the snapshot was read successfully.
+     */
+    public boolean readSnapshot(String fileName)
+    {
+    	SnapshotReader reader = new SnapshotReader(parent);
+    	reader.setUsePointLayer(usePointLayer);
+    	if (!reader.read(fileName))
+    	{
+    		return false;
+    	}
+    	minGeoX = reader.getMinX();
+    	minGeoY = reader.getMinY();
+    	maxGeoX = reader.getMaxX();
+    	maxGeoY = reader.getMaxY();
+    	features = reader.getFeatures();
+    	attributes = reader.getAttributeTable();
+    	featureIndex = reader.getFeatureIndex();
+
+    	numPoints = reader.getNumPoints();
+    	numLines  = reader.getNumLines();
+    	numPolys  = reader.getNumPolys();
+    	countVertices();
+    	return true;
+    }
+
+    /** Writes the geometry and attributes of this geoMap object as a single snapshot file that can be
+     *  rapidly reloaded with <code>readSnapshot()</code>.
+     *  @param fileName The full name of the snapshot file to create (including any extension).
+     *  @return True if the snapshot was written successfully.
+     */
+    public boolean writeSnapshot(String fileName)
+    {
+    	SnapshotWriter writer = new SnapshotWriter(this,parent);
+    	return writer.write(fileName);
+    }
+
+    /** Reads geometry and attributes from a feature file previously created with <code>writeFeatureFile()</code>.
+     *  @param fileName The full name of the feature file (including any extension).
+     *  @return True if the feature file was read successfully.
+     */
+    public boolean readFeatureFile(String fileName)
+    {
+    	FeatureFileReader reader = new FeatureFileReader(parent);
+    	reader.setUsePointLayer(usePointLayer);
+    	if (!reader.read(fileName))
     	{
+    		return false;
+    	}
+    	addFeatures(reader);
+    	return true;
+    }
+
+    /** Reads the geometry and attributes of those features in a feature file whose bounding boxes
+     *  intersect the given region. The feature file's spatial index is used so that only the parts of
+     *  the file covering the region are read. The geographic bounds of this geoMap are set to those of
+     *  the region within the file.
+     *  @param fileName The full name of the feature file (including any extension).
+     *  @param minX Minimum x coordinate of the region to read.
+     *  @param minY Minimum y coordinate of the region to read.
+     *  @param maxX Maximum x coordinate of the region to read.
+     *  @param maxY Maximum y coordinate of the region to read.
+     *  @return True if the feature file was read successfully.
+     */
+    public boolean readFeatureFile(String fileName, float minX, float minY, float maxX, float maxY)
+    {
+    	FeatureFileReader reader = new FeatureFileReader(parent);
+    	reader.setUsePointLayer(usePointLayer);
+    	if (!reader.read(fileName, minX, minY, maxX, maxY))
+    	{
+    		return false;
+    	}
+    	addFeatures(reader);
+    	return true;
+    }
+
+    /** Stores the features and attributes that have been read by the given feature file reader.
+     *  @param reader Reader that has read a feature file.
+     */
+    private void addFeatures(FeatureFileReader reader)
+    {
+    	minGeoX = reader.getMinX();
+    	minGeoY = reader.getMinY();
+    	maxGeoX = reader.getMaxX();
+    	maxGeoY = reader.getMaxY();
+    	features = reader.getFeatures();
+    	attributes = reader.getAttributeTable();
+
+    	numPoints = reader.getNumPoints();
+    	numLines  = reader.getNumLines();
+    	numPolys  = reader.getNumPolys();
+    	countVertices();
+    }
+
+    /** Reports whether the given feature is a point or multipoint feature.
+     *  @param feature Feature to test.
+     *  @return True if the feature is made up of points.
+     */
+    private static boolean isPointFeature(Feature feature)
+    {
+    	return (feature.getType() == FeatureType.POINT) || (feature.getType() == FeatureType.MULTI_POINT);
+    }
+
+    /** Recalculates the number of line and polygon vertices and polygon parts from the stored features.
+     */
+    private void countVertices()
+    {
+    	numLineVertices    = 0;
+    	numPolygonVertices = 0;
+    	numPolygonParts    = 0;
+
+    	for (int slot=0; slot<features.getNumSlots(); slot++)
+    	{
+    		Feature feature = features.getValueAt(slot);
+    		if (feature == null)
+    		{
+    			continue;
+    		}
     		if (feature.getType() == FeatureType.LINE)
     		{
     			numLineVertices += feature.getNumVertices();
@@ -233,20 +617,71 @@ public class GeoMap implements Geographic
     		}
     	}
     }
-    
-    /** Writes geometry and attributes of this geoMap object as a shapefile.
-     *  @param fileName The name of the file without extension. A shapefile consists of three separate files
-     *                  called fileName.shp (the geometry), fileName.dbf (the attributes) and fileName.dbx
-     *                  (an index file).
+
+    /** Writes the geometry and attributes of this geoMap object as a single feature file containing a
+     *  spatial index, so that the features in any region can later be read quickly with <code>readFeatureFile()</code>.
+     *  @param fileName The full name of the feature file to create (including any extension).
+     *  @return True if the feature file was written successfully.
      */
-    public void writeFile(String fileName)
+    public boolean writeFeatureFile(String fileName)
     {
-    	// Write the objects out as shapefiles (one triplet per feature type).
-    	ShapefileWriter writer = new ShapefileWriter(this,parent);  	
-    	writer.write(fileName);
+    	FeatureFileWriter writer = new FeatureFileWriter(this,parent);
+    	return writer.write(fileName);
     }
-    
-    /** Reports the number of point objects that are stored in this geoMap object.
+
+    /** Writes the geometry and attributes of this geoMap object as a pyramid of Mapbox Vector Tiles
+     *  stored in a <code>z/x/y.pbf</code> directory tree. Zoom level 0 is a single tile covering the
+     *  square enclosing this geoMap's bounds. For more control over tiling, such as projecting longitude
+     *  and latitude to web Mercator tiles, use a <code>VectorTileWriter</code> directly.
+     *  @param directoryName Name of the directory in which to write tiles.
+     *  @param minZoom Lowest zoom level to write.
+     *  @param maxZoom Highest zoom level to write.
+     *  @return True if the tiles were written successfully.
+     */
+    public boolean writeVectorTiles(String directoryName, int minZoom, int maxZoom)
+    {
+    	VectorTileWriter writer = new VectorTileWriter(this,parent);
+    	writer.setZoomRange(minZoom, maxZoom);
+    	return writer.write(directoryName);
+    }
+
+    /** Reorders the features of this geoMap so that the centres of their bounding boxes follow a
+     *  Hilbert curve. Feature IDs and attributes are unchanged, but iterating over the features (for
+     *  example when drawing, querying or writing them) visits neighbouring features consecutively.
+     *  This is typically called once after reading a file.
+     */
+    public void sortByHilbertCurve()
+    {
+    	ArrayList<Integer> ids = new ArrayList<Integer>();
+    	ArrayList<Feature> values = new ArrayList<Feature>();
+    	for (int slot=0; slot<features.getNumSlots(); slot++)
+    	{
+    		Feature feature = features.getValueAt(slot);
+    		if (feature != null)
+    		{
+    			ids.add(Integer.valueOf(features.getKeyAt(slot)));
+    			values.add(feature);
+    		}
+    	}
+    	int[] order = HilbertCurve.sort(values);
+
+    	FeatureMap sortedFeatures = new FeatureMap(order.length);
+    	for (int i : order)
+    	{
+    		sortedFeatures.put(ids.get(i).intValue(), values.get(i));
+    	}
+
+    	PointLayer pointLayer = features.getPointLayer();
+    	if (pointLayer != null)
+    	{
+    		pointLayer.sortByHilbertCurve();
+    		sortedFeatures.setPointLayer(pointLayer);
+    	}
+    	features = sortedFeatures;
+    }
+
+    /** Reports the number of point objects that are stored in this geoMap object. Each multipoint
+     *  feature is counted as a single point object.
 	 *  @return Number of point objects stored.
 	 */
 	public int getNumPoints()
@@ -305,6 +740,56 @@ public class GeoMap implements Geographic
 		return features;
 	}
 	
+	/** Reports the features that make up this geoMap object as a feature map. This is the same collection
+	 *  as reported by <code>getFeatures()</code>, but features can be found by ID without boxing using the
+	 *  map's <code>get(int)</code> method.
+	 *  @return Map of features each addressable by some unique ID.
+	 */
+	public FeatureMap getFeatureMap()
+	{
+		return features;
+	}
+	
+	/** Determines whether point features subsequently read from files are stored in a point layer rather than
+	 *  as separate <code>Point</code> objects. A point layer holds coordinates in primitive arrays, so uses far
+	 *  less memory and is quicker to draw when there are very many points. The points remain part of the
+	 *  collection reported by <code>getFeatures()</code>, but each is provided as a new <code>Point</code>
+	 *  object whenever it is retrieved.
+	 *  @param usePointLayer True if points should be stored in a point layer.
+	 */
+	public void setUsePointLayer(boolean usePointLayer)
+	{
+		this.usePointLayer = usePointLayer;
+	}
+
+	/** Sets the rasteriser used to draw point features. When set, <code>draw()</code> draws all point and
+	 *  multipoint features by writing directly into the sketch's pixels after other features have been
+	 *  drawn, which is much faster than drawing each point separately when there are millions of them.
+	 *  @param pointRasteriser Rasteriser to use, or null if points should be drawn as normal.
+	 */
+	public void setPointRasteriser(PointRasteriser pointRasteriser)
+	{
+		this.pointRasteriser = pointRasteriser;
+	}
+
+	/** Sets the cluster index used to draw point features. When set, <code>draw()</code> draws point and
+	 *  multipoint features as clusters suited to the current map scale, and <code>getIDs()</code> reports
+	 *  all the features in a cluster. The index should be built after the features have been read.
+	 *  @param clusterIndex Cluster index to use, or null if points should be drawn as normal.
+	 */
+	public void setClusterIndex(ClusterIndex clusterIndex)
+	{
+		this.clusterIndex = clusterIndex;
+	}
+
+	/** Reports the point layer in which point features of this geoMap are compactly stored.
+	 *  @return Point layer or null if points are stored as separate features.
+	 */
+	public PointLayer getPointLayer()
+	{
+		return features.getPointLayer();
+	}
+
 	/** Reports the attribute table associated with this geoMap object.
 	 *  @return Attribute table associated with this geoMap.
 	 *  
@@ -559,6 +1044,29 @@ public class GeoMap implements Geographic
 		writer.flush();
 	}
 	
+	// ------------------------------ Package-wide methods -------------------------------
+
+	/** Provides the linear transformation from geographic to screen coordinates applied by the given
+	 *  transformer, so that many locations can be transformed without calling <code>geoToScreen()</code>
+	 *  for each. The transformation is found in double precision from the screen positions of the corners
+	 *  of this map's geographic bounds. Nearby locations such as the origin and unit square are not used
+	 *  as their screen positions are too close to give an accurate scale for projected coordinates.
+	 *  @param transformer Class that handles the geographic to screen transformations. This is assumed to be linear.
+	 *  @return Screen x coordinate of the geographic origin, screen x units per geographic unit, screen y
+	 *          coordinate of the geographic origin and screen y units per geographic unit.
+	 */
+	double[] getLinearTransform(Geographic transformer)
+	{
+		float x1 = minGeoX, y1 = minGeoY;
+		float x2 = (maxGeoX > minGeoX) ? maxGeoX : minGeoX+1;
+		float y2 = (maxGeoY > minGeoY) ? maxGeoY : minGeoY+1;
+		PVector s1 = transformer.geoToScreen(x1, y1);
+		PVector s2 = transformer.geoToScreen(x2, y2);
+		double scaleX = ((double)s2.x-s1.x)/((double)x2-x1);
+		double scaleY = ((double)s2.y-s1.y)/((double)y2-y1);
+		return new double[] {s1.x - x1*scaleX, scaleX, s1.y - y1*scaleY, scaleY};
+	}
+
 	// --------------------------------- Private methods ---------------------------------
 	
 	/** Calculates the maximum widths of the values in each column of the given table. 
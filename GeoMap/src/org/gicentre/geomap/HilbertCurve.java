@@ -0,0 +1,138 @@
+package org.gicentre.geomap;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.List;
+
+//  **************************************************************************************************
+/** Utilities for ordering features along a Hilbert space-filling curve. Features that are close to
+ *  each other along the curve are also close in space, so storing features in Hilbert order keeps
+ *  neighbouring features together in memory and on disk.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public final class HilbertCurve
+{
+	// ----------------------------------- Class variables ------------------------------------
+
+	/** Number of levels of the curve used when ordering features, giving a grid of 2^15 by 2^15 cells. */
+	public static final int ORDER = 15;
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Utility class with static methods only, so should not be instantiated.
+	 */
+	private HilbertCurve()
+	{
+		// Do nothing.
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Reports the distance along a Hilbert curve of the given order of the given grid cell.
+	 *  @param x Column of the cell, between 0 and 2^order - 1.
+	 *  @param y Row of the cell, between 0 and 2^order - 1.
+	 *  @param order Number of levels of the curve (up to 31).
+	 *  @return Position of the cell along the curve, between 0 and 4^order - 1.
+	 */
+	public static long index(int x, int y, int order)
+	{
+		long index = 0;
+		for (int s=1<<(order-1); s>0; s>>=1)
+		{
+			int rx = ((x & s) > 0) ? 1 : 0;
+			int ry = ((y & s) > 0) ? 1 : 0;
+			index += (long)s * s * ((3*rx) ^ ry);
+
+			// Rotate the quadrant so the curve is continuous.
+			if (ry == 0)
+			{
+				if (rx == 1)
+				{
+					x = s-1-x;
+					y = s-1-y;
+				}
+				int temp = x;
+				x = y;
+				y = temp;
+			}
+		}
+		return index;
+	}
+
+	/** Reports the order in which the given points should be visited to follow a Hilbert curve
+	 *  covering the given bounds.
+	 *  @param x x coordinates of the points to order.
+	 *  @param y y coordinates of the points to order.
+	 *  @param numPoints Number of points to order.
+	 *  @param minX Minimum x coordinate of the region covered by the curve.
+	 *  @param minY Minimum y coordinate of the region covered by the curve.
+	 *  @param maxX Maximum x coordinate of the region covered by the curve.
+	 *  @param maxY Maximum y coordinate of the region covered by the curve.
+	 *  @return Index of each point in Hilbert order.
+	 */
+	public static int[] sort(float[] x, float[] y, int numPoints, float minX, float minY, float maxX, float maxY)
+	{
+		int maxCell = (1<<ORDER)-1;
+		double scaleX = (maxX > minX) ? maxCell/((double)maxX-minX) : 0;
+		double scaleY = (maxY > minY) ? maxCell/((double)maxY-minY) : 0;
+
+		// Pack the curve position and the point index into a single key so a primitive sort can be used.
+		long[] keys = new long[numPoints];
+		for (int i=0; i<numPoints; i++)
+		{
+			int cellX = Math.max(0, Math.min(maxCell, (int)((x[i]-minX)*scaleX)));
+			int cellY = Math.max(0, Math.min(maxCell, (int)((y[i]-minY)*scaleY)));
+			keys[i] = (index(cellX, cellY, ORDER) << 31) | i;
+		}
+		Arrays.sort(keys);
+
+		int[] order = new int[numPoints];
+		for (int i=0; i<numPoints; i++)
+		{
+			order[i] = (int)(keys[i] & Integer.MAX_VALUE);
+		}
+		return order;
+	}
+
+	/** Reports the order in which the given features should be stored so that the centres of their
+	 *  bounding boxes follow a Hilbert curve.
+	 *  @param features Features to order.
+	 *  @return Index of each feature in Hilbert order.
+	 */
+	public static int[] sort(List<? extends Feature> features)
+	{
+		int numFeatures = features.size();
+		float[] x = new float[numFeatures];
+		float[] y = new float[numFeatures];
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+		for (int i=0; i<numFeatures; i++)
+		{
+			Rectangle2D bounds = features.get(i).getBounds();
+			x[i] = (float)bounds.getCenterX();
+			y[i] = (float)bounds.getCenterY();
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		return sort(x, y, numFeatures, minX, minY, maxX, maxY);
+	}
+}
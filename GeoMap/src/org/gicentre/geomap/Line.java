@@ -1,12 +1,15 @@
 package org.gicentre.geomap;
 
-import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import processing.core.PApplet;
 import processing.core.PVector;
 
 // *****************************************************************************************
-/** Class for representing and drawing a line feature.
+/** Class for representing and drawing a line feature. A line may consist of several parts, which
+ *  are drawn and tested separately.
  *  @author Jo Wood , giCentre, City University of London.
  *  @version 1.3, 4th March, 2017.
  */
@@ -30,10 +33,15 @@ public class Line implements Feature
 {
 	// ---------------------------- Object and class variables ----------------------------
 	
+	private static final int MIN_INDEXED_SEGMENTS = 64;	// Lines with fewer segments are tested without an index.
+
 	private float[] x,y;			// Coordinates of the line.
     private PApplet parent;			// Parent sketch.
     private static float tolDistSq;	// Squared tolerance distance used for line-point matching.
     private Drawable renderer;		// Alternative renderer for sketchy graphics and other styles.
+    private ArrayList<Integer> subPartPointers;	// Position of the first vertex of each part of the line.
+    private boolean[] joins;		// Whether each segment joins two parts, or null if the line has only one part.
+    private volatile SegmentIndex segmentIndex;	// Index of the line's segments, built when first needed.
 
     // ------------------------------------ Constructor -----------------------------------
     
@@ -48,15 +56,49 @@ public class Line implements Feature
         this.y = y;
         this.parent = parent;
         tolDistSq = 0;
+        subPartPointers = new ArrayList<Integer>();
+        subPartPointers.add(Integer.valueOf(0));
     }
     
     // ------------------------------------- Methods -------------------------------------
     
+    /** Adds a part to the line. The part is not joined to the existing parts of the line.
+     *  @param x x coordinates of the new part.
+     *  @param y y coordinates of the new part.
+     */
+    public void addPart(float[] x, float[] y)
+    {
+    	if ((x != null) && (y != null) && (x.length == y.length) && (x.length > 0))
+    	{
+    		int numVertices = getNumVertices();
+    		if (numVertices == 0)
+    		{
+    			this.x = x.clone();
+    			this.y = y.clone();
+    			segmentIndex = null;
+    			return;
+    		}
+    		subPartPointers.add(Integer.valueOf(numVertices));
+    		joins = (joins == null) ? new boolean[numVertices+x.length-1] : Arrays.copyOf(joins, numVertices+x.length-1);
+    		joins[numVertices-1] = true;
+    		this.x = Arrays.copyOf(this.x, numVertices+x.length);
+    		this.y = Arrays.copyOf(this.y, numVertices+y.length);
+    		System.arraycopy(x, 0, this.x, numVertices, x.length);
+    		System.arraycopy(y, 0, this.y, numVertices, y.length);
+    		segmentIndex = null;
+    	}
+    }
+    
     /** Draws the line in the parent sketch.
      *  @param transformer Class that handles the geographic to screen transformations.
      */
     public void draw(Geographic transformer)
     {
+    	if (x.length == 0)
+    	{
+    		// Lines without vertices, such as empty records read from a snapshot, have nothing to draw.
+    		return;
+    	}
     	if (renderer == null)
     	{
     		drawDefault(transformer);
@@ -64,18 +106,43 @@ public class Line implements Feature
     	}
     	
     	// This version will use the renderer stored in this feature to do the drawing.
-    	float[] xPrime = new float[x.length];
-    	float[] yPrime = new float[y.length];
-    	
-    	for (int i=0; i<x.length; i++)
+    	for (int part=0; part<subPartPointers.size(); part++)
     	{
-    		PVector p = transformer.geoToScreen(x[i], y[i]);
-    		xPrime[i] = p.x;
-    		yPrime[i] = p.y;
+    		int start = subPartPointers.get(part).intValue();
+    		int end = getPartEnd(part);
+    		float[] xPrime = new float[end-start];
+    		float[] yPrime = new float[end-start];
+
+    		for (int i=start; i<end; i++)
+    		{
+    			PVector p = transformer.geoToScreen(x[i], y[i]);
+    			xPrime[i-start] = p.x;
+    			yPrime[i-start] = p.y;
+    		}
+    		renderer.polyLine(xPrime, yPrime);
     	}
-    	renderer.polyLine(xPrime, yPrime);
     }
         
+    /** Reports the bounding rectangle that encloses the line.
+     *  @return Bounding rectangle of the line in geographic coordinates.
+     */
+    public Rectangle2D getBounds()
+    {
+    	if ((x == null) || (x.length == 0))
+    	{
+    		return new Rectangle2D.Float();
+    	}
+    	float minX = x[0], minY = y[0], maxX = x[0], maxY = y[0];
+    	for (int i=1; i<x.length; i++)
+    	{
+    		minX = Math.min(minX, x[i]);
+    		minY = Math.min(minY, y[i]);
+    		maxX = Math.max(maxX, x[i]);
+    		maxY = Math.max(maxY, y[i]);
+    	}
+    	return new Rectangle2D.Float(minX, minY, maxX-minX, maxY-minY);
+    }
+    
     /** Reports the number of vertices that make up the line feature.
      *  @return number of vertices that make up the line.
      */
@@ -96,7 +163,16 @@ public class Line implements Feature
 		return FeatureType.LINE;
 	}
 	
-	/** Reports the x coordinates coordinates of the line feature.
+	/** Reports the positions of the first vertex of each part of the line within its coordinates.
+	 *  @return Pointers to the start of each line part.
+	 */
+	public ArrayList<Integer> getSubPartPointers()
+	{
+		return subPartPointers;
+	}
+	
+	/** Reports the x coordinates coordinates of the line feature. This includes the coordinates of
+	 *  all parts in multi-part lines. To break down the coordinates into parts, call getSubPartPointers().
 	 *  @return x coordinates of the line feature.
 	 */
 	public float[] getXCoords()
@@ -104,7 +180,8 @@ public class Line implements Feature
 		return x;
 	}
 	
-	/** Reports the y coordinates coordinates of the line feature.
+	/** Reports the y coordinates coordinates of the line feature. This includes the coordinates of
+	 *  all parts in multi-part lines. To break down the coordinates into parts, call getSubPartPointers().
 	 *  @return y coordinates of the line feature.
 	 */
 	public float[] getYCoords()
@@ -132,17 +209,24 @@ public class Line implements Feature
     }
     
     /** Tests whether the given point is located somewhere along the line feature. Coordinates 
-     *  should be in the same geographic units as the line.
+     *  should be in the same geographic units as the line. The first time a line with many vertices
+     *  is tested, an index of its segments is built so that this and later tests need only examine
+     *  the segments close to the given point. The line's coordinates should not be changed once it
+     *  has been tested.
      *  @param px x coordinate in geographic coordinates.
      *  @param py y coordinate in geographic coordinates.
      *  @return True if the given point is located along the line feature, false if not.
      */
     public boolean contains(float px, float py)
     {
+    	if (x.length-1 >= MIN_INDEXED_SEGMENTS)
+    	{
+    		return getSegmentIndex().isWithin(px, py, tolDistSq);
+    	}
     	for (int i=0; i<x.length-1; i++)
     	{
-    		Line2D.Float segment = new Line2D.Float(x[i], y[i], x[i+1],y[i+1]);
-    		if (segment.ptSegDistSq(px,py) <= tolDistSq)
+    		int start = ((joins != null) && joins[i]) ? i+1 : i;
+    		if (FeatureIndex.segmentDistSq(px, py, x[start], y[start], x[i+1], y[i+1]) <= tolDistSq)
     		{
     			return true;
     		}		
@@ -150,8 +234,48 @@ public class Line implements Feature
     	return false;
     }
     
+    // ------------------------------ Package-wide methods -------------------------------
+    
+    /** Reports the squared distance from the given point to the nearest part of the line.
+     *  @param px x coordinate in geographic coordinates.
+     *  @param py y coordinate in geographic coordinates.
+     *  @return Squared distance to the line in geographic units, or <code>Double.MAX_VALUE</code> if it has no vertices.
+     */
+    double getDistSq(float px, float py)
+    {
+    	if (x.length == 1)
+    	{
+    		return FeatureIndex.segmentDistSq(px, py, x[0], y[0], x[0], y[0]);
+    	}
+    	if (x.length-1 >= MIN_INDEXED_SEGMENTS)
+    	{
+    		return getSegmentIndex().getDistSq(px, py);
+    	}
+    	double minDistSq = Double.MAX_VALUE;
+    	for (int i=0; i<x.length-1; i++)
+    	{
+    		int start = ((joins != null) && joins[i]) ? i+1 : i;
+    		minDistSq = Math.min(minDistSq, FeatureIndex.segmentDistSq(px, py, x[start], y[start], x[i+1], y[i+1]));
+    	}
+    	return minDistSq;
+    }
+    
     // ---------------------------------- Private Methods --------------------------------
     
+    /** Provides the index of the line's segments, building it if this has not already been done.
+     *  @return Index of the line's segments.
+     */
+    private SegmentIndex getSegmentIndex()
+    {
+    	SegmentIndex index = segmentIndex;
+    	if (index == null)
+    	{
+    		index = new SegmentIndex(x, y, joins);
+    		segmentIndex = index;
+    	}
+    	return index;
+    }
+    
     /** Draws the line in the parent sketch using the default rendering from the parent sketch.
      *  @param transformer Class that handles the geographic to screen transformations.
      */
@@ -161,9 +285,21 @@ public class Line implements Feature
     	for (int i=0; i<x.length-1; i++)
     	{
     		PVector p2 = transformer.geoToScreen(x[i+1], y[i+1]);
-    		parent.line(p1.x,p1.y,p2.x,p2.y);
+    		if ((joins == null) || !joins[i])
+    		{
+    			parent.line(p1.x,p1.y,p2.x,p2.y);
+    		}
     		p1 = p2;
     	}
     }
+    
+    /** Reports the position after the last vertex of the given part of the line.
+     *  @param part Part of the line.
+     *  @return Position after the last vertex of the part.
+     */
+    private int getPartEnd(int part)
+    {
+    	return (part == subPartPointers.size()-1) ? getNumVertices() : subPartPointers.get(part+1).intValue();
+    }
 
 }
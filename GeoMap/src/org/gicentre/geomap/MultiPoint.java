@@ -0,0 +1,243 @@
+package org.gicentre.geomap;
+
+import java.awt.geom.Rectangle2D;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PVector;
+
+// *****************************************************************************************
+/** Class for representing and drawing a feature made up of a set of points. The coordinates of
+ *  all the points are stored together in primitive arrays, so a multipoint with many thousands
+ *  of members can be loaded, drawn and queried as a single feature.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class MultiPoint implements Feature
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private float[] x,y,z;				// Coordinates of the points (z is null for 2d points).
+	private float minX,minY,maxX,maxY;	// Bounds of the points.
+	private PApplet parent;				// Parent sketch.
+	private Drawable renderer;			// Renderer used for drawing feature in a non-default style.
+
+	private static float tolDistSq;		// Squared tolerance distance used for point matching.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Constructs a new multipoint object with the given 2d geometry. The arrays are stored
+	 *  directly rather than copied.
+	 *  @param x x coordinates of the points.
+	 *  @param y y coordinates of the points.
+	 *  @param parent The parent sketch.
+	 */
+	public MultiPoint(float[] x, float[] y, PApplet parent)
+	{
+		this(x, y, null, parent);
+	}
+
+	/** Constructs a new multipoint object with the given 3d geometry. The arrays are stored
+	 *  directly rather than copied.
+	 *  @param x x coordinates of the points.
+	 *  @param y y coordinates of the points.
+	 *  @param z z coordinates of the points, or null if the points are 2d.
+	 *  @param parent The parent sketch.
+	 */
+	public MultiPoint(float[] x, float[] y, float[] z, PApplet parent)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.parent = parent;
+
+		minX = minY = Float.MAX_VALUE;
+		maxX = maxY = -Float.MAX_VALUE;
+		for (int i=0; i<x.length; i++)
+		{
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Reports the number of points that make up the multipoint.
+	 *  @return number of points in the feature.
+	 */
+	public int getNumVertices()
+	{
+		return x.length;
+	}
+
+	/** Reports the bounding rectangle that encloses all the points.
+	 *  @return Bounding rectangle of the points in geographic coordinates.
+	 */
+	public Rectangle2D getBounds()
+	{
+		if (x.length == 0)
+		{
+			return new Rectangle2D.Float();
+		}
+		return new Rectangle2D.Float(minX, minY, maxX-minX, maxY-minY);
+	}
+
+	/** Report the type of feature (multipoint).
+	 *  @return Type of feature
+	 */
+	public FeatureType getType()
+	{
+		return FeatureType.MULTI_POINT;
+	}
+
+	/** Reports the x coordinates of the points.
+	 *  @return x coordinates of the points.
+	 */
+	public float[] getXCoords()
+	{
+		return x;
+	}
+
+	/** Reports the y coordinates of the points.
+	 *  @return y coordinates of the points.
+	 */
+	public float[] getYCoords()
+	{
+		return y;
+	}
+
+	/** Reports the z coordinates of the points.
+	 *  @return z coordinates of the points or null if the points are 2d.
+	 */
+	public float[] getZCoords()
+	{
+		return z;
+	}
+
+	/** Draws the points in the parent sketch. Where the transformation to screen coordinates is
+	 *  that of a geoMap, it is applied to all points directly and the points are drawn as a single shape.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 */
+	public void draw(Geographic transformer)
+	{
+		int numPoints = x.length;
+		if (numPoints == 0)
+		{
+			return;
+		}
+
+		if (renderer != null)
+		{
+			for (int i=0; i<numPoints; i++)
+			{
+				PVector p = transformer.geoToScreen(x[i], y[i]);
+				renderer.point(p.x, p.y);
+			}
+			return;
+		}
+
+		parent.beginShape(PConstants.POINTS);
+		if (transformer instanceof GeoMap)
+		{
+			double[] transform = ((GeoMap)transformer).getLinearTransform(transformer);
+			for (int i=0; i<numPoints; i++)
+			{
+				parent.vertex((float)(transform[0] + x[i]*transform[1]), (float)(transform[2] + y[i]*transform[3]));
+			}
+		}
+		else
+		{
+			for (int i=0; i<numPoints; i++)
+			{
+				PVector p = transformer.geoToScreen(x[i], y[i]);
+				parent.vertex(p.x, p.y);
+			}
+		}
+		parent.endShape();
+	}
+
+	/** Sets the renderer to be used for drawing this feature. This need only be set if some
+	 *  non-default rendering is required (such as the sketchy rendering produced by the Handy
+	 *  library).
+	 *  @param renderer New renderer to use or null if default rendering is to be used.
+	 */
+	public void setRenderer(Drawable renderer)
+	{
+		this.renderer = renderer;
+	}
+
+	/** Sets the tolerance values used for contains() testing. Any location within a distance of
+	 *  the given tolerance of one of the points is considered to be at the same location. Note that
+	 *  this method is static, meaning that a single tolerance value is shared by all multipoint objects.
+	 *  @param tolerance Tolerance distance in the same units as the point coordinates.
+	 */
+	public static void setTolerance(float tolerance)
+	{
+		MultiPoint.tolDistSq = tolerance*tolerance;
+	}
+
+	/** Finds the point in this multipoint that is closest to the given location.
+	 *  @param px x coordinate in geographic coordinates.
+	 *  @param py y coordinate in geographic coordinates.
+	 *  @return Index of the nearest point or -1 if there are no points.
+	 */
+	public int getNearest(float px, float py)
+	{
+		int nearest = -1;
+		float minDistSq = Float.MAX_VALUE;
+		for (int i=0; i<x.length; i++)
+		{
+			float dx = px-x[i];
+			float dy = py-y[i];
+			float distSq = dx*dx + dy*dy;
+			if (distSq < minDistSq)
+			{
+				minDistSq = distSq;
+				nearest = i;
+			}
+		}
+		return nearest;
+	}
+
+	/** Tests whether the given location matches any of the points in this multipoint. Coordinates
+	 *  should be in the same geographic units as the feature. Locations outside the bounds of the
+	 *  points by more than the tolerance are rejected without testing the points themselves.
+	 *  @param px x coordinate in geographic coordinates.
+	 *  @param py y coordinate in geographic coordinates.
+	 *  @return True if the nearest point is within the tolerance distance of the given location.
+	 */
+	public boolean contains(float px, float py)
+	{
+		float tolerance = (float)Math.sqrt(tolDistSq);
+		if ((px < minX-tolerance) || (px > maxX+tolerance) || (py < minY-tolerance) || (py > maxY+tolerance))
+		{
+			return false;
+		}
+		int nearest = getNearest(px, py);
+		if (nearest < 0)
+		{
+			return false;
+		}
+		float dx = px-x[nearest];
+		float dy = py-y[nearest];
+		return dx*dx + dy*dy <= tolDistSq;
+	}
+}
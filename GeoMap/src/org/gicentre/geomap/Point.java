@@ -1,5 +1,7 @@
 package org.gicentre.geomap;
 
+import java.awt.geom.Rectangle2D;
+
 import processing.core.PApplet;
 import processing.core.PVector;
 
@@ -60,6 +62,17 @@ public class Point implements Feature
         p = new PVector(x,y,z);
         tolDistSq = 0;
     }
+
+    /** Constructs a new point object at the given location without changing the tolerance used for
+     *  contains() testing. Used when creating points from those stored in a point layer.
+     *  @param p Coordinates of the point, which are stored directly rather than copied.
+     *  @param parent The parent sketch.
+     */
+    Point(PVector p, PApplet parent)
+    {
+        this.parent = parent;
+        this.p = p;
+    }
     
     // ------------------------------------- Methods -------------------------------------
     
@@ -71,6 +84,14 @@ public class Point implements Feature
     	return 1;
     }
     
+    /** Reports the bounding rectangle of the point, which will have zero width and height.
+     *  @return Bounding rectangle of the point in geographic coordinates.
+     */
+    public Rectangle2D getBounds()
+    {
+    	return new Rectangle2D.Float(p.x, p.y, 0, 0);
+    }
+    
     /** Report the type of feature (point).
 	 *  @return Type of feature
 	 */
@@ -122,6 +143,14 @@ public class Point implements Feature
     {
     	Point.tolDistSq = tolerance*tolerance;
     }
+
+    /** Reports the squared tolerance distance used for contains() testing.
+     *  @return Squared tolerance distance shared by all point objects.
+     */
+    static float getToleranceSq()
+    {
+    	return tolDistSq;
+    }
     
     /** Tests whether the given location matches this point. Coordinates should be in the
      *  same geographic units as the point feature.
@@ -0,0 +1,545 @@
+package org.gicentre.geomap;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PVector;
+
+// *****************************************************************************************
+/** Compact store of point features. The ID and coordinates of each point are held in parallel
+ *  primitive arrays rather than as separate <code>Point</code> objects, so a layer of many millions
+ *  of points needs only a few bytes per point. Points are drawn and queried directly from the arrays.
+ *  <code>getPoint()</code> creates a new <code>Point</code> on request as a copy of a stored point,
+ *  so changes to that object do not affect the layer.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class PointLayer
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private int[] ids;					// ID of each point.
+	private float[] x,y,z;				// Coordinates of each point (z is null until a 3d point is added).
+	private int numSlots;				// Number of positions used, including removed points.
+	private int numPoints;				// Number of points stored.
+	private BitSet removed;				// Positions of removed points (null if none removed).
+	private boolean sequential;			// True while the ID at each position is the position plus 1.
+	private int[] table;				// Hash table of positions plus 1 (0 if empty).
+	private PApplet parent;				// Parent sketch.
+	private Drawable renderer;			// Renderer used for drawing points in a non-default style.
+	private int modCount;				// Number of times the points have been changed.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Creates an empty point layer.
+	 *  @param parent The parent sketch.
+	 */
+	public PointLayer(PApplet parent)
+	{
+		this(1024, parent);
+	}
+
+	/** Creates an empty point layer with room for the given number of points.
+	 *  @param capacity Number of points that can be added before storage is enlarged.
+	 *  @param parent The parent sketch.
+	 */
+	public PointLayer(int capacity, PApplet parent)
+	{
+		this.parent = parent;
+		ids = new int[Math.max(capacity, 1)];
+		x = new float[ids.length];
+		y = new float[ids.length];
+		clear();
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Adds a 2d point to the layer. The ID should not already be used by another point in the layer.
+	 *  @param id ID of the point.
+	 *  @param px x coordinate of the point.
+	 *  @param py y coordinate of the point.
+	 *  @return Position of the point in the layer.
+	 */
+	public int add(int id, float px, float py)
+	{
+		if (numSlots == ids.length)
+		{
+			int capacity = numSlots*2;
+			ids = Arrays.copyOf(ids, capacity);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			if (z != null)
+			{
+				z = Arrays.copyOf(z, capacity);
+			}
+		}
+		if (sequential && (id != numSlots+1))
+		{
+			sequential = false;
+			rebuildTable(ids.length);
+		}
+
+		int index = numSlots++;
+		modCount++;
+		ids[index] = id;
+		x[index] = px;
+		y[index] = py;
+		if (z != null)
+		{
+			z[index] = 0;
+		}
+		numPoints++;
+
+		if (!sequential)
+		{
+			if (2*numSlots > table.length)
+			{
+				rebuildTable(numSlots);
+			}
+			else
+			{
+				insert(id, index);
+			}
+		}
+		return index;
+	}
+
+	/** Adds a 3d point to the layer. The ID should not already be used by another point in the layer.
+	 *  @param id ID of the point.
+	 *  @param px x coordinate of the point.
+	 *  @param py y coordinate of the point.
+	 *  @param pz z coordinate of the point.
+	 *  @return Position of the point in the layer.
+	 */
+	public int add(int id, float px, float py, float pz)
+	{
+		int index = add(id, px, py);
+		if (z == null)
+		{
+			z = new float[ids.length];
+		}
+		z[index] = pz;
+		return index;
+	}
+
+	/** Reports the number of points in the layer.
+	 *  @return Number of points stored.
+	 */
+	public int size()
+	{
+		return numPoints;
+	}
+
+	/** Reports the number of positions used by the layer. This may be larger than the number of points
+	 *  stored if any points have been removed. Positions run from 0 to one less than this value.
+	 *  @return Number of positions used.
+	 */
+	public int getNumPositions()
+	{
+		return numSlots;
+	}
+
+	/** Finds the position of the point with the given ID.
+	 *  @param id ID of the point to find.
+	 *  @return Position of the point or -1 if there is no point with the given ID.
+	 */
+	public int indexOf(int id)
+	{
+		if (sequential)
+		{
+			return ((id >= 1) && (id <= numSlots) && !isRemoved(id-1)) ? id-1 : -1;
+		}
+		int mask = table.length-1;
+		for (int i=hash(id) & mask; table[i] != 0; i=(i+1) & mask)
+		{
+			int index = table[i]-1;
+			if ((ids[index] == id) && !isRemoved(index))
+			{
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/** Reports whether the point at the given position has been removed.
+	 *  @param index Position in the layer.
+	 *  @return True if the point at the given position has been removed.
+	 */
+	public boolean isRemoved(int index)
+	{
+		return (removed != null) && removed.get(index);
+	}
+
+	/** Reports the ID of the point at the given position.
+	 *  @param index Position in the layer.
+	 *  @return ID of the point.
+	 */
+	public int getID(int index)
+	{
+		return ids[index];
+	}
+
+	/** Reports the x coordinate of the point at the given position.
+	 *  @param index Position in the layer.
+	 *  @return x coordinate of the point.
+	 */
+	public float getX(int index)
+	{
+		return x[index];
+	}
+
+	/** Reports the y coordinate of the point at the given position.
+	 *  @param index Position in the layer.
+	 *  @return y coordinate of the point.
+	 */
+	public float getY(int index)
+	{
+		return y[index];
+	}
+
+	/** Reports the z coordinate of the point at the given position.
+	 *  @param index Position in the layer.
+	 *  @return z coordinate of the point, or 0 if the point is 2d.
+	 */
+	public float getZ(int index)
+	{
+		return (z == null) ? 0 : z[index];
+	}
+
+	/** Creates a point feature with the coordinates of the point at the given position. The new
+	 *  point is not linked to the layer, so changing it does not change the stored point.
+	 *  @param index Position in the layer.
+	 *  @return New point feature.
+	 */
+	public Point getPoint(int index)
+	{
+		Point point = new Point((z == null) ? new PVector(x[index], y[index]) : new PVector(x[index], y[index], z[index]), parent);
+		point.setRenderer(renderer);
+		return point;
+	}
+
+	/** Removes the point at the given position. Positions of other points are unchanged.
+	 *  @param index Position of the point to remove.
+	 */
+	public void remove(int index)
+	{
+		if (isRemoved(index))
+		{
+			return;
+		}
+		if (removed == null)
+		{
+			removed = new BitSet(numSlots);
+		}
+		removed.set(index);
+		numPoints--;
+		modCount++;
+	}
+
+	/** Removes all points from the layer.
+	 */
+	public void clear()
+	{
+		numSlots = 0;
+		numPoints = 0;
+		removed = null;
+		sequential = true;
+		table = null;
+		z = null;
+		modCount++;
+	}
+
+	/** Reports the bounding rectangle that encloses all the points in the layer.
+	 *  @return Bounding rectangle of the points in geographic coordinates.
+	 */
+	public Rectangle2D getBounds()
+	{
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int i=0; i<numSlots; i++)
+		{
+			if (!isRemoved(i))
+			{
+				minX = Math.min(minX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxX = Math.max(maxX, x[i]);
+				maxY = Math.max(maxY, y[i]);
+			}
+		}
+		if (minX > maxX)
+		{
+			return new Rectangle2D.Float();
+		}
+		return new Rectangle2D.Float(minX, minY, maxX-minX, maxY-minY);
+	}
+
+	/** Draws all the points in the parent sketch. Where the transformation to screen coordinates is
+	 *  that of a geoMap, it is applied to the coordinate arrays directly and the points are drawn as a
+	 *  single shape.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 */
+	public void draw(Geographic transformer)
+	{
+		if (numPoints == 0)
+		{
+			return;
+		}
+
+		if (renderer != null)
+		{
+			for (int i=0; i<numSlots; i++)
+			{
+				if (!isRemoved(i))
+				{
+					PVector p = transformer.geoToScreen(x[i], y[i]);
+					renderer.point(p.x, p.y);
+				}
+			}
+			return;
+		}
+
+		parent.beginShape(PConstants.POINTS);
+		if (transformer instanceof GeoMap)
+		{
+			double[] transform = ((GeoMap)transformer).getLinearTransform(transformer);
+			for (int i=0; i<numSlots; i++)
+			{
+				if (!isRemoved(i))
+				{
+					parent.vertex((float)(transform[0] + x[i]*transform[1]), (float)(transform[2] + y[i]*transform[3]));
+				}
+			}
+		}
+		else
+		{
+			for (int i=0; i<numSlots; i++)
+			{
+				if (!isRemoved(i))
+				{
+					PVector p = transformer.geoToScreen(x[i], y[i]);
+					parent.vertex(p.x, p.y);
+				}
+			}
+		}
+		parent.endShape();
+	}
+
+	/** Draws the point at the given position in the parent sketch.
+	 *  @param index Position of the point to draw.
+	 *  @param transformer Class that handles the geographic to screen transformations.
+	 */
+	public void draw(int index, Geographic transformer)
+	{
+		PVector p = transformer.geoToScreen(x[index], y[index]);
+		if (renderer == null)
+		{
+			parent.point(p.x, p.y);
+		}
+		else
+		{
+			renderer.point(p.x, p.y);
+		}
+	}
+
+	/** Sets the renderer to be used for drawing the points. This need only be set if some non-default
+	 *  rendering is required (such as the sketchy rendering produced by the Handy library).
+	 *  @param renderer New renderer to use or null if default rendering is to be used.
+	 */
+	public void setRenderer(Drawable renderer)
+	{
+		this.renderer = renderer;
+	}
+
+	/** Finds the first point that matches the given location. A point matches if it is within the
+	 *  tolerance distance set by <code>Point.setTolerance()</code> of the location.
+	 *  @param px x coordinate in geographic coordinates.
+	 *  @param py y coordinate in geographic coordinates.
+	 *  @return Position of the matching point, or -1 if no point matches.
+	 */
+	public int getIndex(float px, float py)
+	{
+		float tolDistSq = Point.getToleranceSq();
+		for (int i=0; i<numSlots; i++)
+		{
+			float dx = px-x[i];
+			float dy = py-y[i];
+			if ((dx*dx + dy*dy <= tolDistSq) && !isRemoved(i))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Reorders the points so that they follow a Hilbert curve, and removes the gaps left by any removed
+	 *  points. Point IDs are unchanged but their positions in the layer will change.
+	 */
+	public void sortByHilbertCurve()
+	{
+		compact();
+		modCount++;
+		if (numSlots == 0)
+		{
+			return;
+		}
+		Rectangle2D bounds = getBounds();
+		int[] order = HilbertCurve.sort(x, y, numSlots, (float)bounds.getMinX(), (float)bounds.getMinY(),
+		                                (float)bounds.getMaxX(), (float)bounds.getMaxY());
+		int[] newIDs = new int[ids.length];
+		float[] newX = new float[ids.length];
+		float[] newY = new float[ids.length];
+		float[] newZ = (z == null) ? null : new float[ids.length];
+		boolean isSequential = true;
+		for (int i=0; i<numSlots; i++)
+		{
+			int index = order[i];
+			newIDs[i] = ids[index];
+			newX[i] = x[index];
+			newY[i] = y[index];
+			if (newZ != null)
+			{
+				newZ[i] = z[index];
+			}
+			isSequential &= (newIDs[i] == i+1);
+		}
+		ids = newIDs;
+		x = newX;
+		y = newY;
+		z = newZ;
+		sequential = isSequential;
+		table = null;
+		if (!sequential)
+		{
+			rebuildTable(ids.length);
+		}
+	}
+
+	/** Provides the array of x coordinates used to store the points. Only the first
+	 *  <code>getNumPositions()</code> values are used.
+	 *  @return x coordinates of the points, including those that have been removed.
+	 */
+	float[] getXArray()
+	{
+		return x;
+	}
+
+	/** Provides the array of y coordinates used to store the points. Only the first
+	 *  <code>getNumPositions()</code> values are used.
+	 *  @return y coordinates of the points, including those that have been removed.
+	 */
+	float[] getYArray()
+	{
+		return y;
+	}
+
+	/** Provides the positions of removed points.
+	 *  @return Positions of removed points or null if no points have been removed.
+	 */
+	BitSet getRemoved()
+	{
+		return removed;
+	}
+
+	/** Reports the number of times points have been added, removed or reordered. This can be compared
+	 *  with an earlier value to find out whether the layer has changed since.
+	 *  @return Number of changes made to the layer.
+	 */
+	int getModCount()
+	{
+		return modCount;
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Moves all stored points to the start of the coordinate arrays, removing gaps left by removed points.
+	 */
+	private void compact()
+	{
+		if (removed == null)
+		{
+			return;
+		}
+		int newSlots = 0;
+		for (int i=0; i<numSlots; i++)
+		{
+			if (!removed.get(i))
+			{
+				ids[newSlots] = ids[i];
+				x[newSlots] = x[i];
+				y[newSlots] = y[i];
+				if (z != null)
+				{
+					z[newSlots] = z[i];
+				}
+				newSlots++;
+			}
+		}
+		numSlots = newSlots;
+		removed = null;
+		if (!sequential)
+		{
+			rebuildTable(ids.length);
+		}
+	}
+
+	/** Adds the given position to the hash table. The table must have at least one empty slot.
+	 *  @param id ID of the point.
+	 *  @param index Position of the point.
+	 */
+	private void insert(int id, int index)
+	{
+		int mask = table.length-1;
+		int i = hash(id) & mask;
+		while (table[i] != 0)
+		{
+			i = (i+1) & mask;
+		}
+		table[i] = index+1;
+	}
+
+	/** Creates a new hash table large enough for the given number of points and adds the position
+	 *  of every stored point to it.
+	 *  @param capacity Number of points the table should hold.
+	 */
+	private void rebuildTable(int capacity)
+	{
+		int tableSize = Integer.highestOneBit(Math.max(2*capacity, 4)-1) << 1;
+		table = new int[tableSize];
+		for (int i=0; i<numSlots; i++)
+		{
+			if (!isRemoved(i))
+			{
+				insert(ids[i], i);
+			}
+		}
+	}
+
+	/** Spreads the bits of an ID so that sequences of IDs are distributed across the hash table.
+	 *  @param id ID to hash.
+	 *  @return Hash code of the ID.
+	 */
+	private static int hash(int id)
+	{
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,360 @@
+package org.gicentre.geomap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+import processing.core.PVector;
+
+// *****************************************************************************************
+/** Draws very large numbers of points by writing directly into an array of pixels rather than
+ *  through Processing's <code>point()</code> method. Each point sets the single pixel it falls in.
+ *  Points are projected concurrently. Each thread then owns a horizontal stripe of the image and
+ *  writes only the points in that stripe, so threads never write to the same pixel. Pixels can
+ *  be replaced by the point colour or have it added to them. The number of points in each pixel
+ *  can also be accumulated.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class PointRasteriser
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private PApplet parent;				// Parent sketch.
+	private int colour;					// Colour used to draw points.
+	private int blendMode;				// Either REPLACE or ADD.
+	private boolean counting;			// Determines if the number of points in each pixel is accumulated.
+	private int[] counts;				// Number of points in each pixel (null if not counting).
+	private int countWidth;				// Width of the pixel array for which counts are accumulated.
+	private int[] pixelIndex;			// Pixel containing each projected point, or -1 if outside the image.
+	private int[] stripeIndex;			// Pixels containing points, grouped by stripe.
+
+	private static final int CHUNK_SIZE = 64*1024;	// Number of points projected by each task.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Creates a rasteriser that draws points in the given sketch. By default points are drawn in
+	 *  opaque black, replacing the pixels they fall in.
+	 *  @param parent The parent sketch.
+	 */
+	public PointRasteriser(PApplet parent)
+	{
+		this.parent = parent;
+		this.colour = 0xff000000;
+		this.blendMode = PConstants.REPLACE;
+		this.counting = false;
+		this.pixelIndex = new int[0];
+		this.stripeIndex = new int[0];
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Sets the colour in which points are drawn.
+	 *  @param colour Colour of points including any transparency.
+	 */
+	public void setColour(int colour)
+	{
+		this.colour = colour;
+	}
+
+	/** Sets the way in which points are combined with the pixels they fall in. <code>REPLACE</code>
+	 *  sets each pixel to the point colour. <code>ADD</code> adds the point colour, scaled by its
+	 *  transparency, to each of the pixel's red, green and blue channels, so pixels containing many
+	 *  points become brighter.
+	 *  @param blendMode Either <code>REPLACE</code> or <code>ADD</code>.
+	 */
+	public void setBlendMode(int blendMode)
+	{
+		if ((blendMode != PConstants.REPLACE) && (blendMode != PConstants.ADD))
+		{
+			System.err.println("Unsupported point blend mode: "+blendMode+". Use REPLACE or ADD.");
+			return;
+		}
+		this.blendMode = blendMode;
+	}
+
+	/** Determines whether the number of points falling in each pixel is accumulated. Counts continue
+	 *  to accumulate over successive calls to <code>draw()</code> until <code>clearCounts()</code> is called.
+	 *  @param counting True if points should be counted.
+	 */
+	public void setCounting(boolean counting)
+	{
+		this.counting = counting;
+		if (!counting)
+		{
+			counts = null;
+		}
+	}
+
+	/** Reports the number of points that have fallen in each pixel since counts were last cleared. Counts
+	 *  are stored row by row in the same order as the pixels drawn into.
+	 *  @return Number of points in each pixel, or null if points are not being counted.
+	 */
+	public int[] getCounts()
+	{
+		return counts;
+	}
+
+	/** Resets the number of points counted in each pixel to zero.
+	 */
+	public void clearCounts()
+	{
+		if (counts != null)
+		{
+			Arrays.fill(counts, 0);
+		}
+	}
+
+	/** Draws the point and multipoint features of the given geoMap directly into the pixels of the sketch.
+	 *  @param geoMap GeoMap whose point features are to be drawn.
+	 */
+	public void draw(GeoMap geoMap)
+	{
+		parent.loadPixels();
+		float scale = parent.pixelDensity;
+		draw(geoMap, parent.pixels, parent.pixelWidth, parent.pixelHeight, scale);
+		parent.updatePixels();
+	}
+
+	/** Draws the point and multipoint features of the given geoMap directly into the pixels of the
+	 *  given image. Screen coordinates are used as the image's pixel coordinates.
+	 *  @param geoMap GeoMap whose point features are to be drawn.
+	 *  @param image Image to draw into.
+	 */
+	public void draw(GeoMap geoMap, PImage image)
+	{
+		image.loadPixels();
+		draw(geoMap, image.pixels, image.width, image.height, 1);
+		image.updatePixels();
+	}
+
+	/** Draws the given points directly into the pixels of the sketch.
+	 *  @param x Geographic x coordinates of the points.
+	 *  @param y Geographic y coordinates of the points.
+	 *  @param numPoints Number of points to draw.
+	 *  @param geoMap GeoMap that transforms geographic coordinates to screen coordinates.
+	 */
+	public void draw(float[] x, float[] y, int numPoints, GeoMap geoMap)
+	{
+		parent.loadPixels();
+		float scale = parent.pixelDensity;
+		double[] transform = geoMap.getLinearTransform(geoMap);
+		rasterise(x, y, numPoints, null, transform[0]*scale, transform[1]*scale, transform[2]*scale, transform[3]*scale,
+		          parent.pixels, parent.pixelWidth, parent.pixelHeight);
+		parent.updatePixels();
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Draws the point features of the given geoMap into the given pixels.
+	 *  @param geoMap GeoMap whose point features are to be drawn.
+	 *  @param pixels Pixels to draw into.
+	 *  @param width Width of the image represented by the pixels.
+	 *  @param height Height of the image represented by the pixels.
+	 *  @param scale Number of pixels per screen unit.
+	 */
+	private void draw(GeoMap geoMap, int[] pixels, int width, int height, float scale)
+	{
+		double[] transform = geoMap.getLinearTransform(geoMap);
+		double offsetX = transform[0]*scale;
+		double scaleX = transform[1]*scale;
+		double offsetY = transform[2]*scale;
+		double scaleY = transform[3]*scale;
+
+		// Gather any points stored as separate features.
+		FeatureMap features = geoMap.getFeatureMap();
+		int numPoints = 0;
+		float[] x = new float[1024];
+		float[] y = new float[1024];
+		for (int slot=0; slot<features.getNumSlots(); slot++)
+		{
+			Feature feature = features.getValueAt(slot);
+			if (feature == null)
+			{
+				continue;
+			}
+			if (feature.getType() == FeatureType.POINT)
+			{
+				if (numPoints == x.length)
+				{
+					x = Arrays.copyOf(x, numPoints*2);
+					y = Arrays.copyOf(y, numPoints*2);
+				}
+				PVector p = ((Point)feature).getCoords();
+				x[numPoints] = p.x;
+				y[numPoints] = p.y;
+				numPoints++;
+			}
+			else if (feature.getType() == FeatureType.MULTI_POINT)
+			{
+				MultiPoint multiPoint = (MultiPoint)feature;
+				int n = multiPoint.getNumVertices();
+				if (numPoints+n > x.length)
+				{
+					x = Arrays.copyOf(x, Math.max(numPoints*2, numPoints+n));
+					y = Arrays.copyOf(y, x.length);
+				}
+				System.arraycopy(multiPoint.getXCoords(), 0, x, numPoints, n);
+				System.arraycopy(multiPoint.getYCoords(), 0, y, numPoints, n);
+				numPoints += n;
+			}
+		}
+		rasterise(x, y, numPoints, null, offsetX, scaleX, offsetY, scaleY, pixels, width, height);
+
+		PointLayer pointLayer = features.getPointLayer();
+		if (pointLayer != null)
+		{
+			rasterise(pointLayer.getXArray(), pointLayer.getYArray(), pointLayer.getNumPositions(), pointLayer.getRemoved(),
+			          offsetX, scaleX, offsetY, scaleY, pixels, width, height);
+		}
+	}
+
+	/** Draws the given points into the given pixels. Points are first projected and counted by stripe in
+	 *  parallel, then grouped by stripe, and finally each stripe of pixels is written by a single task.
+	 *  @param x Geographic x coordinates of the points.
+	 *  @param y Geographic y coordinates of the points.
+	 *  @param numPoints Number of points to draw.
+	 *  @param skip Positions of points not to be drawn, or null if all are to be drawn.
+	 *  @param offsetX Pixel x coordinate of the geographic origin.
+	 *  @param scaleX Number of pixels per geographic unit in the x direction.
+	 *  @param offsetY Pixel y coordinate of the geographic origin.
+	 *  @param scaleY Number of pixels per geographic unit in the y direction.
+	 *  @param pixels Pixels to draw into.
+	 *  @param width Width of the image represented by the pixels.
+	 *  @param height Height of the image represented by the pixels.
+	 */
+	private void rasterise(final float[] x, final float[] y, final int numPoints, final BitSet skip,
+	                       final double offsetX, final double scaleX, final double offsetY, final double scaleY,
+	                       final int[] pixels, final int width, final int height)
+	{
+		if ((numPoints == 0) || (width <= 0) || (height <= 0))
+		{
+			return;
+		}
+		if (counting && ((counts == null) || (counts.length != pixels.length) || (countWidth != width)))
+		{
+			counts = new int[pixels.length];
+			countWidth = width;
+		}
+		if (pixelIndex.length < numPoints)
+		{
+			pixelIndex = new int[numPoints];
+			stripeIndex = new int[numPoints];
+		}
+
+		int numStripes = Math.min(height, 4*Runtime.getRuntime().availableProcessors());
+		final int stripeSize = ((height+numStripes-1)/numStripes)*width;
+		numStripes = (height*width + stripeSize-1)/stripeSize;
+		final int numChunks = (numPoints+CHUNK_SIZE-1)/CHUNK_SIZE;
+		final int[][] chunkCounts = new int[numChunks][numStripes];
+
+		// Project each point to a pixel and count the points in each stripe.
+		IntStream.range(0, numChunks).parallel().forEach(chunk ->
+		{
+			int[] stripeCounts = chunkCounts[chunk];
+			int end = Math.min(numPoints, (chunk+1)*CHUNK_SIZE);
+			for (int i=chunk*CHUNK_SIZE; i<end; i++)
+			{
+				double px = offsetX + x[i]*scaleX;
+				double py = offsetY + y[i]*scaleY;
+				if ((px >= 0) && (px < width) && (py >= 0) && (py < height) && ((skip == null) || !skip.get(i)))
+				{
+					int index = ((int)py)*width + (int)px;
+					pixelIndex[i] = index;
+					stripeCounts[index/stripeSize]++;
+				}
+				else
+				{
+					pixelIndex[i] = -1;
+				}
+			}
+		});
+
+		// Find where each chunk's points in each stripe will be stored.
+		final int[] stripeStarts = new int[numStripes+1];
+		int position = 0;
+		for (int stripe=0; stripe<numStripes; stripe++)
+		{
+			stripeStarts[stripe] = position;
+			for (int chunk=0; chunk<numChunks; chunk++)
+			{
+				int count = chunkCounts[chunk][stripe];
+				chunkCounts[chunk][stripe] = position;
+				position += count;
+			}
+		}
+		stripeStarts[numStripes] = position;
+
+		// Group the pixels of the points by stripe.
+		IntStream.range(0, numChunks).parallel().forEach(chunk ->
+		{
+			int[] next = chunkCounts[chunk];
+			int end = Math.min(numPoints, (chunk+1)*CHUNK_SIZE);
+			for (int i=chunk*CHUNK_SIZE; i<end; i++)
+			{
+				int index = pixelIndex[i];
+				if (index >= 0)
+				{
+					stripeIndex[next[index/stripeSize]++] = index;
+				}
+			}
+		});
+
+		// Write each stripe's pixels.
+		final int[] pointCounts = counting ? counts : null;
+		IntStream.range(0, numStripes).parallel().forEach(stripe ->
+		{
+			int start = stripeStarts[stripe];
+			int end = stripeStarts[stripe+1];
+			if (blendMode == PConstants.ADD)
+			{
+				int alpha = (colour >>> 24) & 0xff;
+				int red   = (((colour >> 16) & 0xff)*alpha)/255;
+				int green = (((colour >> 8) & 0xff)*alpha)/255;
+				int blue  = ((colour & 0xff)*alpha)/255;
+				for (int i=start; i<end; i++)
+				{
+					int index = stripeIndex[i];
+					int pixel = pixels[index];
+					pixels[index] = (pixel & 0xff000000) |
+					                (Math.min(255, ((pixel >> 16) & 0xff) + red) << 16) |
+					                (Math.min(255, ((pixel >> 8) & 0xff) + green) << 8) |
+					                 Math.min(255, (pixel & 0xff) + blue);
+				}
+			}
+			else
+			{
+				for (int i=start; i<end; i++)
+				{
+					pixels[stripeIndex[i]] = colour;
+				}
+			}
+			if (pointCounts != null)
+			{
+				for (int i=start; i<end; i++)
+				{
+					pointCounts[stripeIndex[i]]++;
+				}
+			}
+		});
+	}
+}
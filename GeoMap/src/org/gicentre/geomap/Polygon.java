@@ -3,6 +3,7 @@ package org.gicentre.geomap;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,11 +36,14 @@ public class Polygon implements Feature
 {
 	// --------------------------------- Object variables ---------------------------------
 	
+    static final int MIN_PREPARED_VERTICES = 64;	// Polygons with fewer vertices are tested directly against their edges.
+
     private Path2D.Float path;		// Internal representation of the polygon's geometry.
     private PApplet parent;			// Parent sketch.
     private int numVertices;		// Number of vertices that make up the polygon (including parts).
     private ArrayList<Integer>subPartPointers;
     private Drawable renderer;		// Alternative renderer for sketchy graphics and other styles.
+    private volatile PreparedPolygon prepared;	// Grid of edges for fast containment tests, built when first needed.
 
     // ----------------------------------- Constructors -----------------------------------
     
@@ -94,6 +98,7 @@ public class Polygon implements Feature
                 addPoint(x[i], y[i]);
             }
             numVertices += x.length;
+            prepared = null;
         }	
     }
     
@@ -171,6 +176,14 @@ public class Polygon implements Feature
     	return numVertices;
     }
     
+    /** Reports the bounding rectangle that encloses all parts of the polygon.
+     *  @return Bounding rectangle of the polygon in geographic coordinates.
+     */
+    public Rectangle2D getBounds()
+    {
+    	return path.getBounds2D();
+    }
+    
     /** Reports pointers to the vertex index for each of the partss that make up the polygon feature.
      *  Simple polygons have one part with a vertex index of 0. Complex polygons can comprise many parts
      *  such as islands, holes etc. The position in the list of coordinates returned by getXcoord()s and
@@ -268,7 +281,9 @@ public class Polygon implements Feature
 		return FeatureType.POLYGON;
 	}
 
-    /** Tests whether the given point is contained within the polygon.
+    /** Tests whether the given point is contained within the polygon. The first time a polygon with many
+     *  vertices is tested, a grid of its edges is built so that this and later tests need only examine the
+     *  edges close to the given point.
      *  @param geoX x coordinate in geographic coordinates.
      *  @param geoY y coordinate in geographic coordinates.
      *  @return True if the given point is contained within the polygon, false if not.
@@ -282,7 +297,33 @@ public class Polygon implements Feature
         //return path.createTransformedShape(affine).contains(x, y);
     	
     	// The code above is no longer needed since the comparison is calculated in geographic units. 
-    	return path.contains(geoX, geoY);
+    	if (numVertices < MIN_PREPARED_VERTICES)
+    	{
+    		return path.contains(geoX, geoY);
+    	}
+    	return getPrepared().contains(geoX, geoY);
+    }
+    
+    // ------------------------------ Package-wide methods -------------------------------
+    
+    /** Provides the polygon prepared for fast containment and intersection tests, preparing it if this has
+     *  not been done since its geometry was last changed. Polygons with few vertices are prepared without
+     *  a grid of their edges each time this is called, so they hold no extra memory between tests.
+     *  @return Prepared form of the polygon.
+     */
+    PreparedPolygon getPrepared()
+    {
+    	if (numVertices < MIN_PREPARED_VERTICES)
+    	{
+    		return new PreparedPolygon(this, false);
+    	}
+    	PreparedPolygon preparedPolygon = prepared;
+    	if (preparedPolygon == null)
+    	{
+    		preparedPolygon = new PreparedPolygon(this, true);
+    		prepared = preparedPolygon;
+    	}
+    	return preparedPolygon;
     }
     
     // --------------------------------------- Private methods --------------------------------------- 
@@ -0,0 +1,621 @@
+package org.gicentre.geomap;
+
+import java.util.Arrays;
+import java.util.List;
+
+import processing.core.PVector;
+
+// *****************************************************************************************
+/** Polygon prepared for repeated containment and intersection tests. The polygon's bounding box is
+ *  divided into a grid of cells, each recording the edges that pass through it. Cells without edges
+ *  are entirely inside or outside the polygon, so points falling in them can be classified in constant
+ *  time. Points in cells crossed by the boundary are classified by casting a ray to the right that
+ *  only tests the edges in cells up to the next cell without edges. Polygons may have several parts,
+ *  including holes, and containment follows the non-zero winding rule used by <code>Polygon</code>.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class PreparedPolygon
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	static final byte OUTSIDE  = 0;		// Cell or box entirely outside the polygon.
+	static final byte INSIDE   = 1;		// Cell or box entirely inside the polygon.
+	static final byte BOUNDARY = 2;		// Cell or box crossed by the polygon's boundary.
+
+	float minX, minY, maxX, maxY;		// Bounding box of the polygon.
+	private int numEdges;				// Number of edges making up the polygon's boundary.
+	private float[] x1, y1, x2, y2;		// Start and end coordinates of each edge.
+	private float[] partX, partY;		// First vertex of each part.
+	private int size;					// Number of cells along each side of the grid.
+	private float cellsPerUnitX;		// Number of cells per geographic unit in the x direction.
+	private float cellsPerUnitY;		// Number of cells per geographic unit in the y direction.
+	private int[] cellStart, cellEdges;	// Edges passing through each cell.
+	private byte[] cellStates;			// Whether each cell is inside, outside or on the boundary.
+	private int[] cellWinding;			// Winding number of the polygon around the centre of each cell.
+	private int[] insideSum, outsideSum;// Number of inside and outside cells below and to the left of each grid corner.
+
+	// ----------------------------------- Constructors -----------------------------------
+
+	/** Prepares the given polygon.
+	 *  @param polygon Polygon to prepare.
+	 *  @param hasGrid True if a grid of the polygon's edges should be built, false if the polygon is small
+	 *                 enough to be tested directly against all of its edges.
+	 */
+	PreparedPolygon(Polygon polygon, boolean hasGrid)
+	{
+		this(polygon.getXCoords(), polygon.getYCoords(), polygon.getSubPartPointers(), hasGrid);
+	}
+
+	/** Prepares a polygon with the given vertices, building a grid of its edges. Each part is closed by
+	 *  joining its last vertex to its first.
+	 *  @param x x coordinates of the polygon's vertices.
+	 *  @param y y coordinates of the polygon's vertices.
+	 *  @param parts Position of the first vertex of each part, or null if the polygon has a single part.
+	 */
+	PreparedPolygon(float[] x, float[] y, List<Integer> parts)
+	{
+		this(x, y, parts, true);
+	}
+
+	/** Prepares a polygon with the given vertices. Each part is closed by joining its last vertex to its first.
+	 *  Without a grid, all of the polygon's edges are held in a single cell.
+	 *  @param x x coordinates of the polygon's vertices.
+	 *  @param y y coordinates of the polygon's vertices.
+	 *  @param parts Position of the first vertex of each part, or null if the polygon has a single part.
+	 *  @param hasGrid True if a grid of the polygon's edges should be built, false if the polygon is small
+	 *                 enough to be tested directly against all of its edges.
+	 */
+	PreparedPolygon(float[] x, float[] y, List<Integer> parts, boolean hasGrid)
+	{
+		int numParts = (parts == null) ? 1 : parts.size();
+		x1 = new float[x.length];
+		y1 = new float[x.length];
+		x2 = new float[x.length];
+		y2 = new float[x.length];
+		partX = new float[numParts];
+		partY = new float[numParts];
+		minX = minY = Float.MAX_VALUE;
+		maxX = maxY = -Float.MAX_VALUE;
+		for (int part=0; part<numParts; part++)
+		{
+			int start = (parts == null) ? 0 : parts.get(part).intValue();
+			int end = ((parts == null) || (part == numParts-1)) ? x.length : parts.get(part+1).intValue();
+			if (end > start)
+			{
+				partX[part] = x[start];
+				partY[part] = y[start];
+			}
+			for (int i=start; i<end; i++)
+			{
+				minX = Math.min(minX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxX = Math.max(maxX, x[i]);
+				maxY = Math.max(maxY, y[i]);
+				int next = (i < end-1) ? i+1 : start;
+				if ((x[i] != x[next]) || (y[i] != y[next]))
+				{
+					x1[numEdges] = x[i];
+					y1[numEdges] = y[i];
+					x2[numEdges] = x[next];
+					y2[numEdges] = y[next];
+					numEdges++;
+				}
+			}
+		}
+		if (numEdges == 0)
+		{
+			minX = minY = maxX = maxY = 0;
+		}
+
+		// Grids have around 64 cells for each edge, so most cells are not crossed by the boundary.
+		size = hasGrid ? Math.max(1, Math.min(512, (int)(8*Math.sqrt(numEdges)))) : 1;
+		cellsPerUnitX = (maxX > minX) ? size/(maxX-minX) : 0;
+		cellsPerUnitY = (maxY > minY) ? size/(maxY-minY) : 0;
+		buildCells();
+		buildWindings();
+
+		cellStates = new byte[size*size];
+		for (int cell=0; cell<cellStates.length; cell++)
+		{
+			if (cellStart[cell+1] > cellStart[cell])
+			{
+				cellStates[cell] = BOUNDARY;
+			}
+			else
+			{
+				cellStates[cell] = (cellWinding[cell] != 0) ? INSIDE : OUTSIDE;
+			}
+		}
+
+		// Summed area tables allow any block of cells to be checked in constant time.
+		insideSum = new int[(size+1)*(size+1)];
+		outsideSum = new int[(size+1)*(size+1)];
+		for (int row=0; row<size; row++)
+		{
+			for (int col=0; col<size; col++)
+			{
+				int corner = (row+1)*(size+1) + col+1;
+				byte state = cellStates[row*size+col];
+				insideSum[corner] = insideSum[corner-1] + insideSum[corner-size-1] - insideSum[corner-size-2] + ((state == INSIDE) ? 1 : 0);
+				outsideSum[corner] = outsideSum[corner-1] + outsideSum[corner-size-1] - outsideSum[corner-size-2] + ((state == OUTSIDE) ? 1 : 0);
+			}
+		}
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Tests whether the given point is inside the polygon.
+	 *  @param px x coordinate of the point.
+	 *  @param py y coordinate of the point.
+	 *  @return True if the point is inside the polygon.
+	 */
+	boolean contains(float px, float py)
+	{
+		if ((px < minX) || (px > maxX) || (py < minY) || (py > maxY) || (numEdges == 0))
+		{
+			return false;
+		}
+		int row = getRow(py);
+		int firstCol = getCol(px);
+		byte state = cellStates[row*size+firstCol];
+		if (state != BOUNDARY)
+		{
+			return state == INSIDE;
+		}
+
+		int winding = 0;
+		for (int col=firstCol; col<size; col++)
+		{
+			int cell = row*size+col;
+			if (cellStart[cell+1] == cellStart[cell])
+			{
+				// The rest of the ray has the same winding number as this cell.
+				winding += cellWinding[cell];
+				break;
+			}
+
+			// Each crossing is counted only in the cell in which it occurs.
+			for (int e=cellStart[cell]; e<cellStart[cell+1]; e++)
+			{
+				int edge = cellEdges[e];
+				if ((y1[edge] > py) != (y2[edge] > py))
+				{
+					double crossX = ((double)x2[edge]-x1[edge])*((double)py-y1[edge])/((double)y2[edge]-y1[edge]) + x1[edge];
+					if ((crossX > px) && (getCol((float)crossX) == col))
+					{
+						winding += (y2[edge] > y1[edge]) ? 1 : -1;
+					}
+				}
+			}
+		}
+		return winding != 0;
+	}
+
+	/** Tests whether the given segment touches or crosses the boundary of the polygon.
+	 *  @param sx1 x coordinate of the start of the segment.
+	 *  @param sy1 y coordinate of the start of the segment.
+	 *  @param sx2 x coordinate of the end of the segment.
+	 *  @param sy2 y coordinate of the end of the segment.
+	 *  @return True if the segment meets the polygon's boundary.
+	 */
+	boolean crosses(float sx1, float sy1, float sx2, float sy2)
+	{
+		float segMinX = Math.min(sx1, sx2);
+		float segMaxX = Math.max(sx1, sx2);
+		float segMinY = Math.min(sy1, sy2);
+		float segMaxY = Math.max(sy1, sy2);
+		if ((segMaxX < minX) || (segMinX > maxX) || (segMaxY < minY) || (segMinY > maxY))
+		{
+			return false;
+		}
+		int firstCol = getCol(segMinX);
+		int lastCol = getCol(segMaxX);
+		int lastRow = getRow(segMaxY);
+		for (int row=getRow(segMinY); row<=lastRow; row++)
+		{
+			for (int col=firstCol; col<=lastCol; col++)
+			{
+				int cell = row*size+col;
+				for (int e=cellStart[cell]; e<cellStart[cell+1]; e++)
+				{
+					int edge = cellEdges[e];
+					if ((Math.max(x1[edge], x2[edge]) >= segMinX) && (Math.min(x1[edge], x2[edge]) <= segMaxX) &&
+					    (Math.max(y1[edge], y2[edge]) >= segMinY) && (Math.min(y1[edge], y2[edge]) <= segMaxY) &&
+					    segmentsIntersect(sx1, sy1, sx2, sy2, x1[edge], y1[edge], x2[edge], y2[edge]))
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Reports whether the given box is entirely inside, entirely outside or crossed by the boundary of
+	 *  the polygon. Boxes close to the boundary may be reported as crossed by it even if they are not.
+	 *  @param boxMinX Minimum x coordinate of the box.
+	 *  @param boxMinY Minimum y coordinate of the box.
+	 *  @param boxMaxX Maximum x coordinate of the box.
+	 *  @param boxMaxY Maximum y coordinate of the box.
+	 *  @return <code>INSIDE</code>, <code>OUTSIDE</code> or <code>BOUNDARY</code>.
+	 */
+	byte classify(float boxMinX, float boxMinY, float boxMaxX, float boxMaxY)
+	{
+		if ((boxMaxX < minX) || (boxMinX > maxX) || (boxMaxY < minY) || (boxMinY > maxY) || (numEdges == 0))
+		{
+			return OUTSIDE;
+		}
+		int col1 = getCol(boxMinX);
+		int row1 = getRow(boxMinY);
+		int col2 = getCol(boxMaxX)+1;
+		int row2 = getRow(boxMaxY)+1;
+		int numCells = (col2-col1)*(row2-row1);
+		int c11 = row1*(size+1)+col1;
+		int c12 = row1*(size+1)+col2;
+		int c21 = row2*(size+1)+col1;
+		int c22 = row2*(size+1)+col2;
+		boolean withinBounds = (boxMinX >= minX) && (boxMaxX <= maxX) && (boxMinY >= minY) && (boxMaxY <= maxY);
+		if (withinBounds && (insideSum[c22]-insideSum[c12]-insideSum[c21]+insideSum[c11] == numCells))
+		{
+			return INSIDE;
+		}
+		if (outsideSum[c22]-outsideSum[c12]-outsideSum[c21]+outsideSum[c11] == numCells)
+		{
+			return OUTSIDE;
+		}
+		return BOUNDARY;
+	}
+
+	/** Tests whether any part of the given feature is inside the polygon or touches its boundary.
+	 *  @param feature Feature to test.
+	 *  @return True if the feature and polygon intersect.
+	 */
+	boolean intersects(Feature feature)
+	{
+		float[][] coords = getCoords(feature);
+		for (int i=0; i<coords[0].length; i++)
+		{
+			if (contains(coords[0][i], coords[1][i]))
+			{
+				return true;
+			}
+		}
+		if (hasCrossingEdge(feature, coords))
+		{
+			return true;
+		}
+
+		// A polygon feature may surround some or all parts of this polygon.
+		if (feature.getType() == FeatureType.POLYGON)
+		{
+			for (int part=0; part<partX.length; part++)
+			{
+				if (feature.contains(partX[part], partY[part]))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Tests whether the given feature lies entirely within the polygon.
+	 *  @param feature Feature to test.
+	 *  @return True if the feature is inside the polygon without meeting its boundary.
+	 */
+	boolean surrounds(Feature feature)
+	{
+		float[][] coords = getCoords(feature);
+		for (int i=0; i<coords[0].length; i++)
+		{
+			if (!contains(coords[0][i], coords[1][i]))
+			{
+				return false;
+			}
+		}
+		return !hasCrossingEdge(feature, coords);
+	}
+
+	// ------------------------------ Package-wide methods -------------------------------
+
+	/** Tests whether two line segments intersect, including where one touches the other.
+	 *  @param ax x coordinate of the start of the first segment.
+	 *  @param ay y coordinate of the start of the first segment.
+	 *  @param bx x coordinate of the end of the first segment.
+	 *  @param by y coordinate of the end of the first segment.
+	 *  @param cx x coordinate of the start of the second segment.
+	 *  @param cy y coordinate of the start of the second segment.
+	 *  @param dx x coordinate of the end of the second segment.
+	 *  @param dy y coordinate of the end of the second segment.
+	 *  @return True if the segments share at least one point.
+	 */
+	static boolean segmentsIntersect(double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy)
+	{
+		double d1 = orientation(cx, cy, dx, dy, ax, ay);
+		double d2 = orientation(cx, cy, dx, dy, bx, by);
+		double d3 = orientation(ax, ay, bx, by, cx, cy);
+		double d4 = orientation(ax, ay, bx, by, dx, dy);
+		if ((((d1 > 0) && (d2 < 0)) || ((d1 < 0) && (d2 > 0))) && (((d3 > 0) && (d4 < 0)) || ((d3 < 0) && (d4 > 0))))
+		{
+			return true;
+		}
+		return ((d1 == 0) && isWithin(cx, cy, dx, dy, ax, ay)) || ((d2 == 0) && isWithin(cx, cy, dx, dy, bx, by)) ||
+		       ((d3 == 0) && isWithin(ax, ay, bx, by, cx, cy)) || ((d4 == 0) && isWithin(ax, ay, bx, by, dx, dy));
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Finds the cells that each edge passes through, allowing a little extra either side for rounding
+	 *  so that any crossing of an edge with a horizontal ray is found in the cell in which it is calculated.
+	 */
+	private void buildCells()
+	{
+		int[] pairCells = new int[4*numEdges+16];
+		int[] pairEdges = new int[4*numEdges+16];
+		int numPairs = 0;
+		float padX = (cellsPerUnitX > 0) ? 0.001f/cellsPerUnitX : 0;
+		float padY = (cellsPerUnitY > 0) ? 0.001f/cellsPerUnitY : 0;
+		for (int edge=0; edge<numEdges; edge++)
+		{
+			float edgeMinY = Math.min(y1[edge], y2[edge]);
+			float edgeMaxY = Math.max(y1[edge], y2[edge]);
+			int lastRow = getRow(edgeMaxY);
+			for (int row=getRow(edgeMinY); row<=lastRow; row++)
+			{
+				float rowMinY = Math.max(edgeMinY, minY + row/cellsPerUnitY - padY);
+				float rowMaxY = Math.min(edgeMaxY, minY + (row+1)/cellsPerUnitY + padY);
+				float xa = x1[edge], xb = x2[edge];
+				if ((y2[edge] != y1[edge]) && (cellsPerUnitY > 0))
+				{
+					xa = (float)(x1[edge] + (x2[edge]-x1[edge])*((double)rowMinY-y1[edge])/((double)y2[edge]-y1[edge]));
+					xb = (float)(x1[edge] + (x2[edge]-x1[edge])*((double)rowMaxY-y1[edge])/((double)y2[edge]-y1[edge]));
+				}
+				int lastCol = getCol(Math.max(xa, xb)+padX);
+				for (int col=getCol(Math.min(xa, xb)-padX); col<=lastCol; col++)
+				{
+					if (numPairs == pairCells.length)
+					{
+						pairCells = Arrays.copyOf(pairCells, numPairs*2);
+						pairEdges = Arrays.copyOf(pairEdges, numPairs*2);
+					}
+					pairCells[numPairs] = row*size+col;
+					pairEdges[numPairs] = edge;
+					numPairs++;
+				}
+			}
+		}
+
+		int numCells = size*size;
+		cellStart = new int[numCells+1];
+		for (int p=0; p<numPairs; p++)
+		{
+			cellStart[pairCells[p]+1]++;
+		}
+		for (int cell=0; cell<numCells; cell++)
+		{
+			cellStart[cell+1] += cellStart[cell];
+		}
+		cellEdges = new int[numPairs];
+		int[] position = Arrays.copyOf(cellStart, numCells);
+		for (int p=0; p<numPairs; p++)
+		{
+			cellEdges[position[pairCells[p]]++] = pairEdges[p];
+		}
+	}
+
+	/** Finds the winding number of the polygon around the centre of each cell from the upward and
+	 *  downward edges crossing the centre line of each row.
+	 */
+	private void buildWindings()
+	{
+		// Group the edge crossings of each row's centre line by row.
+		float rowHeight = 1/Math.max(cellsPerUnitY, Float.MIN_NORMAL);
+		int[] rowStart = new int[size+1];
+		for (int edge=0; edge<numEdges; edge++)
+		{
+			int lastRow = getRow(Math.max(y1[edge], y2[edge]));
+			for (int row=getRow(Math.min(y1[edge], y2[edge])); row<=lastRow; row++)
+			{
+				float centreY = minY + (row+0.5f)*rowHeight;
+				if ((y1[edge] > centreY) != (y2[edge] > centreY))
+				{
+					rowStart[row+1]++;
+				}
+			}
+		}
+		for (int row=0; row<size; row++)
+		{
+			rowStart[row+1] += rowStart[row];
+		}
+		float[] crossX = new float[rowStart[size]];
+		boolean[] isUp = new boolean[rowStart[size]];
+		int[] position = Arrays.copyOf(rowStart, size);
+		for (int edge=0; edge<numEdges; edge++)
+		{
+			int lastRow = getRow(Math.max(y1[edge], y2[edge]));
+			for (int row=getRow(Math.min(y1[edge], y2[edge])); row<=lastRow; row++)
+			{
+				float centreY = minY + (row+0.5f)*rowHeight;
+				if ((y1[edge] > centreY) != (y2[edge] > centreY))
+				{
+					crossX[position[row]] = (x2[edge]-x1[edge])*(centreY-y1[edge])/(y2[edge]-y1[edge]) + x1[edge];
+					isUp[position[row]] = y2[edge] > y1[edge];
+					position[row]++;
+				}
+			}
+		}
+
+		// Winding number at each cell centre is the sum of the directions of the crossings to its right.
+		cellWinding = new int[size*size];
+		float colWidth = 1/Math.max(cellsPerUnitX, Float.MIN_NORMAL);
+		float[] up = new float[16];
+		float[] down = new float[16];
+		for (int row=0; row<size; row++)
+		{
+			int numUp = 0, numDown = 0;
+			for (int c=rowStart[row]; c<rowStart[row+1]; c++)
+			{
+				if (isUp[c])
+				{
+					if (numUp == up.length)
+					{
+						up = Arrays.copyOf(up, numUp*2);
+					}
+					up[numUp++] = crossX[c];
+				}
+				else
+				{
+					if (numDown == down.length)
+					{
+						down = Arrays.copyOf(down, numDown*2);
+					}
+					down[numDown++] = crossX[c];
+				}
+			}
+			Arrays.sort(up, 0, numUp);
+			Arrays.sort(down, 0, numDown);
+			int upLeft = 0, downLeft = 0;
+			for (int col=0; col<size; col++)
+			{
+				float centreX = minX + (col+0.5f)*colWidth;
+				while ((upLeft < numUp) && (up[upLeft] <= centreX))
+				{
+					upLeft++;
+				}
+				while ((downLeft < numDown) && (down[downLeft] <= centreX))
+				{
+					downLeft++;
+				}
+				cellWinding[row*size+col] = (numUp-upLeft) - (numDown-downLeft);
+			}
+		}
+	}
+
+	/** Tests whether any edge of the given feature meets the boundary of the polygon.
+	 *  @param feature Feature to test.
+	 *  @param coords x and y coordinates of the feature.
+	 *  @return True if an edge of a line or polygon meets the boundary.
+	 */
+	private boolean hasCrossingEdge(Feature feature, float[][] coords)
+	{
+		float[] fx = coords[0];
+		float[] fy = coords[1];
+		if (feature.getType() == FeatureType.LINE)
+		{
+			List<Integer> parts = ((Line)feature).getSubPartPointers();
+			for (int part=0; part<parts.size(); part++)
+			{
+				int start = parts.get(part).intValue();
+				int end = (part < parts.size()-1) ? parts.get(part+1).intValue() : fx.length;
+				for (int i=start; i<end-1; i++)
+				{
+					if (crosses(fx[i], fy[i], fx[i+1], fy[i+1]))
+					{
+						return true;
+					}
+				}
+			}
+		}
+		else if (feature.getType() == FeatureType.POLYGON)
+		{
+			List<Integer> parts = ((Polygon)feature).getSubPartPointers();
+			for (int part=0; part<parts.size(); part++)
+			{
+				int start = parts.get(part).intValue();
+				int end = (part < parts.size()-1) ? parts.get(part+1).intValue() : fx.length;
+				for (int i=start; i<end; i++)
+				{
+					int next = (i < end-1) ? i+1 : start;
+					if (crosses(fx[i], fy[i], fx[next], fy[next]))
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Reports the coordinates of a line, polygon or multipoint feature.
+	 *  @param feature Feature whose coordinates are required.
+	 *  @return Array holding the feature's x coordinates followed by its y coordinates.
+	 */
+	private static float[][] getCoords(Feature feature)
+	{
+		switch (feature.getType())
+		{
+			case LINE:
+				return new float[][] {((Line)feature).getXCoords(), ((Line)feature).getYCoords()};
+			case POLYGON:
+				return new float[][] {((Polygon)feature).getXCoords(), ((Polygon)feature).getYCoords()};
+			case MULTI_POINT:
+				return new float[][] {((MultiPoint)feature).getXCoords(), ((MultiPoint)feature).getYCoords()};
+			default:
+				PVector p = ((Point)feature).getCoords();
+				return new float[][] {{p.x}, {p.y}};
+		}
+	}
+
+	/** Reports the column of the grid containing the given x coordinate.
+	 *  @param px x coordinate.
+	 *  @return Column containing the coordinate, limited to the columns of the grid.
+	 */
+	private int getCol(float px)
+	{
+		return Math.max(0, Math.min(size-1, (int)((px-minX)*cellsPerUnitX)));
+	}
+
+	/** Reports the row of the grid containing the given y coordinate.
+	 *  @param py y coordinate.
+	 *  @return Row containing the coordinate, limited to the rows of the grid.
+	 */
+	private int getRow(float py)
+	{
+		return Math.max(0, Math.min(size-1, (int)((py-minY)*cellsPerUnitY)));
+	}
+
+	/** Reports which side of the line through two points a third point lies.
+	 *  @param x1 x coordinate of the first point on the line.
+	 *  @param y1 y coordinate of the first point on the line.
+	 *  @param x2 x coordinate of the second point on the line.
+	 *  @param y2 y coordinate of the second point on the line.
+	 *  @param px x coordinate of the point to test.
+	 *  @param py y coordinate of the point to test.
+	 *  @return Positive if the point is to the left of the line, negative if to the right and 0 if on it.
+	 */
+	private static double orientation(double x1, double y1, double x2, double y2, double px, double py)
+	{
+		return (x2-x1)*(py-y1) - (y2-y1)*(px-x1);
+	}
+
+	/** Tests whether a point known to be on the line through two points is within the bounding box of those points.
+	 *  @param x1 x coordinate of the first point.
+	 *  @param y1 y coordinate of the first point.
+	 *  @param x2 x coordinate of the second point.
+	 *  @param y2 y coordinate of the second point.
+	 *  @param px x coordinate of the point to test.
+	 *  @param py y coordinate of the point to test.
+	 *  @return True if the point lies on the segment between the two points.
+	 */
+	private static boolean isWithin(double x1, double y1, double x2, double y2, double px, double py)
+	{
+		return (px >= Math.min(x1, x2)) && (px <= Math.max(x1, x2)) && (py >= Math.min(y1, y2)) && (py <= Math.max(y1, y2));
+	}
+}
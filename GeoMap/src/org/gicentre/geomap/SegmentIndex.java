@@ -0,0 +1,274 @@
+package org.gicentre.geomap;
+
+// *****************************************************************************************
+/** Packed R-tree of the segments of a polyline, used to find segments close to a location without
+ *  examining every segment of long lines. As consecutive segments of a line are usually close to each
+ *  other, each leaf of the tree simply holds a run of consecutive segments and each node above holds a
+ *  run of consecutive nodes, so the tree can be built in a single pass without sorting. Queries descend
+ *  only into nodes whose bounding boxes are close enough to the location and allocate no objects.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class SegmentIndex
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private static final int NODE_SIZE = 16;	// Number of segments in each leaf and children of each node.
+
+	private float[] x, y;				// Coordinates of the line's vertices.
+	private boolean[] joins;			// Whether each segment joins two parts of the line (null if it has one part).
+	private int numSegments;			// Number of segments in the line.
+	private int[] levelStart;			// Position of the first node of each level, starting with the leaves.
+	private float[] nodeBounds;			// Minimum x, minimum y, maximum x and maximum y of each node.
+
+	// ----------------------------------- Constructor -----------------------------------
+
+	/** Creates an index of the segments joining the given vertices. Segments that join two parts of a
+	 *  multi-part line are treated as the single vertex at the start of the next part.
+	 *  @param x x coordinates of the line's vertices.
+	 *  @param y y coordinates of the line's vertices.
+	 *  @param joins Whether each segment joins two parts of the line, or null if the line has only one part.
+	 */
+	SegmentIndex(float[] x, float[] y, boolean[] joins)
+	{
+		this.x = x;
+		this.y = y;
+		this.joins = joins;
+		numSegments = Math.max(0, x.length-1);
+
+		int numLevels = 1;
+		int numNodes = 0;
+		for (int levelSize=(numSegments+NODE_SIZE-1)/NODE_SIZE; ; levelSize=(levelSize+NODE_SIZE-1)/NODE_SIZE)
+		{
+			numNodes += levelSize;
+			if (levelSize <= 1)
+			{
+				break;
+			}
+			numLevels++;
+		}
+		levelStart = new int[numLevels+1];
+		nodeBounds = new float[numNodes*4];
+
+		// Leaves bound runs of consecutive segments.
+		int numLeaves = (numSegments+NODE_SIZE-1)/NODE_SIZE;
+		for (int leaf=0; leaf<numLeaves; leaf++)
+		{
+			int first = leaf*NODE_SIZE;
+			int last = Math.min(first+NODE_SIZE, numSegments);
+			float minX = x[first], minY = y[first], maxX = x[first], maxY = y[first];
+			for (int i=first+1; i<=last; i++)
+			{
+				minX = Math.min(minX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxX = Math.max(maxX, x[i]);
+				maxY = Math.max(maxY, y[i]);
+			}
+			setBounds(leaf, minX, minY, maxX, maxY);
+		}
+		levelStart[1] = numLeaves;
+
+		// Each node above bounds a run of consecutive nodes in the level below.
+		for (int level=1; level<numLevels; level++)
+		{
+			int childStart = levelStart[level-1];
+			int numChildren = levelStart[level]-childStart;
+			int numLevelNodes = (numChildren+NODE_SIZE-1)/NODE_SIZE;
+			for (int n=0; n<numLevelNodes; n++)
+			{
+				int first = childStart + n*NODE_SIZE;
+				int last = Math.min(first+NODE_SIZE, levelStart[level]);
+				float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+				for (int child=first; child<last; child++)
+				{
+					minX = Math.min(minX, nodeBounds[child*4]);
+					minY = Math.min(minY, nodeBounds[child*4+1]);
+					maxX = Math.max(maxX, nodeBounds[child*4+2]);
+					maxY = Math.max(maxY, nodeBounds[child*4+3]);
+				}
+				setBounds(levelStart[level]+n, minX, minY, maxX, maxY);
+			}
+			levelStart[level+1] = levelStart[level]+numLevelNodes;
+		}
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Tests whether any segment of the line is within the given distance of a location.
+	 *  @param px x coordinate of the location.
+	 *  @param py y coordinate of the location.
+	 *  @param maxDistSq Squared distance within which a segment must be.
+	 *  @return True if at least one segment is within the given distance.
+	 */
+	boolean isWithin(float px, float py, double maxDistSq)
+	{
+		if (numSegments == 0)
+		{
+			return false;
+		}
+		return isWithin(px, py, maxDistSq, levelStart.length-2, 0);
+	}
+
+	/** Reports the squared distance from a location to the nearest segment of the line.
+	 *  @param px x coordinate of the location.
+	 *  @param py y coordinate of the location.
+	 *  @return Squared distance to the nearest segment, or <code>Double.MAX_VALUE</code> if the line has no segments.
+	 */
+	double getDistSq(float px, float py)
+	{
+		if (numSegments == 0)
+		{
+			return Double.MAX_VALUE;
+		}
+		return getDistSq(px, py, Double.MAX_VALUE, levelStart.length-2, 0);
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Tests whether any segment below the given node is within the given distance of a location.
+	 *  @param px x coordinate of the location.
+	 *  @param py y coordinate of the location.
+	 *  @param maxDistSq Squared distance within which a segment must be.
+	 *  @param level Level of the node in the tree, where leaves are at level 0.
+	 *  @param index Position of the node within its level.
+	 *  @return True if at least one segment below the node is within the given distance.
+	 */
+	private boolean isWithin(float px, float py, double maxDistSq, int level, int index)
+	{
+		if (getBoxDistSq(px, py, levelStart[level]+index) > maxDistSq)
+		{
+			return false;
+		}
+		int first = index*NODE_SIZE;
+		if (level == 0)
+		{
+			int last = Math.min(first+NODE_SIZE, numSegments);
+			for (int i=first; i<last; i++)
+			{
+				if (getSegmentDistSq(px, py, i) <= maxDistSq)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		int last = Math.min(first+NODE_SIZE, levelStart[level]-levelStart[level-1]);
+		for (int child=first; child<last; child++)
+		{
+			if (isWithin(px, py, maxDistSq, level-1, child))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Finds the squared distance to the nearest segment below the given node if it is closer than the
+	 *  nearest found so far. Children of the node are visited in order of the distance to their bounding boxes.
+	 *  @param px x coordinate of the location.
+	 *  @param py y coordinate of the location.
+	 *  @param nearestDistSq Squared distance to the nearest segment found so far.
+	 *  @param level Level of the node in the tree, where leaves are at level 0.
+	 *  @param index Position of the node within its level.
+	 *  @return Squared distance to the nearest segment found.
+	 */
+	private double getDistSq(float px, float py, double nearestDistSq, int level, int index)
+	{
+		if (getBoxDistSq(px, py, levelStart[level]+index) >= nearestDistSq)
+		{
+			return nearestDistSq;
+		}
+		int first = index*NODE_SIZE;
+		if (level == 0)
+		{
+			int last = Math.min(first+NODE_SIZE, numSegments);
+			for (int i=first; i<last; i++)
+			{
+				nearestDistSq = Math.min(nearestDistSq, getSegmentDistSq(px, py, i));
+			}
+			return nearestDistSq;
+		}
+		// Children are visited nearest first, so more distant ones can usually be skipped.
+		int last = Math.min(first+NODE_SIZE, levelStart[level]-levelStart[level-1]);
+		int visited = 0;
+		while (true)
+		{
+			int nearestChild = -1;
+			double nearestBoxDistSq = nearestDistSq;
+			for (int child=first; child<last; child++)
+			{
+				if ((visited & (1 << (child-first))) == 0)
+				{
+					double boxDistSq = getBoxDistSq(px, py, levelStart[level-1]+child);
+					if (boxDistSq < nearestBoxDistSq)
+					{
+						nearestChild = child;
+						nearestBoxDistSq = boxDistSq;
+					}
+				}
+			}
+			if (nearestChild == -1)
+			{
+				return nearestDistSq;
+			}
+			visited |= 1 << (nearestChild-first);
+			nearestDistSq = getDistSq(px, py, nearestDistSq, level-1, nearestChild);
+		}
+	}
+
+	/** Reports the squared distance from a location to a segment of the line.
+	 *  @param px x coordinate of the location.
+	 *  @param py y coordinate of the location.
+	 *  @param i Position of the segment, which starts at the vertex in the same position.
+	 *  @return Squared distance to the segment.
+	 */
+	private double getSegmentDistSq(float px, float py, int i)
+	{
+		int start = ((joins != null) && joins[i]) ? i+1 : i;
+		return FeatureIndex.segmentDistSq(px, py, x[start], y[start], x[i+1], y[i+1]);
+	}
+
+	/** Reports the squared distance from a location to the bounding box of a node.
+	 *  @param px x coordinate of the location.
+	 *  @param py y coordinate of the location.
+	 *  @param node Position of the node in the tree.
+	 *  @return Squared distance to the node's bounding box, or 0 if the location is inside it.
+	 */
+	private double getBoxDistSq(float px, float py, int node)
+	{
+		double dx = Math.max(0, Math.max(nodeBounds[node*4]-px, px-nodeBounds[node*4+2]));
+		double dy = Math.max(0, Math.max(nodeBounds[node*4+1]-py, py-nodeBounds[node*4+3]));
+		return dx*dx + dy*dy;
+	}
+
+	/** Stores the bounding box of a node.
+	 *  @param node Position of the node in the tree.
+	 *  @param minX Minimum x coordinate of the node.
+	 *  @param minY Minimum y coordinate of the node.
+	 *  @param maxX Maximum x coordinate of the node.
+	 *  @param maxY Maximum y coordinate of the node.
+	 */
+	private void setBounds(int node, float minX, float minY, float maxX, float maxY)
+	{
+		nodeBounds[node*4]   = minX;
+		nodeBounds[node*4+1] = minY;
+		nodeBounds[node*4+2] = maxX;
+		nodeBounds[node*4+3] = maxY;
+	}
+}
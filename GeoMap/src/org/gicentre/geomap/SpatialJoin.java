@@ -0,0 +1,385 @@
+package org.gicentre.geomap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import processing.data.Table;
+
+// *****************************************************************************************
+/** Joins the features of one geoMap to the polygons of another, so that the features within or crossing
+ *  each polygon can be counted and their attributes summarised. Points are matched to the polygon that
+ *  contains them, or the first in the polygons' feature map if several do, as with <code>GeoMap.getID()</code>.
+ *  Lines, polygons and multipoint features are matched to every polygon they intersect. Summaries, such
+ *  as the number of incidents in each borough or the total or mean of one of their attributes, are added
+ *  as new typed columns in the attribute table of the polygons' geoMap.
+ *  <br>
+ *  Features are matched using the spatial index of the polygons, with points classified in bulk and other
+ *  features tested in parallel. Matches are found the first time they are needed, so several summaries
+ *  can be added without repeating the join. The join is repeated if either geoMap's features have changed
+ *  since it was last made.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+// *****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class SpatialJoin
+{
+	// ---------------------------- Object and class variables ----------------------------
+
+	private static final int CHUNK_SIZE = 64*1024;	// Number of features summarised by each task.
+
+	private GeoMap polygonMap;				// GeoMap whose polygons receive the summaries.
+	private GeoMap featureMap;				// GeoMap whose features are summarised.
+	private int[] polygonIDs;				// ID of each polygon that features may be matched to.
+	private HashMap<Integer,Integer> polygonPositions;	// Position of each polygon ID in the list of polygons.
+	private int[] featureIDs;				// ID of each feature joined, or null if not yet joined.
+	private int[] matchStart;				// Position in the list of matches of the first match of each feature.
+	private int[] matches;					// Positions in the list of polygons of those matched by each feature.
+	private FeatureMap joinedPolygons;		// Polygons' feature map when the join was made.
+	private FeatureMap joinedFeatures;		// Features' feature map when the join was made.
+	private long polygonModCount;			// Modification count of the polygons when the join was made.
+	private long featureModCount;			// Modification count of the features when the join was made.
+
+	// ----------------------------------- Constructor -----------------------------------
+
+	/** Creates a join between the polygons of one geoMap and the features of another. The features are not
+	 *  matched to polygons until a summary is first added.
+	 *  @param polygonMap GeoMap whose polygons are to receive summaries of the features they contain.
+	 *  @param featureMap GeoMap whose features are to be summarised. This may be the same as the polygon map.
+	 */
+	public SpatialJoin(GeoMap polygonMap, GeoMap featureMap)
+	{
+		this.polygonMap = polygonMap;
+		this.featureMap = featureMap;
+	}
+
+	// ------------------------------------- Methods -------------------------------------
+
+	/** Adds a column to the polygons' attribute table holding the number of features matched to each polygon.
+	 *  If a column with the given title already exists, its values are replaced.
+	 *  @param title Title of the column holding the counts.
+	 */
+	public void addCount(String title)
+	{
+		join();
+		int[] counts = new int[polygonIDs.length];
+		summarise(null, counts, null);
+
+		Table attributes = polygonMap.getAttributeTable();
+		int col = getColumn(attributes, title, Table.INT);
+		for (int row=0; row<attributes.getRowCount(); row++)
+		{
+			Integer position = polygonPositions.get(Integer.valueOf(attributes.getInt(row, 0)));
+			attributes.setInt(row, col, (position == null) ? 0 : counts[position.intValue()]);
+		}
+	}
+
+	/** Adds a column to the polygons' attribute table holding the total of the given attribute of the features
+	 *  matched to each polygon. Features without a numeric value for the attribute are ignored. If a column
+	 *  with the given title already exists, its values are replaced.
+	 *  @param column Title of the column in the features' attribute table holding the values to total.
+	 *  @param title Title of the column holding the totals.
+	 *  @return True if the totals were added, or false if the features have no such attribute.
+	 */
+	public boolean addSum(String column, String title)
+	{
+		return addSummary(column, title, false);
+	}
+
+	/** Adds a column to the polygons' attribute table holding the mean of the given attribute of the features
+	 *  matched to each polygon. Features without a numeric value for the attribute are ignored, and the mean
+	 *  is NaN (not a number) for polygons without any such features. If a column with the given title already
+	 *  exists, its values are replaced.
+	 *  @param column Title of the column in the features' attribute table holding the values to average.
+	 *  @param title Title of the column holding the means.
+	 *  @return True if the means were added, or false if the features have no such attribute.
+	 */
+	public boolean addMean(String column, String title)
+	{
+		return addSummary(column, title, true);
+	}
+
+	// ---------------------------------- Private methods ----------------------------------
+
+	/** Adds a column to the polygons' attribute table holding the total or mean of the given attribute of
+	 *  the features matched to each polygon.
+	 *  @param column Title of the column in the features' attribute table holding the values to summarise.
+	 *  @param title Title of the column holding the summaries.
+	 *  @param isMean True if the mean should be reported, false if the total should be reported.
+	 *  @return True if the summaries were added, or false if the features have no such attribute.
+	 */
+	private boolean addSummary(String column, String title, boolean isMean)
+	{
+		Table featureAttributes = featureMap.getAttributeTable();
+		int valueCol = findColumn(featureAttributes, column);
+		if (valueCol < 0)
+		{
+			System.err.println("Cannot summarise features as there is no attribute column titled '"+column+"'.");
+			return false;
+		}
+		join();
+
+		// Values are looked up once for each feature, in the order features were joined.
+		HashMap<Integer,Integer> rowLookup = new HashMap<Integer,Integer>();
+		for (int row=0; row<featureAttributes.getRowCount(); row++)
+		{
+			rowLookup.put(Integer.valueOf(featureAttributes.getInt(row, 0)), Integer.valueOf(row));
+		}
+		double[] values = new double[featureIDs.length];
+		for (int i=0; i<featureIDs.length; i++)
+		{
+			Integer row = rowLookup.get(Integer.valueOf(featureIDs[i]));
+			values[i] = (row == null) ? Double.NaN : featureAttributes.getDouble(row.intValue(), valueCol);
+		}
+
+		int[] counts = new int[polygonIDs.length];
+		double[] sums = new double[polygonIDs.length];
+		summarise(values, counts, sums);
+
+		Table attributes = polygonMap.getAttributeTable();
+		int col = getColumn(attributes, title, Table.DOUBLE);
+		for (int row=0; row<attributes.getRowCount(); row++)
+		{
+			Integer position = polygonPositions.get(Integer.valueOf(attributes.getInt(row, 0)));
+			if (isMean)
+			{
+				attributes.setDouble(row, col, ((position == null) || (counts[position.intValue()] == 0)) ?
+				                               Double.NaN : sums[position.intValue()]/counts[position.intValue()]);
+			}
+			else
+			{
+				attributes.setDouble(row, col, (position == null) ? 0 : sums[position.intValue()]);
+			}
+		}
+		return true;
+	}
+
+	/** Matches each feature to the polygons that contain or intersect it if this has not already been done
+	 *  or either geoMap's features have changed since the last join.
+	 */
+	private void join()
+	{
+		FeatureMap polygons = polygonMap.getFeatureMap();
+		FeatureMap features = featureMap.getFeatureMap();
+		if ((featureIDs != null) && (polygons == joinedPolygons) && (features == joinedFeatures) &&
+		    (polygons.getModCount() == polygonModCount) && (features.getModCount() == featureModCount))
+		{
+			return;
+		}
+		joinedPolygons = polygons;
+		joinedFeatures = features;
+		polygonModCount = polygons.getModCount();
+		featureModCount = features.getModCount();
+
+		// Polygons are numbered in the order they appear in the feature map.
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int slot=0; slot<polygons.getNumSlots(); slot++)
+		{
+			Feature feature = polygons.getValueAt(slot);
+			if ((feature != null) && (feature.getType() == FeatureType.POLYGON))
+			{
+				ids.add(Integer.valueOf(polygons.getKeyAt(slot)));
+			}
+		}
+		polygonIDs = new int[ids.size()];
+		polygonPositions = new HashMap<Integer,Integer>();
+		for (int i=0; i<polygonIDs.length; i++)
+		{
+			polygonIDs[i] = ids.get(i).intValue();
+			polygonPositions.put(ids.get(i), Integer.valueOf(i));
+		}
+
+		// Points are gathered into arrays so they can be classified in bulk.
+		PointLayer pointLayer = features.getPointLayer();
+		int capacity = features.size();
+		float[] pointX = new float[capacity];
+		float[] pointY = new float[capacity];
+		int[] pointIDs = new int[capacity];
+		int numPoints = 0;
+		if (pointLayer != null)
+		{
+			BitSet removed = pointLayer.getRemoved();
+			float[] layerX = pointLayer.getXArray();
+			float[] layerY = pointLayer.getYArray();
+			for (int i=0; i<pointLayer.getNumPositions(); i++)
+			{
+				if ((removed == null) || !removed.get(i))
+				{
+					pointX[numPoints] = layerX[i];
+					pointY[numPoints] = layerY[i];
+					pointIDs[numPoints++] = pointLayer.getID(i);
+				}
+			}
+		}
+		List<Feature> others = new ArrayList<Feature>();
+		List<Integer> otherIDs = new ArrayList<Integer>();
+		for (int slot=0; slot<features.getNumSlots(); slot++)
+		{
+			Feature feature = features.getValueAt(slot);
+			if (feature == null)
+			{
+				continue;
+			}
+			if (feature.getType() == FeatureType.POINT)
+			{
+				pointX[numPoints] = ((Point)feature).getCoords().x;
+				pointY[numPoints] = ((Point)feature).getCoords().y;
+				pointIDs[numPoints++] = features.getKeyAt(slot);
+			}
+			else
+			{
+				others.add(feature);
+				otherIDs.add(Integer.valueOf(features.getKeyAt(slot)));
+			}
+		}
+
+		FeatureIndex index = polygonMap.getFeatureIndex();
+		int[] containingIDs = index.getContainingIDs(Arrays.copyOf(pointX, numPoints),
+		                                             Arrays.copyOf(pointY, numPoints));
+		final int[][] otherMatches = new int[others.size()][];
+		IntStream.range(0, others.size()).parallel().forEach(i ->
+		{
+			otherMatches[i] = index.getIntersectingPolygonIDs(others.get(i));
+		});
+
+		// Matches are stored in compressed rows, points first.
+		int numFeatures = numPoints + others.size();
+		featureIDs = new int[numFeatures];
+		matchStart = new int[numFeatures+1];
+		int numMatches = 0;
+		for (int i=0; i<numPoints; i++)
+		{
+			numMatches += (containingIDs[i] >= 0) ? 1 : 0;
+		}
+		for (int[] polygonMatches : otherMatches)
+		{
+			numMatches += polygonMatches.length;
+		}
+		matches = new int[numMatches];
+		int m = 0;
+		for (int i=0; i<numPoints; i++)
+		{
+			featureIDs[i] = pointIDs[i];
+			matchStart[i] = m;
+			if (containingIDs[i] >= 0)
+			{
+				matches[m++] = polygonPositions.get(Integer.valueOf(containingIDs[i])).intValue();
+			}
+		}
+		for (int i=0; i<others.size(); i++)
+		{
+			featureIDs[numPoints+i] = otherIDs.get(i).intValue();
+			matchStart[numPoints+i] = m;
+			for (int id : otherMatches[i])
+			{
+				matches[m++] = polygonPositions.get(Integer.valueOf(id)).intValue();
+			}
+		}
+		matchStart[numFeatures] = m;
+	}
+
+	/** Counts the features matched to each polygon and totals their values. Features are split into chunks
+	 *  that are summarised in parallel before the summaries of each chunk are combined.
+	 *  @param values Value of each feature in the order they were joined, or null if only counts are needed.
+	 *                Features with a value of NaN are ignored.
+	 *  @param counts Array in which to store the number of features matched to each polygon.
+	 *  @param sums Array in which to store the total value of the features matched to each polygon, or null if not needed.
+	 */
+	private void summarise(final double[] values, int[] counts, double[] sums)
+	{
+		final int numPolygons = polygonIDs.length;
+		final int numChunks = (featureIDs.length+CHUNK_SIZE-1)/CHUNK_SIZE;
+		final int[][] chunkCounts = new int[numChunks][];
+		final double[][] chunkSums = new double[numChunks][];
+		IntStream.range(0, numChunks).parallel().forEach(chunk ->
+		{
+			int[] localCounts = new int[numPolygons];
+			double[] localSums = new double[numPolygons];
+			int end = Math.min(featureIDs.length, (chunk+1)*CHUNK_SIZE);
+			for (int i=chunk*CHUNK_SIZE; i<end; i++)
+			{
+				double value = (values == null) ? 0 : values[i];
+				if (Double.isNaN(value))
+				{
+					continue;
+				}
+				for (int m=matchStart[i]; m<matchStart[i+1]; m++)
+				{
+					localCounts[matches[m]]++;
+					localSums[matches[m]] += value;
+				}
+			}
+			chunkCounts[chunk] = localCounts;
+			chunkSums[chunk] = localSums;
+		});
+
+		for (int chunk=0; chunk<numChunks; chunk++)
+		{
+			for (int p=0; p<numPolygons; p++)
+			{
+				counts[p] += chunkCounts[chunk][p];
+				if (sums != null)
+				{
+					sums[p] += chunkSums[chunk][p];
+				}
+			}
+		}
+	}
+
+	/** Provides the position of the column with the given title, adding a column of the given type if there is none.
+	 *  @param table Table in which to find the column.
+	 *  @param title Title of the column.
+	 *  @param type Type of column to add, such as <code>Table.INT</code> or <code>Table.DOUBLE</code>.
+	 *  @return Position of the column in the table.
+	 */
+	private static int getColumn(Table table, String title, int type)
+	{
+		int col = findColumn(table, title);
+		if (col < 0)
+		{
+			table.addColumn(title, type);
+			return table.getColumnCount()-1;
+		}
+		table.setColumnType(col, type);
+		return col;
+	}
+
+	/** Finds the column with the given title.
+	 *  @param table Table in which to find the column.
+	 *  @param title Title of the column.
+	 *  @return Position of the column in the table or -1 if there is no column with the given title.
+	 */
+	private static int findColumn(Table table, String title)
+	{
+		String[] titles = table.getColumnTitles();
+		if (titles != null)
+		{
+			for (int col=0; col<titles.length; col++)
+			{
+				if (title.equals(titles[col]))
+				{
+					return col;
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -193,6 +193,7 @@ public class DbaseFileReader
                 foundRecord = true;
             }
         }
+        cnt++;
     }
   
     /** Copies the next record into the array starting at offset.
@@ -563,5 +564,18 @@ public class DbaseFileReader
             int offset = getOffset(column);
             return readObject(offset, column,false);
         }
+        
+        /** Reads in a single item from the database row at the given column.
+          * @param column Column to read.
+          * @param doSimple If true, the value will be either a string or a number. If not, it 
+          *                 can also be a boolean value or a date.
+          * @return Object read from this row at the given column.
+          * @throws IOException Thrown if problem reading the record.
+          */  
+        public Object read(int column, boolean doSimple) throws IOException 
+        {
+            int offset = getOffset(column);
+            return readObject(offset, column, doSimple);
+        }
     }
 }
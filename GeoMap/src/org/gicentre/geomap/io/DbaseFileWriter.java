@@ -45,12 +45,26 @@ public class DbaseFileWriter
 	// ------------------------------- Object Variables -------------------------------
 
 	private DbaseFileHeader header;
-	private DbaseFileWriter.FieldFormatter formatter = new DbaseFileWriter.FieldFormatter();
 	private WritableByteChannel channel;
-	private ByteBuffer buffer;
-	private final Number NULL_NUMBER = new Integer(0);
+	private ByteBuffer buffer;					// Wraps the output array for writing to the channel.
+	private byte[] output;						// Formatted records waiting to be written.
+	private int outputPos;						// Number of bytes in the output array.
+	private byte[] digits;						// Workspace for formatting numbers.
+	private Calendar calendar;					// Workspace for formatting dates.
+	private int numRecordsWritten;
 	private final String NULL_STRING = "";
-	private final Date NULL_DATE = new Date();
+
+	private static final int BUFFER_SIZE = 256*1024;
+	private static final int MAX_DECIMALS = 18;
+	private static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS+1];
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for (int i=1; i<=MAX_DECIMALS; i++)
+		{
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1]*10;
+		}
+	}
 
 	// --------------------------------- Constructors ---------------------------------
 
@@ -64,12 +78,14 @@ public class DbaseFileWriter
 		header.writeHeader(out);
 		this.header = header;
 		this.channel = out;
+		this.numRecordsWritten = 0;
 		init();
 	}
 
 	// -------------------------- Methods ----------------------------
 
-	/** Write a single dBase record.
+	/** Write a single dBase record. Records are formatted into a large output buffer which is only
+	 * written to the channel when full or when the writer is closed.
 	 * @param record The entries to write.
 	 * @throws IOException If IO error occurs or the entry doesn't comply with the header.
 	 */
@@ -80,45 +96,111 @@ public class DbaseFileWriter
 			throw new IOException("Wrong number of fields " + record.length + " expected " +  header.getNumFields());
 		}
 
-		buffer.position(0);
+		startRecord();
+		for (int col=0; col<record.length; col++) 
+		{
+			putObject(record[col], col);
+		}
+		numRecordsWritten++;
+	}
 
-		// Put the 'not-deleted' marker
-		buffer.put( (byte) ' ');
+	/** Writes a block of records supplied as typed columns rather than rows of objects. Each column
+	 * should be an array of one of <code>int</code>, <code>long</code>, <code>float</code>,
+	 * <code>double</code> or <code>boolean</code> primitives, or an array of objects such as
+	 * <code>String</code>, <code>Number</code> or <code>Date</code>. Primitive values are formatted
+	 * directly without creating any objects.
+	 * @param columns Array of column values, one for each field in the header.
+	 * @param numRows Number of records to write. Each column must contain at least this many values.
+	 * @throws IOException If IO error occurs or the columns don't comply with the header.
+	 */
+	public void writeColumns(Object[] columns, int numRows) throws IOException
+	{
+		int numFields = header.getNumFields();
+		if (columns.length != numFields) 
+		{
+			throw new IOException("Wrong number of fields " + columns.length + " expected " + numFields);
+		}
+		for (int col=0; col<numFields; col++)
+		{
+			if ((columns[col] == null) || !columns[col].getClass().isArray() || (java.lang.reflect.Array.getLength(columns[col]) < numRows))
+			{
+				throw new IOException("Column " + (col+1) + " does not contain " + numRows + " values");
+			}
+		}
 
-		for (int i = 0; i < header.getNumFields(); i++) 
+		for (int row=0; row<numRows; row++)
 		{
-			String fieldString = fieldString(record[i], i);
-			buffer.put(fieldString.getBytes());
+			startRecord();
+			for (int col=0; col<numFields; col++)
+			{
+				Object column = columns[col];
+				if (column instanceof int[])
+				{
+					putLong(((int[])column)[row], col);
+				}
+				else if (column instanceof long[])
+				{
+					putLong(((long[])column)[row], col);
+				}
+				else if (column instanceof double[])
+				{
+					putDouble(((double[])column)[row], col, false);
+				}
+				else if (column instanceof float[])
+				{
+					putDouble(((float[])column)[row], col, true);
+				}
+				else if (column instanceof boolean[])
+				{
+					putObject(Boolean.valueOf(((boolean[])column)[row]), col);
+				}
+				else if (column instanceof Object[])
+				{
+					putObject(((Object[])column)[row], col);
+				}
+				else
+				{
+					throw new IOException("Unsupported column type in column " + (col+1));
+				}
+			}
+			numRecordsWritten++;
 		}
-		write();
 	}
 
-
-	/** Release resources associated with this writer.
+	/** Release resources associated with this writer. If the number of records written differs from
+	 * the number declared in the header and the output is a file channel, the record count stored in
+	 * the file is corrected, allowing records to be appended without knowing their number in advance.
 	 * <b>Highly recommended</b>
 	 * @throws IOException If problem releasing all resources.
 	 */
 	public void close() throws IOException 
 	{
+		flush();
+
+		if ((numRecordsWritten != header.getNumRecords()) && (channel instanceof FileChannel))
+		{
+			ByteBuffer count = ByteBuffer.allocate(4);
+			count.order(ByteOrder.LITTLE_ENDIAN);
+			count.putInt(numRecordsWritten);
+			count.flip();
+			long position = 4;
+			while (count.hasRemaining())
+			{
+				position += ((FileChannel)channel).write(count, position);
+			}
+			header.setNumRecords(numRecordsWritten);
+		}
+
 		// IANS - GEOT 193, bogus 0x00 written. According to dbf spec, optional
 		// eof 0x1a marker is, well, optional. Since the original code wrote a
 		// 0x00 (which is wrong anyway) lets just do away with this :)
 		// - produced dbf works in OpenOffice and ArcExplorer java, so it must
 		// be okay. 
-		//    buffer.position(0);
-		//    buffer.put((byte) 0).position(0).limit(1);
-		//    write();
 
 		channel.close();
-		/*
-        if (buffer instanceof MappedByteBuffer) 
-        {
-            NIOUtilities.clean(buffer);
-        }
-		 */
 		buffer = null;
+		output = null;
 		channel = null;
-		formatter = null;
 	}
 
 	// --------------------------- Private Methods ----------------------------
@@ -127,72 +209,273 @@ public class DbaseFileWriter
 	 */
 	private void init()
 	{
-		buffer = ByteBuffer.allocateDirect(header.getRecordLength());
+		int recordLength = header.getRecordLength();
+		output = new byte[recordLength*Math.max(1, BUFFER_SIZE/recordLength)];
+		buffer = ByteBuffer.wrap(output);
+		outputPos = 0;
+		digits = new byte[MAX_DECIMALS+24];
+		calendar = Calendar.getInstance(Locale.US);
 	}
 
 	/** Empties the output buffer to the output channel.
 	 * @throws IOException If problems occur while writing.
 	 */
-	private void write() throws IOException 
+	private void flush() throws IOException 
 	{
-		buffer.position(0);
-		int r = buffer.remaining();
-		while ( (r -= channel.write(buffer)) > 0) 
+		buffer.clear();
+		buffer.limit(outputPos);
+		while (buffer.hasRemaining()) 
 		{
-			// Do nothing
+			channel.write(buffer);
 		}
+		outputPos = 0;
 	}
 
-	/** Converts the given object into its fieldstring representation.
-	 * @param obj Object to convert.
+	/** Ensures there is space for a new record in the output buffer and adds its 'not-deleted' marker.
+	 * @throws IOException If problems occur while writing.
+	 */
+	private void startRecord() throws IOException
+	{
+		if (output.length - outputPos < header.getRecordLength())
+		{
+			flush();
+		}
+		output[outputPos++] = (byte)' ';
+	}
+
+	/** Formats the given object into the output buffer as the value of the given column.
+	 * @param obj Object to format.
 	 * @param col Database column number in which this object occurs. 
-	 * @return Text representation of the object.
 	 */
-	private String fieldString(Object obj,final int col) 
+	private void putObject(Object obj, int col) 
 	{
-		String o;
-		final int fieldLen = header.getFieldLength(col);
 		switch (header.getFieldType(col)) 
 		{
 		case 'C':
 		case 'c':
-			o = formatter.getFieldString(fieldLen, obj == null ? NULL_STRING : obj.toString());
+		case 'M':
+		case 'G':
+			putText(obj == null ? NULL_STRING : obj.toString(), header.getFieldLength(col));
 			break;
 
 		case 'L':
 		case 'l':
-			o = (obj == null ? "F" : obj == Boolean.TRUE ? "T" : "F");
-			break;
-
-		case 'M':
-		case 'G':
-			o = formatter.getFieldString(fieldLen, obj == null ? NULL_STRING : obj.toString());
+			putText(Boolean.TRUE.equals(obj) ? "T" : "F", header.getFieldLength(col));
 			break;
 
 		case 'N':
 		case 'n':
-			if (header.getFieldDecimalCount(col) == 0) 
-			{
-				o = formatter.getFieldString(fieldLen, 0, (Number) (obj == null ? NULL_NUMBER : obj));
-				break;
-			}
-
-			//$FALL-THROUGH$
 		case 'F':
 		case 'f':
-			o = formatter.getFieldString(fieldLen, header.getFieldDecimalCount(col),(Number) (obj == null ? NULL_NUMBER : obj));
+			if ((obj == null) || (obj instanceof Integer) || (obj instanceof Long) || (obj instanceof Short) || (obj instanceof Byte))
+			{
+				putLong(obj == null ? 0 : ((Number)obj).longValue(), col);
+			}
+			else if (obj instanceof Double)
+			{
+				putDouble(((Double)obj).doubleValue(), col, false);
+			}
+			else if (obj instanceof Float)
+			{
+				putDouble(((Float)obj).floatValue(), col, true);
+			}
+			else
+			{
+				try
+				{
+					putDecimalText(new java.math.BigDecimal(obj.toString().trim()), col);
+				}
+				catch (NumberFormatException e)
+				{
+					// Values that cannot be interpreted as numbers are stored as blank fields.
+					putText(NULL_STRING, header.getFieldLength(col));
+				}
+			}
 			break;
 
 		case 'D':
 		case 'd':
-			o = formatter.getFieldString((Date) (obj == null ? NULL_DATE : obj));
+			if (obj == null)
+			{
+				// Missing dates are stored as blank fields.
+				putText(NULL_STRING, 8);
+			}
+			else
+			{
+				putDate((Date)obj);
+			}
 			break;
 
 		default:
 			throw new RuntimeException("Unknown type " + header.getFieldType(col));
 		}
+	}
+
+	/** Formats the given integer value into the output buffer as the value of the given column.
+	 * @param value Value to format.
+	 * @param col Database column number in which this value occurs. 
+	 */
+	private void putLong(long value, int col)
+	{
+		char type = header.getFieldType(col);
+		if ((type == 'N') || (type == 'n') || (type == 'F') || (type == 'f'))
+		{
+			int decimals = header.getFieldDecimalCount(col);
+			if ((decimals <= MAX_DECIMALS) && (value != Long.MIN_VALUE) && (Math.abs(value) < Long.MAX_VALUE/POWERS_OF_TEN[decimals]))
+			{
+				putFixed(value*POWERS_OF_TEN[decimals], decimals, header.getFieldLength(col));
+			}
+			else
+			{
+				putDecimalText(java.math.BigDecimal.valueOf(value), col);
+			}
+		}
+		else
+		{
+			putObject(Long.valueOf(value), col);
+		}
+	}
+
+	/** Formats the given floating point value into the output buffer as the value of the given column.
+	 * Numbers are rounded to the field's number of decimal places using the same half-even rounding
+	 * as <code>NumberFormat</code>. Infinite and NaN values are stored as a blank field.
+	 * @param value Value to format.
+	 * @param col Database column number in which this value occurs. 
+	 * @param isFloat True if the value was supplied as a float, so should be converted to text as a float.
+	 */
+	private void putDouble(double value, int col, boolean isFloat)
+	{
+		char type = header.getFieldType(col);
+		int size = header.getFieldLength(col);
+		if ((type != 'N') && (type != 'n') && (type != 'F') && (type != 'f'))
+		{
+			putObject(isFloat ? (Object)Float.valueOf((float)value) : (Object)Double.valueOf(value), col);
+			return;
+		}
 
-		return o;
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{
+			putText(NULL_STRING, size);
+			return;
+		}
+
+		int decimals = header.getFieldDecimalCount(col);
+		if (decimals <= MAX_DECIMALS)
+		{
+			double scaled = Math.rint(value*POWERS_OF_TEN[decimals]);
+			if (Math.abs(scaled) < 1e18)
+			{
+				putFixed((long)scaled, decimals, size);
+				return;
+			}
+		}
+		putDecimalText(new java.math.BigDecimal(value), col);
+	}
+
+	/** Writes a number stored as a scaled integer right-aligned in a field of the given size. If the
+	 * number is too long for the field, its rightmost characters are lost.
+	 * @param unscaled Number multiplied by 10 to the power of the number of decimal places.
+	 * @param decimals Number of decimal places.
+	 * @param size Width of the field.
+	 */
+	private void putFixed(long unscaled, int decimals, int size)
+	{
+		// Build the digits backwards from the end of the workspace.
+		boolean isNegative = unscaled < 0;
+		long remaining = Math.abs(unscaled);
+		int pos = digits.length;
+		for (int i=0; i<decimals; i++)
+		{
+			digits[--pos] = (byte)('0' + (remaining%10));
+			remaining /= 10;
+		}
+		if (decimals > 0)
+		{
+			digits[--pos] = (byte)'.';
+		}
+		do
+		{
+			digits[--pos] = (byte)('0' + (remaining%10));
+			remaining /= 10;
+		}
+		while (remaining > 0);
+		if (isNegative)
+		{
+			digits[--pos] = (byte)'-';
+		}
+		putRightAligned(digits, pos, digits.length-pos, size);
+	}
+
+	/** Writes an arbitrary precision number rounded to the given column's number of decimal places.
+	 * Used only for values too large to be represented as a scaled long.
+	 * @param value Value to write.
+	 * @param col Database column number in which this value occurs. 
+	 */
+	private void putDecimalText(java.math.BigDecimal value, int col)
+	{
+		String text = value.setScale(header.getFieldDecimalCount(col), java.math.RoundingMode.HALF_EVEN).toPlainString();
+		byte[] textBytes = new byte[text.length()];
+		for (int i=0; i<textBytes.length; i++)
+		{
+			textBytes[i] = (byte)text.charAt(i);
+		}
+		putRightAligned(textBytes, 0, textBytes.length, header.getFieldLength(col));
+	}
+
+	/** Writes the given characters right-aligned in a field of the given size, padding with spaces.
+	 * If there are more characters than the field size, the rightmost characters are lost.
+	 * @param chars Characters to write.
+	 * @param start Index of the first character to write.
+	 * @param length Number of characters to write.
+	 * @param size Width of the field.
+	 */
+	private void putRightAligned(byte[] chars, int start, int length, int size)
+	{
+		int padding = size - length;
+		for (int i=0; i<padding; i++)
+		{
+			output[outputPos++] = (byte)' ';
+		}
+		System.arraycopy(chars, start, output, outputPos, Math.min(length, size));
+		outputPos += Math.min(length, size);
+	}
+
+	/** Writes the given text left-aligned in a field of the given size, padding with spaces or
+	 * truncating as necessary. Characters are stored as single ISO-8859-1 bytes so every field
+	 * occupies exactly its declared width. Characters outside this range are stored as '?'.
+	 * @param text Text to write.
+	 * @param size Width of the field.
+	 */
+	private void putText(String text, int size)
+	{
+		int length = Math.min(text.length(), size);
+		for (int i=0; i<length; i++)
+		{
+			char c = text.charAt(i);
+			output[outputPos++] = (byte)(c < 256 ? c : '?');
+		}
+		for (int i=length; i<size; i++)
+		{
+			output[outputPos++] = (byte)' ';
+		}
+	}
+
+	/** Writes the given date as an 8 character YYYYMMDD field.
+	 * @param date Date to write.
+	 */
+	private void putDate(Date date)
+	{
+		calendar.setTime(date);
+		int year  = calendar.get(Calendar.YEAR);
+		int month = calendar.get(Calendar.MONTH) + 1;
+		int day   = calendar.get(Calendar.DAY_OF_MONTH);
+		int value = year*10000 + month*100 + day;
+		for (int i=7; i>=0; i--)
+		{
+			output[outputPos+i] = (byte)('0' + (value%10));
+			value /= 10;
+		}
+		outputPos += 8;
 	}
 
 	// --------------------------- Nested classes -----------------------------
@@ -0,0 +1,672 @@
+package org.gicentre.geomap.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureMap;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.PointLayer;
+import org.gicentre.geomap.Polygon;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  **************************************************************************************************
+/** Reads a feature file created by <code>FeatureFileWriter</code>. A feature file holds a whole layer
+ *  in a single file: a header, a packed Hilbert R-tree of feature bounding boxes, and the features
+ *  themselves as length-prefixed records in the same Hilbert order. A bounding box query reads only
+ *  the index nodes that overlap the query region and the bytes of the features found, using positional
+ *  reads, so small parts of very large layers can be read quickly from local disk or network mounts.
+ *  <br>
+ *  All values are little-endian. The file layout is:
+ *  <pre>
+ *    Header:   'GMF1', int version, int header size, int numFeatures, int node size,
+ *              float minX, minY, maxX, maxY, int numColumns, int numRows of attributes without geometry,
+ *              then for each attribute column: int Table column type, int title length, UTF-8 title,
+ *              padded to a multiple of 8 bytes.
+ *    Index:    Packed R-tree nodes, root first and leaves last, each of float minX, minY, maxX, maxY
+ *              and long offset. A leaf's offset is the position of its feature from the start of the
+ *              feature records, and a branch's offset is the index of its first child node.
+ *    Features: For each feature, int length followed by length bytes of:
+ *              int id, byte type, byte hasZ, short (unused), int numParts, int numVertices,
+ *              int[numParts] part start vertices, float[numVertices*2] interleaved x,y coordinates,
+ *              float[numVertices] z values if hasZ, then one value per attribute column: int, long,
+ *              float or double for numeric columns, or int length (-1 if missing) and UTF-8 text.
+ *    Rows:     For each row of attributes without geometry, a record in the same form as a feature
+ *              with a type of -1 and no parts or vertices. These rows are not in the index, so are
+ *              only read when the whole file is read.
+ *  </pre>
+ *  Version 1 files, which have no rows of attributes without geometry or count of them, can still be read.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class FeatureFileReader
+{
+	// ----------------------------------- Class variables ------------------------------------
+
+	static final byte[] MAGIC = {'G','M','F','1'};	// Identifies a feature file.
+	static final int VERSION = 2;					// Version of the file layout.
+	static final byte NO_GEOMETRY = -1;				// Type of a record holding attributes without geometry.
+	static final int NODE_SIZE = 16;				// Maximum number of children of each index node.
+	static final int NODE_BYTES = 24;				// Size of each stored index node in bytes.
+
+	private static final int WINDOW_SIZE = 64*1024;	// Minimum size of each read of feature records.
+
+	// ----------------------------------- Object variables ------------------------------------
+
+	private PApplet parent;							// Parent sketch.
+	private FileChannel channel;					// Channel representing the file being read.
+	private FeatureMap features;					// Stores feature geometry.
+	private Table attributes;						// Stores feature attributes.
+	private int[] columnTypes;						// Type of each attribute column.
+	private float minX,minY,maxX,maxY;				// Geographic bounds of the file read.
+	private int numPts,numLns,numPlys;				// Number of features of each type.
+	private boolean usePointLayer;					// Whether points are stored in a point layer.
+
+	private int numFeatures;						// Number of features in the file.
+	private int numRows;							// Number of rows of attributes without geometry in the file.
+	private int nodeSize;							// Maximum number of children of each index node.
+	private long indexStart;						// Position of the first index node.
+	private long featureStart;						// Position of the first feature record.
+	private int[] levelStart, levelEnd;				// Range of nodes in each level of the tree (0 is the leaf level).
+
+	private ByteBuffer window;						// Buffered section of the feature records.
+	private long windowStart;						// Position in the file of the start of the window.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates a feature file reader.
+	 *  @param parent Parent sketch that will draw the data to be read.
+	 */
+	public FeatureFileReader(PApplet parent)
+	{
+		this.parent = parent;
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Reads all the features in the feature file with the given name.
+	 *  @param fileName Name of the feature file to read.
+	 *  @return True if the file was read successfully.
+	 */
+	public boolean read(String fileName)
+	{
+		return read(fileName, false, 0, 0, 0, 0);
+	}
+
+	/** Reads the features in the feature file with the given name whose bounding boxes intersect the
+	 *  given region. Only the index nodes overlapping the region and the records of the features found
+	 *  are read from the file. The geographic bounds reported after reading are those of the region
+	 *  within the file.
+	 *  @param fileName Name of the feature file to read.
+	 *  @param minX Minimum x coordinate of the region to read.
+	 *  @param minY Minimum y coordinate of the region to read.
+	 *  @param maxX Maximum x coordinate of the region to read.
+	 *  @param maxY Maximum y coordinate of the region to read.
+	 *  @return True if the file was read successfully.
+	 */
+	public boolean read(String fileName, float minX, float minY, float maxX, float maxY)
+	{
+		return read(fileName, true, Math.min(minX,maxX), Math.min(minY,maxY), Math.max(minX,maxX), Math.max(minY,maxY));
+	}
+
+	/** Determines whether point features are stored in a point layer of the feature map rather than as
+	 *  separate <code>Point</code> objects. Must be set before reading.
+	 *  @param usePointLayer True if points should be stored in a point layer.
+	 */
+	public void setUsePointLayer(boolean usePointLayer)
+	{
+		this.usePointLayer = usePointLayer;
+	}
+
+	/** Provides the features that have been read from the file.
+	 *  @return Map that contains the features indexed by ID.
+	 */
+	public FeatureMap getFeatures()
+	{
+		return features;
+	}
+
+	/** Provides the attribute table that has been read from the file. The table contains one row for
+	 *  each feature read, in the order the features are stored. When the whole file is read, these are
+	 *  followed by any rows of attributes that have no geometry.
+	 *  @return Attribute table from the file.
+	 */
+	public Table getAttributeTable()
+	{
+		return attributes;
+	}
+
+	/** Reports the minimum geographic value in the x-direction.
+	 *  @return minimum x value.
+	 */
+	public float getMinX()
+	{
+		return minX;
+	}
+
+	/** Reports the minimum geographic value in the y-direction.
+	 *  @return minimum y value.
+	 */
+	public float getMinY()
+	{
+		return minY;
+	}
+
+	/** Reports the maximum geographic value in the x-direction.
+	 *  @return maximum x value.
+	 */
+	public float getMaxX()
+	{
+		return maxX;
+	}
+
+	/** Reports the maximum geographic value in the y-direction.
+	 *  @return maximum y value.
+	 */
+	public float getMaxY()
+	{
+		return maxY;
+	}
+
+	/** Reports the number of point objects that have been read by this reader.
+	 *  @return Number of point objects read.
+	 */
+	public int getNumPoints()
+	{
+		return numPts;
+	}
+
+	/** Reports the number of line objects that have been read by this reader.
+	 *  @return Number of line objects read.
+	 */
+	public int getNumLines()
+	{
+		return numLns;
+	}
+
+	/** Reports the number of polygon objects that have been read by this reader.
+	 *  @return Number of polygon objects read.
+	 */
+	public int getNumPolys()
+	{
+		return numPlys;
+	}
+
+	// ----------------------------------- Package methods -------------------------------------
+
+	/** Calculates the number of nodes in each level of a packed R-tree.
+	 *  @param numItems Number of items (leaf nodes) in the tree.
+	 *  @param nodeSize Maximum number of children of each node.
+	 *  @return Number of nodes in each level, starting with the leaf level.
+	 */
+	static int[] getLevelSizes(int numItems, int nodeSize)
+	{
+		if (numItems == 0)
+		{
+			return new int[0];
+		}
+		int[] sizes = new int[32];
+		int numLevels = 0;
+		int n = numItems;
+		sizes[numLevels++] = n;
+		do
+		{
+			n = (n+nodeSize-1)/nodeSize;
+			sizes[numLevels++] = n;
+		}
+		while (n != 1);
+		return Arrays.copyOf(sizes, numLevels);
+	}
+
+	/** Calculates the position of the first node in each level of a packed R-tree, where levels are
+	 *  stored from the root down.
+	 *  @param levelSizes Number of nodes in each level, starting with the leaf level.
+	 *  @return Index of the first node of each level, starting with the leaf level.
+	 */
+	static int[] getLevelStarts(int[] levelSizes)
+	{
+		int[] starts = new int[levelSizes.length];
+		int start = 0;
+		for (int level=levelSizes.length-1; level>=0; level--)
+		{
+			starts[level] = start;
+			start += levelSizes[level];
+		}
+		return starts;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Reads the feature file, optionally restricted to the given region.
+	 *  @param fileName Name of the feature file to read.
+	 *  @param useBounds True if only the features within the region should be read.
+	 *  @param x1 Minimum x coordinate of the region.
+	 *  @param y1 Minimum y coordinate of the region.
+	 *  @param x2 Maximum x coordinate of the region.
+	 *  @param y2 Maximum y coordinate of the region.
+	 *  @return True if the file was read successfully.
+	 */
+	private boolean read(String fileName, boolean useBounds, float x1, float y1, float x2, float y2)
+	{
+		channel = SketchFiles.openFileChannel(parent, fileName);
+		if (channel == null)
+		{
+			System.err.println("Cannot open feature file: "+fileName);
+			return false;
+		}
+
+		try
+		{
+			readHeader();
+			features = new FeatureMap();
+			if (usePointLayer)
+			{
+				features.setPointLayer(new PointLayer(parent));
+			}
+			numPts  = 0;
+			numLns  = 0;
+			numPlys = 0;
+			window = ByteBuffer.allocate(WINDOW_SIZE);
+			window.order(ByteOrder.LITTLE_ENDIAN);
+			window.limit(0);
+			windowStart = 0;
+
+			if (useBounds)
+			{
+				long[] offsets = search(x1, y1, x2, y2);
+				attributes.setRowCount(offsets.length);
+				for (int i=0; i<offsets.length; i++)
+				{
+					readFeature(featureStart+offsets[i], i);
+				}
+				minX = Math.max(minX, x1);
+				minY = Math.max(minY, y1);
+				maxX = Math.min(maxX, x2);
+				maxY = Math.min(maxY, y2);
+			}
+			else
+			{
+				attributes.setRowCount(numFeatures+numRows);
+				long pos = featureStart;
+				for (int i=0; i<numFeatures+numRows; i++)
+				{
+					pos += 4 + readFeature(pos, i);
+				}
+			}
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem reading feature file: "+e.getMessage());
+			return false;
+		}
+		finally
+		{
+			channel = null;
+			window = null;
+		}
+		return true;
+	}
+
+	/** Reads the file header and attribute column definitions.
+	 *  @throws IOException If problem reading the file or it is not a feature file.
+	 */
+	private void readHeader() throws IOException
+	{
+		ByteBuffer header = readAt(0, 44);
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+		{
+			throw new IOException("Does not appear to be a geoMap feature file.");
+		}
+		int version = header.getInt();
+		if ((version < 1) || (version > VERSION))
+		{
+			throw new IOException("Unsupported feature file version.");
+		}
+		int headerSize = header.getInt();
+		numFeatures = header.getInt();
+		nodeSize = header.getInt();
+		minX = header.getFloat();
+		minY = header.getFloat();
+		maxX = header.getFloat();
+		maxY = header.getFloat();
+		int numCols = header.getInt();
+		numRows = (version >= 2) ? header.getInt() : 0;
+		int schemaStart = (version >= 2) ? 44 : 40;
+
+		// Attribute column definitions.
+		ByteBuffer schema = readAt(schemaStart, headerSize-schemaStart);
+		columnTypes = new int[numCols];
+		String[] titles = new String[numCols];
+		for (int col=0; col<numCols; col++)
+		{
+			columnTypes[col] = schema.getInt();
+			byte[] title = new byte[schema.getInt()];
+			schema.get(title);
+			titles[col] = new String(title, StandardCharsets.UTF_8);
+		}
+		attributes = new Table();
+		if (numCols > 0)
+		{
+			attributes.setColumnCount(numCols);
+			attributes.setColumnTitles(titles);
+			for (int col=0; col<numCols; col++)
+			{
+				attributes.setColumnType(col, (columnTypes[col] == Table.CATEGORY) ? Table.STRING : columnTypes[col]);
+			}
+		}
+
+		// Position of each level of the index.
+		int[] levelSizes = getLevelSizes(numFeatures, nodeSize);
+		levelStart = getLevelStarts(levelSizes);
+		levelEnd = new int[levelSizes.length];
+		int numNodes = 0;
+		for (int level=0; level<levelSizes.length; level++)
+		{
+			levelEnd[level] = levelStart[level] + levelSizes[level];
+			numNodes += levelSizes[level];
+		}
+		indexStart = headerSize;
+		featureStart = indexStart + (long)NODE_BYTES*numNodes;
+	}
+
+	/** Finds the features whose bounding boxes intersect the given region by walking the index from
+	 *  the root. The children of each node are stored together, so each node visited needs a single read.
+	 *  @param x1 Minimum x coordinate of the region.
+	 *  @param y1 Minimum y coordinate of the region.
+	 *  @param x2 Maximum x coordinate of the region.
+	 *  @param y2 Maximum y coordinate of the region.
+	 *  @return Positions of the matching features relative to the start of the feature records, in file order.
+	 *  @throws IOException If problem reading the index.
+	 */
+	private long[] search(float x1, float y1, float x2, float y2) throws IOException
+	{
+		if (numFeatures == 0)
+		{
+			return new long[0];
+		}
+		long[] results = new long[16];
+		int numResults = 0;
+
+		// Nodes still to visit are stored as pairs of node index and level.
+		int[] queue = new int[64];
+		int queueSize = 0;
+		queue[queueSize++] = 0;
+		queue[queueSize++] = levelStart.length-1;
+
+		while (queueSize > 0)
+		{
+			int level = queue[--queueSize];
+			int first = queue[--queueSize];
+			int last  = Math.min(first+nodeSize, levelEnd[level]);
+			ByteBuffer nodes = readAt(indexStart + (long)NODE_BYTES*first, NODE_BYTES*(last-first));
+
+			for (int node=first; node<last; node++)
+			{
+				float nodeMinX = nodes.getFloat();
+				float nodeMinY = nodes.getFloat();
+				float nodeMaxX = nodes.getFloat();
+				float nodeMaxY = nodes.getFloat();
+				long offset = nodes.getLong();
+				if ((nodeMaxX < x1) || (nodeMinX > x2) || (nodeMaxY < y1) || (nodeMinY > y2))
+				{
+					continue;
+				}
+
+				if (level == 0)
+				{
+					if (numResults == results.length)
+					{
+						results = Arrays.copyOf(results, numResults*2);
+					}
+					results[numResults++] = offset;
+				}
+				else
+				{
+					if (queueSize+2 > queue.length)
+					{
+						queue = Arrays.copyOf(queue, queue.length*2);
+					}
+					queue[queueSize++] = (int)offset;
+					queue[queueSize++] = level-1;
+				}
+			}
+		}
+
+		long[] offsets = Arrays.copyOf(results, numResults);
+		Arrays.sort(offsets);
+		return offsets;
+	}
+
+	/** Reads the feature record at the given position and stores the feature and its attributes.
+	 *  @param pos Position of the record in the file.
+	 *  @param row Row of the attribute table in which to store the feature's attributes.
+	 *  @return Length of the record in bytes, excluding its length prefix.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private int readFeature(long pos, int row) throws IOException
+	{
+		int length = buffered(pos, 4).getInt();
+		ByteBuffer record = buffered(pos+4, length);
+
+		int id = record.getInt();
+		byte typeCode = record.get();
+		FeatureType type = (typeCode == NO_GEOMETRY) ? null : FeatureType.values()[typeCode];
+		boolean hasZ = record.get() != 0;
+		record.getShort();
+		int numParts    = record.getInt();
+		int numVertices = record.getInt();
+		int[] partStarts = new int[numParts+1];
+		for (int part=0; part<numParts; part++)
+		{
+			partStarts[part] = record.getInt();
+		}
+		partStarts[numParts] = numVertices;
+
+		float[] x = new float[numVertices];
+		float[] y = new float[numVertices];
+		for (int i=0; i<numVertices; i++)
+		{
+			x[i] = record.getFloat();
+			y[i] = record.getFloat();
+		}
+		float[] z = null;
+		if (hasZ)
+		{
+			z = new float[numVertices];
+			record.asFloatBuffer().get(z);
+			record.position(record.position()+4*numVertices);
+		}
+
+		Feature feature = null;
+		if (type == FeatureType.POINT)
+		{
+			if (usePointLayer)
+			{
+				if (hasZ)
+				{
+					features.getPointLayer().add(id, x[0], y[0], z[0]);
+				}
+				else
+				{
+					features.getPointLayer().add(id, x[0], y[0]);
+				}
+			}
+			else
+			{
+				feature = hasZ ? new Point(x[0], y[0], z[0], parent) : new Point(x[0], y[0], parent);
+			}
+			numPts++;
+		}
+		else if (type == FeatureType.LINE)
+		{
+			Line line = null;
+			for (int part=0; part<numParts; part++)
+			{
+				float[] partX = Arrays.copyOfRange(x, partStarts[part], partStarts[part+1]);
+				float[] partY = Arrays.copyOfRange(y, partStarts[part], partStarts[part+1]);
+				if (line == null)
+				{
+					line = new Line(partX, partY, parent);
+				}
+				else
+				{
+					line.addPart(partX, partY);
+				}
+			}
+			feature = (line == null) ? new Line(x, y, parent) : line;
+			numLns++;
+		}
+		else if (type == FeatureType.MULTI_POINT)
+		{
+			feature = new MultiPoint(x, y, z, parent);
+			numPts++;
+		}
+		else if (type == FeatureType.POLYGON)
+		{
+			Polygon poly = null;
+			for (int part=0; part<numParts; part++)
+			{
+				float[] partX = Arrays.copyOfRange(x, partStarts[part], partStarts[part+1]);
+				float[] partY = Arrays.copyOfRange(y, partStarts[part], partStarts[part+1]);
+				if (poly == null)
+				{
+					poly = new Polygon(partX, partY, parent);
+				}
+				else
+				{
+					poly.addPart(partX, partY);
+				}
+			}
+			feature = (poly == null) ? new Polygon(parent) : poly;
+			numPlys++;
+		}
+		if (feature != null)
+		{
+			features.put(id, feature);
+		}
+
+		for (int col=0; col<columnTypes.length; col++)
+		{
+			switch (columnTypes[col])
+			{
+				case Table.INT:
+					attributes.setInt(row, col, record.getInt());
+					break;
+
+				case Table.LONG:
+					attributes.setLong(row, col, record.getLong());
+					break;
+
+				case Table.FLOAT:
+					attributes.setFloat(row, col, record.getFloat());
+					break;
+
+				case Table.DOUBLE:
+					attributes.setDouble(row, col, record.getDouble());
+					break;
+
+				default:
+					int textLength = record.getInt();
+					if (textLength >= 0)
+					{
+						byte[] text = new byte[textLength];
+						record.get(text);
+						attributes.setString(row, col, new String(text, StandardCharsets.UTF_8));
+					}
+					break;
+			}
+		}
+		return length;
+	}
+
+	/** Provides the given range of the file from the read window, refilling the window from the file
+	 *  if the range is not already buffered. Because features found by a query are read in file
+	 *  order, and neighbouring features are stored together, many features share a single read.
+	 *  @param pos Position in the file of the start of the range.
+	 *  @param length Number of bytes required.
+	 *  @return Buffer positioned at the start of the range with its limit at the end of the range.
+	 *  @throws IOException If the range cannot be read.
+	 */
+	private ByteBuffer buffered(long pos, int length) throws IOException
+	{
+		if ((pos < windowStart) || (pos+length > windowStart+window.limit()))
+		{
+			if (length > window.capacity())
+			{
+				window = ByteBuffer.allocate(length);
+				window.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			window.clear();
+			window.limit((int)Math.min(window.capacity(), Math.max(length, channel.size()-pos)));
+			fill(window, pos);
+			windowStart = pos;
+		}
+		int start = (int)(pos-windowStart);
+		window.limit(window.capacity());
+		ByteBuffer range = window.duplicate();
+		range.order(ByteOrder.LITTLE_ENDIAN);
+		range.position(start);
+		range.limit(start+length);
+		return range;
+	}
+
+	/** Reads the given range of the file into a new buffer.
+	 *  @param pos Position in the file of the start of the range.
+	 *  @param length Number of bytes to read.
+	 *  @return Little-endian buffer containing the range.
+	 *  @throws IOException If the range cannot be read.
+	 */
+	private ByteBuffer readAt(long pos, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		fill(buffer, pos);
+		return buffer;
+	}
+
+	/** Fills the given buffer up to its limit with bytes read from the given position, and rewinds it.
+	 *  @param buffer Buffer to fill.
+	 *  @param pos Position in the file from which to read.
+	 *  @throws IOException If the end of the file is reached first.
+	 */
+	private void fill(ByteBuffer buffer, long pos) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int numRead = channel.read(buffer, pos+buffer.position());
+			if (numRead < 0)
+			{
+				throw new EOFException("Unexpected end of feature file.");
+			}
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,459 @@
+package org.gicentre.geomap.io;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.HilbertCurve;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.Polygon;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  **************************************************************************************************
+/** Writes the contents of a geoMap object as a single feature file. Features are stored in Hilbert
+ *  order as length-prefixed records, preceded by a packed R-tree of their bounding boxes, so that
+ *  <code>FeatureFileReader</code> can read just the features in a given region. Attributes are
+ *  stored with each feature, matched by the ID in the first column of the attribute table. Rows with
+ *  no matching feature (such as those of null shapes) are written after the features. See
+ *  <code>FeatureFileReader</code> for details of the file layout.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class FeatureFileWriter
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	private GeoMap geoMap;				// geoMap object to write.
+	private PApplet parent;				// Parent sketch.
+	private FileChannel channel;		// Channel representing the file being written.
+	private ByteBuffer buffer;			// Buffer holding output not yet written to the channel.
+
+	private static final int BUFFER_SIZE = 256*1024;
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates the object capable of writing the given geoMap object as a feature file.
+	 *  @param geoMap geoMap object to write.
+	 *  @param parent Parent sketch.
+	 */
+	public FeatureFileWriter(GeoMap geoMap, PApplet parent)
+	{
+		this.geoMap = geoMap;
+		this.parent = parent;
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Writes the geoMap object supplied to the constructor as a feature file with the given name.
+	 *  @param fileName Name of the feature file to create.
+	 *  @return True if written successfully.
+	 */
+	public boolean write(String fileName)
+	{
+		channel = SketchFiles.openOutput(parent, fileName);
+		if (channel == null)
+		{
+			System.err.println("Cannot create feature file: "+fileName);
+			return false;
+		}
+
+		try
+		{
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			writeFeatureFile();
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem writing feature file: "+e.getMessage());
+			return false;
+		}
+		finally
+		{
+			buffer = null;
+			channel = null;
+		}
+		return true;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Writes the feature records, then the header and index that precede them.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void writeFeatureFile() throws IOException
+	{
+		Map<Integer,Feature> featureMap = geoMap.getFeatures();
+		ArrayList<Integer> ids = new ArrayList<Integer>(featureMap.keySet());
+		ArrayList<Feature> features = new ArrayList<Feature>(featureMap.values());
+		int numFeatures = features.size();
+		int[] order = HilbertCurve.sort(features);
+
+		// Attribute columns and the row holding each feature's attributes.
+		Table attributes = geoMap.getAttributeTable();
+		int numCols = (attributes == null) ? 0 : attributes.getColumnCount();
+		int[] columnTypes = new int[numCols];
+		byte[][] titles = new byte[numCols][];
+		String[] columnTitles = (numCols == 0) ? null : attributes.getColumnTitles();
+		HashMap<Integer,Integer> rowLookup = new HashMap<Integer,Integer>();
+		for (int col=0; col<numCols; col++)
+		{
+			columnTypes[col] = attributes.getColumnType(col);
+			if (columnTypes[col] == Table.CATEGORY)
+			{
+				columnTypes[col] = Table.STRING;
+			}
+			String title = ((columnTitles != null) && (col < columnTitles.length)) ? columnTitles[col] : null;
+			titles[col] = (title == null) ? new byte[0] : title.getBytes(StandardCharsets.UTF_8);
+		}
+		int numRows = 0;
+		int[] otherRows = new int[0];
+		if (numCols > 0)
+		{
+			otherRows = new int[attributes.getRowCount()];
+			for (int row=0; row<attributes.getRowCount(); row++)
+			{
+				Integer id = Integer.valueOf(attributes.getInt(row, 0));
+				rowLookup.put(id, Integer.valueOf(row));
+				if (!featureMap.containsKey(id))
+				{
+					otherRows[numRows++] = row;
+				}
+			}
+		}
+
+		// Header, padded so the index is aligned to 8 bytes.
+		int headerSize = 44;
+		for (int col=0; col<numCols; col++)
+		{
+			headerSize += 8 + titles[col].length;
+		}
+		headerSize = (headerSize+7) & ~7;
+
+		int nodeSize = FeatureFileReader.NODE_SIZE;
+		int[] levelSizes = FeatureFileReader.getLevelSizes(numFeatures, nodeSize);
+		int[] levelStarts = FeatureFileReader.getLevelStarts(levelSizes);
+		int numNodes = 0;
+		for (int size : levelSizes)
+		{
+			numNodes += size;
+		}
+		float[] nodeBounds = new float[numNodes*4];
+		long[] nodeOffsets = new long[numNodes];
+		long featureStart = headerSize + (long)FeatureFileReader.NODE_BYTES*numNodes;
+
+		// Feature records in Hilbert order, each recorded as a leaf of the index.
+		float[] fileBounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		channel.position(featureStart);
+		long pos = 0;
+		for (int i=0; i<numFeatures; i++)
+		{
+			int f = order[i];
+			Integer row = rowLookup.get(ids.get(f));
+			int node = levelStarts[0]+i;
+			nodeOffsets[node] = pos;
+			pos += writeFeature(ids.get(f).intValue(), features.get(f), attributes, (row == null) ? -1 : row.intValue(),
+			                    columnTypes, nodeBounds, node*4);
+			fileBounds[0] = Math.min(fileBounds[0], nodeBounds[node*4]);
+			fileBounds[1] = Math.min(fileBounds[1], nodeBounds[node*4+1]);
+			fileBounds[2] = Math.max(fileBounds[2], nodeBounds[node*4+2]);
+			fileBounds[3] = Math.max(fileBounds[3], nodeBounds[node*4+3]);
+		}
+
+		// Rows of attributes without geometry follow the features but are not indexed.
+		for (int i=0; i<numRows; i++)
+		{
+			writeFeature(attributes.getInt(otherRows[i], 0), null, attributes, otherRows[i], columnTypes, null, 0);
+		}
+		ShapefileWriter.writeBuffer(buffer, channel);
+
+		// Each branch of the index covers the bounds of up to nodeSize consecutive nodes of the level below.
+		for (int level=1; level<levelSizes.length; level++)
+		{
+			int childStart = levelStarts[level-1];
+			int childEnd = childStart + levelSizes[level-1];
+			for (int i=0; i<levelSizes[level]; i++)
+			{
+				int node = levelStarts[level]+i;
+				int firstChild = childStart + i*nodeSize;
+				int lastChild = Math.min(firstChild+nodeSize, childEnd);
+				float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+				for (int child=firstChild; child<lastChild; child++)
+				{
+					bounds[0] = Math.min(bounds[0], nodeBounds[child*4]);
+					bounds[1] = Math.min(bounds[1], nodeBounds[child*4+1]);
+					bounds[2] = Math.max(bounds[2], nodeBounds[child*4+2]);
+					bounds[3] = Math.max(bounds[3], nodeBounds[child*4+3]);
+				}
+				System.arraycopy(bounds, 0, nodeBounds, node*4, 4);
+				nodeOffsets[node] = firstChild;
+			}
+		}
+
+		if (fileBounds[0] > fileBounds[2])
+		{
+			fileBounds = new float[] {geoMap.getMinGeoX(), geoMap.getMinGeoY(), geoMap.getMaxGeoX(), geoMap.getMaxGeoY()};
+		}
+
+		// Header and index are written at the start of the file once the index is complete.
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put(FeatureFileReader.MAGIC);
+		header.putInt(FeatureFileReader.VERSION);
+		header.putInt(headerSize);
+		header.putInt(numFeatures);
+		header.putInt(nodeSize);
+		for (float value : fileBounds)
+		{
+			header.putFloat(value);
+		}
+		header.putInt(numCols);
+		header.putInt(numRows);
+		for (int col=0; col<numCols; col++)
+		{
+			header.putInt(columnTypes[col]);
+			header.putInt(titles[col].length);
+			header.put(titles[col]);
+		}
+		header.position(0);
+		ShapefileWriter.writeBuffer(header, channel, 0);
+
+		long indexPos = headerSize;
+		for (int node=0; node<numNodes; node++)
+		{
+			buffer.putFloat(nodeBounds[node*4]);
+			buffer.putFloat(nodeBounds[node*4+1]);
+			buffer.putFloat(nodeBounds[node*4+2]);
+			buffer.putFloat(nodeBounds[node*4+3]);
+			buffer.putLong(nodeOffsets[node]);
+			if ((buffer.remaining() < FeatureFileReader.NODE_BYTES) || (node == numNodes-1))
+			{
+				buffer.flip();
+				int length = buffer.remaining();
+				ShapefileWriter.writeBuffer(buffer, channel, indexPos);
+				buffer.clear();
+				indexPos += length;
+			}
+		}
+	}
+
+	/** Writes a single feature record and reports the feature's bounding box.
+	 *  @param id ID of the feature.
+	 *  @param feature Feature to write, or null if writing a row of attributes without geometry.
+	 *  @param attributes Attribute table or null if there are no attributes.
+	 *  @param row Row of the table holding the feature's attributes, or -1 if it has none.
+	 *  @param columnTypes Type of each attribute column to write.
+	 *  @param bounds Array in which to store the feature's bounding box, or null if not needed.
+	 *  @param boundsIndex Position in the bounds array of the feature's minimum x value.
+	 *  @return Length of the record including its length prefix.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private int writeFeature(int id, Feature feature, Table attributes, int row, int[] columnTypes,
+	                         float[] bounds, int boundsIndex) throws IOException
+	{
+		float[] x, y;
+		float[] z = null;
+		int[] partStarts;
+		if (feature == null)
+		{
+			x = new float[0];
+			y = new float[0];
+			partStarts = new int[0];
+		}
+		else if (feature.getType() == FeatureType.POINT)
+		{
+			Point point = (Point)feature;
+			x = new float[] {point.getCoords().x};
+			y = new float[] {point.getCoords().y};
+			if (point.getCoords().z != 0)
+			{
+				z = new float[] {point.getCoords().z};
+			}
+			partStarts = new int[] {0};
+		}
+		else if (feature.getType() == FeatureType.MULTI_POINT)
+		{
+			MultiPoint points = (MultiPoint)feature;
+			x = points.getXCoords();
+			y = points.getYCoords();
+			z = points.getZCoords();
+			partStarts = new int[] {0};
+		}
+		else
+		{
+			ArrayList<Integer> pointers;
+			if (feature.getType() == FeatureType.LINE)
+			{
+				Line line = (Line)feature;
+				x = line.getXCoords();
+				y = line.getYCoords();
+				pointers = line.getSubPartPointers();
+			}
+			else
+			{
+				Polygon poly = (Polygon)feature;
+				x = poly.getXCoords();
+				y = poly.getYCoords();
+				pointers = poly.getSubPartPointers();
+			}
+			partStarts = new int[pointers.size()];
+			for (int part=0; part<partStarts.length; part++)
+			{
+				partStarts[part] = pointers.get(part).intValue();
+			}
+		}
+		int numVertices = x.length;
+		boolean hasZ = (z != null);
+
+		// Features without vertices are given an empty box so they are never found by a query.
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		if (numVertices > 0)
+		{
+			Rectangle2D box = feature.getBounds();
+			minX = (float)box.getMinX();
+			minY = (float)box.getMinY();
+			maxX = (float)box.getMaxX();
+			maxY = (float)box.getMaxY();
+		}
+		if (bounds != null)
+		{
+			bounds[boundsIndex]   = minX;
+			bounds[boundsIndex+1] = minY;
+			bounds[boundsIndex+2] = maxX;
+			bounds[boundsIndex+3] = maxY;
+		}
+
+		// Text values are encoded first so the length of the record is known.
+		int numCols = columnTypes.length;
+		byte[][] text = new byte[numCols][];
+		int length = 16 + 4*partStarts.length + 8*numVertices + (hasZ ? 4*numVertices : 0);
+		for (int col=0; col<numCols; col++)
+		{
+			switch (columnTypes[col])
+			{
+				case Table.INT:
+				case Table.FLOAT:
+					length += 4;
+					break;
+
+				case Table.LONG:
+				case Table.DOUBLE:
+					length += 8;
+					break;
+
+				default:
+					String value = (row < 0) ? null : attributes.getString(row, col);
+					text[col] = (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+					length += 4 + ((text[col] == null) ? 0 : text[col].length);
+					break;
+			}
+		}
+
+		ensure(4+length);
+		buffer.putInt(length);
+		buffer.putInt(id);
+		buffer.put((feature == null) ? FeatureFileReader.NO_GEOMETRY : (byte)feature.getType().ordinal());
+		buffer.put((byte)(hasZ ? 1 : 0));
+		buffer.putShort((short)0);
+		buffer.putInt(partStarts.length);
+		buffer.putInt(numVertices);
+		for (int start : partStarts)
+		{
+			buffer.putInt(start);
+		}
+		for (int i=0; i<numVertices; i++)
+		{
+			buffer.putFloat(x[i]);
+			buffer.putFloat(y[i]);
+		}
+		if (hasZ)
+		{
+			for (int i=0; i<numVertices; i++)
+			{
+				buffer.putFloat(z[i]);
+			}
+		}
+
+		for (int col=0; col<numCols; col++)
+		{
+			switch (columnTypes[col])
+			{
+				case Table.INT:
+					buffer.putInt((row < 0) ? 0 : attributes.getInt(row, col));
+					break;
+
+				case Table.LONG:
+					buffer.putLong((row < 0) ? 0 : attributes.getLong(row, col));
+					break;
+
+				case Table.FLOAT:
+					buffer.putFloat((row < 0) ? 0 : attributes.getFloat(row, col));
+					break;
+
+				case Table.DOUBLE:
+					buffer.putDouble((row < 0) ? 0 : attributes.getDouble(row, col));
+					break;
+
+				default:
+					if (text[col] == null)
+					{
+						buffer.putInt(-1);
+					}
+					else
+					{
+						buffer.putInt(text[col].length);
+						buffer.put(text[col]);
+					}
+					break;
+			}
+		}
+		return 4+length;
+	}
+
+	/** Ensures there is room in the output buffer for the given number of bytes, writing out the
+	 *  buffer's contents, or enlarging it for unusually large records, if necessary.
+	 *  @param numBytes Number of bytes that are about to be added to the buffer.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void ensure(int numBytes) throws IOException
+	{
+		if (buffer.remaining() < numBytes)
+		{
+			ShapefileWriter.writeBuffer(buffer, channel);
+			if (buffer.capacity() < numBytes)
+			{
+				buffer = ByteBuffer.allocateDirect(numBytes);
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package org.gicentre.geomap.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//  **************************************************************************************************
+/** Minimal encoder for Protocol Buffers messages. Fields are appended to a growable byte array in the
+ *  order they are written. Embedded messages are encoded with their own writer and then added to
+ *  their parent with <code>writeMessage()</code>. Only the wire types needed for encoding vector
+ *  tiles are supported.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+final class ProtobufWriter
+{
+	// ----------------------------------- Class variables ------------------------------------
+
+	static final int VARINT  = 0;			// Wire type of variable length integers.
+	static final int FIXED64 = 1;			// Wire type of 64 bit values.
+	static final int LENGTH  = 2;			// Wire type of length-delimited values.
+	static final int FIXED32 = 5;			// Wire type of 32 bit values.
+
+	// ----------------------------------- Object variables ------------------------------------
+
+	private byte[] bytes;					// Encoded message.
+	private int size;						// Number of bytes of the message encoded so far.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates an empty message.
+	 */
+	ProtobufWriter()
+	{
+		bytes = new byte[256];
+		size = 0;
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Writes an unsigned integer field.
+	 *  @param field Field number.
+	 *  @param value Value to write, treated as unsigned.
+	 */
+	void writeUInt(int field, long value)
+	{
+		writeTag(field, VARINT);
+		writeVarint(value);
+	}
+
+	/** Writes a signed integer field using zig-zag encoding.
+	 *  @param field Field number.
+	 *  @param value Value to write.
+	 */
+	void writeSInt(int field, long value)
+	{
+		writeTag(field, VARINT);
+		writeVarint((value << 1) ^ (value >> 63));
+	}
+
+	/** Writes a 32 bit floating point field.
+	 *  @param field Field number.
+	 *  @param value Value to write.
+	 */
+	void writeFloat(int field, float value)
+	{
+		writeTag(field, FIXED32);
+		int bits = Float.floatToIntBits(value);
+		ensure(4);
+		for (int i=0; i<4; i++)
+		{
+			bytes[size++] = (byte)(bits >>> (8*i));
+		}
+	}
+
+	/** Writes a 64 bit floating point field.
+	 *  @param field Field number.
+	 *  @param value Value to write.
+	 */
+	void writeDouble(int field, double value)
+	{
+		writeTag(field, FIXED64);
+		long bits = Double.doubleToLongBits(value);
+		ensure(8);
+		for (int i=0; i<8; i++)
+		{
+			bytes[size++] = (byte)(bits >>> (8*i));
+		}
+	}
+
+	/** Writes a string field as UTF-8 text.
+	 *  @param field Field number.
+	 *  @param value Text to write.
+	 */
+	void writeString(int field, String value)
+	{
+		byte[] text = value.getBytes(StandardCharsets.UTF_8);
+		writeTag(field, LENGTH);
+		writeVarint(text.length);
+		ensure(text.length);
+		System.arraycopy(text, 0, bytes, size, text.length);
+		size += text.length;
+	}
+
+	/** Writes an embedded message field.
+	 *  @param field Field number.
+	 *  @param message Encoded message to embed.
+	 */
+	void writeMessage(int field, ProtobufWriter message)
+	{
+		writeTag(field, LENGTH);
+		writeVarint(message.size);
+		ensure(message.size);
+		System.arraycopy(message.bytes, 0, bytes, size, message.size);
+		size += message.size;
+	}
+
+	/** Writes a packed repeated field of unsigned integers.
+	 *  @param field Field number.
+	 *  @param values Values to write.
+	 *  @param numValues Number of values to write.
+	 */
+	void writePacked(int field, int[] values, int numValues)
+	{
+		int length = 0;
+		for (int i=0; i<numValues; i++)
+		{
+			length += getVarintSize(values[i] & 0xffffffffL);
+		}
+		writeTag(field, LENGTH);
+		writeVarint(length);
+		for (int i=0; i<numValues; i++)
+		{
+			writeVarint(values[i] & 0xffffffffL);
+		}
+	}
+
+	/** Reports the number of bytes encoded so far.
+	 *  @return Size of the message in bytes.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/** Provides a copy of the encoded message.
+	 *  @return Bytes of the message.
+	 */
+	byte[] toByteArray()
+	{
+		return Arrays.copyOf(bytes, size);
+	}
+
+	/** Removes all fields from the message so the writer can be reused.
+	 */
+	void reset()
+	{
+		size = 0;
+	}
+
+	/** Encodes a signed integer so that values of small magnitude have small unsigned values.
+	 *  @param value Value to encode.
+	 *  @return Zig-zag encoded value.
+	 */
+	static int zigZag(int value)
+	{
+		return (value << 1) ^ (value >> 31);
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Writes a field key.
+	 *  @param field Field number.
+	 *  @param wireType Wire type of the field.
+	 */
+	private void writeTag(int field, int wireType)
+	{
+		writeVarint((field << 3) | wireType);
+	}
+
+	/** Writes a variable length integer.
+	 *  @param value Value to write, treated as unsigned.
+	 */
+	private void writeVarint(long value)
+	{
+		ensure(10);
+		while ((value & ~0x7fL) != 0)
+		{
+			bytes[size++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		bytes[size++] = (byte)value;
+	}
+
+	/** Reports the number of bytes needed to encode the given value as a variable length integer.
+	 *  @param value Value to encode, treated as unsigned.
+	 *  @return Number of bytes needed.
+	 */
+	private static int getVarintSize(long value)
+	{
+		int numBytes = 1;
+		while ((value & ~0x7fL) != 0)
+		{
+			value >>>= 7;
+			numBytes++;
+		}
+		return numBytes;
+	}
+
+	/** Ensures there is room for the given number of additional bytes.
+	 *  @param numBytes Number of bytes about to be written.
+	 */
+	private void ensure(int numBytes)
+	{
+		if (size+numBytes > bytes.length)
+		{
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, size+numBytes));
+		}
+	}
+}
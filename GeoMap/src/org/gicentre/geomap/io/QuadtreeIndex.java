@@ -0,0 +1,529 @@
+package org.gicentre.geomap.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import processing.core.PApplet;
+
+//  **************************************************************************************************
+/** Spatial index of the records in a shapefile, stored in a <code>.qix</code> file alongside it.
+ *  The index is a quadtree of record bounding boxes using the same file layout as shapelib and
+ *  MapServer, so index files can be shared with those tools. A query only visits the nodes of the
+ *  tree that overlap the query region, so the records that might lie within a region can be found
+ *  without reading the geometry file at all.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class QuadtreeIndex
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	private ByteBuffer buffer;				// Contents of the index file.
+	private int numRecords;					// Number of records in the indexed shapefile.
+	private int maxDepth;					// Maximum depth of the tree.
+
+	private static final int HEADER_SIZE = 16;			// Size of the file header in bytes.
+	private static final int NODE_SIZE = 44;			// Size of a node excluding its record IDs.
+	private static final int MAX_DEFAULT_DEPTH = 12;	// Maximum depth of a tree when estimated from its size.
+	private static final double SPLIT_RATIO = 0.55;	// Proportion of a node covered by each of its halves.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates a spatial index from the contents of a <code>.qix</code> file.
+	 *  @param buffer Buffer containing the whole index file.
+	 *  @throws IOException If the buffer does not contain a quadtree index.
+	 */
+	public QuadtreeIndex(ByteBuffer buffer) throws IOException
+	{
+		if ((buffer.limit() < HEADER_SIZE) || (buffer.get(0) != 'S') || (buffer.get(1) != 'Q') || (buffer.get(2) != 'T'))
+		{
+			throw new IOException("Does not appear to be a quadtree index file.");
+		}
+		this.buffer = buffer.duplicate();
+		this.buffer.order((buffer.get(3) == 2) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		numRecords = this.buffer.getInt(8);
+		maxDepth   = this.buffer.getInt(12);
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Opens the spatial index of the shapefile with the given name, if it has one. The name may be
+	 *  supplied with or without an extension. Where the index is on the local file system it is
+	 *  memory-mapped, so only the parts of the tree visited by queries are read from disk.
+	 *  @param fileName Name of the shapefile whose index is to be opened.
+	 *  @param parent Parent sketch used for locating the file.
+	 *  @return Spatial index or null if the shapefile does not have a readable <code>.qix</code> file.
+	 */
+	public static QuadtreeIndex open(String fileName, PApplet parent)
+	{
+		String qixName = ShapefileRecordReader.getBaseName(fileName)+".qix";
+		if (SketchFiles.findFile(parent, qixName) == null)
+		{
+			return null;
+		}
+
+		ReadableByteChannel channel = SketchFiles.openInput(parent, qixName);
+		if (channel == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			ByteBuffer contents;
+			if (channel instanceof FileChannel)
+			{
+				FileChannel fileChannel = (FileChannel)channel;
+				contents = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+			}
+			else
+			{
+				contents = readAll(channel);
+			}
+			channel.close();
+			return new QuadtreeIndex(contents);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem reading spatial index "+qixName+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	/** Creates a spatial index file for an existing shapefile. The bounding box of each record is
+	 *  read from the shapefile and the index written to a file with the same name and a
+	 *  <code>.qix</code> extension.
+	 *  @param fileName Name of the shapefile to index, with or without the <code>.shp</code> extension.
+	 *  @param parent Parent sketch used for locating the files.
+	 *  @return True if the index was created successfully.
+	 */
+	public static boolean create(String fileName, PApplet parent)
+	{
+		String baseName = ShapefileRecordReader.getBaseName(fileName);
+		ShapefileRecordReader reader = ShapefileRecordReader.open(baseName, parent);
+		if (reader == null)
+		{
+			return false;
+		}
+
+		float[] minX = new float[1024], minY = new float[1024], maxX = new float[1024], maxY = new float[1024];
+		int numRecords = 0;
+		try
+		{
+			reader.setReuseRecords(true);
+			while (reader.hasNext())
+			{
+				ShapefileRecord record = reader.next();
+				if (numRecords == minX.length)
+				{
+					minX = Arrays.copyOf(minX, numRecords*2);
+					minY = Arrays.copyOf(minY, numRecords*2);
+					maxX = Arrays.copyOf(maxX, numRecords*2);
+					maxY = Arrays.copyOf(maxY, numRecords*2);
+				}
+
+				// Null shapes are not indexed.
+				boolean isEmpty = (record.getNumVertices() == 0);
+				minX[numRecords] = isEmpty ? Float.NaN : record.getMinX();
+				minY[numRecords] = record.getMinY();
+				maxX[numRecords] = record.getMaxX();
+				maxY[numRecords] = record.getMaxY();
+				numRecords++;
+			}
+			reader.close();
+
+			FileChannel channel = SketchFiles.openOutput(parent, baseName+".qix");
+			if (channel == null)
+			{
+				System.err.println("Cannot create spatial index file: "+baseName+".qix");
+				return false;
+			}
+			write(channel, minX, minY, maxX, maxY, numRecords);
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem creating spatial index for "+baseName+": "+e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/** Builds a quadtree from the given record bounds and writes it to the given channel. Records with
+	 *  a minimum x value of NaN (such as null shapes) are counted but not added to the tree.
+	 *  @param channel Channel to write the index to.
+	 *  @param minX Minimum x coordinate of each record.
+	 *  @param minY Minimum y coordinate of each record.
+	 *  @param maxX Maximum x coordinate of each record.
+	 *  @param maxY Maximum y coordinate of each record.
+	 *  @param numRecords Number of records in the shapefile.
+	 *  @throws IOException If problem writing the index.
+	 */
+	public static void write(FileChannel channel, float[] minX, float[] minY, float[] maxX, float[] maxY, int numRecords) throws IOException
+	{
+		// The root node covers all the records to be indexed.
+		Node root = new Node(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+		for (int i=0; i<numRecords; i++)
+		{
+			if (!Float.isNaN(minX[i]))
+			{
+				root.minX = Math.min(root.minX, minX[i]);
+				root.minY = Math.min(root.minY, minY[i]);
+				root.maxX = Math.max(root.maxX, maxX[i]);
+				root.maxY = Math.max(root.maxY, maxY[i]);
+			}
+		}
+		if (root.minX > root.maxX)
+		{
+			root = new Node(0, 0, 0, 0);
+		}
+
+		// Estimate depth in the same way as shapelib so an average node holds a few records.
+		int depth = 1;
+		for (long maxNodes=1; (maxNodes*4 < numRecords) && (depth < MAX_DEFAULT_DEPTH); maxNodes*=2)
+		{
+			depth++;
+		}
+
+		for (int i=0; i<numRecords; i++)
+		{
+			if (!Float.isNaN(minX[i]))
+			{
+				root.add(i, minX[i], minY[i], maxX[i], maxY[i], depth);
+			}
+		}
+		root.trim();
+
+		ByteBuffer output = ByteBuffer.allocate(HEADER_SIZE + root.getTreeSize());
+		output.order(ByteOrder.LITTLE_ENDIAN);
+		output.put((byte)'S').put((byte)'Q').put((byte)'T');
+		output.put((byte)1);			// Little-endian byte order.
+		output.put((byte)1);			// Version.
+		output.put((byte)0).put((byte)0).put((byte)0);
+		output.putInt(numRecords);
+		output.putInt(depth);
+		root.put(output);
+		ShapefileWriter.writeBuffer(output, channel);
+	}
+
+	/** Reports the number of records in the shapefile that this index represents.
+	 *  @return Number of records.
+	 */
+	public int getNumRecords()
+	{
+		return numRecords;
+	}
+
+	/** Reports the maximum depth of the quadtree.
+	 *  @return Maximum depth of the tree.
+	 */
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/** Finds the records that may intersect the given region. Every record whose bounding box
+	 *  intersects the region is included, but so may be some nearby records that do not.
+	 *  @param minX Minimum x coordinate of the region.
+	 *  @param minY Minimum y coordinate of the region.
+	 *  @param maxX Maximum x coordinate of the region.
+	 *  @param maxY Maximum y coordinate of the region.
+	 *  @return Positions of the candidate records in the shapefile (0 for the first record) in ascending order.
+	 */
+	public int[] query(float minX, float minY, float maxX, float maxY)
+	{
+		int[] results = new int[16];
+		int numResults = 0;
+
+		// Nodes still to visit are held as positions in the file.
+		int[] stack = new int[64];
+		int stackSize = 0;
+		if (buffer.limit() > HEADER_SIZE)
+		{
+			stack[stackSize++] = HEADER_SIZE;
+		}
+
+		while (stackSize > 0)
+		{
+			int pos = stack[--stackSize];
+			double nodeMinX = buffer.getDouble(pos+4);
+			double nodeMinY = buffer.getDouble(pos+12);
+			double nodeMaxX = buffer.getDouble(pos+20);
+			double nodeMaxY = buffer.getDouble(pos+28);
+			int numIds = buffer.getInt(pos+36);
+			int idStart = pos+40;
+			int subNodeStart = idStart + 4*numIds;
+
+			if ((nodeMaxX < minX) || (nodeMinX > maxX) || (nodeMaxY < minY) || (nodeMinY > maxY))
+			{
+				// Sub-nodes of a node outside the region are never visited.
+				continue;
+			}
+
+			if (numResults+numIds > results.length)
+			{
+				results = Arrays.copyOf(results, Math.max(results.length*2, numResults+numIds));
+			}
+			for (int i=0; i<numIds; i++)
+			{
+				results[numResults++] = buffer.getInt(idStart + 4*i);
+			}
+
+			// Find the position of each sub-node by skipping over its predecessors.
+			int numSubNodes = buffer.getInt(subNodeStart);
+			if (stackSize+numSubNodes > stack.length)
+			{
+				stack = Arrays.copyOf(stack, stack.length*2+numSubNodes);
+			}
+			int subPos = subNodeStart+4;
+			for (int i=0; i<numSubNodes; i++)
+			{
+				stack[stackSize++] = subPos;
+				subPos += NODE_SIZE + 4*buffer.getInt(subPos+36) + buffer.getInt(subPos);
+			}
+		}
+
+		int[] candidates = Arrays.copyOf(results, numResults);
+		Arrays.sort(candidates);
+		return candidates;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Reads the whole of the given sequential channel into a buffer.
+	 *  @param channel Channel to read.
+	 *  @return Buffer containing the contents of the channel.
+	 *  @throws IOException If problem reading.
+	 */
+	private static ByteBuffer readAll(ReadableByteChannel channel) throws IOException
+	{
+		ByteBuffer contents = ByteBuffer.allocate(64*1024);
+		while (channel.read(contents) != -1)
+		{
+			if (!contents.hasRemaining())
+			{
+				ByteBuffer larger = ByteBuffer.allocate(contents.capacity()*2);
+				contents.flip();
+				larger.put(contents);
+				contents = larger;
+			}
+		}
+		contents.flip();
+		return contents;
+	}
+
+	// ------------------------------------ Nested classes -------------------------------------
+
+	/** Node of a quadtree under construction.
+	 */
+	private static class Node
+	{
+		double minX,minY,maxX,maxY;		// Bounds of the node.
+		int[] ids;						// Records stored in this node.
+		int numIds;
+		Node[] subNodes;				// Child nodes (or null if not yet split).
+		int numSubNodes;
+
+		/** Creates an empty node covering the given bounds.
+		 *  @param minX Minimum x coordinate of the node.
+		 *  @param minY Minimum y coordinate of the node.
+		 *  @param maxX Maximum x coordinate of the node.
+		 *  @param maxY Maximum y coordinate of the node.
+		 */
+		Node(double minX, double minY, double maxX, double maxY)
+		{
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			ids = new int[0];
+			numIds = 0;
+			numSubNodes = 0;
+		}
+
+		/** Adds a record to the deepest node that entirely contains its bounds. A node is split into
+		 *  four overlapping quarters the first time a record fits within one of them.
+		 *  @param id Position of the record in the shapefile.
+		 *  @param x1 Minimum x coordinate of the record.
+		 *  @param y1 Minimum y coordinate of the record.
+		 *  @param x2 Maximum x coordinate of the record.
+		 *  @param y2 Maximum y coordinate of the record.
+		 *  @param depth Number of levels of the tree at and below this node.
+		 */
+		void add(int id, double x1, double y1, double x2, double y2, int depth)
+		{
+			if (depth > 1)
+			{
+				if (subNodes == null)
+				{
+					Node[] quarters = split();
+					for (Node quarter : quarters)
+					{
+						if (quarter.contains(x1, y1, x2, y2))
+						{
+							subNodes = quarters;
+							numSubNodes = 4;
+							break;
+						}
+					}
+				}
+
+				for (int i=0; i<numSubNodes; i++)
+				{
+					if (subNodes[i].contains(x1, y1, x2, y2))
+					{
+						subNodes[i].add(id, x1, y1, x2, y2, depth-1);
+						return;
+					}
+				}
+			}
+
+			if (numIds == ids.length)
+			{
+				ids = Arrays.copyOf(ids, Math.max(4, numIds*2));
+			}
+			ids[numIds++] = id;
+		}
+
+		/** Removes any empty sub-nodes below this one. A node with no records and a single sub-node
+		 *  is replaced by that sub-node.
+		 *  @return True if this node is empty and can itself be removed.
+		 */
+		boolean trim()
+		{
+			int numKept = 0;
+			for (int i=0; i<numSubNodes; i++)
+			{
+				if (!subNodes[i].trim())
+				{
+					subNodes[numKept++] = subNodes[i];
+				}
+			}
+			numSubNodes = numKept;
+
+			if ((numSubNodes == 1) && (numIds == 0))
+			{
+				Node child = subNodes[0];
+				minX = child.minX;
+				minY = child.minY;
+				maxX = child.maxX;
+				maxY = child.maxY;
+				ids = child.ids;
+				numIds = child.numIds;
+				subNodes = child.subNodes;
+				numSubNodes = child.numSubNodes;
+			}
+			return (numSubNodes == 0) && (numIds == 0);
+		}
+
+		/** Reports the number of bytes needed to store this node and all nodes below it.
+		 *  @return Size of the tree in bytes.
+		 */
+		int getTreeSize()
+		{
+			return NODE_SIZE + 4*numIds + getSubTreeSize();
+		}
+
+		/** Stores this node and all nodes below it in the given buffer. Each node starts with the size
+		 *  of its sub-trees, followed by its bounds, its records and then its sub-nodes.
+		 *  @param output Buffer in which to store the nodes.
+		 */
+		void put(ByteBuffer output)
+		{
+			output.putInt(getSubTreeSize());
+			output.putDouble(minX);
+			output.putDouble(minY);
+			output.putDouble(maxX);
+			output.putDouble(maxY);
+			output.putInt(numIds);
+			for (int i=0; i<numIds; i++)
+			{
+				output.putInt(ids[i]);
+			}
+			output.putInt(numSubNodes);
+			for (int i=0; i<numSubNodes; i++)
+			{
+				subNodes[i].put(output);
+			}
+		}
+
+		/** Reports the number of bytes needed to store the nodes below this one.
+		 *  @return Size of the sub-trees in bytes.
+		 */
+		private int getSubTreeSize()
+		{
+			int size = 0;
+			for (int i=0; i<numSubNodes; i++)
+			{
+				size += subNodes[i].getTreeSize();
+			}
+			return size;
+		}
+
+		/** Reports whether the given bounds lie entirely within this node.
+		 *  @param x1 Minimum x coordinate of the bounds.
+		 *  @param y1 Minimum y coordinate of the bounds.
+		 *  @param x2 Maximum x coordinate of the bounds.
+		 *  @param y2 Maximum y coordinate of the bounds.
+		 *  @return True if the bounds are contained by this node.
+		 */
+		private boolean contains(double x1, double y1, double x2, double y2)
+		{
+			return (x1 >= minX) && (x2 <= maxX) && (y1 >= minY) && (y2 <= maxY);
+		}
+
+		/** Splits this node into four overlapping quarters by halving it along its longer side and
+		 *  then halving each half along its own longer side.
+		 *  @return The four quarters of this node.
+		 */
+		private Node[] split()
+		{
+			Node[] halves = halve(this);
+			Node[] first  = halve(halves[0]);
+			Node[] second = halve(halves[1]);
+			return new Node[] {first[0], first[1], second[0], second[1]};
+		}
+
+		/** Splits the given node into two overlapping halves along its longer side.
+		 *  @param node Node to split.
+		 *  @return The two halves of the node.
+		 */
+		private static Node[] halve(Node node)
+		{
+			Node half1 = new Node(node.minX, node.minY, node.maxX, node.maxY);
+			Node half2 = new Node(node.minX, node.minY, node.maxX, node.maxY);
+			double width  = node.maxX - node.minX;
+			double height = node.maxY - node.minY;
+			if (width > height)
+			{
+				half1.maxX = node.minX + width*SPLIT_RATIO;
+				half2.minX = node.maxX - width*SPLIT_RATIO;
+			}
+			else
+			{
+				half1.maxY = node.minY + height*SPLIT_RATIO;
+				half2.minY = node.maxY - height*SPLIT_RATIO;
+			}
+			return new Node[] {half1, half2};
+		}
+	}
+}
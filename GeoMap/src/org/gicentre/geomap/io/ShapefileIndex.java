@@ -0,0 +1,121 @@
+package org.gicentre.geomap.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+//  **************************************************************************************************
+/** Stores the contents of a shapefile index (.shx) file. The index holds the position and length
+ *  of every record in the geometry (.shp) file, allowing any record to be read directly without
+ *  reading those that precede it.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+final class ShapefileIndex
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	private int[] offsets;				// Position of each record in 16 bit words.
+	private int[] contentLengths;		// Length of each record's content in 16 bit words.
+
+	private static final int HEADER_SIZE = 100;
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Reads the index from the given channel. The channel is closed once the index has been read.
+	 *  @param channel Channel representing the index (.shx) file.
+	 *  @throws IOException If the index cannot be read or is not a shapefile index.
+	 */
+	ShapefileIndex(ReadableByteChannel channel) throws IOException
+	{
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			fill(channel, header);
+			if (header.getInt(0) != 9994)
+			{
+				throw new IOException("Does not appear to be a shapefile index.");
+			}
+			long fileLength = (header.getInt(24) & 0xffffffffL)*2;
+			int numRecords = (int)Math.max(0, (fileLength-HEADER_SIZE)/8);
+
+			ByteBuffer entries = ByteBuffer.allocate(numRecords*8);
+			fill(channel, entries);
+
+			offsets = new int[numRecords];
+			contentLengths = new int[numRecords];
+			for (int i=0; i<numRecords; i++)
+			{
+				offsets[i] = entries.getInt();
+				contentLengths[i] = entries.getInt();
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Reports the number of records in the index.
+	 *  @return Number of records.
+	 */
+	int getNumRecords()
+	{
+		return offsets.length;
+	}
+
+	/** Reports the position of the given record in the geometry file.
+	 *  @param index Index of the record (0 for the first record in the file).
+	 *  @return Position of the start of the record header in bytes.
+	 */
+	long getOffset(int index)
+	{
+		return (offsets[index] & 0xffffffffL)*2;
+	}
+
+	/** Reports the length of the given record's content, excluding its 8 byte header.
+	 *  @param index Index of the record (0 for the first record in the file).
+	 *  @return Length of the record content in bytes.
+	 */
+	long getContentLength(int index)
+	{
+		return (contentLengths[index] & 0xffffffffL)*2;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Fills the given buffer from the channel and rewinds it ready for reading.
+	 *  @param channel Channel to read from.
+	 *  @param buffer Buffer to fill.
+	 *  @throws IOException If the end of the file is reached before the buffer is full.
+	 */
+	private static void fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) == -1)
+			{
+				throw new EOFException("Unexpected end of shapefile index.");
+			}
+		}
+		buffer.flip();
+	}
+}
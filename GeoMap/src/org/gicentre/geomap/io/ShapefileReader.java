@@ -3,18 +3,24 @@ package org.gicentre.geomap.io;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.Predicate;
 
 import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureMap;
+import org.gicentre.geomap.FeatureType;
 import org.gicentre.geomap.GeoMap;
 import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
 import org.gicentre.geomap.Point;
+import org.gicentre.geomap.PointLayer;
 import org.gicentre.geomap.Polygon;
 
 import processing.core.PApplet;
+import processing.core.PVector;
 import processing.data.Table;
 
 //  **************************************************************************************************
@@ -47,7 +53,7 @@ public class ShapefileReader
 	private long filePointer;						// Keeps track of read position in binary file.
 	private int recordNumber;						// ID of each record in the shapefile.
 
-	private LinkedHashMap<Integer, Feature>features;// Stores feature geometry.
+	private FeatureMap features;					// Stores feature geometry.
 	private Table attributes;						// Stores feature attributes.
 	
 	private PApplet parent;							// Parent sketch.
@@ -55,6 +61,7 @@ public class ShapefileReader
 	private float minX,minY,maxX,maxY;				// Geographic bounds of the file read.
 	
 	private int numPts,numLns,numPlys;		        // Number of features of each type.
+	private boolean usePointLayer;					// Whether points are stored in a point layer.
 	
 	private static final double ESRI_NODATA = -(10e38);	// Code used by ESRI to indicate no data.
 	
@@ -81,7 +88,7 @@ public class ShapefileReader
 	public boolean read(InputStream geomInputStream, InputStream dbInputStream)
 	{ 
 		filePointer = 0;
-		features = new LinkedHashMap<Integer, Feature>();     
+		features = createFeatureMap();
 
 		int fileSize;
 
@@ -217,10 +224,131 @@ public class ShapefileReader
 		return true;
 	}
 	
+	/** Reads only those features in the given shapefile whose bounding boxes intersect the given region.
+	 *  The bounding box stored with each record is checked first, so records outside the region are
+	 *  skipped without decoding their coordinates, and only the attributes of the features kept are
+	 *  read. Where an index (.shx) file is available, it is used to jump directly between records.
+	 *  The geographic bounds reported after reading are those of the region within the file. Features
+	 *  are the same as those of a full read, including every part of multi-part lines.
+	 *  @param fileName Name of the shapefile to read with or without the <code>.shp</code> extension.
+	 *  @param minX Minimum x coordinate of the region to read.
+	 *  @param minY Minimum y coordinate of the region to read.
+	 *  @param maxX Maximum x coordinate of the region to read.
+	 *  @param maxY Maximum y coordinate of the region to read.
+	 *  @return True if shapefiles were read successfully.
+	 */
+	public boolean read(String fileName, float minX, float minY, float maxX, float maxY)
+	{
+		features = createFeatureMap();
+		attributes = null;
+
+		ShapefileRecordReader reader = ShapefileRecordReader.open(fileName, parent);
+		if (reader == null)
+		{
+			return false;
+		}
+		reader.setBoundsFilter(minX, minY, maxX, maxY);
+
+		// Report the part of the file that lies within the region.
+		this.minX = Math.max(reader.getMinX(), Math.min(minX, maxX));
+		this.minY = Math.max(reader.getMinY(), Math.min(minY, maxY));
+		this.maxX = Math.min(reader.getMaxX(), Math.max(minX, maxX));
+		this.maxY = Math.min(reader.getMaxY(), Math.max(minY, maxY));
+
+		return readRecords(reader) != null;
+	}
+
+	/** Reads only those features in the given shapefile whose attributes satisfy the given test. The named
+	 *  attribute columns are decoded from each row of the .dbf file and supplied to the test in the order
+	 *  given, as strings or numbers. The geometry of only those records that pass is then read, using the
+	 *  index (.shx) file to locate them where available, so the time and memory needed depend on the size
+	 *  of the selection rather than the whole file. For example, to read the counties of a single state:
+	 *  <pre>
+	 *    reader.read("counties", new String[] {"STATE"}, values -> values[0].equals("CA"));
+	 *  </pre>
+	 *  The geographic bounds reported after reading are those of the features read. Features are the
+	 *  same as those of a full read, including every part of multi-part lines.
+	 *  @param fileName Name of the shapefile to read with or without the <code>.shp</code> extension.
+	 *  @param columnNames Names of the attribute columns needed by the test.
+	 *  @param filter Test that reports true for the attribute values of features to be read.
+	 *  @return True if shapefiles were read successfully.
+	 */
+	public boolean read(String fileName, String[] columnNames, Predicate<Object[]> filter)
+	{
+		features = createFeatureMap();
+		attributes = null;
+
+		ShapefileRecordReader reader = ShapefileRecordReader.open(fileName, parent);
+		if (reader == null)
+		{
+			return false;
+		}
+
+		try
+		{
+			reader.setAttributeFilter(columnNames, filter);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.getMessage());
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e2)
+			{
+				// Nothing more can be done.
+			}
+			return false;
+		}
+
+		float fileMinX = reader.getMinX(), fileMinY = reader.getMinY();
+		float fileMaxX = reader.getMaxX(), fileMaxY = reader.getMaxY();
+		float[] bounds = readRecords(reader);
+		if (bounds == null)
+		{
+			return false;
+		}
+
+		if (features.isEmpty())
+		{
+			minX = fileMinX;
+			minY = fileMinY;
+			maxX = fileMaxX;
+			maxY = fileMaxY;
+		}
+		else
+		{
+			minX = bounds[0];
+			minY = bounds[1];
+			maxX = bounds[2];
+			maxY = bounds[3];
+		}
+		return true;
+	}
+
+	/** Determines whether point features are stored in a point layer of the feature map rather than as
+	 *  separate <code>Point</code> objects. Must be set before reading.
+	 *  @param usePointLayer True if points should be stored in a point layer.
+	 */
+	public void setUsePointLayer(boolean usePointLayer)
+	{
+		this.usePointLayer = usePointLayer;
+	}
+
 	/** Provides the features that have been extracted from the shapefile.
 	 *  @return Map that contains the features indexed by ID.
 	 */
-	public Map<Integer,Feature>getFeatures()
+	public Map<Integer,Feature> getFeatures()
+	{
+		return features;
+	}
+
+	/** Provides the features that have been extracted from the shapefile as a feature map, allowing
+	 *  features to be found by ID without boxing.
+	 *  @return Feature map that contains the features indexed by ID.
+	 */
+	public FeatureMap getFeatureMap()
 	{
 		return features;
 	}
@@ -277,7 +405,8 @@ public class ShapefileReader
 		return maxY;
 	}
 	
-	/** Reports the number of point objects that have been read by this reader.
+	/** Reports the number of point objects that have been read by this reader. Each multipoint
+	 *  record is counted as a single point object.
 	 *  @return Number of point objects read.
 	 */
 	public int getNumPoints()
@@ -304,6 +433,96 @@ public class ShapefileReader
 	
 	// ---------------------------------------- Private methods ----------------------------------------
 
+	/** Builds features and attribute rows from all the records supplied by the given reader, which is
+	 *  closed once all records have been read.
+	 *  @param reader Reader providing the records to store.
+	 *  @return Bounds of the records read (minX, minY, maxX, maxY) or null if there was a problem reading.
+	 */
+	private float[] readRecords(ShapefileRecordReader reader)
+	{
+		// Note the first column will always be the numeric id associated with the geometric features.
+		DbaseFileHeader header = reader.getAttributeHeader();
+		int numFields = (header == null) ? 0 : header.getNumFields();
+		String headings[] = new String[numFields+1];
+		headings[0] = "id";
+		for (int i=1; i<headings.length; i++)
+		{
+			headings[i] = header.getFieldName(i-1);
+		}
+		attributes = new Table();
+		attributes.setColumnCount(headings.length);
+		attributes.setColumnTitles(headings);
+
+		float[] bounds = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		reader.setReuseRecords(true);
+		try
+		{
+			while (reader.hasNext())
+			{
+				ShapefileRecord record = reader.next();
+				Feature feature = record.createFeature(parent);
+				if (feature == null)
+				{
+					continue;
+				}
+
+				bounds[0] = Math.min(bounds[0], record.getMinX());
+				bounds[1] = Math.min(bounds[1], record.getMinY());
+				bounds[2] = Math.max(bounds[2], record.getMaxX());
+				bounds[3] = Math.max(bounds[3], record.getMaxY());
+
+				recordNumber = record.getRecordNumber();
+				PointLayer pointLayer = features.getPointLayer();
+				if ((pointLayer != null) && (feature.getType() == FeatureType.POINT))
+				{
+					PVector p = ((Point)feature).getCoords();
+					if (record.getZCoords() == null)
+					{
+						pointLayer.add(recordNumber, p.x, p.y);
+					}
+					else
+					{
+						pointLayer.add(recordNumber, p.x, p.y, p.z);
+					}
+				}
+				else
+				{
+					features.put(recordNumber, feature);
+				}
+				switch (feature.getType())
+				{
+					case POINT:
+					case MULTI_POINT:
+						numPts++;
+						break;
+					case LINE:
+						numLns++;
+						break;
+					default:
+						numPlys++;
+						break;
+				}
+
+				int row = attributes.getRowCount();
+				attributes.addRow();
+				attributes.setInt(row, 0, recordNumber);
+				Object[] atts = record.getAttributes();
+				for (int i=0; i<numFields; i++)
+				{
+					attributes.setString(row, i+1, (atts[i] == null) ? "" : atts[i].toString());
+				}
+			}
+			reader.close();
+		}
+		catch (IOException | UncheckedIOException e)
+		{
+			System.err.println("Problem reading shape file.");
+			e.printStackTrace();
+			return null;
+		}
+		return bounds;
+	}
+
 	/** Reads in a big-endian 4-byte integer from the given input stream.
 	 *  @param is Input stream.
 	 *  @return Value read from input stream.
@@ -372,6 +591,19 @@ public class ShapefileReader
 		return Double.longBitsToDouble(accum); 
 	}
 
+	/** Creates an empty feature map to hold the features read, with a point layer if requested.
+	 *  @return New feature map.
+	 */
+	private FeatureMap createFeatureMap()
+	{
+		FeatureMap featureMap = new FeatureMap();
+		if (usePointLayer)
+		{
+			featureMap.setPointLayer(new PointLayer(parent));
+		}
+		return featureMap;
+	}
+
 	/** Adds a point object to the geoMap from the given input stream.
 	 *  @param inStream Input stream containing shapefile.
 	 *  @param readZ Reads a z value if true.
@@ -394,6 +626,21 @@ public class ShapefileReader
 			readMeasure(inStream);
 		}
 
+		numPts++;
+		PointLayer pointLayer = features.getPointLayer();
+		if (pointLayer != null)
+		{
+			if (readZ)
+			{
+				pointLayer.add(recordNumber, x, y, z);
+			}
+			else
+			{
+				pointLayer.add(recordNumber, x, y);
+			}
+			return;
+		}
+
 		Point point;
 
 		if (readZ)
@@ -405,11 +652,10 @@ public class ShapefileReader
 			point = new Point(x,y,parent);
 		}
 
-		features.put(new Integer(recordNumber),point);
-		numPts++;
+		features.put(recordNumber, point);
 	}
 
-	/** Adds a set of point objects to the geoMap from the given input stream.
+	/** Adds a multipoint object to the geoMap from the given input stream.
 	 *  @param inStream Input stream containing shapefile.
 	 *  @param readZ Reads a z value if true.
 	 *  @param readM Reads a measure if true. NOTE: measure value not currently stored.
@@ -453,22 +699,8 @@ public class ShapefileReader
 			}
 		}
 
-		// Store the points.
-		for (int i=0; i<numPoints; i++)
-		{
-			Point point;
-			if (readZ)
-			{
-				point = new Point(x[i],y[i],z[i], parent);
-			}
-			else
-			{
-				point = new Point(x[i],y[i],parent);
-			}
-
-			features.put(new Integer(recordNumber),point);
-			numPoints++;
-		}
+		features.put(recordNumber, new MultiPoint(x,y,z,parent));
+		numPts++;
 	}
 
 	/** Adds a polygon object to the geoMap collection from the given input stream.
@@ -533,7 +765,7 @@ public class ShapefileReader
 
 		if (poly != null)
 		{
-			features.put(new Integer(recordNumber),poly);
+			features.put(recordNumber, poly);
 			numPlys++;
 		}
 	}
@@ -613,7 +845,7 @@ public class ShapefileReader
 		
 		if (poly != null)
 		{
-			features.put(new Integer(recordNumber),poly);
+			features.put(recordNumber, poly);
 			numPlys++;
 		}
 	}
@@ -689,7 +921,7 @@ public class ShapefileReader
 		
 		if (poly != null)
 		{
-			features.put(new Integer(recordNumber),poly);
+			features.put(recordNumber, poly);
 			numPlys++;
 		}
 	}
@@ -719,6 +951,7 @@ public class ShapefileReader
 
 		int currentPos = 0;
 		int pointsInPart = 0;
+		Line line = null;
 
 		for (int part=0; part<numParts; part++)
 		{
@@ -740,10 +973,22 @@ public class ShapefileReader
 				y[coord] = (float)readDoubleLittleEndian(inStream);
 			}
 
-			features.put(new Integer(recordNumber),new Line(x,y,parent));
-			numLns++;
+			if (line == null)
+			{
+				line = new Line(x,y,parent);
+			}
+			else
+			{
+				line.addPart(x,y);
+			}
 			currentPos += pointsInPart;
 		}
+
+		if (line != null)
+		{
+			features.put(recordNumber, line);
+			numLns++;
+		}
 	}
 
 	/** Adds a 3d polyline object to the geoMap collection from the given input stream.
@@ -771,6 +1016,7 @@ public class ShapefileReader
 
 		int currentPos = 0;
 		int pointsInPart = 0;
+		Line line = null;
 		int numCoords = 0;
 
 		for (int part=0; part<numParts; part++)
@@ -793,8 +1039,14 @@ public class ShapefileReader
 				y[coord] = (float)readDoubleLittleEndian(inStream);
 			}
 			numCoords += pointsInPart;
-			features.put(new Integer(recordNumber),new Line(x,y,parent));
-			numLns++;
+			if (line == null)
+			{
+				line = new Line(x,y,parent);
+			}
+			else
+			{
+				line.addPart(x,y);
+			}
 			currentPos += pointsInPart;
 		}
 		
@@ -810,6 +1062,12 @@ public class ShapefileReader
 		// Skip the remaining measure values.
 		skip(inStream,16);				// measure range
 		skip(inStream,numVertices*8);	// measure values
+
+		if (line != null)
+		{
+			features.put(recordNumber, line);
+			numLns++;
+		}
 	}
 
 	
@@ -838,6 +1096,7 @@ public class ShapefileReader
 
 		int currentPos = 0;
 		int pointsInPart = 0;
+		Line line = null;
 		int numCoords = 0;
 
 		for (int part=0; part<numParts; part++)
@@ -860,8 +1119,14 @@ public class ShapefileReader
 				y[coord] = (float)readDoubleLittleEndian(inStream);
 			}
 			numCoords += pointsInPart;
-			features.put(new Integer(recordNumber),new Line(x,y,parent));
-			numLns++;
+			if (line == null)
+			{
+				line = new Line(x,y,parent);
+			}
+			else
+			{
+				line.addPart(x,y);
+			}
 			currentPos += pointsInPart;
 		}
 		
@@ -873,6 +1138,12 @@ public class ShapefileReader
 		{
         	readDoubleLittleEndian(inStream);
         }
+
+		if (line != null)
+		{
+			features.put(recordNumber, line);
+			numLns++;
+		}
 	}
 
 	/** Reads in a measure value from the given input stream.
@@ -925,7 +1196,7 @@ public class ShapefileReader
 				
 				for (int i=0; i<atts.length; i++)
 				{
-					attributes.setString(id-1, i+1, atts[i].toString());
+					attributes.setString(id-1, i+1, (atts[i] == null) ? "" : atts[i].toString());
 				}
 				id++;
 			}
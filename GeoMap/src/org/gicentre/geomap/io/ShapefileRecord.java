@@ -0,0 +1,340 @@
+package org.gicentre.geomap.io;
+
+import java.util.Arrays;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.Polygon;
+
+import processing.core.PApplet;
+
+//  **************************************************************************************************
+/** A single decoded shapefile record and its associated row of attributes. Geometry is held in
+ *  primitive coordinate arrays rather than as a feature, so that records can be processed without
+ *  creating any geoMap objects. A feature can be created from the record on demand with
+ *  <code>createFeature()</code>.
+ *  <br>Note that when a record is supplied by a reader that reuses its records, the coordinate arrays
+ *  may be larger than the number of vertices in the record, so <code>getNumVertices()</code> and
+ *  <code>getNumParts()</code> should always be used to find how many values are valid.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class ShapefileRecord
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	int recordNumber;					// ID of the record in the shapefile.
+	int shapeType;						// ESRI shape type code.
+	float minX,minY,maxX,maxY;			// Bounding box of the record.
+	int numParts;						// Number of parts in the record.
+	int[] partPointers;					// Index of the first vertex of each part.
+	int numVertices;					// Number of vertices in the record.
+	float[] x,y,z;						// Coordinates (z only stored for z-type shapes).
+	Object[] attributes;				// Attributes from the DBF file (or null if none).
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates an empty record. Records are normally created and filled by a
+	 *  <code>ShapefileRecordReader</code>.
+	 */
+	public ShapefileRecord()
+	{
+		partPointers = new int[1];
+		x = new float[1];
+		y = new float[1];
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Reports the record number of this record. This is the ID used by <code>ShapefileReader</code>
+	 *  and <code>GeoMap</code> to identify the feature created from it.
+	 *  @return Record number, where the first record in a file is 1.
+	 */
+	public int getRecordNumber()
+	{
+		return recordNumber;
+	}
+
+	/** Reports the ESRI shape type code of this record (e.g. 1 for points, 3 for polylines,
+	 *  5 for polygons, 8 for multipoints and 0 for null shapes).
+	 *  @return Shape type code.
+	 */
+	public int getShapeType()
+	{
+		return shapeType;
+	}
+
+	/** Reports the type of geoMap feature this record represents.
+	 *  @return Feature type or null if this is a null shape.
+	 */
+	public FeatureType getFeatureType()
+	{
+		switch (shapeType)
+		{
+			case 1:
+			case 11:
+			case 21:
+				return FeatureType.POINT;
+
+			case 3:
+			case 13:
+			case 23:
+				return FeatureType.LINE;
+
+			case 5:
+			case 15:
+			case 25:
+				return FeatureType.POLYGON;
+
+			case 8:
+			case 18:
+			case 28:
+				return FeatureType.MULTI_POINT;
+
+			default:
+				return null;
+		}
+	}
+
+	/** Reports the minimum x coordinate of the record's bounding box.
+	 *  @return Minimum x coordinate.
+	 */
+	public float getMinX()
+	{
+		return minX;
+	}
+
+	/** Reports the minimum y coordinate of the record's bounding box.
+	 *  @return Minimum y coordinate.
+	 */
+	public float getMinY()
+	{
+		return minY;
+	}
+
+	/** Reports the maximum x coordinate of the record's bounding box.
+	 *  @return Maximum x coordinate.
+	 */
+	public float getMaxX()
+	{
+		return maxX;
+	}
+
+	/** Reports the maximum y coordinate of the record's bounding box.
+	 *  @return Maximum y coordinate.
+	 */
+	public float getMaxY()
+	{
+		return maxY;
+	}
+
+	/** Reports the number of parts in this record. Points and multipoints have a single part.
+	 *  @return Number of parts.
+	 */
+	public int getNumParts()
+	{
+		return numParts;
+	}
+
+	/** Reports the index of the first vertex in each part of this record. Only the first
+	 *  <code>getNumParts()</code> values in the array are valid.
+	 *  @return Vertex index of the start of each part.
+	 */
+	public int[] getPartPointers()
+	{
+		return partPointers;
+	}
+
+	/** Reports the number of vertices in this record.
+	 *  @return Number of vertices.
+	 */
+	public int getNumVertices()
+	{
+		return numVertices;
+	}
+
+	/** Reports the x coordinates of this record. Only the first <code>getNumVertices()</code> values
+	 *  in the array are valid.
+	 *  @return x coordinates.
+	 */
+	public float[] getXCoords()
+	{
+		return x;
+	}
+
+	/** Reports the y coordinates of this record. Only the first <code>getNumVertices()</code> values
+	 *  in the array are valid.
+	 *  @return y coordinates.
+	 */
+	public float[] getYCoords()
+	{
+		return y;
+	}
+
+	/** Reports the z coordinates of this record.
+	 *  @return z coordinates or null if the record's shape type does not include z values.
+	 */
+	public float[] getZCoords()
+	{
+		return z;
+	}
+
+	/** Reports the row of attributes associated with this record.
+	 *  @return Attribute values as strings and numbers or null if no attributes were read.
+	 */
+	public Object[] getAttributes()
+	{
+		return attributes;
+	}
+
+	/** Creates a geoMap feature from this record. The feature does not share any coordinate
+	 *  arrays with the record so remains valid if the record is later reused. All parts of
+	 *  multi-part polylines and polygons are kept.
+	 *  @param parent Parent sketch that will draw the feature.
+	 *  @return New feature or null if this is a null shape or of a type that cannot be represented.
+	 */
+	public Feature createFeature(PApplet parent)
+	{
+		FeatureType type = getFeatureType();
+		if ((type == null) || (numVertices == 0))
+		{
+			return null;
+		}
+
+		if (type == FeatureType.POINT)
+		{
+			if (z != null)
+			{
+				return new Point(x[0], y[0], z[0], parent);
+			}
+			return new Point(x[0], y[0], parent);
+		}
+
+		if (type == FeatureType.MULTI_POINT)
+		{
+			float[] pointZ = (z == null) ? null : Arrays.copyOf(z, numVertices);
+			return new MultiPoint(Arrays.copyOf(x, numVertices), Arrays.copyOf(y, numVertices), pointZ, parent);
+		}
+
+		Line line = null;
+		Polygon poly = null;
+		for (int part=0; part<numParts; part++)
+		{
+			int start = partPointers[part];
+			int end   = partEnd(part);
+			if (end <= start)
+			{
+				continue;
+			}
+			float[] partX = Arrays.copyOfRange(x, start, end);
+			float[] partY = Arrays.copyOfRange(y, start, end);
+			if (type == FeatureType.LINE)
+			{
+				if (line == null)
+				{
+					line = new Line(partX, partY, parent);
+				}
+				else
+				{
+					line.addPart(partX, partY);
+				}
+			}
+			else if (poly == null)
+			{
+				poly = new Polygon(partX, partY, parent);
+			}
+			else
+			{
+				poly.addPart(partX, partY);
+			}
+		}
+		return (type == FeatureType.LINE) ? line : poly;
+	}
+
+	/** Creates an independent copy of this record that does not share any arrays with it.
+	 *  @return Copy of this record.
+	 */
+	public ShapefileRecord copy()
+	{
+		ShapefileRecord copy = new ShapefileRecord();
+		copy.recordNumber = recordNumber;
+		copy.shapeType    = shapeType;
+		copy.minX         = minX;
+		copy.minY         = minY;
+		copy.maxX         = maxX;
+		copy.maxY         = maxY;
+		copy.numParts     = numParts;
+		copy.numVertices  = numVertices;
+		copy.partPointers = Arrays.copyOf(partPointers, Math.max(1,numParts));
+		copy.x            = Arrays.copyOf(x, Math.max(1,numVertices));
+		copy.y            = Arrays.copyOf(y, Math.max(1,numVertices));
+		copy.z            = (z == null) ? null : Arrays.copyOf(z, Math.max(1,numVertices));
+		copy.attributes   = (attributes == null) ? null : attributes.clone();
+		return copy;
+	}
+
+	// ----------------------------------- Package methods -------------------------------------
+
+	/** Ensures the record has space for the given number of parts and vertices. Existing arrays
+	 *  are reused if they are large enough.
+	 *  @param numPartsNeeded Number of parts to store.
+	 *  @param numVerticesNeeded Number of vertices to store.
+	 *  @param storeZ Whether or not to store z values.
+	 */
+	void ensureCapacity(int numPartsNeeded, int numVerticesNeeded, boolean storeZ)
+	{
+		if (partPointers.length < numPartsNeeded)
+		{
+			partPointers = new int[numPartsNeeded];
+		}
+		if (x.length < numVerticesNeeded)
+		{
+			x = new float[numVerticesNeeded];
+			y = new float[numVerticesNeeded];
+		}
+		if (storeZ)
+		{
+			if ((z == null) || (z.length < x.length))
+			{
+				z = new float[x.length];
+			}
+		}
+		else
+		{
+			z = null;
+		}
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Reports the index one beyond the last vertex in the given part.
+	 *  @param part Part to query.
+	 *  @return Index one beyond the last vertex of the part.
+	 */
+	private int partEnd(int part)
+	{
+		if (part >= numParts-1)
+		{
+			return numVertices;
+		}
+		return Math.min(numVertices, partPointers[part+1]);
+	}
+}
@@ -0,0 +1,1026 @@
+package org.gicentre.geomap.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import processing.core.PApplet;
+
+//  **************************************************************************************************
+/** Reads an ESRI shapefile one record at a time. Unlike <code>ShapefileReader</code>, which builds
+ *  a complete collection of features in memory, this reader decodes a single geometry record and
+ *  its matching row in the DBF file on each call to <code>next()</code>, so shapefiles much larger
+ *  than the available memory can be filtered, aggregated or transformed. The general use of this
+ *  class is:
+ *  <pre>
+ *  ShapefileRecordReader reader = ShapefileRecordReader.open("data/roads", this);
+ *  while (reader.hasNext())
+ *  {
+ *    ShapefileRecord record = reader.next();
+ *    // Do something with record.getXCoords(), record.getAttributes() etc.
+ *  }
+ *  reader.close();
+ *  </pre>
+ *  By default a new record is created on each call to <code>next()</code>. If
+ *  <code>setReuseRecords(true)</code> is called, a single record and its coordinate arrays are
+ *  reused, so a record is only valid until the next call to <code>hasNext()</code> or
+ *  <code>next()</code>. Records can also be processed as a Java stream with <code>stream()</code>.
+ *  If only features within a region are needed, <code>setBoundsFilter()</code> can be used to skip
+ *  records whose bounding box lies outside the region without decoding their coordinates or attributes.
+ *  Similarly <code>setAttributeFilter()</code> tests the attributes of each record before its geometry
+ *  is read, so only the geometry of matching records is decoded.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class ShapefileRecordReader implements Iterator<ShapefileRecord>, Closeable
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	private ReadableByteChannel shpChannel;			// Channel containing the geometry.
+	private ReadableByteChannel shxChannel;			// Channel containing the record index (or null).
+	private ShapefileIndex index;					// Record positions read from the index (or null).
+	private int recordIndex;						// Position in the index of the next record to read.
+	private QuadtreeIndex spatialIndex;				// Spatial index of the records (or null).
+	private int[] candidates;						// Records that may lie within the bounds filter.
+	private int candidatePos;						// Position of the next candidate record to read.
+	private DbaseFileReader dbfReader;				// Reader for the attributes (or null).
+	private ByteBuffer buffer;						// Read buffer (little-endian).
+	private long filePointer;						// Position of the next unread byte in the .shp file.
+	private long fileLength;						// Length of the .shp file in bytes.
+
+	private int shapeType;							// Shape type of the file as a whole.
+	private float minX,minY,maxX,maxY;				// Geographic bounds of the file.
+
+	private boolean reuseRecords;					// Whether or not to reuse a single record.
+	private ShapefileRecord reusableRecord;			// Record that is refilled if reuse is enabled.
+	private ShapefileRecord nextRecord;				// Record that has been read but not yet returned.
+	private boolean isFinished;						// Indicates no more records are available.
+
+	private boolean useBoundsFilter;				// Whether or not records are filtered by location.
+	private float filterMinX,filterMinY,filterMaxX,filterMaxY;	// Region containing records to be read.
+	private Predicate<Object[]> attributeFilter;	// Test applied to attributes before reading geometry (or null).
+	private int[] filterColumns;					// Attribute columns supplied to the attribute filter.
+	private Object[] filterValues;					// Attribute values supplied to the attribute filter.
+	private int dbfRowIndex;						// Index of the next unread row in the .dbf file.
+
+	private static final int BUFFER_SIZE = 64*1024;	// Size of read buffer in bytes.
+	private static final int HEADER_SIZE = 100;		// Size of the .shp file header in bytes.
+
+	private static final int END_OF_FILE    = 0;	// Status codes reported when reading a record.
+	private static final int RECORD_READ    = 1;
+	private static final int RECORD_SKIPPED = 2;
+
+	// ------------------------------------- Constructors ---------------------------------------
+
+	/** Creates a reader for the shapefile with the given geometry and attribute channels. The
+	 *  headers of both files are read on construction.
+	 *  @param shpChannel Channel representing the geometry (.shp) file.
+	 *  @param dbfChannel Channel representing the attributes (.dbf) file, or null if attributes are not required.
+	 *  @throws IOException If the headers cannot be read or the geometry is not in shapefile format.
+	 */
+	public ShapefileRecordReader(ReadableByteChannel shpChannel, ReadableByteChannel dbfChannel) throws IOException
+	{
+		this(shpChannel, null, dbfChannel);
+	}
+
+	/** Creates a reader for the shapefile with the given geometry, index and attribute channels. The
+	 *  headers of the geometry and attribute files are read on construction. The index is only read if
+	 *  a bounds filter is set, in which case it is used to move directly from one record to the next.
+	 *  @param shpChannel Channel representing the geometry (.shp) file.
+	 *  @param shxChannel Channel representing the index (.shx) file, or null if no index is available.
+	 *  @param dbfChannel Channel representing the attributes (.dbf) file, or null if attributes are not required.
+	 *  @throws IOException If the headers cannot be read or the geometry is not in shapefile format.
+	 */
+	public ShapefileRecordReader(ReadableByteChannel shpChannel, ReadableByteChannel shxChannel, ReadableByteChannel dbfChannel) throws IOException
+	{
+		this.shpChannel = shpChannel;
+		this.shxChannel = shxChannel;
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.limit(0);
+		filePointer = 0;
+		reuseRecords = false;
+		isFinished = false;
+		useBoundsFilter = false;
+		recordIndex = 0;
+		dbfRowIndex = 0;
+
+		readHeader();
+
+		if (dbfChannel != null)
+		{
+			dbfReader = new DbaseFileReader(dbfChannel);
+		}
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Opens the shapefile with the given name for reading one record at a time. The name may be
+	 *  supplied with or without a <code>.shp</code> extension. If there is no matching
+	 *  <code>.dbf</code> file, records are read without attributes. A matching <code>.shx</code>
+	 *  index and <code>.qix</code> spatial index are used if present.
+	 *  @param fileName Name of the shapefile to open.
+	 *  @param parent Parent sketch used for locating the file.
+	 *  @return Reader for the shapefile or null if it cannot be opened.
+	 */
+	public static ShapefileRecordReader open(String fileName, PApplet parent)
+	{
+		String baseName = getBaseName(fileName);
+
+		ReadableByteChannel shpChannel = SketchFiles.openInput(parent, baseName+".shp");
+		if (shpChannel == null)
+		{
+			System.err.println("Cannot open shapefile geometry file: "+baseName+".shp");
+			return null;
+		}
+
+		ReadableByteChannel dbfChannel = SketchFiles.openInput(parent, baseName+".dbf");
+		if (dbfChannel == null)
+		{
+			System.err.println("Cannot open shapefile attribute file: "+baseName+".dbf. Reading geometry only.");
+		}
+
+		// The index is optional as records can also be located from their headers.
+		ReadableByteChannel shxChannel = SketchFiles.openInput(parent, baseName+".shx");
+
+		try
+		{
+			ShapefileRecordReader reader = new ShapefileRecordReader(shpChannel, shxChannel, dbfChannel);
+			reader.setSpatialIndex(QuadtreeIndex.open(baseName, parent));
+			return reader;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem opening shape file "+baseName+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	/** Determines whether a single record and its coordinate arrays are reused for every call to
+	 *  <code>next()</code>. Reuse avoids creating new objects for each record, but means each record
+	 *  is only valid until the next call to <code>hasNext()</code> or <code>next()</code>. Records are
+	 *  never reused when supplied to a parallel stream.
+	 *  @param reuseRecords True if records should be reused.
+	 */
+	public void setReuseRecords(boolean reuseRecords)
+	{
+		this.reuseRecords = reuseRecords;
+	}
+
+	/** Restricts the records read to those whose bounding box intersects the given region. Records
+	 *  outside the region, and any null shapes, are passed over without decoding their coordinates
+	 *  or their attributes. Where the shapefile is on the local file system, the coordinates of
+	 *  rejected records are not read from disk at all. This should be called before reading any records.
+	 *  @param minX Minimum x coordinate of the region.
+	 *  @param minY Minimum y coordinate of the region.
+	 *  @param maxX Maximum x coordinate of the region.
+	 *  @param maxY Maximum y coordinate of the region.
+	 */
+	public void setBoundsFilter(float minX, float minY, float maxX, float maxY)
+	{
+		useBoundsFilter = true;
+		filterMinX = Math.min(minX, maxX);
+		filterMinY = Math.min(minY, maxY);
+		filterMaxX = Math.max(minX, maxX);
+		filterMaxY = Math.max(minY, maxY);
+	}
+
+	/** Sets the spatial index used to find the records that intersect a bounds filter. When a bounds
+	 *  filter is set, only the records identified by the index are read, so records elsewhere in the
+	 *  file are not visited at all. This is set automatically by <code>open()</code> if the shapefile
+	 *  has a <code>.qix</code> file.
+	 *  @param spatialIndex Spatial index of the shapefile, or null if none is to be used.
+	 */
+	public void setSpatialIndex(QuadtreeIndex spatialIndex)
+	{
+		this.spatialIndex = spatialIndex;
+	}
+
+	/** Restricts the records read to those whose attributes satisfy the given test. For each record, only
+	 *  the named columns are decoded from the .dbf file and supplied to the test, in the order given. The
+	 *  geometry of a record is only read if it passes the test, in which case the record is located
+	 *  directly using the index (.shx) file if available. Values are supplied as strings or numbers in the
+	 *  same way as <code>ShapefileRecord.getAttributes()</code>. This can be combined with a bounds filter
+	 *  and should be called before reading any records.
+	 *  @param columnNames Names of the attribute columns needed by the test.
+	 *  @param filter Test that reports true for the attribute values of records to be read.
+	 *  @throws IOException If there is no attribute file or it does not contain one of the named columns.
+	 */
+	public void setAttributeFilter(String[] columnNames, Predicate<Object[]> filter) throws IOException
+	{
+		if (dbfReader == null)
+		{
+			throw new IOException("Cannot filter records by attribute without an attribute file.");
+		}
+
+		DbaseFileHeader header = dbfReader.getHeader();
+		int[] columns = new int[columnNames.length];
+		for (int i=0; i<columnNames.length; i++)
+		{
+			columns[i] = -1;
+			for (int field=0; field<header.getNumFields(); field++)
+			{
+				if (header.getFieldName(field).trim().equalsIgnoreCase(columnNames[i].trim()))
+				{
+					columns[i] = field;
+					break;
+				}
+			}
+			if (columns[i] < 0)
+			{
+				throw new IOException("No attribute column called "+columnNames[i]+" in shape file.");
+			}
+		}
+		filterColumns = columns;
+		filterValues = new Object[columns.length];
+		attributeFilter = filter;
+	}
+
+	/** Reports whether there are any more records to read.
+	 *  @return True if there is at least one more record.
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		if ((nextRecord == null) && !isFinished)
+		{
+			try
+			{
+				nextRecord = advance(reuseRecords);
+			}
+			catch (IOException e)
+			{
+				isFinished = true;
+				throw new UncheckedIOException("Problem reading shape file.", e);
+			}
+			if (nextRecord == null)
+			{
+				isFinished = true;
+			}
+		}
+		return nextRecord != null;
+	}
+
+	/** Reads the next record and its associated attributes.
+	 *  @return Next record in the shapefile.
+	 */
+	@Override
+	public ShapefileRecord next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		ShapefileRecord record = nextRecord;
+		nextRecord = null;
+		return record;
+	}
+
+	/** Provides the remaining records as a stream. If a parallel stream is requested, records are
+	 *  read sequentially from the file but handed out in batches to be processed concurrently, and
+	 *  a new record is always created for each entry regardless of <code>setReuseRecords()</code>.
+	 *  Closing the stream closes this reader.
+	 *  @param parallel True if a parallel stream is required.
+	 *  @return Stream of the remaining records in the shapefile.
+	 */
+	public Stream<ShapefileRecord> stream(boolean parallel)
+	{
+		final boolean reuse = reuseRecords && !parallel;
+		Spliterator<ShapefileRecord> spliterator = new Spliterators.AbstractSpliterator<ShapefileRecord>(Long.MAX_VALUE, Spliterator.ORDERED|Spliterator.NONNULL)
+		{
+			@Override
+			public boolean tryAdvance(Consumer<? super ShapefileRecord> action)
+			{
+				ShapefileRecord record;
+				try
+				{
+					record = nextRecord;
+					nextRecord = null;
+					if ((record == null) && !isFinished)
+					{
+						record = advance(reuse);
+					}
+				}
+				catch (IOException e)
+				{
+					isFinished = true;
+					throw new UncheckedIOException("Problem reading shape file.", e);
+				}
+				if (record == null)
+				{
+					isFinished = true;
+					return false;
+				}
+				action.accept(record);
+				return true;
+			}
+		};
+
+		return StreamSupport.stream(spliterator, parallel).onClose(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					close();
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+	}
+
+	/** Provides the shape type of the shapefile as a whole.
+	 *  @return ESRI shape type code.
+	 */
+	public int getShapeType()
+	{
+		return shapeType;
+	}
+
+	/** Reports the minimum geographic value in the x-direction as stored in the file header.
+	 *  @return minimum x value.
+	 */
+	public float getMinX()
+	{
+		return minX;
+	}
+
+	/** Reports the minimum geographic value in the y-direction as stored in the file header.
+	 *  @return minimum y value.
+	 */
+	public float getMinY()
+	{
+		return minY;
+	}
+
+	/** Reports the maximum geographic value in the x-direction as stored in the file header.
+	 *  @return maximum x value.
+	 */
+	public float getMaxX()
+	{
+		return maxX;
+	}
+
+	/** Reports the maximum geographic value in the y-direction as stored in the file header.
+	 *  @return maximum y value.
+	 */
+	public float getMaxY()
+	{
+		return maxY;
+	}
+
+	/** Provides the header of the attribute file.
+	 *  @return Header of the DBF file, or null if attributes are not being read.
+	 */
+	public DbaseFileHeader getAttributeHeader()
+	{
+		return (dbfReader == null) ? null : dbfReader.getHeader();
+	}
+
+	/** Releases the resources associated with this reader.
+	 *  @throws IOException If problem closing the files.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		isFinished = true;
+		nextRecord = null;
+		if ((shpChannel != null) && shpChannel.isOpen())
+		{
+			shpChannel.close();
+		}
+		if ((shxChannel != null) && shxChannel.isOpen())
+		{
+			shxChannel.close();
+		}
+		if (dbfReader != null)
+		{
+			dbfReader.close();
+		}
+		shpChannel = null;
+		shxChannel = null;
+		index = null;
+		dbfReader = null;
+		buffer = null;
+	}
+
+	// ----------------------------------- Package methods -------------------------------------
+
+	/** Removes any extension from the given shapefile name.
+	 *  @param fileName File name with or without extension.
+	 *  @return Name without extension.
+	 */
+	static String getBaseName(String fileName)
+	{
+		int dotIndex = fileName.lastIndexOf('.');
+		if ((dotIndex > 0) && (dotIndex > fileName.lastIndexOf('/')) && (dotIndex > fileName.lastIndexOf('\\')))
+		{
+			return fileName.substring(0,dotIndex);
+		}
+		return fileName;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Reads the 100 byte main file header.
+	 *  @throws IOException If the header cannot be read or does not represent a shapefile.
+	 */
+	private void readHeader() throws IOException
+	{
+		require(HEADER_SIZE);
+
+		// File code should be 9994 for shapefiles.
+		if (Integer.reverseBytes(buffer.getInt()) != 9994)
+		{
+			throw new IOException("Does not appear to be a shape file.");
+		}
+
+		// Skip the next five integers (should be 0).
+		buffer.position(buffer.position()+20);
+
+		// File length in 16 bit words (including this header).
+		fileLength = (Integer.reverseBytes(buffer.getInt()) & 0xffffffffL)*2;
+
+		buffer.getInt();			// Version (should be 1000).
+		shapeType = buffer.getInt();
+		minX = (float)buffer.getDouble();
+		minY = (float)buffer.getDouble();
+		maxX = (float)buffer.getDouble();
+		maxY = (float)buffer.getDouble();
+
+		// zMin, zMax, mMin, mMax (all skipped)
+		buffer.position(buffer.position()+32);
+		filePointer = HEADER_SIZE;
+	}
+
+	/** Reads the next record and its attributes.
+	 *  @param reuse Whether or not to fill the reusable record rather than create a new one.
+	 *  @return Record that has been read or null if there are no more records.
+	 *  @throws IOException If problem reading the files.
+	 */
+	private ShapefileRecord advance(boolean reuse) throws IOException
+	{
+		if ((useBoundsFilter || (attributeFilter != null)) && (shxChannel != null) && (index == null))
+		{
+			index = new ShapefileIndex(shxChannel);
+			shxChannel = null;
+		}
+		if (useBoundsFilter && (attributeFilter == null) && (spatialIndex != null) && (candidates == null))
+		{
+			candidates = spatialIndex.query(filterMinX, filterMinY, filterMaxX, filterMaxY);
+			candidatePos = 0;
+		}
+
+		ShapefileRecord record;
+		if (reuse)
+		{
+			if (reusableRecord == null)
+			{
+				reusableRecord = new ShapefileRecord();
+			}
+			record = reusableRecord;
+		}
+		else
+		{
+			record = new ShapefileRecord();
+		}
+
+		DbaseFileReader.Row row = null;
+		int status = RECORD_SKIPPED;
+		while (status == RECORD_SKIPPED)
+		{
+			if (attributeFilter != null)
+			{
+				// Find the next matching attribute row before reading its geometry.
+				row = readMatchingRow();
+				if ((row == null) || !moveToRecord(dbfRowIndex-1))
+				{
+					return null;
+				}
+			}
+			else if (candidates != null)
+			{
+				if ((candidatePos >= candidates.length) || !moveToRecord(candidates[candidatePos++]))
+				{
+					return null;
+				}
+			}
+			else if (index != null)
+			{
+				if (recordIndex >= index.getNumRecords())
+				{
+					return null;
+				}
+				seek(index.getOffset(recordIndex));
+			}
+			else if (filePointer >= fileLength)
+			{
+				return null;
+			}
+
+			status = readRecord(record);
+			if (status == END_OF_FILE)
+			{
+				return null;
+			}
+			recordIndex++;
+		}
+
+		if (dbfReader != null)
+		{
+			int numFields = dbfReader.getHeader().getNumFields();
+			if ((record.attributes == null) || (record.attributes.length != numFields))
+			{
+				record.attributes = new Object[numFields];
+			}
+			if (row != null)
+			{
+				// Decode the remaining columns of the row that has already been matched.
+				for (int i=0; i<numFields; i++)
+				{
+					record.attributes[i] = row.read(i, true);
+				}
+			}
+			else
+			{
+				// Pass over the attributes of any records that have been skipped.
+				while ((dbfRowIndex < recordIndex-1) && dbfReader.hasNext())
+				{
+					dbfReader.skip();
+					dbfRowIndex++;
+				}
+				if (dbfReader.hasNext())
+				{
+					dbfReader.readEntry(record.attributes, true);
+					dbfRowIndex++;
+				}
+			}
+		}
+		return record;
+	}
+
+	/** Reads attribute rows until one is found that satisfies the attribute filter. Only the columns
+	 *  used by the filter are decoded.
+	 *  @return Matching row or null if there are no more matching rows.
+	 *  @throws IOException If problem reading the attribute file.
+	 */
+	private DbaseFileReader.Row readMatchingRow() throws IOException
+	{
+		while (dbfReader.hasNext())
+		{
+			DbaseFileReader.Row row = dbfReader.readRow();
+			dbfRowIndex++;
+			for (int i=0; i<filterColumns.length; i++)
+			{
+				filterValues[i] = row.read(filterColumns[i], true);
+			}
+			if (attributeFilter.test(filterValues))
+			{
+				return row;
+			}
+		}
+		return null;
+	}
+
+	/** Moves to the start of the record with the given position in the file. If there is an index, the
+	 *  record is located directly. Otherwise the intervening records are skipped using the lengths
+	 *  stored in their headers.
+	 *  @param target Position of the record in the file (0 for the first record).
+	 *  @return True if the record exists, false if the end of the file is reached first.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private boolean moveToRecord(int target) throws IOException
+	{
+		if (index != null)
+		{
+			if (target >= index.getNumRecords())
+			{
+				return false;
+			}
+			seek(index.getOffset(target));
+			recordIndex = target;
+			return true;
+		}
+
+		if (target < recordIndex)
+		{
+			seek(HEADER_SIZE);
+			recordIndex = 0;
+		}
+		while (recordIndex < target)
+		{
+			if ((filePointer >= fileLength) || !request(8))
+			{
+				return false;
+			}
+			buffer.getInt();		// Record number.
+			long contentLength = (Integer.reverseBytes(buffer.getInt()) & 0xffffffffL)*2;
+			filePointer += 8;
+			skip(contentLength);
+			recordIndex++;
+		}
+		return filePointer < fileLength;
+	}
+
+	/** Reads the geometry of the next record into the given record object. If a bounds filter is
+	 *  set, records outside the filter are skipped as soon as their bounds have been read.
+	 *  @param record Record to fill.
+	 *  @return RECORD_READ if a record was read, RECORD_SKIPPED if the record was outside the bounds
+	 *          filter or END_OF_FILE if the end of the file has been reached.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private int readRecord(ShapefileRecord record) throws IOException
+	{
+		// Record header
+		if (!request(8))
+		{
+			return END_OF_FILE;
+		}
+		record.recordNumber = Integer.reverseBytes(buffer.getInt());
+		long contentLength  = (Integer.reverseBytes(buffer.getInt()) & 0xffffffffL)*2;
+		filePointer += 8;
+		long recordEnd = filePointer + contentLength;
+
+		// Record contents
+		require(4);
+		record.shapeType = buffer.getInt();  	// Should be the same as file record type
+		filePointer += 4;						// but ESRI say could vary in future versions.
+		record.numParts = 0;
+		record.numVertices = 0;
+
+		switch (record.shapeType)
+		{
+			case 1:     // Point record.
+			case 11:    // Point z record.
+			case 21:    // Point measure record.
+				readPoint(record, record.shapeType == 11);
+				if (!isInBoundsFilter(record))
+				{
+					skip(recordEnd - filePointer);
+					return RECORD_SKIPPED;
+				}
+				break;
+
+			case 3:     // Polyline record.
+			case 5:     // Polygon record.
+			case 13:    // Polyline z record.
+			case 15:    // Polygon z record.
+			case 23:    // Polyline measure record.
+			case 25:    // Polygon measure record.
+				readBounds(record);
+				if (!isInBoundsFilter(record))
+				{
+					skip(recordEnd - filePointer);
+					return RECORD_SKIPPED;
+				}
+				readPoly(record, (record.shapeType == 13) || (record.shapeType == 15));
+				break;
+
+			case 8:     // Multipoint record.
+			case 18:    // Multipoint z record.
+			case 28:    // Multipoint measure record.
+				readBounds(record);
+				if (!isInBoundsFilter(record))
+				{
+					skip(recordEnd - filePointer);
+					return RECORD_SKIPPED;
+				}
+				readMultiPoint(record, record.shapeType == 18);
+				break;
+
+			default:	// Null shapes and multipatches have no geometry that can be represented.
+				if (useBoundsFilter)
+				{
+					skip(recordEnd - filePointer);
+					return RECORD_SKIPPED;
+				}
+				record.minX = 0;
+				record.minY = 0;
+				record.maxX = 0;
+				record.maxY = 0;
+				record.ensureCapacity(0, 0, false);
+				break;
+		}
+
+		// Skip any measures or other content not stored.
+		skip(recordEnd - filePointer);
+		return RECORD_READ;
+	}
+
+	/** Reports whether the bounds of the given record intersect the bounds filter, if one has been set.
+	 *  @param record Record to test.
+	 *  @return True if there is no filter or the record is within the filter region.
+	 */
+	private boolean isInBoundsFilter(ShapefileRecord record)
+	{
+		if (!useBoundsFilter)
+		{
+			return true;
+		}
+		return (record.maxX >= filterMinX) && (record.minX <= filterMaxX) &&
+			   (record.maxY >= filterMinY) && (record.minY <= filterMaxY);
+	}
+
+	/** Reads the contents of a point record.
+	 *  @param record Record to fill.
+	 *  @param readZ Whether or not to read the z value.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readPoint(ShapefileRecord record, boolean readZ) throws IOException
+	{
+		record.ensureCapacity(1, 1, readZ);
+		require(readZ ? 24 : 16);
+		record.x[0] = (float)buffer.getDouble();
+		record.y[0] = (float)buffer.getDouble();
+		filePointer += 16;
+		if (readZ)
+		{
+			record.z[0] = (float)buffer.getDouble();
+			filePointer += 8;
+		}
+		record.numParts    = 1;
+		record.numVertices = 1;
+		record.partPointers[0] = 0;
+		record.minX = record.x[0];
+		record.maxX = record.x[0];
+		record.minY = record.y[0];
+		record.maxY = record.y[0];
+	}
+
+	/** Reads the contents of a polyline or polygon record following its bounding box.
+	 *  @param record Record to fill.
+	 *  @param readZ Whether or not to read the z values.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readPoly(ShapefileRecord record, boolean readZ) throws IOException
+	{
+		require(8);
+		int numParts    = buffer.getInt();
+		int numVertices = buffer.getInt();
+		filePointer += 8;
+
+		record.ensureCapacity(numParts, numVertices, readZ);
+		readInts(record.partPointers, numParts);
+
+		// Ignore any parts that point beyond the vertex list.
+		for (int i=0; i<numParts; i++)
+		{
+			if ((record.partPointers[i] < 0) || (record.partPointers[i] >= numVertices))
+			{
+				System.err.println("Warning: Part index "+record.partPointers[i]+" greater than number of vertices in shapefile "+numVertices+". Ignoring part "+i);
+				numParts = i;
+				break;
+			}
+		}
+		record.numParts    = numParts;
+		record.numVertices = numVertices;
+		readCoords(record, numVertices);
+
+		if (readZ)
+		{
+			skip(16);			// z range.
+			readDoubles(record.z, numVertices);
+		}
+	}
+
+	/** Reads the contents of a multipoint record following its bounding box.
+	 *  @param record Record to fill.
+	 *  @param readZ Whether or not to read the z values.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readMultiPoint(ShapefileRecord record, boolean readZ) throws IOException
+	{
+		require(4);
+		int numVertices = buffer.getInt();
+		filePointer += 4;
+
+		record.ensureCapacity(1, numVertices, readZ);
+		record.numParts = 1;
+		record.partPointers[0] = 0;
+		record.numVertices = numVertices;
+		readCoords(record, numVertices);
+
+		if (readZ)
+		{
+			skip(16);			// z range.
+			readDoubles(record.z, numVertices);
+		}
+	}
+
+	/** Reads a record's bounding box.
+	 *  @param record Record in which to store the bounds.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readBounds(ShapefileRecord record) throws IOException
+	{
+		require(32);
+		record.minX = (float)buffer.getDouble();
+		record.minY = (float)buffer.getDouble();
+		record.maxX = (float)buffer.getDouble();
+		record.maxY = (float)buffer.getDouble();
+		filePointer += 32;
+	}
+
+	/** Reads the given number of interleaved x,y coordinate pairs into the given record.
+	 *  @param record Record in which to store the coordinates.
+	 *  @param numVertices Number of coordinate pairs to read.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readCoords(ShapefileRecord record, int numVertices) throws IOException
+	{
+		float[] x = record.x;
+		float[] y = record.y;
+		int i=0;
+		while (i < numVertices)
+		{
+			int chunk = Math.min(numVertices-i, BUFFER_SIZE/16);
+			require(chunk*16);
+			for (int end=i+chunk; i<end; i++)
+			{
+				x[i] = (float)buffer.getDouble();
+				y[i] = (float)buffer.getDouble();
+			}
+			filePointer += chunk*16L;
+		}
+	}
+
+	/** Reads the given number of little-endian doubles into the given array.
+	 *  @param values Array in which to store the values.
+	 *  @param numValues Number of values to read.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readDoubles(float[] values, int numValues) throws IOException
+	{
+		int i=0;
+		while (i < numValues)
+		{
+			int chunk = Math.min(numValues-i, BUFFER_SIZE/8);
+			require(chunk*8);
+			for (int end=i+chunk; i<end; i++)
+			{
+				values[i] = (float)buffer.getDouble();
+			}
+			filePointer += chunk*8L;
+		}
+	}
+
+	/** Reads the given number of little-endian integers into the given array.
+	 *  @param values Array in which to store the values.
+	 *  @param numValues Number of values to read.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readInts(int[] values, int numValues) throws IOException
+	{
+		int i=0;
+		while (i < numValues)
+		{
+			int chunk = Math.min(numValues-i, BUFFER_SIZE/4);
+			require(chunk*4);
+			for (int end=i+chunk; i<end; i++)
+			{
+				values[i] = buffer.getInt();
+			}
+			filePointer += chunk*4L;
+		}
+	}
+
+	/** Skips the given number of bytes in the .shp file. Where the underlying channel supports
+	 *  random access, bytes beyond those already buffered are not read at all.
+	 *  @param numBytes Number of bytes to skip.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void skip(long numBytes) throws IOException
+	{
+		if (numBytes <= 0)
+		{
+			return;
+		}
+		filePointer += numBytes;
+
+		if (numBytes <= buffer.remaining())
+		{
+			buffer.position(buffer.position()+(int)numBytes);
+			return;
+		}
+
+		numBytes -= buffer.remaining();
+		buffer.clear();
+		buffer.limit(0);
+
+		if (shpChannel instanceof SeekableByteChannel)
+		{
+			SeekableByteChannel seekable = (SeekableByteChannel)shpChannel;
+			seekable.position(seekable.position()+numBytes);
+			return;
+		}
+
+		while (numBytes > 0)
+		{
+			int chunk = (int)Math.min(numBytes, BUFFER_SIZE);
+			require(chunk);
+			buffer.position(buffer.position()+chunk);
+			numBytes -= chunk;
+		}
+	}
+
+	/** Moves to the given position in the .shp file. Moving forward is always possible, but moving
+	 *  back to a position that is no longer buffered requires a channel that supports random access.
+	 *  @param position Position in bytes from the start of the file.
+	 *  @throws IOException If the position cannot be reached.
+	 */
+	private void seek(long position) throws IOException
+	{
+		if (position >= filePointer)
+		{
+			skip(position - filePointer);
+			return;
+		}
+
+		long bufferStart = filePointer - buffer.position();
+		if (position >= bufferStart)
+		{
+			buffer.position((int)(position - bufferStart));
+			filePointer = position;
+			return;
+		}
+
+		if (!(shpChannel instanceof SeekableByteChannel))
+		{
+			throw new IOException("Cannot move back to an earlier record in a sequential shape file.");
+		}
+		((SeekableByteChannel)shpChannel).position(position);
+		buffer.clear();
+		buffer.limit(0);
+		filePointer = position;
+	}
+
+	/** Ensures the given number of bytes are available in the buffer, throwing an exception if the
+	 *  end of the file is reached first.
+	 *  @param numBytes Number of bytes required. Must be no larger than the buffer size.
+	 *  @throws IOException If the bytes cannot be read.
+	 */
+	private void require(int numBytes) throws IOException
+	{
+		if (!request(numBytes))
+		{
+			throw new EOFException("Unexpected end of shape file.");
+		}
+	}
+
+	/** Attempts to ensure the given number of bytes are available in the buffer.
+	 *  @param numBytes Number of bytes required. Must be no larger than the buffer size.
+	 *  @return True if the bytes are available, false if the end of the file was reached first.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private boolean request(int numBytes) throws IOException
+	{
+		if (buffer.remaining() >= numBytes)
+		{
+			return true;
+		}
+
+		buffer.compact();
+		while (buffer.position() < numBytes)
+		{
+			if (shpChannel.read(buffer) == -1)
+			{
+				buffer.flip();
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+}
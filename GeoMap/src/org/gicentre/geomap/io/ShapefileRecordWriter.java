@@ -0,0 +1,294 @@
+package org.gicentre.geomap.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureType;
+
+import processing.core.PApplet;
+
+//  **************************************************************************************************
+/** Writes a shapefile one record at a time. Unlike <code>ShapefileWriter</code>, this does not need a
+ *  fully built <code>GeoMap</code> object, so features generated on the fly, or records passed on from
+ *  a <code>ShapefileRecordReader</code>, can be written straight to disk with only a small buffer held
+ *  in memory. Because the size and bounds of the output are not known until all records have been
+ *  written, the file headers are completed when the writer is closed. Typical use:
+ *  <pre>
+ *    ShapefileRecordWriter writer = ShapefileRecordWriter.create("output", FeatureType.POLYGON, header, this);
+ *    for (...)
+ *    {
+ *      writer.write(feature, attributes);
+ *    }
+ *    writer.close();
+ *  </pre>
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class ShapefileRecordWriter implements Closeable
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	private FileChannel shpChannel, shxChannel;	// Geometry and index files.
+	private DbaseFileWriter dbfWriter;			// Attribute writer (or null if no attributes).
+	private int shapeType;						// ESRI shape type code of the file.
+	private FeatureType featureType;			// Type of feature stored in the file.
+	private ByteBuffer shpBuffer, shxBuffer;	// Output buffers (little-endian).
+	private long shpLength;						// Length of the geometry file including buffered records.
+	private int numRecords;						// Number of records written so far.
+	private float[] bounds;						// Bounds of all records written so far.
+
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates a writer that writes to the given channels. Space is reserved for the geometry and index
+	 *  file headers, which are written when the writer is closed.
+	 *  @param shp Channel representing the geometry (.shp) file.
+	 *  @param shx Channel representing the index (.shx) file.
+	 *  @param dbf Channel representing the attribute (.dbf) file, or null if no attributes to be written.
+	 *  @param header Header describing the attribute columns. Can be null if <code>dbf</code> is null.
+	 *                The number of records in the header does not need to be known in advance.
+	 *  @param type Type of feature to be stored in the shapefile.
+	 *  @throws IOException If the files cannot be written or the type cannot be stored in a shapefile.
+	 */
+	public ShapefileRecordWriter(FileChannel shp, FileChannel shx, FileChannel dbf, DbaseFileHeader header, FeatureType type) throws IOException
+	{
+		this.shapeType = ShapefileWriter.getShapeType(type);
+		if (shapeType == 0)
+		{
+			throw new IOException("Cannot write "+type+" features to a shapefile.");
+		}
+		this.featureType = type;
+		this.shpChannel = shp;
+		this.shxChannel = shx;
+
+		if (dbf != null)
+		{
+			dbfWriter = new DbaseFileWriter(header, dbf);
+		}
+
+		shpBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		shpBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		shxBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE/4);
+		shxBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		// Leave space for the headers which are completed on closing.
+		shpBuffer.position(ShapefileWriter.HEADER_SIZE);
+		shxBuffer.position(ShapefileWriter.HEADER_SIZE);
+		shpLength = ShapefileWriter.HEADER_SIZE;
+		numRecords = 0;
+		bounds = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Creates the three files of a shapefile with the given name ready for writing. The name may be
+	 *  supplied with or without a <code>.shp</code> extension.
+	 *  @param fileName Name of the shapefile to create.
+	 *  @param type Type of feature to be stored in the shapefile.
+	 *  @param header Header describing the attribute columns, or null if no attribute file to be written.
+	 *  @param parent Parent sketch used for locating the file.
+	 *  @return Writer for the shapefile or null if it cannot be created.
+	 */
+	public static ShapefileRecordWriter create(String fileName, FeatureType type, DbaseFileHeader header, PApplet parent)
+	{
+		String baseName = ShapefileRecordReader.getBaseName(fileName);
+
+		FileChannel shpChannel = SketchFiles.openOutput(parent, baseName+".shp");
+		if (shpChannel == null)
+		{
+			System.err.println("Cannot create shapefile geometry file: "+baseName+".shp");
+			return null;
+		}
+
+		FileChannel shxChannel = SketchFiles.openOutput(parent, baseName+".shx");
+		if (shxChannel == null)
+		{
+			System.err.println("Cannot create shapefile index file: "+baseName+".shx");
+			return null;
+		}
+
+		FileChannel dbfChannel = null;
+		if (header != null)
+		{
+			dbfChannel = SketchFiles.openOutput(parent, baseName+".dbf");
+			if (dbfChannel == null)
+			{
+				System.err.println("Cannot create shapefile attribute file: "+baseName+".dbf");
+				return null;
+			}
+		}
+
+		try
+		{
+			return new ShapefileRecordWriter(shpChannel, shxChannel, dbfChannel, header, type);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem creating shape file "+baseName+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	/** Appends the given feature and its attributes to the shapefile. Records are numbered in the
+	 *  order they are written, starting at 1.
+	 *  @param feature Feature to write. Must be of the type given when this writer was created.
+	 *  @param attributes Attribute values matching the columns of the attribute header, or null if
+	 *                    this writer has no attribute file.
+	 *  @throws IOException If problem writing, or the feature is of the wrong type.
+	 */
+	public void write(Feature feature, Object[] attributes) throws IOException
+	{
+		if (feature.getType() != featureType)
+		{
+			throw new IOException("Cannot write "+feature.getType()+" to a "+featureType+" shapefile.");
+		}
+		int contentLength = ShapefileWriter.getContentLength(feature);
+		ByteBuffer buffer = prepareBuffer(contentLength);
+		ShapefileWriter.putRecord(buffer, numRecords+1, feature, bounds);
+		finishRecord(buffer, contentLength, attributes);
+	}
+
+	/** Appends the given record and its attributes to the shapefile. This allows records read with a
+	 *  <code>ShapefileRecordReader</code> to be written without creating any features. Records are
+	 *  renumbered in the order they are written, starting at 1. Any z or measured values are not stored
+	 *  and records without any vertices are written as null shapes.
+	 *  @param record Record to write. Must represent the type given when this writer was created or be a null shape.
+	 *  @param attributes Attribute values matching the columns of the attribute header, or null if
+	 *                    this writer has no attribute file.
+	 *  @throws IOException If problem writing, or the record is of the wrong type.
+	 */
+	public void write(ShapefileRecord record, Object[] attributes) throws IOException
+	{
+		if ((record.getShapeType() != 0) && (record.getFeatureType() != featureType))
+		{
+			throw new IOException("Cannot write shape type "+record.getShapeType()+" to a "+featureType+" shapefile.");
+		}
+		int contentLength = ShapefileWriter.getContentLength(record);
+		ByteBuffer buffer = prepareBuffer(contentLength);
+		ShapefileWriter.putRecord(buffer, numRecords+1, record, bounds);
+		finishRecord(buffer, contentLength, attributes);
+	}
+
+	/** Reports the number of records written so far.
+	 *  @return Number of records written.
+	 */
+	public int getNumRecords()
+	{
+		return numRecords;
+	}
+
+	/** Writes any buffered records, completes the file headers with the final file lengths and bounds
+	 *  and closes all files. This must be called for the shapefile to be valid.
+	 *  @throws IOException If problem writing the files.
+	 */
+	public void close() throws IOException
+	{
+		if (shpChannel == null)
+		{
+			return;
+		}
+
+		ShapefileWriter.writeBuffer(shpBuffer, shpChannel);
+		ShapefileWriter.writeBuffer(shxBuffer, shxChannel);
+
+		float[] fileBounds = (numRecords == 0) ? new float[4] : bounds;
+		ByteBuffer header = ByteBuffer.allocate(ShapefileWriter.HEADER_SIZE);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		ShapefileWriter.putHeader(header, shapeType, shpLength, fileBounds);
+		header.flip();
+		ShapefileWriter.writeBuffer(header, shpChannel, 0);
+
+		header.clear();
+		ShapefileWriter.putHeader(header, shapeType, ShapefileWriter.HEADER_SIZE + 8L*numRecords, fileBounds);
+		header.flip();
+		ShapefileWriter.writeBuffer(header, shxChannel, 0);
+
+		shpChannel.close();
+		shxChannel.close();
+		if (dbfWriter != null)
+		{
+			dbfWriter.close();
+		}
+		shpChannel = null;
+		shxChannel = null;
+		dbfWriter  = null;
+		shpBuffer  = null;
+		shxBuffer  = null;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Provides a buffer with enough space for a record with the given content length. Buffered
+	 *  records are written first if there is insufficient space left.
+	 *  @param contentLength Length of the record content in bytes.
+	 *  @return Buffer to receive the record.
+	 *  @throws IOException If problem writing buffered records.
+	 */
+	private ByteBuffer prepareBuffer(int contentLength) throws IOException
+	{
+		if (shpChannel == null)
+		{
+			throw new IOException("Shapefile writer has been closed.");
+		}
+		if (shpBuffer.remaining() < 8+contentLength)
+		{
+			ShapefileWriter.writeBuffer(shpBuffer, shpChannel);
+		}
+		if (shpBuffer.capacity() < 8+contentLength)
+		{
+			// Very large records need their own buffer.
+			ByteBuffer recordBuffer = ByteBuffer.allocate(8+contentLength);
+			recordBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			return recordBuffer;
+		}
+		return shpBuffer;
+	}
+
+	/** Completes the writing of a record that has been placed in the given buffer by adding its index
+	 *  entry and attributes.
+	 *  @param buffer Buffer containing the record.
+	 *  @param contentLength Length of the record content in bytes.
+	 *  @param attributes Attributes to write or null if none.
+	 *  @throws IOException If problem writing.
+	 */
+	private void finishRecord(ByteBuffer buffer, int contentLength, Object[] attributes) throws IOException
+	{
+		if (buffer != shpBuffer)
+		{
+			ShapefileWriter.writeBuffer(buffer, shpChannel);
+		}
+
+		if (shxBuffer.remaining() < 8)
+		{
+			ShapefileWriter.writeBuffer(shxBuffer, shxChannel);
+		}
+		ShapefileWriter.putIndex(shxBuffer, shpLength, contentLength);
+		shpLength += 8 + contentLength;
+		numRecords++;
+
+		if (dbfWriter != null)
+		{
+			dbfWriter.write(attributes);
+		}
+	}
+}
@@ -1,18 +1,31 @@
 package org.gicentre.geomap.io;
 
-import java.io.*;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 import org.gicentre.geomap.Feature;
 import org.gicentre.geomap.FeatureType;
 import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.HilbertCurve;
 import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
 import org.gicentre.geomap.Point;
 import org.gicentre.geomap.Polygon;
 
 import processing.core.PApplet;
+import processing.core.PVector;
 import processing.data.Table;
 
 //  **************************************************************************************************
@@ -47,6 +60,15 @@ public class ShapefileWriter
 	//private int recordNumber;
 	private PApplet parent;
 	private GeoMap geoMap;						// Object to write as a shapefile.	
+	private boolean parallel;					// Determines if records are encoded concurrently.
+	private HashMap<Integer,Character> fieldTypes;	// DBF field types set explicitly for attribute columns.
+	private boolean hilbertOrder;				// Determines if features are written in Hilbert order.
+	private boolean spatialIndex;				// Determines if a .qix spatial index is written.
+
+	private static final int BUFFER_SIZE = 1024*1024;	// Size of the geometry output buffer in bytes.
+	private static final int PARALLEL_CHUNK_SIZE = 4*1024*1024;	// Approximate bytes encoded by each parallel task.
+	static final int HEADER_SIZE = 100;			// Size of shapefile and index headers in bytes.
+	private static final int MAX_NUMERIC_WIDTH = 19;	// Maximum width of a DBF numeric field.
 
 	// ------------------------------------- Constructor ---------------------------------------
 
@@ -58,14 +80,75 @@ public class ShapefileWriter
 	{
 		this.geoMap = geoMap;
 		this.parent = parent;
+		this.parallel = false;
+		this.fieldTypes = new HashMap<Integer,Character>();
+		this.hilbertOrder = false;
+		this.spatialIndex = false;
 	}
 
 	// --------------------------------------- Methods -----------------------------------------
 
+	/** Determines whether or not geometry records are encoded concurrently. When parallel, the
+	 *  geometry file is memory-mapped and records are encoded by several threads directly into their
+	 *  final position in the file. This is faster for large layers on multi-core machines, while the
+	 *  files produced are identical to those written sequentially. Default is false.
+	 *  @param parallel True if records should be encoded in parallel.
+	 */
+	public void setParallel(boolean parallel)
+	{
+		this.parallel = parallel;
+	}
+
+	/** Determines whether or not features are written in the order their bounding box centres follow
+	 *  a Hilbert curve rather than in the order they are stored in the geoMap. Spatially close features
+	 *  are then stored in neighbouring records, so reading the features within a region touches fewer,
+	 *  more contiguous parts of the file. Records are numbered sequentially in the order written, and
+	 *  attribute rows are written in the same order with their ID column set to the new record number.
+	 *  Default is false.
+	 *  @param hilbertOrder True if features should be written in Hilbert order.
+	 */
+	public void setHilbertOrder(boolean hilbertOrder)
+	{
+		this.hilbertOrder = hilbertOrder;
+	}
+
+	/** Determines whether or not a quadtree spatial index of the records is written alongside each
+	 *  shapefile, in a file with a <code>.qix</code> extension. The index allows the records within a
+	 *  region to be found without reading the whole geometry file, and is used automatically when a
+	 *  shapefile is read with a bounds filter. Default is false.
+	 *  @param spatialIndex True if a spatial index should be written.
+	 */
+	public void setSpatialIndex(boolean spatialIndex)
+	{
+		this.spatialIndex = spatialIndex;
+	}
+
+	/** Sets the DBF field type used to store the given column of the attribute table. By default the
+	 *  type is inferred from the column's values: numeric columns, and text columns containing only
+	 *  whole numbers, are stored as numeric fields (<code>'N'</code> or <code>'F'</code>) and all others as
+	 *  character fields (<code>'C'</code>). Logical (<code>'L'</code>) and date (<code>'D'</code>) fields
+	 *  are only used when set explicitly. Logical fields treat values of true, t, yes, y or 1 as true.
+	 *  Date fields expect values in the form yyyyMMdd or yyyy-MM-dd. Empty or unreadable dates are stored as blank
+	 *  (null) dates.
+	 *  @param column Column of the attribute table (where ID is column 0).
+	 *  @param type DBF field type: one of <code>'C'</code>, <code>'N'</code>, <code>'F'</code>,
+	 *              <code>'L'</code> or <code>'D'</code>.
+	 */
+	public void setFieldType(int column, char type)
+	{
+		char upperType = Character.toUpperCase(type);
+		if ("CNFLD".indexOf(upperType) < 0)
+		{
+			System.err.println("Unknown DBF field type '"+type+"'. Must be one of C, N, F, L or D.");
+			return;
+		}
+		fieldTypes.put(Integer.valueOf(column), Character.valueOf(upperType));
+	}
+
 	/** Writes out one or more shapefiles representing the geoMap object supplied to the constructor.
 	 *  The given fileName can be supplied with or without an extension, but this method will
 	 *  write three files with the same base and extensions <code>.shp</code>, <code>.shx</code>
-	 *  and <code>.dbf</code>. If the geoMap object contains more than one type, P, L or A will be 
+	 *  and <code>.dbf</code>. If the geoMap object contains more than one type, P, L, A or M (for multipoints) will be
 	 *  appended to the relevant file name.
 	 *  @param fileName Name of core of the three files to create.
 	 *  @return True if written successfully.
@@ -81,15 +164,27 @@ public class ShapefileWriter
 			baseName = fileName.substring(0,dotIndex);
 		}
 
+		// Multipoints are counted as points by geoMap but are stored in their own shapefile.
+		int numMultiPoints = 0;
+		for (Feature feature : geoMap.getFeatures().values())
+		{
+			if (feature.getType() == FeatureType.MULTI_POINT)
+			{
+				numMultiPoints++;
+			}
+		}
+		int numPoints = geoMap.getNumPoints()-numMultiPoints;
+
 		// Determine if we need to append the file name with the feature type (only if more than one feature type is to be written).
 		boolean appendType = false;
-		if (geoMap.getNumPoints()+geoMap.getNumLines()+geoMap.getNumPolys() > Math.max(geoMap.getNumPoints(), Math.max(geoMap.getNumLines(),geoMap.getNumPolys())))
+		int numFeatures = numPoints+numMultiPoints+geoMap.getNumLines()+geoMap.getNumPolys();
+		if (numFeatures > Math.max(Math.max(numPoints, numMultiPoints), Math.max(geoMap.getNumLines(),geoMap.getNumPolys())))
 		{
 			appendType = true;
 		}
 		boolean status = true;
 		
-		if (geoMap.getNumPoints() > 0)
+		if (numPoints > 0)
 		{
 			if (appendType == true)
 			{
@@ -123,7 +218,19 @@ public class ShapefileWriter
 			{
 				status = write(baseName,FeatureType.POLYGON);
 			}
-		}  
+		}
+
+		if ((status == true) && (numMultiPoints > 0))
+		{
+			if (appendType == true)
+			{
+				status = write(baseName+"M",FeatureType.MULTI_POINT);
+			}
+			else
+			{
+				status = write(baseName,FeatureType.MULTI_POINT);
+			}
+		}
 		return status;
 	}
 
@@ -136,427 +243,1027 @@ public class ShapefileWriter
 	 */
 	private boolean write(String fileName, FeatureType type)
 	{
-		OutputStream geomStream   = parent.createOutput(fileName+".shp");
-		if (geomStream == null)
+		FileChannel geomChannel = SketchFiles.openOutput(parent, fileName+".shp");
+		if (geomChannel == null)
 		{
 			System.err.println("Cannot create shapefile geometry file: "+fileName+".shp");
 			return false;
 		}
 
-		OutputStream attribStream = parent.createOutput(fileName+".dbf");
-		if (attribStream == null)
+		FileChannel attribChannel = SketchFiles.openOutput(parent, fileName+".dbf");
+		if (attribChannel == null)
 		{
 			System.err.println("Cannot create shapefile attribute file: "+fileName+".dbf");
 			return false;
 		}
 
-		OutputStream indexStream = parent.createOutput(fileName+".dbx");
-		if (indexStream == null)
+		FileChannel indexChannel = SketchFiles.openOutput(parent, fileName+".shx");
+		if (indexChannel == null)
 		{
-			System.err.println("Cannot create shapefile index file: "+fileName+".dbx");
+			System.err.println("Cannot create shapefile index file: "+fileName+".shx");
 			return false;
 		}
 
-		if (writeDBF(attribStream) == false)
+		// Find the features to write.
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		ArrayList<Feature> features = new ArrayList<Feature>();
+		for (Map.Entry<Integer,Feature> entry : geoMap.getFeatures().entrySet())
+		{
+			if (entry.getValue().getType() == type)
+			{
+				ids.add(entry.getKey());
+				features.add(entry.getValue());
+			}
+		}
+
+		Table attributes = geoMap.getAttributeTable();
+		if (hilbertOrder)
+		{
+			// Renumber features in Hilbert order and reorder their attributes to match.
+			int[] order = HilbertCurve.sort(features);
+			ArrayList<Integer> sortedIds = new ArrayList<Integer>(order.length);
+			ArrayList<Feature> sortedFeatures = new ArrayList<Feature>(order.length);
+			for (int i : order)
+			{
+				sortedIds.add(ids.get(i));
+				sortedFeatures.add(features.get(i));
+			}
+			attributes = reorderAttributes(attributes, sortedIds);
+			ids = new ArrayList<Integer>(order.length);
+			for (int i=0; i<order.length; i++)
+			{
+				ids.add(Integer.valueOf(i+1));
+			}
+			features = sortedFeatures;
+		}
+
+		if (writeDBF(attribChannel, attributes) == false)
 		{
 			return false;
 		}
-		if (writeShape(geomStream, indexStream, type) == false)
+		if (writeShape(geomChannel, indexChannel, type, ids, features) == false)
 		{
 			return false;
 		} 
+		if (spatialIndex)
+		{
+			return writeSpatialIndex(fileName, features);
+		}
 		return true;   
 	}
+
+	/** Writes a quadtree spatial index of the given features, which should be in the order in which they
+	 *  were written to the shapefile.
+	 *  @param fileName Basename of file to write.
+	 *  @param features Features written to the shapefile.
+	 *  @return True if the index was written successfully.
+	 */
+	private boolean writeSpatialIndex(String fileName, ArrayList<Feature> features)
+	{
+		FileChannel qixChannel = SketchFiles.openOutput(parent, fileName+".qix");
+		if (qixChannel == null)
+		{
+			System.err.println("Cannot create spatial index file: "+fileName+".qix");
+			return false;
+		}
+
+		int numFeatures = features.size();
+		float[] minX = new float[numFeatures], minY = new float[numFeatures];
+		float[] maxX = new float[numFeatures], maxY = new float[numFeatures];
+		for (int i=0; i<numFeatures; i++)
+		{
+			Rectangle2D bounds = features.get(i).getBounds();
+			minX[i] = (float)bounds.getMinX();
+			minY[i] = (float)bounds.getMinY();
+			maxX[i] = (float)bounds.getMaxX();
+			maxY[i] = (float)bounds.getMaxY();
+		}
+
+		try
+		{
+			QuadtreeIndex.write(qixChannel, minX, minY, maxX, maxY, numFeatures);
+			qixChannel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem writing spatial index file: "+fileName+".qix");
+			return false;
+		}
+		return true;
+	}
 	
-	/** Calculates the maximum widths of the values in each column in the attributes table. A width is
-	 *  the number of characters in a cell.
-	 *  @param table Table to examine.
-	 *  @return Maximum width of each of the columns in the table.
+	/** Writes out the attributes of the given node's children as a DBF file (dBase III format). Each
+	 *  column of the attribute table is converted into a typed array of values in a single pass, from
+	 *  which its DBF field type, width and number of decimal places are found. Unless overridden with
+	 *  <code>setFieldType()</code>, numeric table columns are stored as numeric fields, as are text
+	 *  columns in which every value is a whole number without leading zeros. All other columns are
+	 *  stored as character fields.
+	 *  @param channel Channel pointing to the dbf file to write. 
+	 *  @param attributes Attribute table to write.
+	 *  @return True if attribute table written successfully. 
 	 */
-	private int[] calcMaxWidths(Table table)
+	private boolean writeDBF(FileChannel channel, Table attributes)
 	{
-		int numCols = table.getColumnCount();
-		int numRows = table.getRowCount();
-		String[] header = table.getColumnTitles();
-		
-		// Find the maximum number of characters in each column.
-		int[] maxWidths = new int[numCols];
-		if (header != null)
+		try
+		{
+			// Create the dbase header.
+			DbaseFileHeader header = new DbaseFileHeader();
+			String[] headings = attributes.getColumnTitles();
+			int numRows = attributes.getRowCount();
+			Object[] columns = new Object[attributes.getColumnCount()];
+
+			for (int col=0; col<columns.length; col++)
+			{
+				String name = ((headings == null) || (headings[col] == null)) ? Integer.toString(col+1) : headings[col];
+				name = name.substring(0, Math.min(254,name.length()));
+				Character fieldType = fieldTypes.get(Integer.valueOf(col));
+				columns[col] = buildColumn(attributes, col, numRows, (fieldType == null) ? 0 : fieldType.charValue(), name, header);
+			}
+			header.setNumRecords(numRows);
+
+			DbaseFileWriter writer = new DbaseFileWriter(header,channel);
+			writer.writeColumns(columns, numRows);
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		return true;  
+	}
+
+	/** Creates a copy of the given attribute table containing only the rows of the given features in
+	 *  the order given. Rows are matched to features using the ID stored in the first column, which
+	 *  in the copy is replaced by the feature's new record number (its position in the list plus 1).
+	 *  @param attributes Attribute table to reorder.
+	 *  @param ids Original IDs of the features in the order they are to be written.
+	 *  @return New attribute table with one row per feature.
+	 */
+	private static Table reorderAttributes(Table attributes, ArrayList<Integer> ids)
+	{
+		int numCols = attributes.getColumnCount();
+		HashMap<Integer,Integer> rowLookup = new HashMap<Integer,Integer>();
+		if (numCols > 0)
 		{
-			for (int col=0; col<header.length; col++)
+			for (int row=0; row<attributes.getRowCount(); row++)
 			{
-				maxWidths[col] = Math.max(maxWidths[col], header[col].length());
+				rowLookup.put(Integer.valueOf(attributes.getInt(row, 0)), Integer.valueOf(row));
 			}
 		}
-		for (int row=0; row<numRows; row++)
+
+		Table reordered = new Table();
+		reordered.setColumnCount(numCols);
+		if (attributes.getColumnTitles() != null)
+		{
+			reordered.setColumnTitles(attributes.getColumnTitles());
+		}
+		for (int col=0; col<numCols; col++)
 		{
-			for (int col=0; col<numCols; col++)
+			reordered.setColumnType(col, attributes.getColumnType(col));
+		}
+		reordered.setRowCount(ids.size());
+
+		for (int i=0; i<ids.size(); i++)
+		{
+			Integer row = rowLookup.get(ids.get(i));
+			if (row != null)
+			{
+				for (int col=1; col<numCols; col++)
+				{
+					reordered.setString(i, col, attributes.getString(row.intValue(), col));
+				}
+			}
+			if (numCols > 0)
 			{
-				maxWidths[col] = Math.max(maxWidths[col], table.getString(row,col).length());
+				reordered.setInt(i, 0, i+1);
 			}
 		}
-		return maxWidths;
+		return reordered;
 	}
 
-	/** Writes out the attributes of the given node's children as a DBF file (dBase III format).
-	 *  @param outStream Output stream pointing to the dbf file to write. 
-	 *  @return True if attribute table written successfully. 
+	/** Extracts the values of the given table column as a typed array and adds a DBF field suitable
+	 *  for storing them to the given header.
+	 *  @param table Table containing the column.
+	 *  @param col Index of the column to extract.
+	 *  @param numRows Number of rows in the table.
+	 *  @param fieldType DBF field type to use, or 0 if it should be inferred from the values.
+	 *  @param name Name of the field to create.
+	 *  @param header DBF header to receive the field.
+	 *  @return Array of values to write for the column.
 	 */
-	private boolean writeDBF(OutputStream outStream)
+	private static Object buildColumn(Table table, int col, int numRows, char fieldType, String name, DbaseFileHeader header)
 	{
-		try
+		int columnType = table.getColumnType(col);
+
+		if (fieldType == 'L')
 		{
-			// Create the dbase header.
-			DbaseFileHeader header = new DbaseFileHeader();
-			Table attributes = geoMap.getAttributeTable();
+			boolean[] values = new boolean[numRows];
+			for (int row=0; row<numRows; row++)
+			{
+				String text = table.getString(row, col);
+				values[row] = (text != null) && (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("t") || 
+				                                 text.equalsIgnoreCase("yes") || text.equalsIgnoreCase("y") || text.equals("1"));
+			}
+			header.addColumn(name, 'L', 1, 0);
+			return values;
+		}
 
-			String[] headings = attributes.getColumnTitles();
-			int[] maxWidths = calcMaxWidths(attributes);
+		if (fieldType == 'D')
+		{
+			Date[] values = new Date[numRows];
+			SimpleDateFormat[] formats = {new SimpleDateFormat("yyyyMMdd"), new SimpleDateFormat("yyyy-MM-dd")};
+			for (SimpleDateFormat format : formats)
+			{
+				format.setLenient(false);
+			}
+			for (int row=0; row<numRows; row++)
+			{
+				String text = table.getString(row, col);
+				for (int i=0; (text != null) && (values[row] == null) && (i<formats.length); i++)
+				{
+					ParsePosition position = new ParsePosition(0);
+					Date date = formats[i].parse(text.trim(), position);
+					if (position.getIndex() == text.trim().length())
+					{
+						values[row] = date;
+					}
+				}
+			}
+			header.addColumn(name, 'D', 8, 0);
+			return values;
+		}
+
+		boolean isNumeric = (fieldType == 'N') || (fieldType == 'F');
+
+		// Text columns of decimal numbers are stored as numbers with the decimal places of their text.
+		boolean isDecimalText = (fieldType == 0) && (columnType == Table.STRING) && isDecimalColumn(table, col, numRows);
+
+		if ((fieldType == 0) || isNumeric)
+		{
+			if ((columnType == Table.INT) || (columnType == Table.LONG))
+			{
+				long[] values = new long[numRows];
+				int width = 1;
+				for (int row=0; row<numRows; row++)
+				{
+					values[row] = (columnType == Table.INT) ? table.getInt(row, col) : table.getLong(row, col);
+					width = Math.max(width, numDigits(values[row]));
+				}
+				header.addColumn(name, (fieldType == 0) ? 'N' : fieldType, Math.min(width, MAX_NUMERIC_WIDTH), 0);
+				return values;
+			}
 
-			for (int i=0; i<maxWidths.length; i++)
+			if ((columnType == Table.FLOAT) || (columnType == Table.DOUBLE) || isNumeric || isDecimalText)
 			{
-				if (maxWidths[i] > 254)
+				double[] values = new double[numRows];
+				boolean isFloat = (columnType == Table.FLOAT);
+				int maxDecimals = isFloat ? 6 : 10;
+				double tolerance = isFloat ? 1e-5 : 1e-9;
+				int intWidth = 1;
+				int decimals = 0;
+				for (int row=0; row<numRows; row++)
 				{
-					System.err.println("Maximum label length is 254 characters in length. Some labels in column "+(i+1)+" in attribute table will be truncated during shapefile output.");
-					maxWidths[i] = 254;
+					if (columnType == Table.DOUBLE)
+					{
+						values[row] = table.getDouble(row, col);
+					}
+					else if (isFloat)
+					{
+						values[row] = table.getFloat(row, col);
+					}
+					else
+					{
+						String text = table.getString(row, col);
+						values[row] = parseDouble(text);
+						if (isDecimalText && (text != null))
+						{
+							decimals = Math.max(decimals, getNumDecimals(text.trim()));
+						}
+					}
+					double value = values[row];
+					if (Double.isNaN(value) || Double.isInfinite(value))
+					{
+						continue;
+					}
+					intWidth = Math.max(intWidth, numDigits((long)value) + ((value < 0) && ((long)value == 0) ? 1 : 0));
+					while ((decimals < maxDecimals) && !hasDecimals(value, decimals, tolerance))
+					{
+						decimals++;
+					}
 				}
-				if (headings == null)
+				decimals = Math.max(0, Math.min(decimals, MAX_NUMERIC_WIDTH-intWidth-1));
+				int width = Math.min(MAX_NUMERIC_WIDTH, intWidth + ((decimals > 0) ? decimals+1 : 0));
+				char type = (fieldType != 0) ? fieldType : ((decimals == 0) ? 'N' : 'F');
+				header.addColumn(name, type, width, decimals);
+				return values;
+			}
+		}
+
+		// Text columns are stored as numbers if every value is a whole number.
+		String[] text = new String[numRows];
+		long[] numbers = (fieldType == 0) ? new long[numRows] : null;
+		int width = 1;
+		int numberWidth = 1;
+		for (int row=0; row<numRows; row++)
+		{
+			text[row] = table.getString(row, col);
+			if (text[row] == null)
+			{
+				text[row] = "";
+			}
+			width = Math.max(width, text[row].length());
+
+			if (numbers != null)
+			{
+				if (isWholeNumber(text[row]))
 				{
-					header.addColumn(Integer.toString(i+1), 'C', maxWidths[i], 0);
+					numbers[row] = Long.parseLong(text[row]);
+					numberWidth = Math.max(numberWidth, text[row].length());
 				}
 				else
 				{
-					header.addColumn(headings[i].substring(0, Math.min(254,headings[i].length())), 'C', maxWidths[i], 0);
+					numbers = null;
 				}
 			}
-			header.setNumRecords(attributes.getRowCount());
+		}
 
-			WritableByteChannel channel = Channels.newChannel(outStream);
-			DbaseFileWriter writer = new DbaseFileWriter(header,channel);
+		if ((numbers != null) && (numRows > 0))
+		{
+			header.addColumn(name, 'N', numberWidth, 0);
+			return numbers;
+		}
 
-			for (int row=0; row<attributes.getRowCount(); row++)
+		if (width > 254)
+		{
+			System.err.println("Maximum label length is 254 characters in length. Some labels in column "+(col+1)+" in attribute table will be truncated during shapefile output.");
+			width = 254;
+		}
+		header.addColumn(name, 'C', width, 0);
+		return text;
+	}
+
+	/** Reports whether the given text represents a whole number that can be stored in a numeric field
+	 *  and read back as the same text. Numbers with leading zeros or a leading plus sign are not
+	 *  considered whole numbers as they would not be recreated identically.
+	 *  @param text Text to examine.
+	 *  @return True if the text is a whole number.
+	 */
+	private static boolean isWholeNumber(String text)
+	{
+		int start = (text.startsWith("-")) ? 1 : 0;
+		int numDigits = text.length()-start;
+		if ((numDigits == 0) || (numDigits > 18))
+		{
+			return false;
+		}
+		if ((text.charAt(start) == '0') && ((numDigits > 1) || (start == 1)))
+		{
+			return false;
+		}
+		for (int i=start; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if ((c < '0') || (c > '9'))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Reports whether every non-empty value of the given text column is a decimal number, such as
+	 *  <code>-12.50</code>, with at least one having a decimal point. Numbers with leading zeros or too
+	 *  many digits to be stored exactly as a double are not considered decimal numbers.
+	 *  @param table Table containing the column.
+	 *  @param col Index of the column to examine.
+	 *  @param numRows Number of rows in the table.
+	 *  @return True if the column holds decimal numbers.
+	 */
+	private static boolean isDecimalColumn(Table table, int col, int numRows)
+	{
+		boolean hasPoint = false;
+		for (int row=0; row<numRows; row++)
+		{
+			String text = table.getString(row, col);
+			if ((text == null) || text.trim().isEmpty())
+			{
+				continue;
+			}
+			text = text.trim();
+			int point = text.indexOf('.');
+			if (point < 0)
 			{
-				Object rowObjects[] = new Object[maxWidths.length];
-				for (int col=0; col<rowObjects.length; col++)
+				if (!isWholeNumber(text) || (text.length() > 16))
 				{
-					String attrib = attributes.getString(row, col);
-					rowObjects[col] = attrib.substring(0, Math.min(254,attrib.length()));
+					return false;
 				}
-				writer.write(rowObjects);
+				continue;
 			}
-			writer.close();
+			String whole = text.substring(0, point);
+			String fraction = text.substring(point+1);
+			if ((fraction.isEmpty()) || (whole.length()+fraction.length() > 16) ||
+			    !(isWholeNumber(whole) || whole.equals("-0") || whole.equals("0")) || !isWholeNumber("1"+fraction))
+			{
+				return false;
+			}
+			hasPoint = true;
 		}
-		catch (IOException e)
+		return hasPoint;
+	}
+
+	/** Reports the number of digits after the decimal point of the given number.
+	 *  @param text Text of the number.
+	 *  @return Number of decimal places.
+	 */
+	private static int getNumDecimals(String text)
+	{
+		int point = text.indexOf('.');
+		return (point < 0) ? 0 : text.length()-point-1;
+	}
+
+	/** Reports the number of characters needed to represent the given whole number, including any sign.
+	 *  @param value Value to examine.
+	 *  @return Number of characters needed.
+	 */
+	private static int numDigits(long value)
+	{
+		if (value == Long.MIN_VALUE)
 		{
-			return false;
+			return 20;
+		}
+		int numDigits = (value < 0) ? 2 : 1;
+		long remaining = Math.abs(value);
+		while (remaining >= 10)
+		{
+			remaining /= 10;
+			numDigits++;
+		}
+		return numDigits;
+	}
+
+	/** Reports whether the given value can be represented with the given number of decimal places.
+	 *  @param value Value to examine.
+	 *  @param decimals Number of decimal places.
+	 *  @param tolerance Relative precision of the value.
+	 *  @return True if no more decimal places are needed.
+	 */
+	private static boolean hasDecimals(double value, int decimals, double tolerance)
+	{
+		double scaled = value*Math.pow(10, decimals);
+		return Math.abs(scaled - Math.rint(scaled)) <= tolerance*Math.max(1, Math.abs(scaled));
+	}
+
+	/** Converts the given text to a number.
+	 *  @param text Text to convert.
+	 *  @return Numeric value or NaN if the text does not represent a number.
+	 */
+	private static double parseDouble(String text)
+	{
+		if (text == null)
+		{
+			return Double.NaN;
+		}
+		try
+		{
+			return Double.parseDouble(text.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return Double.NaN;
 		}
-		return true;  
 	}
 
-	/** Writes out the geometry of the objects of the given type as a shapefile.
-	 *  @param geomOut Output stream pointing to the shapefile geometry file (.shp).
-	 *  @param indexOut Output stream pointing to the shapefile index file (.shx).
+	/** Writes out the geometry of the objects of the given type as a shapefile. Because the length of
+	 *  each record depends only on its vertex and part counts, the position of every record is found
+	 *  before any are encoded. Records are then either encoded into large buffers written in sequence,
+	 *  or if this writer is parallel, encoded concurrently directly into their final position in the file.
+	 *  @param geomChannel Channel pointing to the shapefile geometry file (.shp).
+	 *  @param indexChannel Channel pointing to the shapefile index file (.shx).
 	 *  @param type Type of objects to write (point, line or polygon).
+	 *  @param ids Record number of each feature.
+	 *  @param features Features to write.
 	 *  @return True if geometry written successfully. 
 	 */
-	private boolean writeShape(OutputStream geomOut, OutputStream indexOut, FeatureType type)
+	private boolean writeShape(FileChannel geomChannel, FileChannel indexChannel, FeatureType type,
+	                           ArrayList<Integer> ids, ArrayList<Feature> features)
 	{        
-		try
-		{                  
-			// Geometry type-specific information.
-			int shpFileSize=0;
-			int shxFileSize=0;
-
-			int shapeType = 0;
+		int shapeType = getShapeType(type);
+		if (shapeType == 0)
+		{
+			System.err.println("Unknown geometry type passed to shapefile writer: "+type);
+			return false;   
+		}
 
-			if (type == FeatureType.POINT)
+		try
+		{
+			// Find the position of each record in the file.
+			int numRecords = features.size();
+			int[] contentLengths = new int[numRecords];
+			long[] offsets = new long[numRecords+1];
+			offsets[0] = HEADER_SIZE;
+			for (int i=0; i<numRecords; i++)
 			{
-				shapeType = 1;
-				shpFileSize = 50 + geoMap.getNumPoints()*14;
-				shxFileSize = 50 + geoMap.getNumPoints()*4;
+				contentLengths[i] = getContentLength(features.get(i));
+				offsets[i+1] = offsets[i] + 8 + contentLengths[i];
 			}
-			else if (type == FeatureType.LINE)
+
+			float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+			if (parallel)
 			{
-				shapeType = 3;
-				shpFileSize = 50 + geoMap.getNumLines()*28 + geoMap.getNumLineVertices()*8;
-				shxFileSize = 50 + geoMap.getNumLines()*4;  
+				writeRecordsParallel(geomChannel, ids, features, offsets, bounds);
 			}
-			else if (type == FeatureType.POLYGON)
+			else
 			{
-				shapeType = 5;
-				shpFileSize = 50 + geoMap.getNumPolys()*26 + geoMap.getNumPolygonParts()*2 + geoMap.getNumPolygonVertices()*8;
-				shxFileSize = 50 + geoMap.getNumPoints()*4;  
+				writeRecords(geomChannel, ids, features, contentLengths, bounds);
 			}
-			else
+			if (numRecords == 0)
 			{
-				System.err.println("Unknown geometry type passed to shapefile writer: "+type);
-				return false;   
+				bounds = new float[] {geoMap.getMinGeoX(), geoMap.getMinGeoY(), geoMap.getMaxGeoX(), geoMap.getMaxGeoY()};
 			}
 
-			// Write out headers.
-			writeIntBigEndian(9994,geomOut);         // Shapefile identifier.
-			writeIntBigEndian(9994,indexOut);
+			// The header can only be completed once the bounds of all records are known.
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			putHeader(header, shapeType, offsets[numRecords], bounds);
+			header.flip();
+			writeBuffer(header, geomChannel, 0);
 
-			for (int i=0; i<5; i++)                     // 5 blank bytes.
+			// Index records can be written directly from the record offsets.
+			ByteBuffer indexBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE/4);
+			indexBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			putHeader(indexBuffer, shapeType, HEADER_SIZE + 8L*numRecords, bounds);
+			for (int i=0; i<numRecords; i++)
 			{
-				writeIntBigEndian(0,geomOut);
-				writeIntBigEndian(0,indexOut);
+				if (indexBuffer.remaining() < 8)
+				{
+					writeBuffer(indexBuffer, indexChannel);
+				}
+				putIndex(indexBuffer, offsets[i], contentLengths[i]);
 			}
+			writeBuffer(indexBuffer, indexChannel);
 
-			writeIntBigEndian(shpFileSize,geomOut);  // Length of file in 16-bit words.
-			writeIntBigEndian(shxFileSize,indexOut);
-			writeIntLittleEndian(1000,geomOut);      // Version number.
-			writeIntLittleEndian(1000,indexOut);
-			writeIntLittleEndian(shapeType,geomOut); // Type of shape (geometry).
-			writeIntLittleEndian(shapeType,indexOut);
-
-			writeDoubleLittleEndian(geoMap.getMinGeoX(),geomOut);
-			writeDoubleLittleEndian(geoMap.getMinGeoX(),indexOut);
-			writeDoubleLittleEndian(geoMap.getMinGeoY(),geomOut);
-			writeDoubleLittleEndian(geoMap.getMinGeoY(),indexOut);
-			writeDoubleLittleEndian(geoMap.getMaxGeoX(),geomOut);
-			writeDoubleLittleEndian(geoMap.getMaxGeoX(),indexOut);
-			writeDoubleLittleEndian(geoMap.getMaxGeoY(),geomOut);
-			writeDoubleLittleEndian(geoMap.getMaxGeoY(),indexOut);
-
-			// TODO: Do we want to store Measured or Z types? Currently assuming we do not.
-			writeDoubleLittleEndian(0,geomOut);  // Zmin.
-			writeDoubleLittleEndian(0,indexOut);
-			writeDoubleLittleEndian(0,geomOut);  // Zmax.
-			writeDoubleLittleEndian(0,indexOut);
-			writeDoubleLittleEndian(0,geomOut);  // Measured min.
-			writeDoubleLittleEndian(0,indexOut);
-			writeDoubleLittleEndian(0,geomOut);  // Measured max.
-			writeDoubleLittleEndian(0,indexOut);
+			geomChannel.close();
+			indexChannel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem writing shape file.");
+			return false;
+		}
+		return true;
+	}
 
-			// Add geometry records.
-			//recordNumber = 1;
-			int recordOffset = 50;
+	/** Encodes the given features in sequence into a large buffer that is written to the geometry
+	 *  file whenever it is full. Space is left at the start of the file for its header.
+	 *  @param geomChannel Channel pointing to the shapefile geometry file (.shp).
+	 *  @param ids Record number of each feature.
+	 *  @param features Features to write.
+	 *  @param contentLengths Content length of each feature's record in bytes.
+	 *  @param bounds Bounding box to be updated with the bounds of all features written.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private static void writeRecords(FileChannel geomChannel, ArrayList<Integer> ids, ArrayList<Feature> features,
+	                                 int[] contentLengths, float[] bounds) throws IOException
+	{
+		ByteBuffer geomBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		geomBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		geomBuffer.position(HEADER_SIZE);
 
-			if (type == FeatureType.POINT)
+		for (int i=0; i<features.size(); i++)
+		{
+			int recordLength = 8 + contentLengths[i];
+			if (geomBuffer.remaining() < recordLength)
 			{
-				int recordLength = 10;  // All point records are the same length.
-
-				for (Integer key : geoMap.getFeatures().keySet())
-				{
-					Feature feature = geoMap.getFeatures().get(key);
-					
-					if (feature.getType() == FeatureType.POINT)
-					{
-						Point point = (Point)feature;
-
-						// Record header.
-						writeIntBigEndian(key.intValue(),geomOut);
-						writeIntBigEndian(recordLength,geomOut);
-
-						// Add index record.
-						writeIntBigEndian(recordOffset,indexOut);
-						writeIntBigEndian(recordLength,indexOut); 
-						recordOffset += (recordLength+4);
-
-						// Record contents.
-						writeIntLittleEndian(1,geomOut);     // Point shape type.
-						writeDoubleLittleEndian(point.getCoords().x,geomOut);
-						writeDoubleLittleEndian(point.getCoords().x,geomOut);
-						//recordNumber++;
-					}
-				}
+				writeBuffer(geomBuffer, geomChannel);
 			}
-			else if (type == FeatureType.LINE)
+			if (geomBuffer.capacity() < recordLength)
 			{
-				for (Integer key : geoMap.getFeatures().keySet())
-				{
-					Feature feature = geoMap.getFeatures().get(key);
-					
-					if (feature.getType() == FeatureType.LINE)
-					{
-						Line line = (Line)feature;
-						int numCoords = line.getNumVertices();
-						int recordLength = 2 + 16 + 2 + 2 + 2 + numCoords*8;
+				// Very large records need their own buffer.
+				ByteBuffer recordBuffer = ByteBuffer.allocate(recordLength);
+				recordBuffer.order(ByteOrder.LITTLE_ENDIAN);
+				putRecord(recordBuffer, ids.get(i).intValue(), features.get(i), bounds);
+				writeBuffer(recordBuffer, geomChannel);
+			}
+			else
+			{
+				putRecord(geomBuffer, ids.get(i).intValue(), features.get(i), bounds);
+			}
+		}
+		writeBuffer(geomBuffer, geomChannel);
+	}
 
-						// Record header.
-						writeIntBigEndian(key.intValue(),geomOut);
-						writeIntBigEndian(recordLength,geomOut);
+	/** Encodes the given features concurrently. The records are divided into consecutive chunks
+	 *  and each chunk encoded by its own task directly into a memory-mapped region of the pre-sized
+	 *  geometry file starting at the chunk's pre-computed offset.
+	 *  @param geomChannel Channel pointing to the shapefile geometry file (.shp).
+	 *  @param ids Record number of each feature.
+	 *  @param features Features to write.
+	 *  @param offsets Position of each record in the file followed by the total length of the file.
+	 *  @param bounds Bounding box to be updated with the bounds of all features written.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private static void writeRecordsParallel(final FileChannel geomChannel, final ArrayList<Integer> ids,
+	                                         final ArrayList<Feature> features, final long[] offsets,
+	                                         float[] bounds) throws IOException
+	{
+		// Split records into chunks of roughly equal size in bytes.
+		final int numRecords = features.size();
+		ArrayList<Integer> chunkStarts = new ArrayList<Integer>();
+		for (int i=0; i<numRecords; i++)
+		{
+			if (chunkStarts.isEmpty() || (offsets[i]-offsets[chunkStarts.get(chunkStarts.size()-1).intValue()] >= PARALLEL_CHUNK_SIZE))
+			{
+				chunkStarts.add(Integer.valueOf(i));
+			}
+		}
+		chunkStarts.add(Integer.valueOf(numRecords));
+		final int[] starts = new int[chunkStarts.size()];
+		for (int c=0; c<starts.length; c++)
+		{
+			starts[c] = chunkStarts.get(c).intValue();
+		}
 
-						// Add index record.
-						writeIntBigEndian(recordOffset,indexOut);
-						writeIntBigEndian(recordLength,indexOut); 
-						recordOffset += (recordLength+4);
+		// Extend the file to its final size so every region can be mapped.
+		geomChannel.write(ByteBuffer.allocate(1), offsets[numRecords]-1);
 
-						// Record contents.
-						writeIntLittleEndian(3,geomOut); 
-	
-						writeDoubleLittleEndian(geoMap.getMinGeoX(),geomOut);
-						writeDoubleLittleEndian(geoMap.getMinGeoY(),geomOut);
-						writeDoubleLittleEndian(geoMap.getMaxGeoX(),geomOut);
-						writeDoubleLittleEndian(geoMap.getMaxGeoY(),geomOut);
-
-						writeIntLittleEndian(1,geomOut);
-						writeIntLittleEndian(numCoords,geomOut);  
-
-						writeIntLittleEndian(0,geomOut);
-						
-						float[] x = line.getXCoords();
-						float[] y = line.getYCoords();
-						for (int coord=0; coord<numCoords; coord++)
-						{
-							writeDoubleLittleEndian(x[coord],geomOut);
-							writeDoubleLittleEndian(y[coord],geomOut);
-						}
-						//recordNumber++;
-					}
-				}
-			}
-			else if (type == FeatureType.POLYGON)
+		final float[][] chunkBounds = new float[starts.length-1][];
+		try
+		{
+			IntStream.range(0, starts.length-1).parallel().forEach(chunk ->
 			{
-				for (Integer key : geoMap.getFeatures().keySet())
+				float[] localBounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+				long start = offsets[starts[chunk]];
+				long end   = offsets[starts[chunk+1]];
+				try
 				{
-					Feature feature = geoMap.getFeatures().get(key);
-					
-					if (feature.getType() == FeatureType.POLYGON)
+					MappedByteBuffer region = geomChannel.map(FileChannel.MapMode.READ_WRITE, start, end-start);
+					region.order(ByteOrder.LITTLE_ENDIAN);
+					for (int i=starts[chunk]; i<starts[chunk+1]; i++)
 					{
-						Polygon poly = (Polygon)feature;
-												
-						int numCoords = poly.getNumVertices();
-						int numParts  = poly.getSubPartPointers().size();					
-						float x[]   = poly.getXCoords();
-						float y[]   = poly.getYCoords();
-						ArrayList<Integer>subPathPointers = poly.getSubPartPointers();
-						int recordLength = 2 + 16 + 2 + 2 + numParts*2 + numCoords*8;
-
-						// Record header.
-						writeIntBigEndian(key.intValue(),geomOut);
-						writeIntBigEndian(recordLength,geomOut);
-
-						// Add index record.
-						writeIntBigEndian(recordOffset,indexOut);
-						writeIntBigEndian(recordLength,indexOut); 
-						recordOffset += (recordLength+4);
-
-						// Record contents.
-						writeIntLittleEndian(5,geomOut); 
-
-						writeDoubleLittleEndian(geoMap.getMinGeoX(),geomOut);
-						writeDoubleLittleEndian(geoMap.getMinGeoY(),geomOut);
-						writeDoubleLittleEndian(geoMap.getMaxGeoX(),geomOut);
-						writeDoubleLittleEndian(geoMap.getMaxGeoY(),geomOut);
-
-						writeIntLittleEndian(numParts,geomOut);
-						writeIntLittleEndian(numCoords,geomOut);  
-
-						for (int part=0; part<numParts; part++)
-						{
-							writeIntLittleEndian(subPathPointers.get(part).intValue(),geomOut);
-						}
-
-						for (int coord=0; coord<numCoords; coord++)
-						{
-							writeDoubleLittleEndian(x[coord],geomOut);
-							writeDoubleLittleEndian(y[coord],geomOut);
-						}
-						//recordNumber++;
+						putRecord(region, ids.get(i).intValue(), features.get(i), localBounds);
 					}
-				} 
-			}
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+				chunkBounds[chunk] = localBounds;
+			});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
 
-			geomOut.close();
-			indexOut.close();
+		for (float[] localBounds : chunkBounds)
+		{
+			bounds[0] = Math.min(bounds[0], localBounds[0]);
+			bounds[1] = Math.min(bounds[1], localBounds[1]);
+			bounds[2] = Math.max(bounds[2], localBounds[2]);
+			bounds[3] = Math.max(bounds[3], localBounds[3]);
 		}
-		catch (IOException e)
+	}
+
+	// ------------------------------- Package Methods ----------------------------------
+
+	/** Reports the ESRI shape type code used to store the given feature type.
+	 *  @param type Feature type to represent.
+	 *  @return Shape type code or 0 if the feature type cannot be stored.
+	 */
+	static int getShapeType(FeatureType type)
+	{
+		if (type == FeatureType.POINT)
 		{
-			System.err.println("Problem writing shape file.");
-			return false;
+			return 1;
 		}
-		return true;
+		if (type == FeatureType.LINE)
+		{
+			return 3;
+		}
+		if (type == FeatureType.POLYGON)
+		{
+			return 5;
+		}
+		if (type == FeatureType.MULTI_POINT)
+		{
+			return 8;
+		}
+		return 0;
 	}
 
+	/** Reports the two-dimensional ESRI shape type code used to store the given record. Z and measured
+	 *  types are stored as their two-dimensional equivalents. Records without any vertices and those
+	 *  of a type that cannot be stored, such as multipatches, are stored as null shapes.
+	 *  @param record Record to be stored.
+	 *  @return Shape type code or 0 if the record is to be stored as a null shape.
+	 */
+	static int getShapeType(ShapefileRecord record)
+	{
+		if (record.getNumVertices() == 0)
+		{
+			return 0;
+		}
+		return getShapeType(record.getFeatureType());
+	}
 
-	// -------------------------- Private file writing methods -------------------------------
+	/** Reports the number of bytes needed to store the content of the given feature's shapefile
+	 *  record. This excludes the 8 byte record header.
+	 *  @param feature Feature to be stored.
+	 *  @return Length of the record content in bytes.
+	 */
+	static int getContentLength(Feature feature)
+	{
+		if (feature.getType() == FeatureType.POINT)
+		{
+			return 20;
+		}
+		if (feature.getType() == FeatureType.LINE)
+		{
+			return 44 + 4*((Line)feature).getSubPartPointers().size() + 16*feature.getNumVertices();
+		}
+		if (feature.getType() == FeatureType.POLYGON)
+		{
+			return 44 + 4*((Polygon)feature).getSubPartPointers().size() + 16*feature.getNumVertices();
+		}
+		if (feature.getType() == FeatureType.MULTI_POINT)
+		{
+			return 40 + 16*feature.getNumVertices();
+		}
+		return 4;
+	}
 
-	/** Writes a 32 bit unsigned big-endian ('Motorola') word of data to the
-	 * given output stream.
-	 * @param value Value to write to output stream.
-	 * @param os Output stream to process.
-	 * @return True if written successfully.
+	/** Reports the number of bytes needed to store the content of the given record as a two-dimensional
+	 *  shapefile record. This excludes the 8 byte record header.
+	 *  @param record Record to be stored.
+	 *  @return Length of the record content in bytes.
 	 */
-	private static boolean writeIntBigEndian(int value, OutputStream os) 
-	{ 
-		// 4 bytes 
-		try
+	static int getContentLength(ShapefileRecord record)
+	{
+		switch (getShapeType(record))
 		{
-			byte[] intBytes = new byte[4];
-			intBytes[0] = (byte)((value >> 24)& 0xff);
-			intBytes[1] = (byte)((value >> 16)& 0xff);
-			intBytes[2] = (byte)((value >> 8) & 0xff);
-			intBytes[3] = (byte) (value       & 0xff);
-			//filePointer += 4;
-			os.write(intBytes);
+			case 1:
+				return 20;
+
+			case 3:
+			case 5:
+				return 44 + 4*record.getNumParts() + 16*record.getNumVertices();
+
+			case 8:
+				return 40 + 16*record.getNumVertices();
+
+			default:
+				return 4;
 		}
-		catch (IOException e)
+	}
+
+	/** Writes a 100 byte shapefile or index file header into the given little-endian buffer.
+	 *  @param buffer Buffer to write to.
+	 *  @param shapeType ESRI shape type code of the file.
+	 *  @param fileLength Total length of the file in bytes.
+	 *  @param bounds Bounding box of the file stored as minX, minY, maxX, maxY.
+	 */
+	static void putHeader(ByteBuffer buffer, int shapeType, long fileLength, float[] bounds)
+	{
+		buffer.putInt(Integer.reverseBytes(9994));		// Shapefile identifier.
+		for (int i=0; i<5; i++)							// 5 unused words.
 		{
-			System.err.println("Cannot write 32 bit word to output stream: "+e);
+			buffer.putInt(0);
 		}
+		buffer.putInt(Integer.reverseBytes((int)(fileLength/2)));	// Length of file in 16-bit words.
+		buffer.putInt(1000);							// Version number.
+		buffer.putInt(shapeType);						// Type of shape (geometry).
+		buffer.putDouble(bounds[0]);
+		buffer.putDouble(bounds[1]);
+		buffer.putDouble(bounds[2]);
+		buffer.putDouble(bounds[3]);
 
-		return true;
+		// Measured and Z types are not currently stored.
+		buffer.putDouble(0);							// Zmin.
+		buffer.putDouble(0);							// Zmax.
+		buffer.putDouble(0);							// Measured min.
+		buffer.putDouble(0);							// Measured max.
 	}
 
-	/** Writes a 32 bit unsigned little-endian ('Intel') word of data to the
-	 * given output stream.
-	 * @param value Value to write to output stream.
-	 * @param os Output stream to process.
-	 * @return True if written successfully.
+	/** Writes the header and content of a shapefile record representing the given feature into the
+	 *  given little-endian buffer. The buffer must have at least <code>8+getContentLength(feature)</code>
+	 *  bytes remaining.
+	 *  @param buffer Buffer to write to.
+	 *  @param recordNumber Record number to store in the record header.
+	 *  @param feature Feature to write.
+	 *  @param bounds Bounding box stored as minX, minY, maxX, maxY to be expanded to include the record.
 	 */
-	protected static boolean writeIntLittleEndian(int value, OutputStream os) 
-	{ 
-		// 4 bytes 
-		try
+	static void putRecord(ByteBuffer buffer, int recordNumber, Feature feature, float[] bounds)
+	{
+		// Record header.
+		buffer.putInt(Integer.reverseBytes(recordNumber));
+		buffer.putInt(Integer.reverseBytes(getContentLength(feature)/2));
+
+		// Record contents.
+		if (feature.getType() == FeatureType.POINT)
+		{
+			PVector p = ((Point)feature).getCoords();
+			buffer.putInt(1);
+			buffer.putDouble(p.x);
+			buffer.putDouble(p.y);
+			addBounds(new float[] {p.x}, new float[] {p.y}, 1, bounds);
+		}
+		else if (feature.getType() == FeatureType.LINE)
+		{
+			Line line = (Line)feature;
+			ArrayList<Integer> subPartPointers = line.getSubPartPointers();
+			int[] partPointers = new int[subPartPointers.size()];
+			for (int part=0; part<partPointers.length; part++)
+			{
+				partPointers[part] = subPartPointers.get(part).intValue();
+			}
+			putPoly(buffer, 3, line.getXCoords(), line.getYCoords(), line.getNumVertices(), partPointers, partPointers.length, bounds);
+		}
+		else if (feature.getType() == FeatureType.POLYGON)
+		{
+			Polygon poly = (Polygon)feature;
+			ArrayList<Integer> subPartPointers = poly.getSubPartPointers();
+			int[] partPointers = new int[subPartPointers.size()];
+			for (int part=0; part<partPointers.length; part++)
+			{
+				partPointers[part] = subPartPointers.get(part).intValue();
+			}
+			putPoly(buffer, 5, poly.getXCoords(), poly.getYCoords(), poly.getNumVertices(), partPointers, partPointers.length, bounds);
+		}
+		else if (feature.getType() == FeatureType.MULTI_POINT)
 		{
-			byte[] intBytes = new byte[4];
-			intBytes[0] = (byte) (value       & 0xff);
-			intBytes[1] = (byte)((value >> 8) & 0xff);
-			intBytes[2] = (byte)((value >> 16)& 0xff);
-			intBytes[3] = (byte)((value >> 24)& 0xff);        	
+			MultiPoint points = (MultiPoint)feature;
+			putMultiPoint(buffer, points.getXCoords(), points.getYCoords(), points.getNumVertices(), bounds);
+		}
+		else
+		{
+			buffer.putInt(0);							// Null shape.
+		}
+	}
+
+	/** Writes the header and content of a shapefile record representing the given decoded record into
+	 *  the given little-endian buffer. Any z values are not stored, so records of the z and measured
+	 *  shape types are written as their two-dimensional equivalents. The buffer must have at least
+	 *  <code>8+getContentLength(record)</code> bytes remaining.
+	 *  @param buffer Buffer to write to.
+	 *  @param recordNumber Record number to store in the record header.
+	 *  @param record Record to write.
+	 *  @param bounds Bounding box stored as minX, minY, maxX, maxY to be expanded to include the record.
+	 */
+	static void putRecord(ByteBuffer buffer, int recordNumber, ShapefileRecord record, float[] bounds)
+	{
+		// Record header.
+		buffer.putInt(Integer.reverseBytes(recordNumber));
+		buffer.putInt(Integer.reverseBytes(getContentLength(record)/2));
+
+		// Record contents.
+		float[] x = record.getXCoords();
+		float[] y = record.getYCoords();
+		int numCoords = record.getNumVertices();
+		int shapeType = getShapeType(record);
 
-			//filePointer += 4;
-			os.write(intBytes);
+		if (shapeType == 1)
+		{
+			buffer.putInt(1);
+			buffer.putDouble(x[0]);
+			buffer.putDouble(y[0]);
+			addBounds(x, y, 1, bounds);
 		}
-		catch (IOException e)
+		else if ((shapeType == 3) || (shapeType == 5))
+		{
+			putPoly(buffer, shapeType, x, y, numCoords, record.getPartPointers(), record.getNumParts(), bounds);
+		}
+		else if (shapeType == 8)
 		{
-			System.err.println("Cannot write 32 bit word to output stream: "+e);
+			putMultiPoint(buffer, x, y, numCoords, bounds);
 		}
+		else
+		{
+			buffer.putInt(0);							// Null shape.
+		}
+	}
 
-		return true;
+	/** Writes a shapefile index record into the given little-endian buffer.
+	 *  @param buffer Buffer to write to.
+	 *  @param recordOffset Position in bytes of the record header in the geometry file.
+	 *  @param contentLength Length of the record content in bytes.
+	 */
+	static void putIndex(ByteBuffer buffer, long recordOffset, int contentLength)
+	{
+		buffer.putInt(Integer.reverseBytes((int)(recordOffset/2)));
+		buffer.putInt(Integer.reverseBytes(contentLength/2));
 	}
 
-	/** Writes a little-endian 8-byte double to the given output stream.
-	 * @param value Value to write to output stream.
-	 * @param os Output stream.
-	 * @return True if written successfully.
+	/** Writes the contents of the given buffer to the given channel and clears the buffer ready to
+	 *  be filled again.
+	 *  @param buffer Buffer to write.
+	 *  @param channel Channel to receive the contents of the buffer.
+	 *  @throws IOException If problem writing to the channel.
 	 */
-	protected static boolean writeDoubleLittleEndian(double value, OutputStream os) 
-	{ 
-		try
+	static void writeBuffer(ByteBuffer buffer, FileChannel channel) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
 		{
-			long doubleBits = Double.doubleToLongBits(value);
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
 
-			byte[] doubleBytes = new byte[8];
-			doubleBytes[0] = (byte) (doubleBits       & 0xff);
-			doubleBytes[1] = (byte)((doubleBits >> 8) & 0xff);
-			doubleBytes[2] = (byte)((doubleBits >> 16)& 0xff);
-			doubleBytes[3] = (byte)((doubleBits >> 24)& 0xff);
-			doubleBytes[4] = (byte)((doubleBits >> 32)& 0xff); 
-			doubleBytes[5] = (byte)((doubleBits >> 40)& 0xff); 
-			doubleBytes[6] = (byte)((doubleBits >> 48)& 0xff); 
-			doubleBytes[7] = (byte)((doubleBits >> 56)& 0xff);         	
+	/** Writes the contents of the given buffer to the given channel starting at the given position
+	 *  in the file. The channel's own position is not changed.
+	 *  @param buffer Buffer to write, already flipped ready for reading.
+	 *  @param channel Channel to receive the contents of the buffer.
+	 *  @param position Position in the file at which to start writing.
+	 *  @throws IOException If problem writing to the channel.
+	 */
+	static void writeBuffer(ByteBuffer buffer, FileChannel channel, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
 
-			//filePointer += 8;
-			os.write(doubleBytes);          
+	// -------------------------- Private record encoding methods -------------------------------
+
+	/** Writes the content of a multipoint record, including its own bounding box.
+	 *  @param buffer Buffer to write to.
+	 *  @param x x coordinates of the points.
+	 *  @param y y coordinates of the points.
+	 *  @param numCoords Number of points to write.
+	 *  @param fileBounds Bounding box to be expanded to include the record.
+	 */
+	private static void putMultiPoint(ByteBuffer buffer, float[] x, float[] y, int numCoords, float[] fileBounds)
+	{
+		float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		addBounds(x, y, numCoords, bounds);
+		addBounds(x, y, numCoords, fileBounds);
+		buffer.putInt(8);
+		for (int i=0; i<4; i++)
+		{
+			buffer.putDouble(bounds[i]);
 		}
-		catch (IOException e)
+		buffer.putInt(numCoords);
+		for (int coord=0; coord<numCoords; coord++)
 		{
-			System.err.println("Cannot write binary stream: "+e);
-			return false;
+			buffer.putDouble(x[coord]);
+			buffer.putDouble(y[coord]);
+		}
+	}
+
+	/** Writes the content of a polyline or polygon record, including its own bounding box.
+	 *  @param buffer Buffer to write to.
+	 *  @param shapeType Shape type code of the record.
+	 *  @param x x coordinates of the feature.
+	 *  @param y y coordinates of the feature.
+	 *  @param numCoords Number of coordinates to write.
+	 *  @param partPointers Index of the first vertex of each part.
+	 *  @param numParts Number of parts to write.
+	 *  @param fileBounds Bounding box to be expanded to include the record.
+	 */
+	private static void putPoly(ByteBuffer buffer, int shapeType, float[] x, float[] y, int numCoords,
+	                            int[] partPointers, int numParts, float[] fileBounds)
+	{
+		float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		addBounds(x, y, numCoords, bounds);
+
+		buffer.putInt(shapeType);
+		buffer.putDouble(bounds[0]);
+		buffer.putDouble(bounds[1]);
+		buffer.putDouble(bounds[2]);
+		buffer.putDouble(bounds[3]);
+		fileBounds[0] = Math.min(fileBounds[0], bounds[0]);
+		fileBounds[1] = Math.min(fileBounds[1], bounds[1]);
+		fileBounds[2] = Math.max(fileBounds[2], bounds[2]);
+		fileBounds[3] = Math.max(fileBounds[3], bounds[3]);
+		buffer.putInt(numParts);
+		buffer.putInt(numCoords);
+
+		for (int part=0; part<numParts; part++)
+		{
+			buffer.putInt(partPointers[part]);
+		}
+		for (int coord=0; coord<numCoords; coord++)
+		{
+			buffer.putDouble(x[coord]);
+			buffer.putDouble(y[coord]);
+		}
+	}
+
+	/** Expands the given bounding box so that it includes the given coordinates.
+	 *  @param x x coordinates to include.
+	 *  @param y y coordinates to include.
+	 *  @param numCoords Number of coordinates to include.
+	 *  @param bounds Bounding box stored as minX, minY, maxX, maxY to be updated.
+	 */
+	private static void addBounds(float[] x, float[] y, int numCoords, float[] bounds)
+	{
+		for (int coord=0; coord<numCoords; coord++)
+		{
+			bounds[0] = Math.min(bounds[0], x[coord]);
+			bounds[1] = Math.min(bounds[1], y[coord]);
+			bounds[2] = Math.max(bounds[2], x[coord]);
+			bounds[3] = Math.max(bounds[3], y[coord]);
 		}
-		return true;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,150 @@
+package org.gicentre.geomap.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import processing.core.PApplet;
+
+//  **************************************************************************************************
+/** Locates files relative to a Processing sketch so that they can be accessed through NIO channels.
+ *  Where a file exists on the local file system a <code>FileChannel</code> is used, allowing
+ *  random access and memory mapping. Otherwise (for example when reading from a URL or a jar file)
+ *  the sketch's own input stream is wrapped as a sequential channel.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+final class SketchFiles
+{
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Utility class with static methods only, so should not be instantiated.
+	 */
+	private SketchFiles()
+	{
+		// Do nothing.
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Finds the local file with the given name using the same search order as Processing's
+	 *  <code>createInput()</code>: absolute paths, then the sketch's data folder, then the sketch folder.
+	 *  @param parent Parent sketch.
+	 *  @param fileName Name of the file to find.
+	 *  @return The file or null if it does not exist on the local file system.
+	 */
+	static File findFile(PApplet parent, String fileName)
+	{
+		File file = new File(fileName);
+		if (file.isAbsolute() && file.isFile())
+		{
+			return file;
+		}
+
+		file = parent.dataFile(fileName);
+		if ((file != null) && file.isFile())
+		{
+			return file;
+		}
+
+		file = new File(parent.sketchPath(fileName));
+		if (file.isFile())
+		{
+			return file;
+		}
+		return null;
+	}
+
+	/** Opens the file with the given name for reading. If the file is on the local file system, the
+	 *  channel returned will be a <code>FileChannel</code>.
+	 *  @param parent Parent sketch.
+	 *  @param fileName Name of the file to open.
+	 *  @return Channel for reading or null if the file cannot be found.
+	 */
+	static ReadableByteChannel openInput(PApplet parent, String fileName)
+	{
+		File file = findFile(parent, fileName);
+		if (file != null)
+		{
+			try
+			{
+				return new FileInputStream(file).getChannel();
+			}
+			catch (IOException e)
+			{
+				// Fall through to the sketch's own input handling.
+			}
+		}
+
+		InputStream inStream = parent.createInput(fileName);
+		if (inStream == null)
+		{
+			return null;
+		}
+		return Channels.newChannel(inStream);
+	}
+
+	/** Creates a new file with the given name for writing, relative to the sketch folder in the same
+	 *  way as Processing's <code>createOutput()</code>. Any existing file with the same name is
+	 *  truncated. The channel returned supports both positional writes and memory mapping.
+	 *  @param parent Parent sketch.
+	 *  @param fileName Name of the file to create.
+	 *  @return File channel for writing or null if the file cannot be created.
+	 */
+	static FileChannel openOutput(PApplet parent, String fileName)
+	{
+		try
+		{
+			FileChannel channel = new RandomAccessFile(parent.saveFile(fileName),"rw").getChannel();
+			channel.truncate(0);
+			return channel;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/** Opens the local file with the given name for random access reading. Unlike
+	 *  <code>openInput()</code>, this will not fall back to sequential stream access.
+	 *  @param parent Parent sketch.
+	 *  @param fileName Name of the file to open.
+	 *  @return File channel for reading or null if the file is not on the local file system.
+	 */
+	static FileChannel openFileChannel(PApplet parent, String fileName)
+	{
+		File file = findFile(parent, fileName);
+		if (file == null)
+		{
+			return null;
+		}
+		try
+		{
+			return new FileInputStream(file).getChannel();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package org.gicentre.geomap.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureIndex;
+import org.gicentre.geomap.FeatureMap;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.PointLayer;
+import org.gicentre.geomap.Polygon;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  **************************************************************************************************
+/** Reads a snapshot file created by <code>SnapshotWriter</code>. The file is memory-mapped and each
+ *  of its primitive arrays copied directly into memory, so loading a snapshot is much faster than
+ *  reading the equivalent shapefile. The spatial index is recreated from the stored order of its
+ *  features and their bounding boxes, so does not need to be sorted again. All values are stored little-endian, and the file consists of a
+ *  128 byte header followed by sections each aligned to 8 bytes:
+ *  <pre>
+ *  Header:       "GMS1", version, numFeatures, numParts, numVertices, flags (1 if z values stored),
+ *                minX, minY, maxX, maxY (floats), numRows, numCols, offset of each of the sections below (longs).
+ *  IDs:          int[numFeatures]        Feature ID.
+ *  Types:        byte[numFeatures]       Feature type (FeatureType ordinal).
+ *  Part index:   int[numFeatures+1]      Index of each feature's first part.
+ *  Bounds:       float[numFeatures*4]    minX, minY, maxX, maxY of each feature.
+ *  Vertex index: int[numParts+1]         Index of each part's first vertex.
+ *  X, Y, Z:      float[numVertices]      Coordinates (z section empty if no z values stored).
+ *  Index order:  int[numFeatures]        Number of each point feature in KD-tree order followed by each
+ *                                        other feature in R-tree order (not stored in version 1 snapshots).
+ *  Attributes:   for each column, the Table column type and UTF-8 title, followed by int, long, float
+ *                or double[numRows] for numeric columns, or int[numRows+1] text offsets and UTF-8 text
+ *                for string columns.
+ *  </pre>
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class SnapshotReader
+{
+	// ----------------------------------- Class variables ------------------------------------
+
+	static final byte[] MAGIC = {'G','M','S','1'};	// Identifies a snapshot file.
+	static final int VERSION = 2;					// Version of the snapshot layout.
+	static final int HEADER_SIZE = 128;				// Size of the fixed header in bytes.
+
+	static final int IDS          = 0;				// Section numbers stored in the header.
+	static final int TYPES        = 1;
+	static final int PART_INDEX   = 2;
+	static final int BOUNDS       = 3;
+	static final int VERTEX_INDEX = 4;
+	static final int X            = 5;
+	static final int Y            = 6;
+	static final int Z            = 7;
+	static final int ATTRIBUTES   = 8;
+	static final int INDEX        = 9;
+	static final int NUM_SECTIONS = 10;
+
+	// ----------------------------------- Object variables ------------------------------------
+
+	private PApplet parent;							// Parent sketch.
+	private FeatureMap features;					// Stores feature geometry.
+	private Table attributes;						// Stores feature attributes.
+	private float[] featureBounds;					// Bounding box of each feature.
+	private FeatureIndex featureIndex;				// Spatial index of features (null if not stored).
+	private float minX,minY,maxX,maxY;				// Geographic bounds of the file read.
+	private int numPts,numLns,numPlys;				// Number of features of each type.
+	private boolean usePointLayer;					// Whether points are stored in a point layer.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates a snapshot reader.
+	 *  @param parent Parent sketch that will draw the data to be read.
+	 */
+	public SnapshotReader(PApplet parent)
+	{
+		this.parent = parent;
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Reads the snapshot file with the given name. The file must be on the local file system so
+	 *  that it can be memory-mapped.
+	 *  @param fileName Name of the snapshot file to read.
+	 *  @return True if the snapshot was read successfully.
+	 */
+	public boolean read(String fileName)
+	{
+		FileChannel channel = SketchFiles.openFileChannel(parent, fileName);
+		if (channel == null)
+		{
+			System.err.println("Cannot open snapshot file: "+fileName);
+			return false;
+		}
+
+		try
+		{
+			readSnapshot(channel);
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem reading snapshot file: "+e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/** Determines whether point features are stored in a point layer of the feature map rather than as
+	 *  separate <code>Point</code> objects. Must be set before reading.
+	 *  @param usePointLayer True if points should be stored in a point layer.
+	 */
+	public void setUsePointLayer(boolean usePointLayer)
+	{
+		this.usePointLayer = usePointLayer;
+	}
+
+	/** Provides the features that have been extracted from the snapshot.
+	 *  @return Map that contains the features indexed by ID.
+	 */
+	public FeatureMap getFeatures()
+	{
+		return features;
+	}
+
+	/** Provides the attribute table that has been extracted from the snapshot.
+	 *  @return Attribute table from the snapshot.
+	 */
+	public Table getAttributeTable()
+	{
+		return attributes;
+	}
+
+	/** Provides the bounding boxes of the features in the order they are stored in the map returned
+	 *  by <code>getFeatures()</code>. Each feature is represented by four consecutive values:
+	 *  minX, minY, maxX and maxY. These can be used to build spatial indexes without examining the
+	 *  feature geometry.
+	 *  @return Bounding boxes of all features.
+	 */
+	public float[] getFeatureBounds()
+	{
+		return featureBounds;
+	}
+
+	/** Provides the spatial index of the features read from the snapshot.
+	 *  @return Spatial index of the features, or null if the snapshot does not store one.
+	 */
+	public FeatureIndex getFeatureIndex()
+	{
+		return featureIndex;
+	}
+
+	/** Reports the minimum geographic value in the x-direction.
+	 *  @return minimum x value.
+	 */
+	public float getMinX()
+	{
+		return minX;
+	}
+
+	/** Reports the minimum geographic value in the y-direction.
+	 *  @return minimum y value.
+	 */
+	public float getMinY()
+	{
+		return minY;
+	}
+
+	/** Reports the maximum geographic value in the x-direction.
+	 *  @return maximum x value.
+	 */
+	public float getMaxX()
+	{
+		return maxX;
+	}
+
+	/** Reports the maximum geographic value in the y-direction.
+	 *  @return maximum y value.
+	 */
+	public float getMaxY()
+	{
+		return maxY;
+	}
+
+	/** Reports the number of point objects that have been read by this reader.
+	 *  @return Number of point objects read.
+	 */
+	public int getNumPoints()
+	{
+		return numPts;
+	}
+
+	/** Reports the number of line objects that have been read by this reader.
+	 *  @return Number of line objects read.
+	 */
+	public int getNumLines()
+	{
+		return numLns;
+	}
+
+	/** Reports the number of polygon objects that have been read by this reader.
+	 *  @return Number of polygon objects read.
+	 */
+	public int getNumPolys()
+	{
+		return numPlys;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Reads the header and all sections of the snapshot.
+	 *  @param channel Channel representing the snapshot file.
+	 *  @throws IOException If problem reading the file or it is not a snapshot.
+	 */
+	private void readSnapshot(FileChannel channel) throws IOException
+	{
+		ByteBuffer header = map(channel, 0, HEADER_SIZE);
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+		{
+			throw new IOException("Does not appear to be a geoMap snapshot.");
+		}
+		int version = header.getInt();
+		if ((version < 1) || (version > VERSION))
+		{
+			throw new IOException("Unsupported snapshot version.");
+		}
+
+		int numFeatures = header.getInt();
+		int numParts    = header.getInt();
+		int numVertices = header.getInt();
+		boolean hasZ    = (header.getInt() & 1) != 0;
+		minX = header.getFloat();
+		minY = header.getFloat();
+		maxX = header.getFloat();
+		maxY = header.getFloat();
+		int numRows = header.getInt();
+		int numCols = header.getInt();
+		long[] offsets = new long[NUM_SECTIONS];
+		for (int i=0; i<NUM_SECTIONS; i++)
+		{
+			offsets[i] = header.getLong();
+		}
+
+		// Geometry is copied in bulk from each mapped section.
+		int[] ids = new int[numFeatures];
+		map(channel, offsets[IDS], 4L*numFeatures).asIntBuffer().get(ids);
+		byte[] types = new byte[numFeatures];
+		map(channel, offsets[TYPES], numFeatures).get(types);
+		int[] partIndex = new int[numFeatures+1];
+		map(channel, offsets[PART_INDEX], 4L*(numFeatures+1)).asIntBuffer().get(partIndex);
+		featureBounds = new float[numFeatures*4];
+		map(channel, offsets[BOUNDS], 16L*numFeatures).asFloatBuffer().get(featureBounds);
+		int[] vertexIndex = new int[numParts+1];
+		map(channel, offsets[VERTEX_INDEX], 4L*(numParts+1)).asIntBuffer().get(vertexIndex);
+		float[] x = new float[numVertices];
+		map(channel, offsets[X], 4L*numVertices).asFloatBuffer().get(x);
+		float[] y = new float[numVertices];
+		map(channel, offsets[Y], 4L*numVertices).asFloatBuffer().get(y);
+		float[] z = null;
+		if (hasZ)
+		{
+			z = new float[numVertices];
+			map(channel, offsets[Z], 4L*numVertices).asFloatBuffer().get(z);
+		}
+
+		features = new FeatureMap(ids.length);
+		if (usePointLayer)
+		{
+			features.setPointLayer(new PointLayer(parent));
+		}
+		FeatureType[] featureTypes = FeatureType.values();
+		numPts  = 0;
+		numLns  = 0;
+		numPlys = 0;
+
+		for (int f=0; f<numFeatures; f++)
+		{
+			FeatureType type = featureTypes[types[f]];
+			int firstPart = partIndex[f];
+			int lastPart  = partIndex[f+1];
+			Feature feature = null;
+
+			if (type == FeatureType.POINT)
+			{
+				int v = vertexIndex[firstPart];
+				numPts++;
+				if (usePointLayer)
+				{
+					if (hasZ)
+					{
+						features.getPointLayer().add(ids[f], x[v], y[v], z[v]);
+					}
+					else
+					{
+						features.getPointLayer().add(ids[f], x[v], y[v]);
+					}
+					continue;
+				}
+				feature = hasZ ? new Point(x[v], y[v], z[v], parent) : new Point(x[v], y[v], parent);
+			}
+			else if (type == FeatureType.LINE)
+			{
+				Line line = null;
+				for (int part=firstPart; part<lastPart; part++)
+				{
+					float[] partX = Arrays.copyOfRange(x, vertexIndex[part], vertexIndex[part+1]);
+					float[] partY = Arrays.copyOfRange(y, vertexIndex[part], vertexIndex[part+1]);
+					if (line == null)
+					{
+						line = new Line(partX, partY, parent);
+					}
+					else
+					{
+						line.addPart(partX, partY);
+					}
+				}
+				feature = (line == null) ? new Line(new float[0], new float[0], parent) : line;
+				numLns++;
+			}
+			else if (type == FeatureType.MULTI_POINT)
+			{
+				int start = vertexIndex[firstPart];
+				int end   = vertexIndex[firstPart+1];
+				feature = new MultiPoint(Arrays.copyOfRange(x,start,end), Arrays.copyOfRange(y,start,end),
+				                         hasZ ? Arrays.copyOfRange(z,start,end) : null, parent);
+				numPts++;
+			}
+			else if (type == FeatureType.POLYGON)
+			{
+				Polygon poly = null;
+				for (int part=firstPart; part<lastPart; part++)
+				{
+					float[] partX = Arrays.copyOfRange(x, vertexIndex[part], vertexIndex[part+1]);
+					float[] partY = Arrays.copyOfRange(y, vertexIndex[part], vertexIndex[part+1]);
+					if (poly == null)
+					{
+						poly = new Polygon(partX, partY, parent);
+					}
+					else
+					{
+						poly.addPart(partX, partY);
+					}
+				}
+				feature = (poly == null) ? new Polygon(parent) : poly;
+				numPlys++;
+			}
+			features.put(ids[f], feature);
+		}
+
+		featureIndex = null;
+		if (version >= 2)
+		{
+			int[] indexOrder = new int[numFeatures];
+			map(channel, offsets[INDEX], 4L*numFeatures).asIntBuffer().get(indexOrder);
+			readIndex(indexOrder, ids, types);
+		}
+
+		readAttributes(channel, offsets[ATTRIBUTES], numRows, numCols);
+	}
+
+	/** Recreates the spatial index of the features from the stored order of its features. If the order
+	 *  is not valid, no index is created.
+	 *  @param indexOrder Number of each point feature in KD-tree order followed by each other feature in R-tree order.
+	 *  @param ids ID of each feature.
+	 *  @param types Type of each feature.
+	 */
+	private void readIndex(int[] indexOrder, int[] ids, byte[] types)
+	{
+		int numFeatures = ids.length;
+		int numIndexPoints = 0;
+		for (int f=0; f<numFeatures; f++)
+		{
+			if (types[f] == FeatureType.POINT.ordinal())
+			{
+				numIndexPoints++;
+			}
+		}
+
+		int[] pointIDs = new int[numIndexPoints];
+		int[] leafIDs = new int[numFeatures-numIndexPoints];
+		float[] leafBounds = new float[leafIDs.length*4];
+		boolean[] isIndexed = new boolean[numFeatures];
+		for (int i=0; i<numFeatures; i++)
+		{
+			int f = indexOrder[i];
+			if ((f < 0) || (f >= numFeatures) || isIndexed[f] ||
+			    ((types[f] == FeatureType.POINT.ordinal()) != (i < numIndexPoints)))
+			{
+				System.err.println("Spatial index stored in snapshot is not valid, so ignoring it.");
+				return;
+			}
+			isIndexed[f] = true;
+			if (i < numIndexPoints)
+			{
+				pointIDs[i] = ids[f];
+			}
+			else
+			{
+				int leaf = i-numIndexPoints;
+				leafIDs[leaf] = ids[f];
+				System.arraycopy(featureBounds, f*4, leafBounds, leaf*4, 4);
+			}
+		}
+		featureIndex = new FeatureIndex(features, pointIDs, leafIDs, leafBounds);
+	}
+
+	/** Reads the typed attribute columns into a new attribute table.
+	 *  @param channel Channel representing the snapshot file.
+	 *  @param offset Position in the file of the first column.
+	 *  @param numRows Number of rows in the table.
+	 *  @param numCols Number of columns in the table.
+	 *  @throws IOException If problem reading the file.
+	 */
+	private void readAttributes(FileChannel channel, long offset, int numRows, int numCols) throws IOException
+	{
+		attributes = new Table();
+		if (numCols == 0)
+		{
+			return;
+		}
+		ByteBuffer data = map(channel, offset, channel.size()-offset);
+
+		// Find the type, title and position of each column before building the table.
+		int[] types = new int[numCols];
+		String[] titles = new String[numCols];
+		int[] positions = new int[numCols];
+		for (int col=0; col<numCols; col++)
+		{
+			types[col] = data.getInt();
+			byte[] title = new byte[data.getInt()];
+			data.get(title);
+			titles[col] = new String(title, StandardCharsets.UTF_8);
+			align(data);
+			positions[col] = data.position();
+
+			switch (types[col])
+			{
+				case Table.INT:
+				case Table.FLOAT:
+					data.position(data.position()+4*numRows);
+					break;
+
+				case Table.LONG:
+				case Table.DOUBLE:
+					data.position(data.position()+8*numRows);
+					break;
+
+				default:
+					int textLength = data.getInt(data.position()+4*numRows);
+					data.position(data.position()+4*(numRows+1)+textLength);
+					break;
+			}
+			align(data);
+		}
+
+		attributes.setColumnCount(numCols);
+		attributes.setColumnTitles(titles);
+		for (int col=0; col<numCols; col++)
+		{
+			attributes.setColumnType(col, (types[col] == Table.CATEGORY) ? Table.STRING : types[col]);
+		}
+		attributes.setRowCount(numRows);
+
+		for (int col=0; col<numCols; col++)
+		{
+			data.position(positions[col]);
+			switch (types[col])
+			{
+				case Table.INT:
+					int[] intValues = new int[numRows];
+					data.asIntBuffer().get(intValues);
+					for (int row=0; row<numRows; row++)
+					{
+						attributes.setInt(row, col, intValues[row]);
+					}
+					break;
+
+				case Table.LONG:
+					long[] longValues = new long[numRows];
+					data.asLongBuffer().get(longValues);
+					for (int row=0; row<numRows; row++)
+					{
+						attributes.setLong(row, col, longValues[row]);
+					}
+					break;
+
+				case Table.FLOAT:
+					float[] floatValues = new float[numRows];
+					data.asFloatBuffer().get(floatValues);
+					for (int row=0; row<numRows; row++)
+					{
+						attributes.setFloat(row, col, floatValues[row]);
+					}
+					break;
+
+				case Table.DOUBLE:
+					double[] doubleValues = new double[numRows];
+					data.asDoubleBuffer().get(doubleValues);
+					for (int row=0; row<numRows; row++)
+					{
+						attributes.setDouble(row, col, doubleValues[row]);
+					}
+					break;
+
+				default:
+					int[] textOffsets = new int[numRows+1];
+					data.asIntBuffer().get(textOffsets);
+					byte[] text = new byte[textOffsets[numRows]];
+					data.position(data.position()+4*(numRows+1));
+					data.get(text);
+					for (int row=0; row<numRows; row++)
+					{
+						attributes.setString(row, col, new String(text, textOffsets[row], textOffsets[row+1]-textOffsets[row], StandardCharsets.UTF_8));
+					}
+					break;
+			}
+		}
+	}
+
+	/** Memory-maps the given section of the file.
+	 *  @param channel Channel representing the file.
+	 *  @param offset Start of the section in bytes.
+	 *  @param size Size of the section in bytes.
+	 *  @return Little-endian buffer representing the section.
+	 *  @throws IOException If the section cannot be mapped.
+	 */
+	private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException
+	{
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IOException("Snapshot section too large to map.");
+		}
+		ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		section.order(ByteOrder.LITTLE_ENDIAN);
+		return section;
+	}
+
+	/** Moves the position of the given buffer forward to the next multiple of 8 bytes.
+	 *  @param data Buffer to align.
+	 */
+	private static void align(ByteBuffer data)
+	{
+		data.position((data.position()+7) & ~7);
+	}
+}
@@ -0,0 +1,535 @@
+package org.gicentre.geomap.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureIndex;
+import org.gicentre.geomap.FeatureMap;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.Polygon;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  **************************************************************************************************
+/** Writes a geoMap object as a snapshot file. A snapshot stores the already decoded geometry,
+ *  feature bounding boxes, spatial index and typed attribute columns of a geoMap in a single binary
+ *  file laid out as a set of aligned primitive arrays. This allows <code>SnapshotReader</code> to memory-map the
+ *  file and copy each array directly into memory, avoiding the parsing needed when reading shapefiles.
+ *  See <code>SnapshotReader</code> for a description of the file layout.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class SnapshotWriter
+{
+	// ----------------------------------- Object variables ------------------------------------
+
+	private GeoMap geoMap;						// Object to write as a snapshot.
+	private PApplet parent;						// Parent sketch.
+	private FileChannel channel;				// Channel being written.
+	private ByteBuffer buffer;					// Output buffer (little-endian).
+	private long filePointer;					// Number of bytes written or buffered so far.
+
+	private static final int BUFFER_SIZE = 256*1024;
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates the object capable of writing the given geoMap object as a snapshot.
+	 *  @param geoMap geoMap object to write.
+	 *  @param parent Parent sketch.
+	 */
+	public SnapshotWriter(GeoMap geoMap, PApplet parent)
+	{
+		this.geoMap = geoMap;
+		this.parent = parent;
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Writes the geoMap object supplied to the constructor as a snapshot file with the given name.
+	 *  @param fileName Name of the snapshot file to create.
+	 *  @return True if written successfully.
+	 */
+	public boolean write(String fileName)
+	{
+		channel = SketchFiles.openOutput(parent, fileName);
+		if (channel == null)
+		{
+			System.err.println("Cannot create snapshot file: "+fileName);
+			return false;
+		}
+
+		try
+		{
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			filePointer = 0;
+			writeSnapshot();
+			flush();
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem writing snapshot file: "+e.getMessage());
+			return false;
+		}
+		finally
+		{
+			buffer = null;
+			channel = null;
+		}
+		return true;
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Writes the header and all sections of the snapshot.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void writeSnapshot() throws IOException
+	{
+		// Flatten the features into columnar arrays.
+		FeatureMap features = geoMap.getFeatureMap();
+		int numFeatures = features.size();
+		int[] ids = new int[numFeatures];
+		byte[] types = new byte[numFeatures];
+		int[] partIndex = new int[numFeatures+1];
+		float[] bounds = new float[numFeatures*4];
+		ArrayList<float[]> xParts = new ArrayList<float[]>();
+		ArrayList<float[]> yParts = new ArrayList<float[]>();
+		boolean hasZ = false;
+
+		int f=0;
+		for (Map.Entry<Integer,Feature> entry : features.entrySet())
+		{
+			Feature feature = entry.getValue();
+			ids[f]   = entry.getKey().intValue();
+			types[f] = (byte)feature.getType().ordinal();
+			partIndex[f] = xParts.size();
+
+			if (feature.getType() == FeatureType.POINT)
+			{
+				Point point = (Point)feature;
+				xParts.add(new float[] {point.getCoords().x});
+				yParts.add(new float[] {point.getCoords().y});
+				hasZ |= (point.getCoords().z != 0);
+			}
+			else if (feature.getType() == FeatureType.LINE)
+			{
+				Line line = (Line)feature;
+				float[] x = line.getXCoords();
+				float[] y = line.getYCoords();
+				ArrayList<Integer> pointers = line.getSubPartPointers();
+				for (int part=0; part<pointers.size(); part++)
+				{
+					int start = pointers.get(part).intValue();
+					int end   = (part == pointers.size()-1) ? x.length : pointers.get(part+1).intValue();
+					xParts.add(Arrays.copyOfRange(x, start, end));
+					yParts.add(Arrays.copyOfRange(y, start, end));
+				}
+			}
+			else if (feature.getType() == FeatureType.MULTI_POINT)
+			{
+				MultiPoint points = (MultiPoint)feature;
+				xParts.add(points.getXCoords());
+				yParts.add(points.getYCoords());
+				hasZ |= (points.getZCoords() != null);
+			}
+			else if (feature.getType() == FeatureType.POLYGON)
+			{
+				Polygon poly = (Polygon)feature;
+				float[] x = poly.getXCoords();
+				float[] y = poly.getYCoords();
+				ArrayList<Integer> pointers = poly.getSubPartPointers();
+				for (int part=0; part<pointers.size(); part++)
+				{
+					int start = pointers.get(part).intValue();
+					int end   = (part == pointers.size()-1) ? x.length : pointers.get(part+1).intValue();
+					xParts.add(Arrays.copyOfRange(x, start, end));
+					yParts.add(Arrays.copyOfRange(y, start, end));
+				}
+			}
+			f++;
+		}
+		partIndex[numFeatures] = xParts.size();
+
+		int numParts = xParts.size();
+		int[] vertexIndex = new int[numParts+1];
+		for (int part=0; part<numParts; part++)
+		{
+			vertexIndex[part+1] = vertexIndex[part] + xParts.get(part).length;
+		}
+		int numVertices = vertexIndex[numParts];
+
+		// Bounding box of each feature.
+		for (f=0; f<numFeatures; f++)
+		{
+			float minX=Float.MAX_VALUE, minY=Float.MAX_VALUE, maxX=-Float.MAX_VALUE, maxY=-Float.MAX_VALUE;
+			for (int part=partIndex[f]; part<partIndex[f+1]; part++)
+			{
+				float[] x = xParts.get(part);
+				float[] y = yParts.get(part);
+				for (int i=0; i<x.length; i++)
+				{
+					minX = Math.min(minX, x[i]);
+					maxX = Math.max(maxX, x[i]);
+					minY = Math.min(minY, y[i]);
+					maxY = Math.max(maxY, y[i]);
+				}
+			}
+			bounds[f*4]   = minX;
+			bounds[f*4+1] = minY;
+			bounds[f*4+2] = maxX;
+			bounds[f*4+3] = maxY;
+		}
+
+		// Order of features in the spatial index, so the index need not be sorted again when read.
+		int[] indexOrder = getIndexOrder(ids);
+
+		Table attributes = geoMap.getAttributeTable();
+		int numRows = (attributes == null) ? 0 : attributes.getRowCount();
+		int numCols = (attributes == null) ? 0 : attributes.getColumnCount();
+
+		// Section offsets follow the fixed size header and are each aligned to 8 bytes.
+		long[] offsets = new long[SnapshotReader.NUM_SECTIONS];
+		long pos = SnapshotReader.HEADER_SIZE;
+		offsets[SnapshotReader.IDS]          = pos;  pos = align(pos + 4L*numFeatures);
+		offsets[SnapshotReader.TYPES]        = pos;  pos = align(pos + numFeatures);
+		offsets[SnapshotReader.PART_INDEX]   = pos;  pos = align(pos + 4L*(numFeatures+1));
+		offsets[SnapshotReader.BOUNDS]       = pos;  pos = align(pos + 16L*numFeatures);
+		offsets[SnapshotReader.VERTEX_INDEX] = pos;  pos = align(pos + 4L*(numParts+1));
+		offsets[SnapshotReader.X]            = pos;  pos = align(pos + 4L*numVertices);
+		offsets[SnapshotReader.Y]            = pos;  pos = align(pos + 4L*numVertices);
+		offsets[SnapshotReader.Z]            = pos;  pos = align(pos + (hasZ ? 4L*numVertices : 0));
+		offsets[SnapshotReader.INDEX]        = pos;  pos = align(pos + 4L*numFeatures);
+		offsets[SnapshotReader.ATTRIBUTES]   = pos;
+
+		// Header
+		buffer.put(SnapshotReader.MAGIC);
+		buffer.putInt(SnapshotReader.VERSION);
+		buffer.putInt(numFeatures);
+		buffer.putInt(numParts);
+		buffer.putInt(numVertices);
+		buffer.putInt(hasZ ? 1 : 0);
+		buffer.putFloat(geoMap.getMinGeoX());
+		buffer.putFloat(geoMap.getMinGeoY());
+		buffer.putFloat(geoMap.getMaxGeoX());
+		buffer.putFloat(geoMap.getMaxGeoY());
+		buffer.putInt(numRows);
+		buffer.putInt(numCols);
+		for (int i=0; i<offsets.length; i++)
+		{
+			buffer.putLong(offsets[i]);
+		}
+		filePointer = buffer.position();
+		while (filePointer < SnapshotReader.HEADER_SIZE)
+		{
+			buffer.put((byte)0);
+			filePointer++;
+		}
+
+		// Geometry sections.
+		putInts(ids, numFeatures);
+		pad();
+		for (f=0; f<numFeatures; f++)
+		{
+			ensure(1);
+			buffer.put(types[f]);
+			filePointer++;
+		}
+		pad();
+		putInts(partIndex, numFeatures+1);
+		pad();
+		putFloats(bounds, 0, bounds.length);
+		pad();
+		putInts(vertexIndex, numParts+1);
+		pad();
+		for (int part=0; part<numParts; part++)
+		{
+			float[] x = xParts.get(part);
+			putFloats(x, 0, x.length);
+		}
+		pad();
+		for (int part=0; part<numParts; part++)
+		{
+			float[] y = yParts.get(part);
+			putFloats(y, 0, y.length);
+		}
+		pad();
+		if (hasZ)
+		{
+			for (f=0; f<numFeatures; f++)
+			{
+				// Only points and multipoints store z values, so other features are given zeros.
+				Feature feature = features.get(ids[f]);
+				float[] z = (feature.getType() == FeatureType.MULTI_POINT) ? ((MultiPoint)feature).getZCoords() : null;
+				for (int part=partIndex[f]; part<partIndex[f+1]; part++)
+				{
+					int numInPart = xParts.get(part).length;
+					for (int i=0; i<numInPart; i++)
+					{
+						ensure(4);
+						if (feature.getType() == FeatureType.POINT)
+						{
+							buffer.putFloat(((Point)feature).getCoords().z);
+						}
+						else
+						{
+							buffer.putFloat((z == null) ? 0 : z[i]);
+						}
+						filePointer += 4;
+					}
+				}
+			}
+			pad();
+		}
+		putInts(indexOrder, numFeatures);
+		pad();
+
+		// Attribute columns.
+		for (int col=0; col<numCols; col++)
+		{
+			writeColumn(attributes, col);
+		}
+	}
+
+	/** Finds the order in which features are held in the geoMap's spatial index.
+	 *  @param ids ID of each feature in the order they are written.
+	 *  @return Position in the snapshot of each point feature in KD-tree order, followed by the position
+	 *          of each other feature in R-tree order.
+	 */
+	private int[] getIndexOrder(int[] ids)
+	{
+		// Each ID is combined with its position and sorted, so positions can be found by a binary search.
+		long[] positions = new long[ids.length];
+		for (int f=0; f<ids.length; f++)
+		{
+			positions[f] = ((long)ids[f] << 32) | f;
+		}
+		Arrays.sort(positions);
+
+		FeatureIndex index = geoMap.getFeatureIndex();
+		int[] pointIDs = index.getPointIDs();
+		int[] featureIDs = index.getFeatureIDs();
+		int[] order = new int[ids.length];
+		for (int i=0; i<pointIDs.length+featureIDs.length; i++)
+		{
+			int id = (i < pointIDs.length) ? pointIDs[i] : featureIDs[i-pointIDs.length];
+			int found = Arrays.binarySearch(positions, (long)id << 32);
+			order[i] = (int)positions[(found >= 0) ? found : -found-1];
+		}
+		return order;
+	}
+
+	/** Writes a single typed attribute column.
+	 *  @param table Table containing the column.
+	 *  @param col Column to write.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void writeColumn(Table table, int col) throws IOException
+	{
+		int numRows = table.getRowCount();
+		int type = table.getColumnType(col);
+		String[] titles = table.getColumnTitles();
+		byte[] title = new byte[0];
+		if ((titles != null) && (col < titles.length) && (titles[col] != null))
+		{
+			title = titles[col].getBytes(StandardCharsets.UTF_8);
+		}
+
+		ensure(8);
+		buffer.putInt(type);
+		buffer.putInt(title.length);
+		filePointer += 8;
+		putBytes(title);
+		pad();
+
+		switch (type)
+		{
+			case Table.INT:
+				for (int row=0; row<numRows; row++)
+				{
+					ensure(4);
+					buffer.putInt(table.getInt(row, col));
+					filePointer += 4;
+				}
+				break;
+
+			case Table.LONG:
+				for (int row=0; row<numRows; row++)
+				{
+					ensure(8);
+					buffer.putLong(table.getLong(row, col));
+					filePointer += 8;
+				}
+				break;
+
+			case Table.FLOAT:
+				for (int row=0; row<numRows; row++)
+				{
+					ensure(4);
+					buffer.putFloat(table.getFloat(row, col));
+					filePointer += 4;
+				}
+				break;
+
+			case Table.DOUBLE:
+				for (int row=0; row<numRows; row++)
+				{
+					ensure(8);
+					buffer.putDouble(table.getDouble(row, col));
+					filePointer += 8;
+				}
+				break;
+
+			default:
+				// Strings (and categories) are stored as an offset array followed by UTF-8 text.
+				byte[][] text = new byte[numRows][];
+				int[] textOffsets = new int[numRows+1];
+				for (int row=0; row<numRows; row++)
+				{
+					String value = table.getString(row, col);
+					text[row] = (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+					textOffsets[row+1] = textOffsets[row] + text[row].length;
+				}
+				putInts(textOffsets, numRows+1);
+				for (int row=0; row<numRows; row++)
+				{
+					putBytes(text[row]);
+				}
+				break;
+		}
+		pad();
+	}
+
+	/** Writes the given number of integers from the given array.
+	 *  @param values Values to write.
+	 *  @param numValues Number of values to write.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void putInts(int[] values, int numValues) throws IOException
+	{
+		int i=0;
+		while (i < numValues)
+		{
+			int chunk = Math.min(numValues-i, BUFFER_SIZE/4);
+			ensure(chunk*4);
+			buffer.asIntBuffer().put(values, i, chunk);
+			buffer.position(buffer.position()+chunk*4);
+			filePointer += chunk*4L;
+			i += chunk;
+		}
+	}
+
+	/** Writes a range of floating point values from the given array.
+	 *  @param values Values to write.
+	 *  @param start Index of the first value to write.
+	 *  @param numValues Number of values to write.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void putFloats(float[] values, int start, int numValues) throws IOException
+	{
+		int i=start;
+		int end = start+numValues;
+		while (i < end)
+		{
+			int chunk = Math.min(end-i, BUFFER_SIZE/4);
+			ensure(chunk*4);
+			buffer.asFloatBuffer().put(values, i, chunk);
+			buffer.position(buffer.position()+chunk*4);
+			filePointer += chunk*4L;
+			i += chunk;
+		}
+	}
+
+	/** Writes the given array of bytes.
+	 *  @param values Bytes to write.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void putBytes(byte[] values) throws IOException
+	{
+		int i=0;
+		while (i < values.length)
+		{
+			int chunk = Math.min(values.length-i, BUFFER_SIZE);
+			ensure(chunk);
+			buffer.put(values, i, chunk);
+			filePointer += chunk;
+			i += chunk;
+		}
+	}
+
+	/** Writes zeros until the file position is a multiple of 8 bytes.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void pad() throws IOException
+	{
+		long aligned = align(filePointer);
+		ensure(8);
+		while (filePointer < aligned)
+		{
+			buffer.put((byte)0);
+			filePointer++;
+		}
+	}
+
+	/** Ensures there is space in the output buffer for the given number of bytes, flushing it if necessary.
+	 *  @param numBytes Number of bytes required.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void ensure(int numBytes) throws IOException
+	{
+		if (buffer.remaining() < numBytes)
+		{
+			flush();
+		}
+	}
+
+	/** Writes the contents of the output buffer to the file.
+	 *  @throws IOException If problem writing the file.
+	 */
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/** Rounds the given file position up to the next multiple of 8 bytes.
+	 *  @param pos Position to align.
+	 *  @return Aligned position.
+	 */
+	private static long align(long pos)
+	{
+		return (pos+7) & ~7L;
+	}
+}
@@ -0,0 +1,355 @@
+package org.gicentre.geomap.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//  **************************************************************************************************
+/** Geometric operations used when cutting features into vector tiles. Coordinates are in tile units
+ *  and each tile is clipped to a square region that includes a buffer around the tile itself.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+final class TileGeometry
+{
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Utility class with static methods only, so should not be instantiated.
+	 */
+	private TileGeometry()
+	{
+		// Do nothing.
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Clips a closed ring to the square with the given limits using Sutherland-Hodgman clipping.
+	 *  The ring should not repeat its first vertex at the end.
+	 *  @param x x coordinates of the ring.
+	 *  @param y y coordinates of the ring.
+	 *  @param n Number of vertices in the ring.
+	 *  @param min Minimum x and y coordinate of the clipping square.
+	 *  @param max Maximum x and y coordinate of the clipping square.
+	 *  @return Clipped x and y coordinates, or null if nothing of the ring remains.
+	 */
+	static double[][] clipRing(double[] x, double[] y, int n, double min, double max)
+	{
+		double[][] ring = {Arrays.copyOf(x, n), Arrays.copyOf(y, n)};
+		int size = n;
+		for (int edge=0; (edge<4) && (size>0); edge++)
+		{
+			double[] outX = new double[size*2];
+			double[] outY = new double[size*2];
+			int outSize = 0;
+			double[] inX = ring[0];
+			double[] inY = ring[1];
+
+			for (int i=0; i<size; i++)
+			{
+				int prev = (i == 0) ? size-1 : i-1;
+				boolean inside = isInside(inX[i], inY[i], edge, min, max);
+				boolean prevInside = isInside(inX[prev], inY[prev], edge, min, max);
+				if (inside != prevInside)
+				{
+					double limit = ((edge == 0) || (edge == 2)) ? min : max;
+					double t = (edge < 2) ? (limit-inX[prev])/(inX[i]-inX[prev]) : (limit-inY[prev])/(inY[i]-inY[prev]);
+					outX[outSize] = (edge < 2) ? limit : inX[prev] + t*(inX[i]-inX[prev]);
+					outY[outSize] = (edge < 2) ? inY[prev] + t*(inY[i]-inY[prev]) : limit;
+					outSize++;
+				}
+				if (inside)
+				{
+					outX[outSize] = inX[i];
+					outY[outSize] = inY[i];
+					outSize++;
+				}
+			}
+			ring[0] = outX;
+			ring[1] = outY;
+			size = outSize;
+		}
+		if (size < 3)
+		{
+			return null;
+		}
+		return new double[][] {Arrays.copyOf(ring[0], size), Arrays.copyOf(ring[1], size)};
+	}
+
+	/** Clips a line to the square with the given limits using Liang-Barsky clipping. A line that leaves
+	 *  and re-enters the square is split into separate pieces.
+	 *  @param x x coordinates of the line.
+	 *  @param y y coordinates of the line.
+	 *  @param n Number of vertices in the line.
+	 *  @param min Minimum x and y coordinate of the clipping square.
+	 *  @param max Maximum x and y coordinate of the clipping square.
+	 *  @return Pieces of the line within the square, each holding x and y coordinates.
+	 */
+	static ArrayList<double[][]> clipLine(double[] x, double[] y, int n, double min, double max)
+	{
+		ArrayList<double[][]> pieces = new ArrayList<double[][]>();
+		double[] pieceX = new double[n];
+		double[] pieceY = new double[n];
+		int pieceSize = 0;
+
+		for (int i=1; i<n; i++)
+		{
+			double x1 = x[i-1], y1 = y[i-1];
+			double dx = x[i]-x1, dy = y[i]-y1;
+			double[] p = {-dx, dx, -dy, dy};
+			double[] q = {x1-min, max-x1, y1-min, max-y1};
+			double t0 = 0, t1 = 1;
+			boolean visible = true;
+			for (int edge=0; edge<4; edge++)
+			{
+				if (p[edge] == 0)
+				{
+					if (q[edge] < 0)
+					{
+						visible = false;
+						break;
+					}
+				}
+				else
+				{
+					double t = q[edge]/p[edge];
+					if (p[edge] < 0)
+					{
+						t0 = Math.max(t0, t);
+					}
+					else
+					{
+						t1 = Math.min(t1, t);
+					}
+				}
+			}
+			if (!visible || (t0 > t1))
+			{
+				continue;
+			}
+
+			if ((pieceSize == 0) || (t0 > 0))
+			{
+				addPiece(pieces, pieceX, pieceY, pieceSize);
+				pieceX[0] = x1 + t0*dx;
+				pieceY[0] = y1 + t0*dy;
+				pieceSize = 1;
+			}
+			if (pieceSize+1 > pieceX.length)
+			{
+				pieceX = Arrays.copyOf(pieceX, pieceSize*2);
+				pieceY = Arrays.copyOf(pieceY, pieceSize*2);
+			}
+			pieceX[pieceSize] = x1 + t1*dx;
+			pieceY[pieceSize] = y1 + t1*dy;
+			pieceSize++;
+			if (t1 < 1)
+			{
+				addPiece(pieces, pieceX, pieceY, pieceSize);
+				pieceSize = 0;
+			}
+		}
+		addPiece(pieces, pieceX, pieceY, pieceSize);
+		return pieces;
+	}
+
+	/** Simplifies a line or ring in place using the Douglas-Peucker algorithm. The first and last
+	 *  vertices are always kept.
+	 *  @param x x coordinates to simplify, replaced by those of the vertices kept.
+	 *  @param y y coordinates to simplify, replaced by those of the vertices kept.
+	 *  @param n Number of vertices.
+	 *  @param tolerance Maximum distance of a removed vertex from the simplified line.
+	 *  @return Number of vertices kept.
+	 */
+	static int simplify(double[] x, double[] y, int n, double tolerance)
+	{
+		if ((n < 3) || (tolerance <= 0))
+		{
+			return n;
+		}
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n-1] = true;
+		double toleranceSq = tolerance*tolerance;
+
+		// Spans still to be simplified are stored as pairs of start and end vertices.
+		int[] stack = new int[64];
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		stack[stackSize++] = n-1;
+		while (stackSize > 0)
+		{
+			int last  = stack[--stackSize];
+			int first = stack[--stackSize];
+			double maxDistSq = 0;
+			int furthest = -1;
+			for (int i=first+1; i<last; i++)
+			{
+				double distSq = getSegmentDistanceSq(x[i], y[i], x[first], y[first], x[last], y[last]);
+				if (distSq > maxDistSq)
+				{
+					maxDistSq = distSq;
+					furthest = i;
+				}
+			}
+			if (maxDistSq > toleranceSq)
+			{
+				keep[furthest] = true;
+				if (stackSize+4 > stack.length)
+				{
+					stack = Arrays.copyOf(stack, stack.length*2);
+				}
+				stack[stackSize++] = first;
+				stack[stackSize++] = furthest;
+				stack[stackSize++] = furthest;
+				stack[stackSize++] = last;
+			}
+		}
+
+		int numKept = 0;
+		for (int i=0; i<n; i++)
+		{
+			if (keep[i])
+			{
+				x[numKept] = x[i];
+				y[numKept] = y[i];
+				numKept++;
+			}
+		}
+		return numKept;
+	}
+
+	/** Rounds coordinates to integer tile units, removing any vertex that rounds to the same position
+	 *  as the one before it.
+	 *  @param x x coordinates to round.
+	 *  @param y y coordinates to round.
+	 *  @param n Number of vertices.
+	 *  @param outX Array in which to store the rounded x coordinates.
+	 *  @param outY Array in which to store the rounded y coordinates.
+	 *  @return Number of vertices stored.
+	 */
+	static int quantise(double[] x, double[] y, int n, int[] outX, int[] outY)
+	{
+		int numOut = 0;
+		for (int i=0; i<n; i++)
+		{
+			int qx = (int)Math.round(x[i]);
+			int qy = (int)Math.round(y[i]);
+			if ((numOut == 0) || (qx != outX[numOut-1]) || (qy != outY[numOut-1]))
+			{
+				outX[numOut] = qx;
+				outY[numOut] = qy;
+				numOut++;
+			}
+		}
+		return numOut;
+	}
+
+	/** Reports twice the signed area of a ring with integer coordinates. When y increases downwards,
+	 *  the area is positive for a ring that is clockwise on screen.
+	 *  @param x x coordinates of the ring.
+	 *  @param y y coordinates of the ring.
+	 *  @param n Number of vertices in the ring.
+	 *  @return Twice the signed area of the ring.
+	 */
+	static long getDoubleArea(int[] x, int[] y, int n)
+	{
+		long area = 0;
+		for (int i=0; i<n; i++)
+		{
+			int next = (i == n-1) ? 0 : i+1;
+			area += (long)x[i]*y[next] - (long)x[next]*y[i];
+		}
+		return area;
+	}
+
+	/** Reverses the order of the first n vertices in the given arrays.
+	 *  @param x x coordinates to reverse.
+	 *  @param y y coordinates to reverse.
+	 *  @param n Number of vertices.
+	 */
+	static void reverse(int[] x, int[] y, int n)
+	{
+		for (int i=0, j=n-1; i<j; i++, j--)
+		{
+			int temp = x[i];
+			x[i] = x[j];
+			x[j] = temp;
+			temp = y[i];
+			y[i] = y[j];
+			y[j] = temp;
+		}
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Determines whether a point lies on the inner side of one edge of the clipping square.
+	 *  @param x x coordinate of the point.
+	 *  @param y y coordinate of the point.
+	 *  @param edge Edge to test: 0 for left, 1 right, 2 top and 3 bottom.
+	 *  @param min Minimum x and y coordinate of the clipping square.
+	 *  @param max Maximum x and y coordinate of the clipping square.
+	 *  @return True if the point is inside the edge.
+	 */
+	private static boolean isInside(double x, double y, int edge, double min, double max)
+	{
+		switch (edge)
+		{
+			case 0:
+				return x >= min;
+			case 1:
+				return x <= max;
+			case 2:
+				return y >= min;
+			default:
+				return y <= max;
+		}
+	}
+
+	/** Adds a copy of a clipped piece of line to the given list if it contains at least two vertices.
+	 *  @param pieces List of pieces.
+	 *  @param x x coordinates of the piece.
+	 *  @param y y coordinates of the piece.
+	 *  @param n Number of vertices in the piece.
+	 */
+	private static void addPiece(ArrayList<double[][]> pieces, double[] x, double[] y, int n)
+	{
+		if (n >= 2)
+		{
+			pieces.add(new double[][] {Arrays.copyOf(x, n), Arrays.copyOf(y, n)});
+		}
+	}
+
+	/** Reports the squared distance between a point and a line segment.
+	 *  @param px x coordinate of the point.
+	 *  @param py y coordinate of the point.
+	 *  @param x1 x coordinate of the start of the segment.
+	 *  @param y1 y coordinate of the start of the segment.
+	 *  @param x2 x coordinate of the end of the segment.
+	 *  @param y2 y coordinate of the end of the segment.
+	 *  @return Squared distance from the point to the nearest point on the segment.
+	 */
+	private static double getSegmentDistanceSq(double px, double py, double x1, double y1, double x2, double y2)
+	{
+		double dx = x2-x1;
+		double dy = y2-y1;
+		double lengthSq = dx*dx + dy*dy;
+		double t = (lengthSq == 0) ? 0 : Math.max(0, Math.min(1, ((px-x1)*dx + (py-y1)*dy)/lengthSq));
+		double ex = px - (x1 + t*dx);
+		double ey = py - (y1 + t*dy);
+		return ex*ex + ey*ey;
+	}
+}
@@ -0,0 +1,1020 @@
+package org.gicentre.geomap.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.Polygon;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  **************************************************************************************************
+/** Writes the contents of a geoMap object as a pyramid of Mapbox Vector Tiles. For each zoom level in
+ *  the requested range, every feature is clipped to each tile it covers, simplified, and its
+ *  coordinates rounded to the tile's grid before being encoded as a single tile layer along with its
+ *  attributes. Tiles are stored in a directory tree of the form <code>z/x/y.pbf</code>, with a
+ *  <code>metadata.json</code> file describing the layer, in the same way as MBTiles directory output.
+ *  Tiles are generated in parallel: each tile is a task that, once written, splits the features it
+ *  contains between the four tiles below it at the next zoom level.
+ *  <br>
+ *  By default zoom level 0 is a single tile covering the square that encloses the geoMap's bounds, so
+ *  that any projected or unprojected data may be tiled. If the geoMap holds longitude and latitude
+ *  coordinates, <code>setWebMercator(true)</code> projects them so tiles match those of web maps.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  **************************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class VectorTileWriter
+{
+	// ----------------------------------- Class variables ------------------------------------
+
+	private static final int MVT_VERSION = 2;			// Version of the vector tile specification.
+	private static final int POINT = 1;					// Vector tile geometry types.
+	private static final int LINESTRING = 2;
+	private static final int POLYGON = 3;
+	private static final int MOVE_TO = 1;				// Vector tile geometry commands.
+	private static final int LINE_TO = 2;
+	private static final int CLOSE_PATH = 7;
+	private static final double MAX_LATITUDE = 85.0511287798;
+
+	// ----------------------------------- Object variables ------------------------------------
+
+	private GeoMap geoMap;					// geoMap object to write.
+	private PApplet parent;					// Parent sketch.
+	private int minZoom, maxZoom;			// Range of zoom levels to write.
+	private String layerName;				// Name of the layer in each tile, or null to use the directory name.
+	private int extent;						// Size of each tile in tile units.
+	private int buffer;						// Width of the region around each tile included in it, in tile units.
+	private double tolerance;				// Simplification tolerance in tile units.
+	private boolean webMercator;			// Determines if coordinates are projected from longitude and latitude.
+	private int parallelism;				// Number of threads used to write tiles.
+
+	private String directoryName;			// Directory being written.
+	private String[] keys;					// Attribute column titles, excluding the ID column.
+	private TileFeature[] tileFeatures;		// Features being tiled.
+	private AtomicInteger numTiles;			// Number of tiles written.
+	private volatile IOException error;		// First problem writing a tile, if any.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates the object capable of writing the given geoMap object as vector tiles. By default,
+	 *  zoom levels 0 to 5 are written, with tiles of 4096 units, a buffer of 64 units and a
+	 *  simplification tolerance of 1 unit.
+	 *  @param geoMap geoMap object to write.
+	 *  @param parent Parent sketch.
+	 */
+	public VectorTileWriter(GeoMap geoMap, PApplet parent)
+	{
+		this.geoMap = geoMap;
+		this.parent = parent;
+		this.minZoom = 0;
+		this.maxZoom = 5;
+		this.extent = 4096;
+		this.buffer = 64;
+		this.tolerance = 1;
+		this.webMercator = false;
+		this.parallelism = Runtime.getRuntime().availableProcessors();
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Sets the range of zoom levels to write. Zoom level 0 is a single tile and each subsequent
+	 *  level has twice as many tiles in each direction.
+	 *  @param minZoom Lowest zoom level to write.
+	 *  @param maxZoom Highest zoom level to write.
+	 */
+	public void setZoomRange(int minZoom, int maxZoom)
+	{
+		this.minZoom = Math.max(0, Math.min(minZoom, maxZoom));
+		this.maxZoom = Math.min(30, Math.max(minZoom, maxZoom));
+	}
+
+	/** Sets the name of the layer stored in each tile. If not set, the last part of the name of the
+	 *  directory being written is used.
+	 *  @param layerName Name of the tile layer.
+	 */
+	public void setLayerName(String layerName)
+	{
+		this.layerName = layerName;
+	}
+
+	/** Sets the size of each tile in tile units. Coordinates are rounded to whole tile units.
+	 *  @param extent Width and height of each tile.
+	 */
+	public void setExtent(int extent)
+	{
+		this.extent = Math.max(1, extent);
+	}
+
+	/** Sets the width of the region around each tile that is included when clipping features. A buffer
+	 *  allows lines and polygon edges that cross tile boundaries to be drawn without gaps.
+	 *  @param buffer Width of the buffer in tile units.
+	 */
+	public void setBuffer(int buffer)
+	{
+		this.buffer = Math.max(0, buffer);
+	}
+
+	/** Sets the distance within which vertices of lines and polygons may be removed when simplifying
+	 *  them for each tile. A tolerance of 0 keeps every vertex that does not round to the same position
+	 *  as the one before it.
+	 *  @param tolerance Simplification tolerance in tile units.
+	 */
+	public void setTolerance(float tolerance)
+	{
+		this.tolerance = Math.max(0, tolerance);
+	}
+
+	/** Determines whether the geoMap's coordinates are treated as longitude and latitude and projected
+	 *  with the spherical Mercator projection used by web maps. If not, tiles cover the square that
+	 *  encloses the geoMap's bounds.
+	 *  @param webMercator True if coordinates are longitude and latitude.
+	 */
+	public void setWebMercator(boolean webMercator)
+	{
+		this.webMercator = webMercator;
+	}
+
+	/** Sets the number of threads used to write tiles. By default one thread per processor is used.
+	 *  @param parallelism Number of threads.
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/** Writes the geoMap object supplied to the constructor as vector tiles in the given directory.
+	 *  @param directoryName Name of the directory in which to write tiles.
+	 *  @return True if written successfully.
+	 */
+	public boolean write(String directoryName)
+	{
+		this.directoryName = directoryName;
+		numTiles = new AtomicInteger();
+		error = null;
+		prepareFeatures();
+
+		int[] all = new int[tileFeatures.length];
+		for (int i=0; i<all.length; i++)
+		{
+			all[i] = i;
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			pool.invoke(new TileTask(0, 0, 0, all));
+		}
+		finally
+		{
+			pool.shutdown();
+			tileFeatures = null;
+		}
+
+		if (error == null)
+		{
+			try
+			{
+				writeMetadata();
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+		if (error != null)
+		{
+			System.err.println("Problem writing vector tiles: "+error.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/** Reports the number of tiles written by the last call to <code>write()</code>. Tiles that would
+	 *  contain no features are not written.
+	 *  @return Number of tiles written.
+	 */
+	public int getNumTiles()
+	{
+		return (numTiles == null) ? 0 : numTiles.get();
+	}
+
+	// ----------------------------------- Private methods -------------------------------------
+
+	/** Projects every feature into world units, where the zoom level 0 tile covers 0 to 1 in each
+	 *  direction with y increasing downwards, and attaches its attribute values.
+	 */
+	private void prepareFeatures()
+	{
+		Map<Integer,Feature> features = geoMap.getFeatures();
+		Table attributes = geoMap.getAttributeTable();
+		int numCols = (attributes == null) ? 0 : attributes.getColumnCount();
+		HashMap<Integer,Integer> rowLookup = new HashMap<Integer,Integer>();
+		keys = new String[Math.max(0, numCols-1)];
+		if (numCols > 0)
+		{
+			String[] titles = attributes.getColumnTitles();
+			for (int col=1; col<numCols; col++)
+			{
+				keys[col-1] = ((titles != null) && (col < titles.length) && (titles[col] != null)) ? titles[col] : ("column"+col);
+			}
+			for (int row=0; row<attributes.getRowCount(); row++)
+			{
+				rowLookup.put(Integer.valueOf(attributes.getInt(row, 0)), Integer.valueOf(row));
+			}
+		}
+
+		// The zoom level 0 tile covers the square enclosing the map, or the whole Mercator world.
+		double originX = geoMap.getMinGeoX();
+		double originY = geoMap.getMaxGeoY();
+		double size = Math.max(geoMap.getMaxGeoX()-geoMap.getMinGeoX(), geoMap.getMaxGeoY()-geoMap.getMinGeoY());
+		if (size <= 0)
+		{
+			size = 1;
+		}
+
+		ArrayList<TileFeature> tiled = new ArrayList<TileFeature>();
+		for (Map.Entry<Integer,Feature> entry : features.entrySet())
+		{
+			Feature feature = entry.getValue();
+			ArrayList<float[]> xParts = new ArrayList<float[]>();
+			ArrayList<float[]> yParts = new ArrayList<float[]>();
+			int type;
+			if (feature.getType() == FeatureType.POINT)
+			{
+				Point point = (Point)feature;
+				xParts.add(new float[] {point.getCoords().x});
+				yParts.add(new float[] {point.getCoords().y});
+				type = POINT;
+			}
+			else if (feature.getType() == FeatureType.MULTI_POINT)
+			{
+				xParts.add(((MultiPoint)feature).getXCoords());
+				yParts.add(((MultiPoint)feature).getYCoords());
+				type = POINT;
+			}
+			else if (feature.getType() == FeatureType.LINE)
+			{
+				Line line = (Line)feature;
+				float[] x = line.getXCoords();
+				float[] y = line.getYCoords();
+				ArrayList<Integer> pointers = line.getSubPartPointers();
+				for (int part=0; part<pointers.size(); part++)
+				{
+					int start = pointers.get(part).intValue();
+					int end = (part == pointers.size()-1) ? x.length : pointers.get(part+1).intValue();
+					if (end > start)
+					{
+						xParts.add(Arrays.copyOfRange(x, start, end));
+						yParts.add(Arrays.copyOfRange(y, start, end));
+					}
+				}
+				type = LINESTRING;
+			}
+			else
+			{
+				Polygon poly = (Polygon)feature;
+				float[] x = poly.getXCoords();
+				float[] y = poly.getYCoords();
+				ArrayList<Integer> pointers = poly.getSubPartPointers();
+				for (int part=0; part<pointers.size(); part++)
+				{
+					int start = pointers.get(part).intValue();
+					int end = (part == pointers.size()-1) ? x.length : pointers.get(part+1).intValue();
+
+					// Rings are stored without repeating their first vertex.
+					if ((end-start > 1) && (x[end-1] == x[start]) && (y[end-1] == y[start]))
+					{
+						end--;
+					}
+					if (end-start >= 3)
+					{
+						xParts.add(Arrays.copyOfRange(x, start, end));
+						yParts.add(Arrays.copyOfRange(y, start, end));
+					}
+				}
+				type = POLYGON;
+			}
+			if (xParts.isEmpty() || (xParts.get(0).length == 0))
+			{
+				continue;
+			}
+
+			TileFeature tileFeature = new TileFeature(entry.getKey().intValue(), type, xParts.size());
+			for (int part=0; part<xParts.size(); part++)
+			{
+				float[] x = xParts.get(part);
+				float[] y = yParts.get(part);
+				double[] u = new double[x.length];
+				double[] v = new double[x.length];
+				for (int i=0; i<x.length; i++)
+				{
+					if (webMercator)
+					{
+						double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, y[i])));
+						u[i] = (x[i]+180)/360.0;
+						v[i] = (1 - Math.log(Math.tan(lat) + 1/Math.cos(lat))/Math.PI)/2;
+					}
+					else
+					{
+						u[i] = (x[i]-originX)/size;
+						v[i] = (originY-y[i])/size;
+					}
+				}
+				tileFeature.addPart(part, u, v);
+			}
+			if (type == POLYGON)
+			{
+				tileFeature.findExteriorRings();
+			}
+
+			Integer row = rowLookup.get(entry.getKey());
+			if (row != null)
+			{
+				tileFeature.values = new Object[numCols-1];
+				for (int col=1; col<numCols; col++)
+				{
+					tileFeature.values[col-1] = getValue(attributes, row.intValue(), col);
+				}
+			}
+			tiled.add(tileFeature);
+		}
+		tileFeatures = tiled.toArray(new TileFeature[tiled.size()]);
+	}
+
+	/** Provides a typed attribute value suitable for storing in a vector tile.
+	 *  @param attributes Attribute table.
+	 *  @param row Row of the value.
+	 *  @param col Column of the value.
+	 *  @return Value as a Long, Float, Double or String, or null if missing.
+	 */
+	private static Object getValue(Table attributes, int row, int col)
+	{
+		switch (attributes.getColumnType(col))
+		{
+			case Table.INT:
+			case Table.LONG:
+				return Long.valueOf(attributes.getLong(row, col));
+
+			case Table.FLOAT:
+				float floatValue = attributes.getFloat(row, col);
+				return Float.isNaN(floatValue) ? null : Float.valueOf(floatValue);
+
+			case Table.DOUBLE:
+				double doubleValue = attributes.getDouble(row, col);
+				return Double.isNaN(doubleValue) ? null : Double.valueOf(doubleValue);
+
+			default:
+				return attributes.getString(row, col);
+		}
+	}
+
+	/** Encodes the given features as a single vector tile.
+	 *  @param z Zoom level of the tile.
+	 *  @param tileX Column of the tile.
+	 *  @param tileY Row of the tile.
+	 *  @param featureIndices Index of each feature that may be in the tile.
+	 *  @return Encoded tile, or null if no feature has any geometry within the tile.
+	 */
+	private byte[] encodeTile(int z, int tileX, int tileY, int[] featureIndices)
+	{
+		double scale = (double)extent*(1L << z);
+		double min = -buffer;
+		double max = extent+buffer;
+
+		ProtobufWriter layer = new ProtobufWriter();
+		ProtobufWriter message = new ProtobufWriter();
+		GeometryEncoder geometry = new GeometryEncoder();
+		HashMap<String,Integer> keyLookup = new HashMap<String,Integer>();
+		HashMap<Object,Integer> valueLookup = new HashMap<Object,Integer>();
+		ArrayList<Object> values = new ArrayList<Object>();
+		int[] tags = new int[keys.length*2];
+		int numEncoded = 0;
+
+		layer.writeUInt(15, MVT_VERSION);
+		layer.writeString(1, getLayerName());
+
+		for (int index : featureIndices)
+		{
+			TileFeature feature = tileFeatures[index];
+			geometry.reset();
+			for (int part=0; part<feature.u.length; part++)
+			{
+				int n = feature.u[part].length;
+				double[] x = new double[n];
+				double[] y = new double[n];
+				for (int i=0; i<n; i++)
+				{
+					x[i] = feature.u[part][i]*scale - (double)tileX*extent;
+					y[i] = feature.v[part][i]*scale - (double)tileY*extent;
+				}
+				boolean clip = (feature.partMinU[part]*scale - (double)tileX*extent < min) ||
+				               (feature.partMaxU[part]*scale - (double)tileX*extent > max) ||
+				               (feature.partMinV[part]*scale - (double)tileY*extent < min) ||
+				               (feature.partMaxV[part]*scale - (double)tileY*extent > max);
+
+				if (feature.type == POINT)
+				{
+					for (int i=0; i<n; i++)
+					{
+						if (!clip || ((x[i] >= min) && (x[i] <= max) && (y[i] >= min) && (y[i] <= max)))
+						{
+							geometry.addPoint(x[i], y[i]);
+						}
+					}
+				}
+				else if (feature.type == LINESTRING)
+				{
+					if (clip)
+					{
+						for (double[][] piece : TileGeometry.clipLine(x, y, n, min, max))
+						{
+							geometry.addLine(piece[0], piece[1], piece[0].length, tolerance);
+						}
+					}
+					else
+					{
+						geometry.addLine(x, y, n, tolerance);
+					}
+				}
+				else
+				{
+					if (clip)
+					{
+						double[][] ring = TileGeometry.clipRing(x, y, n, min, max);
+						if (ring != null)
+						{
+							geometry.addRing(ring[0], ring[1], ring[0].length, tolerance, feature.exterior[part]);
+						}
+					}
+					else
+					{
+						geometry.addRing(x, y, n, tolerance, feature.exterior[part]);
+					}
+				}
+			}
+			if (geometry.isEmpty())
+			{
+				continue;
+			}
+
+			// Attribute keys and values are shared by all features in the layer.
+			int numTags = 0;
+			if (feature.values != null)
+			{
+				for (int k=0; k<keys.length; k++)
+				{
+					Object value = feature.values[k];
+					if (value == null)
+					{
+						continue;
+					}
+					Integer keyIndex = keyLookup.get(keys[k]);
+					if (keyIndex == null)
+					{
+						keyIndex = Integer.valueOf(keyLookup.size());
+						keyLookup.put(keys[k], keyIndex);
+					}
+					Integer valueIndex = valueLookup.get(value);
+					if (valueIndex == null)
+					{
+						valueIndex = Integer.valueOf(values.size());
+						valueLookup.put(value, valueIndex);
+						values.add(value);
+					}
+					tags[numTags++] = keyIndex.intValue();
+					tags[numTags++] = valueIndex.intValue();
+				}
+			}
+
+			message.reset();
+			if (feature.id >= 0)
+			{
+				message.writeUInt(1, feature.id);
+			}
+			if (numTags > 0)
+			{
+				message.writePacked(2, tags, numTags);
+			}
+			message.writeUInt(3, (feature.type == POINT) ? POINT : (feature.type == LINESTRING) ? LINESTRING : POLYGON);
+			message.writePacked(4, geometry.commands, geometry.numCommands);
+			layer.writeMessage(2, message);
+			numEncoded++;
+		}
+		if (numEncoded == 0)
+		{
+			return null;
+		}
+
+		String[] layerKeys = new String[keyLookup.size()];
+		for (Map.Entry<String,Integer> entry : keyLookup.entrySet())
+		{
+			layerKeys[entry.getValue().intValue()] = entry.getKey();
+		}
+		for (String key : layerKeys)
+		{
+			layer.writeString(3, key);
+		}
+		for (Object value : values)
+		{
+			message.reset();
+			if (value instanceof Long)
+			{
+				message.writeSInt(6, ((Long)value).longValue());
+			}
+			else if (value instanceof Float)
+			{
+				message.writeFloat(2, ((Float)value).floatValue());
+			}
+			else if (value instanceof Double)
+			{
+				message.writeDouble(3, ((Double)value).doubleValue());
+			}
+			else
+			{
+				message.writeString(1, value.toString());
+			}
+			layer.writeMessage(4, message);
+		}
+		layer.writeUInt(5, extent);
+
+		ProtobufWriter tile = new ProtobufWriter();
+		tile.writeMessage(3, layer);
+		return tile.toByteArray();
+	}
+
+	/** Writes a single tile file.
+	 *  @param z Zoom level of the tile.
+	 *  @param tileX Column of the tile.
+	 *  @param tileY Row of the tile.
+	 *  @param bytes Encoded tile.
+	 *  @throws IOException If the file cannot be written.
+	 */
+	private void writeTile(int z, int tileX, int tileY, byte[] bytes) throws IOException
+	{
+		writeFile(directoryName+File.separator+z+File.separator+tileX+File.separator+tileY+".pbf", bytes);
+		numTiles.incrementAndGet();
+	}
+
+	/** Writes the metadata file describing the tiles and the attributes of their layer.
+	 *  @throws IOException If the file cannot be written.
+	 */
+	private void writeMetadata() throws IOException
+	{
+		Table attributes = geoMap.getAttributeTable();
+		StringBuilder fields = new StringBuilder();
+		for (int k=0; k<keys.length; k++)
+		{
+			int type = attributes.getColumnType(k+1);
+			boolean isNumber = (type == Table.INT) || (type == Table.LONG) || (type == Table.FLOAT) || (type == Table.DOUBLE);
+			fields.append((k == 0) ? "" : ",").append(quote(keys[k])).append(':').append(isNumber ? "\"Number\"" : "\"String\"");
+		}
+		String layers = "{\"vector_layers\":[{\"id\":"+quote(getLayerName())+",\"minzoom\":"+minZoom+
+		                ",\"maxzoom\":"+maxZoom+",\"fields\":{"+fields+"}}]}";
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"name\": ").append(quote(getLayerName())).append(",\n");
+		json.append("  \"format\": \"pbf\",\n");
+		json.append("  \"scheme\": \"xyz\",\n");
+		json.append("  \"minzoom\": \"").append(minZoom).append("\",\n");
+		json.append("  \"maxzoom\": \"").append(maxZoom).append("\",\n");
+		json.append("  \"bounds\": \"").append(geoMap.getMinGeoX()).append(',').append(geoMap.getMinGeoY()).append(',')
+		    .append(geoMap.getMaxGeoX()).append(',').append(geoMap.getMaxGeoY()).append("\",\n");
+		json.append("  \"json\": ").append(quote(layers)).append("\n");
+		json.append("}\n");
+		writeFile(directoryName+File.separator+"metadata.json", json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Writes the given bytes to a new file, creating any directories needed.
+	 *  @param fileName Name of the file to write.
+	 *  @param bytes Contents of the file.
+	 *  @throws IOException If the file cannot be written.
+	 */
+	private void writeFile(String fileName, byte[] bytes) throws IOException
+	{
+		FileChannel channel = SketchFiles.openOutput(parent, fileName);
+		if (channel == null)
+		{
+			throw new IOException("Cannot create "+fileName);
+		}
+		try
+		{
+			ShapefileWriter.writeBuffer(ByteBuffer.wrap(bytes), channel, 0);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/** Reports the name of the tile layer.
+	 *  @return Layer name.
+	 */
+	private String getLayerName()
+	{
+		if (layerName != null)
+		{
+			return layerName;
+		}
+		String name = new File(directoryName).getName();
+		return name.isEmpty() ? "layer" : name;
+	}
+
+	/** Provides the given text as a quoted JSON string.
+	 *  @param text Text to quote.
+	 *  @return Quoted and escaped text.
+	 */
+	private static String quote(String text)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i=0; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if ((c == '"') || (c == '\\'))
+			{
+				quoted.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+			}
+			else
+			{
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	// ------------------------------------- Nested classes -------------------------------------
+
+	/** Task that writes one tile and then the tiles beneath it at higher zoom levels.
+	 */
+	@SuppressWarnings("serial")
+	private class TileTask extends RecursiveAction
+	{
+		private int z, tileX, tileY;		// Position of the tile.
+		private int[] featureIndices;		// Features whose buffered bounds intersect the tile.
+
+		/** Creates a task to write the given tile.
+		 *  @param z Zoom level of the tile.
+		 *  @param tileX Column of the tile.
+		 *  @param tileY Row of the tile.
+		 *  @param featureIndices Index of each feature that may be in the tile.
+		 */
+		TileTask(int z, int tileX, int tileY, int[] featureIndices)
+		{
+			this.z = z;
+			this.tileX = tileX;
+			this.tileY = tileY;
+			this.featureIndices = featureIndices;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (error != null)
+			{
+				return;
+			}
+			if (z >= minZoom)
+			{
+				byte[] bytes = encodeTile(z, tileX, tileY, featureIndices);
+				if (bytes != null)
+				{
+					try
+					{
+						writeTile(z, tileX, tileY, bytes);
+					}
+					catch (IOException e)
+					{
+						error = e;
+						return;
+					}
+				}
+			}
+			if (z == maxZoom)
+			{
+				return;
+			}
+
+			// Divide the features between the four tiles at the next zoom level.
+			ArrayList<TileTask> children = new ArrayList<TileTask>(4);
+			double tiles = 1L << (z+1);
+			double margin = (double)buffer/extent;
+			for (int child=0; child<4; child++)
+			{
+				int childX = tileX*2 + (child & 1);
+				int childY = tileY*2 + (child >> 1);
+				double minU = (childX-margin)/tiles;
+				double maxU = (childX+1+margin)/tiles;
+				double minV = (childY-margin)/tiles;
+				double maxV = (childY+1+margin)/tiles;
+
+				int[] childIndices = new int[featureIndices.length];
+				int numChildren = 0;
+				for (int index : featureIndices)
+				{
+					TileFeature feature = tileFeatures[index];
+					if ((feature.maxU >= minU) && (feature.minU <= maxU) && (feature.maxV >= minV) && (feature.minV <= maxV))
+					{
+						childIndices[numChildren++] = index;
+					}
+				}
+				if (numChildren > 0)
+				{
+					children.add(new TileTask(z+1, childX, childY, Arrays.copyOf(childIndices, numChildren)));
+				}
+			}
+			invokeAll(children);
+		}
+	}
+
+	/** Feature projected into world units ready for tiling.
+	 */
+	private static class TileFeature
+	{
+		int id;							// ID of the feature.
+		int type;						// Vector tile geometry type.
+		double[][] u, v;				// World coordinates of each part.
+		double[] partMinU, partMinV, partMaxU, partMaxV;	// Bounds of each part.
+		double minU, minV, maxU, maxV;	// Bounds of the whole feature.
+		boolean[] exterior;				// Determines if each polygon ring is an outer boundary.
+		Object[] values;				// Attribute values, or null if the feature has none.
+
+		/** Creates a feature with the given number of parts.
+		 *  @param id ID of the feature.
+		 *  @param type Vector tile geometry type.
+		 *  @param numParts Number of parts.
+		 */
+		TileFeature(int id, int type, int numParts)
+		{
+			this.id = id;
+			this.type = type;
+			u = new double[numParts][];
+			v = new double[numParts][];
+			partMinU = new double[numParts];
+			partMinV = new double[numParts];
+			partMaxU = new double[numParts];
+			partMaxV = new double[numParts];
+			minU = minV = Double.MAX_VALUE;
+			maxU = maxV = -Double.MAX_VALUE;
+		}
+
+		/** Stores the coordinates of one part and updates the feature's bounds.
+		 *  @param part Index of the part.
+		 *  @param partU World x coordinates of the part.
+		 *  @param partV World y coordinates of the part.
+		 */
+		void addPart(int part, double[] partU, double[] partV)
+		{
+			u[part] = partU;
+			v[part] = partV;
+			partMinU[part] = partMinV[part] = Double.MAX_VALUE;
+			partMaxU[part] = partMaxV[part] = -Double.MAX_VALUE;
+			for (int i=0; i<partU.length; i++)
+			{
+				partMinU[part] = Math.min(partMinU[part], partU[i]);
+				partMinV[part] = Math.min(partMinV[part], partV[i]);
+				partMaxU[part] = Math.max(partMaxU[part], partU[i]);
+				partMaxV[part] = Math.max(partMaxV[part], partV[i]);
+			}
+			minU = Math.min(minU, partMinU[part]);
+			minV = Math.min(minV, partMinV[part]);
+			maxU = Math.max(maxU, partMaxU[part]);
+			maxV = Math.max(maxV, partMaxV[part]);
+		}
+
+		/** Identifies the outer boundaries of a polygon. Rings that wind in the same direction as the
+		 *  first ring are treated as outer boundaries and those winding the other way as holes, so both
+		 *  the shapefile convention and its reverse are handled.
+		 */
+		void findExteriorRings()
+		{
+			exterior = new boolean[u.length];
+			double firstArea = 0;
+			for (int part=0; part<u.length; part++)
+			{
+				double area = 0;
+				int n = u[part].length;
+				for (int i=0; i<n; i++)
+				{
+					int next = (i == n-1) ? 0 : i+1;
+					area += u[part][i]*v[part][next] - u[part][next]*v[part][i];
+				}
+				if (part == 0)
+				{
+					firstArea = area;
+				}
+				exterior[part] = (part == 0) || ((area > 0) == (firstArea > 0));
+			}
+		}
+	}
+
+	/** Builds the command sequence describing the geometry of a single feature in a tile.
+	 */
+	private static class GeometryEncoder
+	{
+		int[] commands;					// Encoded geometry commands and parameters.
+		int numCommands;				// Number of values encoded.
+		private int cursorX, cursorY;	// Position reached by the last command.
+		private int numPoints;			// Number of points in a point feature.
+		private boolean hasExterior;	// Determines if an outer ring has been encoded.
+		private int[] qx, qy;			// Quantised coordinates.
+
+		/** Creates an empty geometry.
+		 */
+		GeometryEncoder()
+		{
+			commands = new int[64];
+			qx = new int[64];
+			qy = new int[64];
+		}
+
+		/** Removes all geometry so the encoder can be used for another feature.
+		 */
+		void reset()
+		{
+			numCommands = 0;
+			cursorX = 0;
+			cursorY = 0;
+			numPoints = 0;
+			hasExterior = false;
+		}
+
+		/** Reports whether any geometry has been encoded.
+		 *  @return True if there is no geometry.
+		 */
+		boolean isEmpty()
+		{
+			return numCommands == 0;
+		}
+
+		/** Adds a point. All points of a feature share a single MoveTo command.
+		 *  @param x x coordinate in tile units.
+		 *  @param y y coordinate in tile units.
+		 */
+		void addPoint(double x, double y)
+		{
+			ensure(3);
+			if (numPoints == 0)
+			{
+				commands[numCommands++] = 0;
+			}
+			numPoints++;
+			commands[0] = command(MOVE_TO, numPoints);
+			moveCursor((int)Math.round(x), (int)Math.round(y));
+		}
+
+		/** Simplifies and adds a line.
+		 *  @param x x coordinates in tile units.
+		 *  @param y y coordinates in tile units.
+		 *  @param n Number of vertices.
+		 *  @param tolerance Simplification tolerance in tile units.
+		 */
+		void addLine(double[] x, double[] y, int n, double tolerance)
+		{
+			n = TileGeometry.simplify(x, y, n, tolerance);
+			n = quantise(x, y, n);
+			if (n < 2)
+			{
+				return;
+			}
+			ensure(2*n+2);
+			commands[numCommands++] = command(MOVE_TO, 1);
+			moveCursor(qx[0], qy[0]);
+			commands[numCommands++] = command(LINE_TO, n-1);
+			for (int i=1; i<n; i++)
+			{
+				moveCursor(qx[i], qy[i]);
+			}
+		}
+
+		/** Simplifies and adds a polygon ring, winding it clockwise on screen if it is an outer
+		 *  boundary and anticlockwise if it is a hole.
+		 *  @param x x coordinates in tile units.
+		 *  @param y y coordinates in tile units.
+		 *  @param n Number of vertices.
+		 *  @param tolerance Simplification tolerance in tile units.
+		 *  @param isExterior True if the ring is an outer boundary.
+		 */
+		void addRing(double[] x, double[] y, int n, double tolerance, boolean isExterior)
+		{
+			if (!isExterior && !hasExterior)
+			{
+				return;
+			}
+			n = TileGeometry.simplify(x, y, n, tolerance);
+			n = quantise(x, y, n);
+			if ((n > 1) && (qx[n-1] == qx[0]) && (qy[n-1] == qy[0]))
+			{
+				n--;
+			}
+			if (n < 3)
+			{
+				return;
+			}
+			long area = TileGeometry.getDoubleArea(qx, qy, n);
+			if (area == 0)
+			{
+				return;
+			}
+			if ((area > 0) != isExterior)
+			{
+				TileGeometry.reverse(qx, qy, n);
+			}
+			hasExterior |= isExterior;
+
+			ensure(2*n+3);
+			commands[numCommands++] = command(MOVE_TO, 1);
+			moveCursor(qx[0], qy[0]);
+			commands[numCommands++] = command(LINE_TO, n-1);
+			for (int i=1; i<n; i++)
+			{
+				moveCursor(qx[i], qy[i]);
+			}
+			commands[numCommands++] = command(CLOSE_PATH, 1);
+		}
+
+		// ------------------------------ Private methods ---------------------------------
+
+		/** Rounds coordinates to tile units.
+		 *  @param x x coordinates.
+		 *  @param y y coordinates.
+		 *  @param n Number of vertices.
+		 *  @return Number of vertices after removing duplicates.
+		 */
+		private int quantise(double[] x, double[] y, int n)
+		{
+			if (qx.length < n)
+			{
+				qx = new int[n];
+				qy = new int[n];
+			}
+			return TileGeometry.quantise(x, y, n, qx, qy);
+		}
+
+		/** Adds the parameters that move the cursor to the given position.
+		 *  @param x x coordinate in tile units.
+		 *  @param y y coordinate in tile units.
+		 */
+		private void moveCursor(int x, int y)
+		{
+			commands[numCommands++] = ProtobufWriter.zigZag(x-cursorX);
+			commands[numCommands++] = ProtobufWriter.zigZag(y-cursorY);
+			cursorX = x;
+			cursorY = y;
+		}
+
+		/** Ensures there is room for the given number of additional values.
+		 *  @param numValues Number of values about to be added.
+		 */
+		private void ensure(int numValues)
+		{
+			if (numCommands+numValues > commands.length)
+			{
+				commands = Arrays.copyOf(commands, Math.max(commands.length*2, numCommands+numValues));
+			}
+		}
+
+		/** Encodes a command and the number of times it is repeated.
+		 *  @param id Command identifier.
+		 *  @param count Number of times the command is repeated.
+		 *  @return Command integer.
+		 */
+		private static int command(int id, int count)
+		{
+			return (id & 0x7) | (count << 3);
+		}
+	}
+}
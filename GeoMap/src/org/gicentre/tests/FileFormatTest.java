@@ -0,0 +1,389 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.Line;
+import org.gicentre.geomap.MultiPoint;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.Polygon;
+import org.gicentre.geomap.io.ShapefileRecord;
+import org.gicentre.geomap.io.ShapefileRecordReader;
+import org.gicentre.geomap.io.ShapefileWriter;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  ****************************************************************************************
+/** Tests that snapshots, feature files and shapefiles written by geoMap are read back unchanged,
+ *  and that reading only part of a file (by region or by attribute value) gives the same features
+ *  as filtering the whole file. Should be run from the directory containing the GeoMap folder.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  ****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class FileFormatTest
+{
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, reporting any failures and exiting with a non-zero status if there are any.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		FileFormatTest test = new FileFormatTest();
+		for (String name : DATA_SETS)
+		{
+			test.testRoundTrips(name);
+			test.testBoundedReads(name);
+		}
+		test.testAttributeFilter();
+
+		System.out.println(test.numChecks+" checks, "+test.numFailures+" failures.");
+		if (test.numFailures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	// ----------------------------- Object variables ------------------------------
+
+	private static final String[] DATA_SETS = {"world", "londonBoroughs", "usContinental"};
+	private static final int NUM_REGIONS = 20;		// Number of random regions used to test bounded reads.
+
+	private PApplet parent;
+	private String tempDir;
+	private Random random;
+	private int numChecks, numFailures;
+
+	// ------------------------------- Constructor ---------------------------------
+
+	/** Creates the test object.
+	 */
+	public FileFormatTest()
+	{
+		parent = new PApplet();
+		tempDir = System.getProperty("java.io.tmpdir")+File.separator;
+		random = new Random(1);
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that the features and attributes of the given data set are unchanged after writing and
+	 *  reading a snapshot, a feature file and a shapefile.
+	 *  @param name Name of the data set.
+	 */
+	private void testRoundTrips(String name)
+	{
+		GeoMap original = readData(name);
+
+		String snapshotName = tempDir+"geoMapTest_"+name+".snap";
+		check(original.writeSnapshot(snapshotName), name+" snapshot written");
+		GeoMap snapshot = new GeoMap(parent);
+		check(snapshot.readSnapshot(snapshotName), name+" snapshot read");
+		checkSame(original, snapshot, name+" snapshot");
+
+		String featureFileName = tempDir+"geoMapTest_"+name+".features";
+		check(original.writeFeatureFile(featureFileName), name+" feature file written");
+		GeoMap featureFile = new GeoMap(parent);
+		check(featureFile.readFeatureFile(featureFileName), name+" feature file read");
+		checkSame(original, featureFile, name+" feature file");
+
+		String shapefileName = tempDir+"geoMapTest_"+name;
+		original.writeFile(shapefileName);
+		// Shapefiles store the ID column as an attribute, so only their geometry and number of rows are compared.
+		GeoMap shapefile = new GeoMap(parent);
+		shapefile.readFile(shapefileName);
+		check(original.getFeatures().keySet().equals(shapefile.getFeatures().keySet()), name+" shapefile IDs");
+		checkFeatures(original, shapefile, name+" shapefile");
+		check(original.getAttributeTable().getRowCount() == shapefile.getAttributeTable().getRowCount(), name+" shapefile rows");
+	}
+
+	/** Checks that reading a region of the given data set from a feature file or shapefile, with and
+	 *  without a spatial index, gives the same features as testing the bounds of every feature.
+	 *  @param name Name of the data set.
+	 */
+	private void testBoundedReads(String name)
+	{
+		GeoMap original = readData(name);
+		String featureFileName = tempDir+"geoMapTest_"+name+".features";
+		String shapefileName = tempDir+"geoMapTest_"+name;
+		check(original.writeFeatureFile(featureFileName), name+" feature file written");
+		original.writeFile(shapefileName);
+
+		// The same file is also written with a quadtree index.
+		String indexedName = tempDir+"geoMapTest_"+name+"_qix";
+		ShapefileWriter writer = new ShapefileWriter(original, parent);
+		writer.setSpatialIndex(true);
+		check(writer.write(indexedName), name+" indexed shapefile written");
+
+		float minX = original.getMinGeoX(), minY = original.getMinGeoY();
+		float width = original.getMaxGeoX()-minX, height = original.getMaxGeoY()-minY;
+		int numFound = 0;
+
+		for (int r=0; r<NUM_REGIONS; r++)
+		{
+			float x1 = minX + random.nextFloat()*width;
+			float y1 = minY + random.nextFloat()*height;
+			float x2 = x1 + random.nextFloat()*width/4;
+			float y2 = y1 + random.nextFloat()*height/4;
+			String region = name+" region "+r;
+
+			TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (Map.Entry<Integer,Feature> entry : original.getFeatures().entrySet())
+			{
+				if (intersects(entry.getValue(), x1, y1, x2, y2))
+				{
+					expected.add(entry.getKey());
+				}
+			}
+			numFound += expected.size();
+
+			GeoMap featureFile = new GeoMap(parent);
+			check(featureFile.readFeatureFile(featureFileName, x1, y1, x2, y2), region+" feature file read");
+			check(expected.equals(new TreeSet<Integer>(featureFile.getFeatures().keySet())), region+" feature file IDs");
+			checkFeatures(original, featureFile, region+" feature file");
+
+			GeoMap shapefile = new GeoMap(parent);
+			shapefile.readFile(shapefileName, x1, y1, x2, y2);
+			check(expected.equals(new TreeSet<Integer>(shapefile.getFeatures().keySet())), region+" shapefile IDs");
+			checkFeatures(original, shapefile, region+" shapefile");
+
+			for (boolean useIndex : new boolean[] {false, true})
+			{
+				check(expected.equals(readRecordIDs(indexedName, x1, y1, x2, y2, useIndex)),
+				      region+" record reader IDs "+(useIndex ? "with" : "without")+" index");
+			}
+		}
+		check(numFound > 0, name+" regions contain features");
+	}
+
+	/** Checks that reading only the features with given attribute values gives the same features as
+	 *  testing the attributes of every feature.
+	 */
+	private void testAttributeFilter()
+	{
+		GeoMap original = readData("usContinental");
+		Table attributes = original.getAttributeTable();
+
+		// Select states whose names sort after M.
+		String nameTitle = "Name";
+		int nameCol = attributes.getColumnIndex(nameTitle);
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int row=0; row<attributes.getRowCount(); row++)
+		{
+			if (attributes.getString(row, nameCol).compareTo("M") > 0)
+			{
+				expected.add(Integer.valueOf(attributes.getInt(row, 0)));
+			}
+		}
+
+		GeoMap filtered = new GeoMap(parent);
+		filtered.readFile("GeoMap/data/usContinental", new String[] {nameTitle}, new Predicate<Object[]>()
+		{
+			@Override
+			public boolean test(Object[] values)
+			{
+				return values[0].toString().trim().compareTo("M") > 0;
+			}
+		});
+
+		check(!expected.isEmpty(), "usContinental attribute selection not empty");
+		check(expected.equals(new TreeSet<Integer>(filtered.getFeatures().keySet())), "usContinental attribute filter IDs");
+		checkFeatures(original, filtered, "usContinental attribute filter");
+		check(filtered.getAttributeTable().getRowCount() == expected.size(), "usContinental attribute filter rows");
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Reads the given data set from the data folder.
+	 *  @param name Name of the data set without extension.
+	 *  @return GeoMap containing the data set.
+	 */
+	private GeoMap readData(String name)
+	{
+		GeoMap geoMap = new GeoMap(parent);
+		geoMap.readFile("GeoMap/data/"+name);
+		check(geoMap.getFeatures().size() > 0, name+" read");
+		return geoMap;
+	}
+
+	/** Reads the IDs of the records in the given shapefile whose bounds intersect the given region.
+	 *  @param fileName Name of the shapefile.
+	 *  @param minX Minimum x coordinate of the region.
+	 *  @param minY Minimum y coordinate of the region.
+	 *  @param maxX Maximum x coordinate of the region.
+	 *  @param maxY Maximum y coordinate of the region.
+	 *  @param useIndex True if the shapefile's quadtree index should be used.
+	 *  @return Record numbers of the records read.
+	 */
+	private TreeSet<Integer> readRecordIDs(String fileName, float minX, float minY, float maxX, float maxY, boolean useIndex)
+	{
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		ShapefileRecordReader reader = ShapefileRecordReader.open(fileName, parent);
+		if (reader == null)
+		{
+			check(false, fileName+" opened");
+			return ids;
+		}
+		if (!useIndex)
+		{
+			reader.setSpatialIndex(null);
+		}
+		reader.setBoundsFilter(minX, minY, maxX, maxY);
+		while (reader.hasNext())
+		{
+			ShapefileRecord record = reader.next();
+			ids.add(Integer.valueOf(record.getRecordNumber()));
+		}
+		try
+		{
+			reader.close();
+		}
+		catch (IOException e)
+		{
+			check(false, fileName+" closed");
+		}
+		return ids;
+	}
+
+	/** Checks that two geoMaps have the same features and attributes.
+	 *  @param expected GeoMap holding the expected features and attributes.
+	 *  @param actual GeoMap to compare with the expected one.
+	 *  @param label Description of the comparison used when reporting failures.
+	 */
+	private void checkSame(GeoMap expected, GeoMap actual, String label)
+	{
+		check(expected.getFeatures().keySet().equals(actual.getFeatures().keySet()), label+" IDs");
+		checkFeatures(expected, actual, label);
+
+		Map<String,List<String>> expectedRows = getRows(expected.getAttributeTable());
+		Map<String,List<String>> actualRows = getRows(actual.getAttributeTable());
+		check(expectedRows.equals(actualRows), label+" attributes");
+	}
+
+	/** Checks that each feature in one geoMap has the same geometry as the feature with the same ID in another.
+	 *  @param expected GeoMap holding the expected features.
+	 *  @param actual GeoMap whose features are compared with the expected ones.
+	 *  @param label Description of the comparison used when reporting failures.
+	 */
+	private void checkFeatures(GeoMap expected, GeoMap actual, String label)
+	{
+		int numDifferent = 0;
+		for (Map.Entry<Integer,Feature> entry : actual.getFeatures().entrySet())
+		{
+			if (!isSame(expected.getFeatures().get(entry.getKey()), entry.getValue()))
+			{
+				numDifferent++;
+			}
+		}
+		check(numDifferent == 0, label+" geometry ("+numDifferent+" features differ)");
+	}
+
+	/** Reports whether two features have the same type and coordinates.
+	 *  @param expected Expected feature.
+	 *  @param actual Feature to compare with the expected one.
+	 *  @return True if the features are the same.
+	 */
+	private static boolean isSame(Feature expected, Feature actual)
+	{
+		if ((expected == null) || (actual == null) || (expected.getType() != actual.getType()) ||
+		    (expected.getNumVertices() != actual.getNumVertices()))
+		{
+			return false;
+		}
+		if (expected.getType() == FeatureType.POINT)
+		{
+			return ((Point)expected).getCoords().equals(((Point)actual).getCoords());
+		}
+		if (expected.getType() == FeatureType.MULTI_POINT)
+		{
+			MultiPoint e = (MultiPoint)expected, a = (MultiPoint)actual;
+			return Arrays.equals(e.getXCoords(), a.getXCoords()) && Arrays.equals(e.getYCoords(), a.getYCoords());
+		}
+		if (expected.getType() == FeatureType.LINE)
+		{
+			Line e = (Line)expected, a = (Line)actual;
+			return Arrays.equals(e.getXCoords(), a.getXCoords()) && Arrays.equals(e.getYCoords(), a.getYCoords()) &&
+			       e.getSubPartPointers().equals(a.getSubPartPointers());
+		}
+		Polygon e = (Polygon)expected, a = (Polygon)actual;
+		return Arrays.equals(e.getXCoords(), a.getXCoords()) && Arrays.equals(e.getYCoords(), a.getYCoords()) &&
+		       e.getSubPartPointers().equals(a.getSubPartPointers());
+	}
+
+	/** Reports whether the bounding box of the given feature intersects the given region.
+	 *  @param feature Feature to test.
+	 *  @param minX Minimum x coordinate of the region.
+	 *  @param minY Minimum y coordinate of the region.
+	 *  @param maxX Maximum x coordinate of the region.
+	 *  @param maxY Maximum y coordinate of the region.
+	 *  @return True if the feature's bounding box intersects the region.
+	 */
+	private static boolean intersects(Feature feature, float minX, float minY, float maxX, float maxY)
+	{
+		Rectangle2D bounds = feature.getBounds();
+		return (bounds.getMaxX() >= minX) && (bounds.getMinX() <= maxX) &&
+		       (bounds.getMaxY() >= minY) && (bounds.getMinY() <= maxY);
+	}
+
+	/** Provides the values in each row of the given table, keyed by the row's ID in the first column.
+	 *  @param table Table to examine.
+	 *  @return Values of each row, keyed by ID.
+	 */
+	private static Map<String,List<String>> getRows(Table table)
+	{
+		Map<String,List<String>> rows = new HashMap<String,List<String>>();
+		for (int row=0; row<table.getRowCount(); row++)
+		{
+			List<String> values = new ArrayList<String>();
+			for (int col=1; col<table.getColumnCount(); col++)
+			{
+				String value = table.getString(row, col);
+				values.add((value == null) ? "" : value.trim());
+			}
+			rows.put(table.getString(row, 0), values);
+		}
+		return rows;
+	}
+
+	/** Records the result of a check, reporting it if it has failed.
+	 *  @param passed True if the check passed.
+	 *  @param label Description of the check.
+	 */
+	private void check(boolean passed, String label)
+	{
+		numChecks++;
+		if (!passed)
+		{
+			numFailures++;
+			System.err.println("Failed: "+label);
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package org.gicentre.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.io.QuadtreeIndex;
+import org.gicentre.geomap.io.ShapefileRecord;
+import org.gicentre.geomap.io.ShapefileRecordReader;
+import org.gicentre.geomap.io.ShapefileWriter;
+
+import processing.core.PApplet;
+
+//  ****************************************************************************************
+/** Tests the reading and writing of quadtree spatial indexes (<code>.qix</code> files). An index
+ *  is assembled node by node in the layout written by shapelib's <code>shptree</code> and the
+ *  records found by queries compared with those known to be in each node. Indexes written by
+ *  geoMap are then walked using the same layout, and their query results compared with the
+ *  bounds of every record. Should be run from the directory containing the GeoMap folder.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  ****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class QuadtreeIndexTest
+{
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, reporting any failures and exiting with a non-zero status if there are any.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		QuadtreeIndexTest test = new QuadtreeIndexTest();
+		test.testShapelibLayout(ByteOrder.LITTLE_ENDIAN);
+		test.testShapelibLayout(ByteOrder.BIG_ENDIAN);
+		for (String name : DATA_SETS)
+		{
+			test.testWrittenIndex(name);
+		}
+
+		System.out.println(test.numChecks+" checks, "+test.numFailures+" failures.");
+		if (test.numFailures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	// ----------------------------- Object variables ------------------------------
+
+	private static final String[] DATA_SETS = {"world", "londonBoroughs", "usContinental"};
+	private static final int NUM_REGIONS = 50;		// Number of random regions used to test queries.
+	private static final int HEADER_SIZE = 16;		// Size of the .qix file header in bytes.
+	private static final int NODE_SIZE = 44;		// Size of a .qix node excluding its record IDs.
+
+	private PApplet parent;
+	private String tempDir;
+	private Random random;
+	private int maxDepth;		// Deepest node found when walking an index.
+	private int numChecks, numFailures;
+
+	// ------------------------------- Constructor ---------------------------------
+
+	/** Creates the test object.
+	 */
+	public QuadtreeIndexTest()
+	{
+		parent = new PApplet();
+		tempDir = System.getProperty("java.io.tmpdir")+File.separator;
+		random = new Random(1);
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that queries of an index in shapelib's layout find the records stored in the nodes
+	 *  that overlap each query region. The tree has a root covering (0,0)-(100,100) holding record 5,
+	 *  a west node holding records 0 and 1 with a south-west node beneath it holding record 2, and an
+	 *  east node holding records 3 and 4.
+	 *  @param byteOrder Byte order in which to store the index.
+	 */
+	private void testShapelibLayout(ByteOrder byteOrder)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1024).order(byteOrder);
+		buffer.put((byte)'S').put((byte)'Q').put((byte)'T');
+		buffer.put((byte)((byteOrder == ByteOrder.LITTLE_ENDIAN) ? 1 : 2));
+		buffer.put((byte)1).put((byte)0).put((byte)0).put((byte)0);
+		buffer.putInt(6).putInt(3);
+
+		int southWestSize = NODE_SIZE + 4;
+		int westSize = NODE_SIZE + 8 + southWestSize;
+		int eastSize = NODE_SIZE + 8;
+		putNode(buffer, westSize+eastSize, 0, 0, 100, 100, new int[] {5}, 2);
+		putNode(buffer, southWestSize, 0, 0, 55, 100, new int[] {0, 1}, 1);
+		putNode(buffer, 0, 0, 0, 55, 55, new int[] {2}, 0);
+		putNode(buffer, 0, 45, 0, 100, 100, new int[] {3, 4}, 0);
+		buffer.flip();
+
+		String label = "shapelib layout ("+byteOrder+")";
+		QuadtreeIndex index;
+		try
+		{
+			index = new QuadtreeIndex(buffer);
+		}
+		catch (IOException e)
+		{
+			check(false, label+" read: "+e.getMessage());
+			return;
+		}
+		check(index.getNumRecords() == 6, label+" number of records");
+		check(index.getMaxDepth() == 3, label+" depth");
+		check(Arrays.equals(index.query(10, 10, 20, 20), new int[] {0, 1, 2, 5}), label+" south-west query");
+		check(Arrays.equals(index.query(10, 70, 20, 80), new int[] {0, 1, 5}), label+" north-west query");
+		check(Arrays.equals(index.query(60, 60, 70, 70), new int[] {3, 4, 5}), label+" east query");
+		check(Arrays.equals(index.query(50, 10, 52, 20), new int[] {0, 1, 2, 3, 4, 5}), label+" central query");
+		check(index.query(200, 200, 300, 300).length == 0, label+" outside query");
+	}
+
+	/** Checks that the index written with a shapefile follows shapelib's layout, holds every record
+	 *  once, and that its queries find every record whose bounds intersect each query region.
+	 *  @param name Name of the data set.
+	 */
+	private void testWrittenIndex(String name)
+	{
+		GeoMap geoMap = new GeoMap(parent);
+		geoMap.readFile("GeoMap/data/"+name);
+		String fileName = tempDir+"geoMapTest_"+name+"_qix";
+		ShapefileWriter writer = new ShapefileWriter(geoMap, parent);
+		writer.setSpatialIndex(true);
+		check(writer.write(fileName), name+" indexed shapefile written");
+
+		// Walk the file using shapelib's layout, counting the times each record appears.
+		ByteBuffer buffer;
+		try
+		{
+			buffer = ByteBuffer.wrap(Files.readAllBytes(new File(fileName+".qix").toPath()));
+		}
+		catch (IOException e)
+		{
+			check(false, name+" index read: "+e.getMessage());
+			return;
+		}
+		check((buffer.get(0) == 'S') && (buffer.get(1) == 'Q') && (buffer.get(2) == 'T') && (buffer.get(4) == 1), name+" index header");
+		buffer.order((buffer.get(3) == 2) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		int numRecords = buffer.getInt(8);
+		int[] occurrences = new int[numRecords];
+		maxDepth = 0;
+		int end = walkNode(buffer, HEADER_SIZE, 1, occurrences);
+		check(end == buffer.limit(), name+" index subtree sizes");
+		check(maxDepth <= buffer.getInt(12), name+" index depth");
+		int numMisplaced = 0;
+		for (int count : occurrences)
+		{
+			numMisplaced += (count == 1) ? 0 : 1;
+		}
+		check(numMisplaced == 0, name+" index records each stored once");
+
+		// Query results should include every record whose bounds intersect the region.
+		List<ShapefileRecord> records = new ArrayList<ShapefileRecord>();
+		ShapefileRecordReader reader = ShapefileRecordReader.open(fileName, parent);
+		reader.setSpatialIndex(null);
+		while (reader.hasNext())
+		{
+			records.add(reader.next());
+		}
+		try
+		{
+			reader.close();
+		}
+		catch (IOException e)
+		{
+			check(false, name+" shapefile closed");
+		}
+		check(records.size() == numRecords, name+" index number of records");
+
+		QuadtreeIndex index = QuadtreeIndex.open(fileName, parent);
+		check(index != null, name+" index opened");
+		if (index == null)
+		{
+			return;
+		}
+		float minX = geoMap.getMinGeoX(), minY = geoMap.getMinGeoY();
+		float width = geoMap.getMaxGeoX()-minX, height = geoMap.getMaxGeoY()-minY;
+		int numMissing = 0;
+		for (int r=0; r<NUM_REGIONS; r++)
+		{
+			float x1 = minX + random.nextFloat()*width;
+			float y1 = minY + random.nextFloat()*height;
+			float x2 = x1 + random.nextFloat()*width/4;
+			float y2 = y1 + random.nextFloat()*height/4;
+			int[] candidates = index.query(x1, y1, x2, y2);
+			for (int i=0; i<records.size(); i++)
+			{
+				ShapefileRecord record = records.get(i);
+				if ((record.getMaxX() >= x1) && (record.getMinX() <= x2) && (record.getMaxY() >= y1) && (record.getMinY() <= y2) &&
+				    (Arrays.binarySearch(candidates, i) < 0))
+				{
+					numMissing++;
+				}
+			}
+		}
+		check(numMissing == 0, name+" index queries ("+numMissing+" records missed)");
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Adds a node to an index in shapelib's layout.
+	 *  @param buffer Buffer holding the index.
+	 *  @param subTreeSize Size in bytes of all the nodes beneath this one.
+	 *  @param minX Minimum x coordinate of the node.
+	 *  @param minY Minimum y coordinate of the node.
+	 *  @param maxX Maximum x coordinate of the node.
+	 *  @param maxY Maximum y coordinate of the node.
+	 *  @param ids Positions of the records stored in the node.
+	 *  @param numSubNodes Number of nodes immediately beneath this one, which should follow it in the buffer.
+	 */
+	private static void putNode(ByteBuffer buffer, int subTreeSize, double minX, double minY, double maxX, double maxY,
+	                            int[] ids, int numSubNodes)
+	{
+		buffer.putInt(subTreeSize);
+		buffer.putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY);
+		buffer.putInt(ids.length);
+		for (int id : ids)
+		{
+			buffer.putInt(id);
+		}
+		buffer.putInt(numSubNodes);
+	}
+
+	/** Walks the node at the given position in an index using shapelib's layout, checking that its
+	 *  recorded subtree size matches the nodes beneath it and counting the records it holds.
+	 *  @param buffer Buffer holding the index.
+	 *  @param pos Position of the node in the buffer.
+	 *  @param depth Depth of the node, with the root at depth 1.
+	 *  @param occurrences Number of times each record has been found, updated by this method.
+	 *  @return Position in the buffer after the node and all those beneath it.
+	 */
+	private int walkNode(ByteBuffer buffer, int pos, int depth, int[] occurrences)
+	{
+		maxDepth = Math.max(maxDepth, depth);
+		int subTreeSize = buffer.getInt(pos);
+		int numIds = buffer.getInt(pos+36);
+		for (int i=0; i<numIds; i++)
+		{
+			int id = buffer.getInt(pos+40+4*i);
+			if ((id >= 0) && (id < occurrences.length))
+			{
+				occurrences[id]++;
+			}
+		}
+		int subPos = pos+40+4*numIds;
+		int numSubNodes = buffer.getInt(subPos);
+		subPos += 4;
+		int subTreeStart = subPos;
+		for (int i=0; i<numSubNodes; i++)
+		{
+			subPos = walkNode(buffer, subPos, depth+1, occurrences);
+		}
+		check(subPos-subTreeStart == subTreeSize, "subtree size of node at "+pos);
+		return subPos;
+	}
+
+	/** Records the result of a check, reporting it if it has failed.
+	 *  @param passed True if the check passed.
+	 *  @param label Description of the check.
+	 */
+	private void check(boolean passed, String label)
+	{
+		numChecks++;
+		if (!passed)
+		{
+			numFailures++;
+			System.err.println("Failed: "+label);
+		}
+	}
+}
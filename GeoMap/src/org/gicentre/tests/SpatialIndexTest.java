@@ -0,0 +1,415 @@
+package org.gicentre.tests;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.gicentre.geomap.ClusterIndex;
+import org.gicentre.geomap.Feature;
+import org.gicentre.geomap.FeatureIndex;
+import org.gicentre.geomap.FeatureType;
+import org.gicentre.geomap.GeoMap;
+import org.gicentre.geomap.Point;
+import org.gicentre.geomap.SpatialJoin;
+import org.gicentre.geomap.io.DbaseFileHeader;
+import org.gicentre.geomap.io.ShapefileRecordWriter;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+//  ****************************************************************************************
+/** Tests spatial queries of geoMap features against the results of testing every feature in
+ *  turn. Random points are selected by rectangle and lasso, assigned to the countries of the
+ *  world map, joined to those countries and clustered. Should be run from the directory
+ *  containing the GeoMap folder.
+ *  @author Jo Wood, giCentre, City University of London.
+ *  @version 1.4, 19th October, 2026.
+ */
+//  ****************************************************************************************
+
+/* This file is part of giCentre's geoMap library. geoMap is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * geoMap is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+public class SpatialIndexTest
+{
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, reporting any failures and exiting with a non-zero status if there are any.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		SpatialIndexTest test = new SpatialIndexTest();
+		test.testPointQueries(false);
+		test.testPointQueries(true);
+		test.testPolygonQueries();
+		test.testContainingIDs();
+		test.testSpatialJoin();
+		test.testClusters();
+
+		System.out.println(test.numChecks+" checks, "+test.numFailures+" failures.");
+		if (test.numFailures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	// ----------------------------- Object variables ------------------------------
+
+	private static final int NUM_POINTS = 20000;	// Number of random points to query.
+	private static final int NUM_REGIONS = 50;		// Number of random regions used to test queries.
+
+	private PApplet parent;
+	private String pointsName;
+	private float[] pointX, pointY;
+	private GeoMap world;
+	private Random random;
+	private int numChecks, numFailures;
+
+	// ------------------------------- Constructor ---------------------------------
+
+	/** Creates the test object, reading the world map and writing a shapefile of random points across it.
+	 */
+	public SpatialIndexTest()
+	{
+		parent = new PApplet();
+		random = new Random(1);
+		world = new GeoMap(parent);
+		world.readFile("GeoMap/data/world");
+
+		pointX = new float[NUM_POINTS];
+		pointY = new float[NUM_POINTS];
+		pointsName = System.getProperty("java.io.tmpdir")+File.separator+"geoMapTest_points";
+		DbaseFileHeader header = new DbaseFileHeader();
+		header.addColumn("value", 'N', 10, 0);
+		ShapefileRecordWriter writer = ShapefileRecordWriter.create(pointsName, FeatureType.POINT, header, parent);
+		try
+		{
+			for (int i=0; i<NUM_POINTS; i++)
+			{
+				pointX[i] = world.getMinGeoX() + random.nextFloat()*(world.getMaxGeoX()-world.getMinGeoX());
+				pointY[i] = world.getMinGeoY() + random.nextFloat()*(world.getMaxGeoY()-world.getMinGeoY());
+				writer.write(new Point(pointX[i], pointY[i], parent), new Object[] {Integer.valueOf(i)});
+			}
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			check(false, "points written: "+e.getMessage());
+		}
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that the points found in random rectangles and lassos are those whose coordinates lie within them.
+	 *  @param usePointLayer True if points should be stored in a point layer rather than as separate features.
+	 */
+	private void testPointQueries(boolean usePointLayer)
+	{
+		GeoMap points = readPoints(usePointLayer);
+		String label = usePointLayer ? "point layer" : "point features";
+		check(points.getFeatures().size() == NUM_POINTS, label+" read");
+		FeatureIndex index = points.getFeatureIndex();
+
+		int numFound = 0;
+		for (int r=0; r<NUM_REGIONS; r++)
+		{
+			float[] rect = randomRect();
+			int[] expected = findPoints(points, new Rectangle2D.Float(rect[0], rect[1], rect[2]-rect[0], rect[3]-rect[1]));
+			numFound += expected.length;
+			check(Arrays.equals(expected, sorted(index.getIDsInRect(rect[0], rect[1], rect[2], rect[3], false))), label+" rectangle "+r);
+			check(Arrays.equals(expected, sorted(index.getIDsInRect(rect[0], rect[1], rect[2], rect[3], true))), label+" contained rectangle "+r);
+
+			// Lassos are triangles within the rectangle.
+			float[] lassoX = {rect[0], rect[2], rect[0] + random.nextFloat()*(rect[2]-rect[0])};
+			float[] lassoY = {rect[1], rect[1] + random.nextFloat()*(rect[3]-rect[1]), rect[3]};
+			Path2D lasso = new Path2D.Float();
+			lasso.moveTo(lassoX[0], lassoY[0]);
+			lasso.lineTo(lassoX[1], lassoY[1]);
+			lasso.lineTo(lassoX[2], lassoY[2]);
+			lasso.closePath();
+			expected = findPoints(points, lasso);
+			check(Arrays.equals(expected, sorted(index.getIDsInPolygon(lassoX, lassoY, false))), label+" lasso "+r);
+		}
+		check(numFound > 0, label+" regions contain points");
+	}
+
+	/** Checks that the countries found in random rectangles include all those whose bounds are within
+	 *  each rectangle and exclude all those whose bounds do not intersect it.
+	 */
+	private void testPolygonQueries()
+	{
+		FeatureIndex index = world.getFeatureIndex();
+		for (int r=0; r<NUM_REGIONS; r++)
+		{
+			float[] rect = randomRect();
+			int[] intersecting = sorted(index.getIDsInRect(rect[0], rect[1], rect[2], rect[3], false));
+			int[] contained = sorted(index.getIDsInRect(rect[0], rect[1], rect[2], rect[3], true));
+			int numWrong = 0;
+			for (Map.Entry<Integer,Feature> entry : world.getFeatures().entrySet())
+			{
+				Rectangle2D bounds = entry.getValue().getBounds();
+				boolean isIntersecting = Arrays.binarySearch(intersecting, entry.getKey().intValue()) >= 0;
+				boolean isContained = Arrays.binarySearch(contained, entry.getKey().intValue()) >= 0;
+				boolean boundsWithin = (bounds.getMinX() >= rect[0]) && (bounds.getMaxX() <= rect[2]) &&
+				                       (bounds.getMinY() >= rect[1]) && (bounds.getMaxY() <= rect[3]);
+				boolean boundsOutside = (bounds.getMaxX() < rect[0]) || (bounds.getMinX() > rect[2]) ||
+				                        (bounds.getMaxY() < rect[1]) || (bounds.getMinY() > rect[3]);
+				if ((boundsWithin && !isContained) || (isContained && !boundsWithin) ||
+				    (boundsWithin && !isIntersecting) || (boundsOutside && isIntersecting))
+				{
+					numWrong++;
+				}
+			}
+			check(numWrong == 0, "world rectangle "+r+" ("+numWrong+" countries wrong)");
+		}
+	}
+
+	/** Checks that each random point is assigned to the first country in the map that contains it.
+	 */
+	private void testContainingIDs()
+	{
+		int[] expected = findContainingIDs();
+		int[] ids = world.getContainingIDs(pointX, pointY);
+		int numWrong = 0, numContained = 0;
+		for (int i=0; i<NUM_POINTS; i++)
+		{
+			numWrong += (ids[i] == expected[i]) ? 0 : 1;
+			numContained += (expected[i] >= 0) ? 1 : 0;
+		}
+		check(numContained > 0, "points within countries");
+		check(numWrong == 0, "containing countries ("+numWrong+" points wrong)");
+	}
+
+	/** Checks that the numbers of points joined to each country match those found by testing every country,
+	 *  both when the join is first made and after points have been removed.
+	 */
+	private void testSpatialJoin()
+	{
+		GeoMap countries = new GeoMap(parent);
+		countries.readFile("GeoMap/data/world");
+		for (boolean usePointLayer : new boolean[] {false, true})
+		{
+			GeoMap points = readPoints(usePointLayer);
+			String label = "spatial join ("+(usePointLayer ? "point layer" : "point features")+")";
+			SpatialJoin join = new SpatialJoin(countries, points);
+			join.addCount("count");
+			check(Arrays.equals(countPoints(null), getCounts(countries, "count")), label+" counts");
+
+			// Removing the even points should be reflected when the join is repeated.
+			boolean[] removed = new boolean[NUM_POINTS];
+			for (int i=0; i<NUM_POINTS; i+=2)
+			{
+				points.getFeatures().remove(Integer.valueOf(i+1));
+				removed[i] = true;
+			}
+			join.addCount("count");
+			check(Arrays.equals(countPoints(removed), getCounts(countries, "count")), label+" counts after removal");
+		}
+	}
+
+	/** Checks that at every zoom level the clusters of the random points contain each point exactly once.
+	 */
+	private void testClusters()
+	{
+		GeoMap points = readPoints(true);
+		ClusterIndex clusters = new ClusterIndex(points, parent);
+		clusters.setMaxZoom(8);
+		clusters.build();
+		for (int zoom=0; zoom<=8; zoom++)
+		{
+			int total = 0;
+			List<Integer> ids = new ArrayList<Integer>();
+			for (int cluster=0; cluster<clusters.getNumClusters(zoom); cluster++)
+			{
+				int[] clusterIDs = clusters.getIDs(zoom, cluster);
+				total += clusters.getCount(zoom, cluster);
+				check(clusterIDs.length == clusters.getCount(zoom, cluster), "cluster "+cluster+" at zoom "+zoom+" size");
+				for (int id : clusterIDs)
+				{
+					ids.add(Integer.valueOf(id));
+				}
+			}
+			int[] allIDs = new int[ids.size()];
+			for (int i=0; i<allIDs.length; i++)
+			{
+				allIDs[i] = ids.get(i).intValue();
+			}
+			check(total == NUM_POINTS, "clusters at zoom "+zoom+" count every point");
+			check(Arrays.equals(sorted(allIDs), getPointIDs()), "clusters at zoom "+zoom+" hold every point once");
+		}
+		check(clusters.getNumClusters(0) < clusters.getNumClusters(8), "clusters divide when zoomed in");
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Reads the random points from the shapefile in which they were stored.
+	 *  @param usePointLayer True if points should be stored in a point layer rather than as separate features.
+	 *  @return GeoMap containing the points, with the point at position i having the ID i+1.
+	 */
+	private GeoMap readPoints(boolean usePointLayer)
+	{
+		GeoMap points = new GeoMap(parent);
+		points.setUsePointLayer(usePointLayer);
+		points.readFile(pointsName);
+		return points;
+	}
+
+	/** Provides a random rectangle within the bounds of the world map.
+	 *  @return Minimum x, minimum y, maximum x and maximum y coordinates of the rectangle.
+	 */
+	private float[] randomRect()
+	{
+		float width = world.getMaxGeoX()-world.getMinGeoX(), height = world.getMaxGeoY()-world.getMinGeoY();
+		float minX = world.getMinGeoX() + random.nextFloat()*width;
+		float minY = world.getMinGeoY() + random.nextFloat()*height;
+		return new float[] {minX, minY, minX + random.nextFloat()*width/4, minY + random.nextFloat()*height/4};
+	}
+
+	/** Finds the IDs of the random points still in the given map that lie within the given shape.
+	 *  @param points GeoMap holding the points.
+	 *  @param shape Shape to test.
+	 *  @return IDs of the points in the shape in ascending order.
+	 */
+	private int[] findPoints(GeoMap points, Shape shape)
+	{
+		int[] ids = new int[NUM_POINTS];
+		int numIDs = 0;
+		for (int i=0; i<NUM_POINTS; i++)
+		{
+			if (points.getFeatures().containsKey(Integer.valueOf(i+1)))
+			{
+				Rectangle2D bounds = shape.getBounds2D();
+				boolean inside = (shape instanceof Rectangle2D) ?
+				                 (pointX[i] >= bounds.getMinX()) && (pointX[i] <= bounds.getMaxX()) &&
+				                 (pointY[i] >= bounds.getMinY()) && (pointY[i] <= bounds.getMaxY()) :
+				                 shape.contains(pointX[i], pointY[i]);
+				if (inside)
+				{
+					ids[numIDs++] = i+1;
+				}
+			}
+		}
+		return Arrays.copyOf(ids, numIDs);
+	}
+
+	/** Finds the first country in the world map containing each random point by testing every country.
+	 *  @return ID of the country containing each point, or -1 if it is not within any country.
+	 */
+	private int[] findContainingIDs()
+	{
+		int[] ids = new int[NUM_POINTS];
+		Arrays.fill(ids, -1);
+		for (Map.Entry<Integer,Feature> entry : world.getFeatures().entrySet())
+		{
+			Feature feature = entry.getValue();
+			if (feature.getType() != FeatureType.POLYGON)
+			{
+				continue;
+			}
+			for (int i=0; i<NUM_POINTS; i++)
+			{
+				if ((ids[i] == -1) && feature.contains(pointX[i], pointY[i]))
+				{
+					ids[i] = entry.getKey().intValue();
+				}
+			}
+		}
+		return ids;
+	}
+
+	/** Counts the random points in each country of the world map by testing every country.
+	 *  @param removed Whether each point has been removed from the join, or null if none have.
+	 *  @return Number of points in each country, in the order of the world map's attribute table.
+	 */
+	private int[] countPoints(boolean[] removed)
+	{
+		int[] containingIDs = findContainingIDs();
+		Table attributes = world.getAttributeTable();
+		int[] counts = new int[attributes.getRowCount()];
+		for (int row=0; row<counts.length; row++)
+		{
+			int id = attributes.getInt(row, 0);
+			for (int i=0; i<NUM_POINTS; i++)
+			{
+				if ((containingIDs[i] == id) && ((removed == null) || !removed[i]))
+				{
+					counts[row]++;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/** Provides the values of an integer column of a geoMap's attribute table.
+	 *  @param geoMap GeoMap whose attributes are to be examined.
+	 *  @param title Title of the column.
+	 *  @return Values of the column in row order.
+	 */
+	private static int[] getCounts(GeoMap geoMap, String title)
+	{
+		Table attributes = geoMap.getAttributeTable();
+		int col = attributes.getColumnIndex(title);
+		int[] counts = new int[attributes.getRowCount()];
+		for (int row=0; row<counts.length; row++)
+		{
+			counts[row] = attributes.getInt(row, col);
+		}
+		return counts;
+	}
+
+	/** Provides the IDs of all the random points.
+	 *  @return IDs of the random points in ascending order.
+	 */
+	private static int[] getPointIDs()
+	{
+		int[] ids = new int[NUM_POINTS];
+		for (int i=0; i<NUM_POINTS; i++)
+		{
+			ids[i] = i+1;
+		}
+		return ids;
+	}
+
+	/** Provides a sorted copy of the given IDs.
+	 *  @param ids IDs to sort.
+	 *  @return Sorted copy of the IDs.
+	 */
+	private static int[] sorted(int[] ids)
+	{
+		int[] copy = ids.clone();
+		Arrays.sort(copy);
+		return copy;
+	}
+
+	/** Records the result of a check, reporting it if it has failed.
+	 *  @param passed True if the check passed.
+	 *  @param label Description of the check.
+	 */
+	private void check(boolean passed, String label)
+	{
+		numChecks++;
+		if (!passed)
+		{
+			numFailures++;
+			System.err.println("Failed: "+label);
+		}
+	}
+}